@@ -0,0 +1,144 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares two result files written by JMH in JSON format, and reports
+ * the benchmarks that became slower. All the benchmarks of this module
+ * measure an average time, so that a higher score is worse.
+ * <p>
+ * Usage: <code>BenchmarkCompare baseline.json current.json [threshold]</code>,
+ * where the threshold is the relative slowdown, in percent, above which a
+ * benchmark is reported as a regression (10 by default). The program
+ * exits with a non-zero status if there is at least one regression.
+ * @author Sylvain Hallé
+ */
+public class BenchmarkCompare
+{
+	/**
+	 * The default threshold, in percent
+	 */
+	protected static final double DEFAULT_THRESHOLD = 10;
+
+	/**
+	 * The prefix removed from the names of the benchmarks
+	 */
+	protected static final String s_package = BenchmarkCompare.class.getPackage().getName() + ".";
+
+	/**
+	 * Finds the name of a benchmark in a result
+	 */
+	protected static final Pattern s_namePattern = Pattern.compile("\"benchmark\"\\s*:\\s*\"([^\"]*)\"");
+
+	/**
+	 * Finds the parameters of a benchmark in a result
+	 */
+	protected static final Pattern s_paramsPattern = Pattern.compile("\"params\"\\s*:\\s*\\{([^}]*)\\}");
+
+	/**
+	 * Finds the score of a benchmark in a result
+	 */
+	protected static final Pattern s_scorePattern = Pattern.compile("\"primaryMetric\"\\s*:\\s*\\{\\s*\"score\"\\s*:\\s*([-0-9.eE+]+|\"NaN\")");
+
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length < 2)
+		{
+			System.err.println("Usage: BenchmarkCompare baseline.json current.json [threshold]");
+			System.exit(2);
+		}
+		double threshold = args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_THRESHOLD;
+		Map<String,Double> baseline = read(args[0]);
+		Map<String,Double> current = read(args[1]);
+		int regressions = 0;
+		for (Map.Entry<String,Double> e : current.entrySet())
+		{
+			Double before = baseline.get(e.getKey());
+			if (before == null)
+			{
+				System.out.println(String.format("%-60s %12s %12.2f   new", e.getKey(), "-", e.getValue()));
+				continue;
+			}
+			double change = (e.getValue() - before) / before * 100;
+			String verdict = "";
+			if (change > threshold)
+			{
+				verdict = "REGRESSION";
+				regressions++;
+			}
+			else if (change < -threshold)
+			{
+				verdict = "improved";
+			}
+			System.out.println(String.format("%-60s %12.2f %12.2f %+7.1f%% %s", e.getKey(), before, e.getValue(), change, verdict));
+		}
+		if (regressions > 0)
+		{
+			System.out.println(regressions + " benchmark(s) slower by more than " + threshold + "%");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Reads the scores in a JMH result file. The file is not parsed as a
+	 * whole: each result is located by its name, and its parameters and
+	 * score are the first ones that follow this name.
+	 * @param filename The name of the file
+	 * @return A map from the name and parameters of each benchmark to its
+	 * score
+	 * @throws IOException If the file cannot be read
+	 */
+	protected static Map<String,Double> read(String filename) throws IOException
+	{
+		String json = new String(Files.readAllBytes(Paths.get(filename)), StandardCharsets.UTF_8);
+		Map<String,Double> scores = new LinkedHashMap<String,Double>();
+		Matcher names = s_namePattern.matcher(json);
+		int start = names.find() ? names.start() : -1;
+		while (start >= 0)
+		{
+			String name = names.group(1);
+			int end = names.find() ? names.start() : -1;
+			String result = json.substring(start, end < 0 ? json.length() : end);
+			Matcher params = s_paramsPattern.matcher(result);
+			if (params.find())
+			{
+				name += " {" + params.group(1).replaceAll("\\s+", "").replace("\"", "") + "}";
+			}
+			Matcher score = s_scorePattern.matcher(result);
+			if (score.find() && !score.group(1).startsWith("\""))
+			{
+				if (name.startsWith(s_package))
+				{
+					name = name.substring(s_package.length());
+				}
+				scores.put(name, Double.parseDouble(score.group(1)));
+			}
+			start = end;
+		}
+		return scores;
+	}
+}
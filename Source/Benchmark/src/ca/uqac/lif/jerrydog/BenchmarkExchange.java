@@ -0,0 +1,124 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import com.sun.net.httpserver.Headers;
+
+/**
+ * An in-memory exchange used to drive the server in benchmarks. Unlike
+ * {@link EmptyHttpExchange}, it has request and response headers, a method
+ * and a request body, and it can be reset so that the same object is
+ * reused from one invocation to the next, keeping the allocations of the
+ * benchmark harness out of the measurements.
+ * @author Sylvain Hallé
+ */
+public class BenchmarkExchange extends EmptyHttpExchange
+{
+	/**
+	 * The headers of the request
+	 */
+	protected final Headers m_requestHeaders = new Headers();
+
+	/**
+	 * The headers of the response
+	 */
+	protected final Headers m_responseHeaders = new Headers();
+
+	/**
+	 * The method of the request
+	 */
+	protected final String m_method;
+
+	/**
+	 * The body of the request
+	 */
+	protected final byte[] m_body;
+
+	/**
+	 * Creates a GET exchange
+	 * @param request The URI of the request
+	 */
+	public BenchmarkExchange(String request)
+	{
+		this(request, "GET", new byte[0]);
+	}
+
+	/**
+	 * Creates an exchange
+	 * @param request The URI of the request
+	 * @param method The method of the request
+	 * @param body The body of the request
+	 */
+	public BenchmarkExchange(String request, String method, byte[] body)
+	{
+		super(request);
+		m_method = method;
+		m_body = body;
+	}
+
+	/**
+	 * Clears the response, so that the exchange can be processed again
+	 * @return This exchange
+	 */
+	public BenchmarkExchange reset()
+	{
+		m_responseHeaders.clear();
+		m_responseBody.reset();
+		m_responseCode = 0;
+		return this;
+	}
+
+	@Override
+	public void sendResponseHeaders(int code, long length)
+	{
+		m_responseCode = code;
+	}
+
+	@Override
+	public Headers getRequestHeaders()
+	{
+		return m_requestHeaders;
+	}
+
+	@Override
+	public Headers getResponseHeaders()
+	{
+		return m_responseHeaders;
+	}
+
+	@Override
+	public String getRequestMethod()
+	{
+		return m_method;
+	}
+
+	@Override
+	public InputStream getRequestBody()
+	{
+		return new ByteArrayInputStream(m_body);
+	}
+
+	@Override
+	public String getProtocol()
+	{
+		return "HTTP/1.1";
+	}
+}
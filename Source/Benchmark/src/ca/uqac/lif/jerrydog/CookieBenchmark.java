@@ -0,0 +1,69 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the extraction of a cookie from the <code>Cookie</code> header
+ * of a request.
+ * @author Sylvain Hallé
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CookieBenchmark
+{
+	/**
+	 * A request with a few cookies
+	 */
+	protected BenchmarkExchange m_request;
+
+	@Setup
+	public void setup()
+	{
+		m_request = new BenchmarkExchange("/");
+		m_request.getRequestHeaders().add("Cookie", "theme=dark; lang=fr; _ga=GA1.2.123456789.1700000000; session=0123456789abcdef0123456789abcdef");
+	}
+
+	@Benchmark
+	public String firstCookie()
+	{
+		return new Cookie(m_request, "theme").getValue();
+	}
+
+	@Benchmark
+	public String lastCookie()
+	{
+		return new Cookie(m_request, "session").getValue();
+	}
+}
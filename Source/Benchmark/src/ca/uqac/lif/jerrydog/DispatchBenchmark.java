@@ -0,0 +1,147 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Measures the time {@link Server#handle(HttpExchange)} takes to find the
+ * callback answering a request, process it and send the response, for a
+ * growing number of registered callbacks. The request targets the last
+ * callback registered, which is the worst case for a linear scan.
+ * @author Sylvain Hallé
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark
+{
+	/**
+	 * The number of callbacks of each kind registered to the server
+	 */
+	@Param({"1", "10", "100"})
+	public int m_callbacks;
+
+	/**
+	 * The server
+	 */
+	protected Server m_server;
+
+	/**
+	 * A request to an exact path
+	 */
+	protected BenchmarkExchange m_restRequest;
+
+	/**
+	 * A request to a path with a prefix
+	 */
+	protected BenchmarkExchange m_cleanRequest;
+
+	/**
+	 * A request that no callback accepts
+	 */
+	protected BenchmarkExchange m_missRequest;
+
+	@Setup
+	public void setup()
+	{
+		m_server = new Server();
+		for (int i = 0; i < m_callbacks; i++)
+		{
+			m_server.registerCallback(new ConstantRestCallback("/rest/" + i));
+			m_server.registerCallback(new ConstantCleanCallback("/clean/" + i));
+		}
+		int last = m_callbacks - 1;
+		m_restRequest = new BenchmarkExchange("/rest/" + last + "?a=1");
+		m_cleanRequest = new BenchmarkExchange("/clean/" + last + "/x/y");
+		m_missRequest = new BenchmarkExchange("/nowhere");
+	}
+
+	@Benchmark
+	public int restCallback() throws IOException
+	{
+		m_server.handle(m_restRequest.reset());
+		return m_restRequest.getResponseCode();
+	}
+
+	@Benchmark
+	public int cleanCallback() throws IOException
+	{
+		m_server.handle(m_cleanRequest.reset());
+		return m_cleanRequest.getResponseCode();
+	}
+
+	@Benchmark
+	public int noCallback() throws IOException
+	{
+		m_server.handle(m_missRequest.reset());
+		return m_missRequest.getResponseCode();
+	}
+
+	/**
+	 * A REST callback that sends a constant response
+	 */
+	protected static class ConstantRestCallback extends RestCallback
+	{
+		public ConstantRestCallback(String path)
+		{
+			super(Method.GET, path);
+		}
+
+		@Override
+		public CallbackResponse process(HttpExchange t)
+		{
+			return new CallbackResponse(t, CallbackResponse.HTTP_OK, "OK", CallbackResponse.ContentType.TEXT);
+		}
+	}
+
+	/**
+	 * A clean REST callback that sends a constant response
+	 */
+	protected static class ConstantCleanCallback extends RestCleanCallback
+	{
+		public ConstantCleanCallback(String path)
+		{
+			super(Method.GET, path);
+		}
+
+		@Override
+		public CallbackResponse process(HttpExchange t)
+		{
+			return new CallbackResponse(t, CallbackResponse.HTTP_OK, "OK", CallbackResponse.ContentType.TEXT);
+		}
+	}
+}
@@ -0,0 +1,623 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An open-loop HTTP client that sends requests at a constant rate,
+ * whatever the time the server takes to answer them. The requests are
+ * spread over a fixed number of persistent connections; the
+ * <i>i</i>-th request is due at <i>start</i> + <i>i</i> / <i>rate</i>,
+ * and is sent on connection <i>i</i> mod <i>connections</i>.
+ * <p>
+ * A closed-loop client, which waits for a response before sending the
+ * next request, slows down exactly when the server does, and thus never
+ * sends the requests that would have measured the stall: this is the
+ * <i>coordinated omission</i> problem. To correct it, the latency of a
+ * request is measured from the time it was due, and not from the time it
+ * was actually written to a connection that was still busy. Both values
+ * are recorded, so that the effect of the correction can be seen.
+ * <p>
+ * The client only speaks the small subset of HTTP/1.1 needed to read the
+ * responses of a {@link Server}: a status line, headers, and a body
+ * delimited either by a <code>Content-Length</code> or by chunked encoding.
+ * @author Sylvain Hallé
+ */
+public class LoadGenerator
+{
+	/**
+	 * The address of the server
+	 */
+	protected final InetSocketAddress m_address;
+
+	/**
+	 * The paths requested, in turn
+	 */
+	protected final String[] m_paths;
+
+	/**
+	 * The number of requests per second
+	 */
+	protected final double m_rate;
+
+	/**
+	 * The number of connections
+	 */
+	protected final int m_connections;
+
+	/**
+	 * Latencies measured from the time each request was due
+	 */
+	protected final LatencyHistogram m_corrected = new LatencyHistogram();
+
+	/**
+	 * Latencies measured from the time each request was sent
+	 */
+	protected final LatencyHistogram m_uncorrected = new LatencyHistogram();
+
+	/**
+	 * The number of responses with a status code of 400 or more
+	 */
+	protected final AtomicLong m_errors = new AtomicLong();
+
+	/**
+	 * The number of requests that failed because of an I/O error
+	 */
+	protected final AtomicLong m_ioErrors = new AtomicLong();
+
+	/**
+	 * The number of requests that were due but never sent
+	 */
+	protected final AtomicLong m_unsent = new AtomicLong();
+
+	/**
+	 * The number of bytes received
+	 */
+	protected final AtomicLong m_bytes = new AtomicLong();
+
+	/**
+	 * The time at which the last measured response was received
+	 */
+	protected final AtomicLong m_lastResponse = new AtomicLong();
+
+	/**
+	 * The time at which measurements start
+	 */
+	protected long m_measureStart;
+
+	/**
+	 * Creates a load generator
+	 * @param address The address of the server
+	 * @param paths The paths requested, in turn
+	 * @param rate The number of requests per second
+	 * @param connections The number of connections
+	 */
+	public LoadGenerator(InetSocketAddress address, List<String> paths, double rate, int connections)
+	{
+		super();
+		if (paths.isEmpty() || rate <= 0 || connections < 1)
+		{
+			throw new IllegalArgumentException("At least one path, a positive rate and one connection are required");
+		}
+		m_address = address;
+		m_paths = paths.toArray(new String[paths.size()]);
+		m_rate = rate;
+		m_connections = connections;
+	}
+
+	/**
+	 * Sends requests and waits until all of them are answered
+	 * @param warmup The time, in milliseconds, during which requests are
+	 * sent but not measured
+	 * @param duration The time, in milliseconds, during which requests are
+	 * measured
+	 * @param grace The time, in milliseconds, given after the end of the
+	 * run to the requests that are late. The requests still not sent after
+	 * this time are counted as unsent.
+	 * @throws InterruptedException If the thread is interrupted while
+	 * waiting for the connections
+	 */
+	public void run(long warmup, long duration, long grace) throws InterruptedException
+	{
+		long period = (long) (1000000000d / m_rate);
+		long start = System.nanoTime() + 10000000L;
+		m_measureStart = start + warmup * 1000000L;
+		long end = m_measureStart + duration * 1000000L;
+		long deadline = end + grace * 1000000L;
+		m_lastResponse.set(m_measureStart);
+		CountDownLatch done = new CountDownLatch(m_connections);
+		for (int k = 0; k < m_connections; k++)
+		{
+			Thread t = new Thread(new ConnectionLoop(k, start, period, end, deadline, done), "jerrydog-load-" + k);
+			t.setDaemon(true);
+			t.start();
+		}
+		done.await();
+	}
+
+	/**
+	 * Gets the latencies measured from the time each request was due
+	 * @return The histogram
+	 */
+	public LatencyHistogram getCorrected()
+	{
+		return m_corrected;
+	}
+
+	/**
+	 * Gets the latencies measured from the time each request was sent
+	 * @return The histogram
+	 */
+	public LatencyHistogram getUncorrected()
+	{
+		return m_uncorrected;
+	}
+
+	/**
+	 * Gets the number of measured responses with a status code of 400 or
+	 * more
+	 * @return The number of responses
+	 */
+	public long getErrorCount()
+	{
+		return m_errors.get();
+	}
+
+	/**
+	 * Gets the number of measured requests that failed because of an I/O
+	 * error
+	 * @return The number of requests
+	 */
+	public long getIoErrorCount()
+	{
+		return m_ioErrors.get();
+	}
+
+	/**
+	 * Gets the number of requests that were due but never sent
+	 * @return The number of requests
+	 */
+	public long getUnsentCount()
+	{
+		return m_unsent.get();
+	}
+
+	/**
+	 * Gets the number of bytes received in measured responses
+	 * @return The number of bytes
+	 */
+	public long getBytes()
+	{
+		return m_bytes.get();
+	}
+
+	/**
+	 * Gets the number of measured responses per second, from the start of
+	 * the measurements to the last measured response
+	 * @return The throughput
+	 */
+	public double getThroughput()
+	{
+		long elapsed = m_lastResponse.get() - m_measureStart;
+		return elapsed <= 0 ? 0 : m_corrected.getCount() * 1000000000d / elapsed;
+	}
+
+	/**
+	 * Records the outcome of a request
+	 * @param due The time at which the request was due
+	 * @param sent The time at which the request was sent
+	 * @param code The status code of the response, or -1 on an I/O error
+	 * @param bytes The number of bytes of the response
+	 */
+	protected void record(long due, long sent, int code, long bytes)
+	{
+		if (due < m_measureStart)
+		{
+			return;
+		}
+		long now = System.nanoTime();
+		if (code < 0)
+		{
+			m_ioErrors.incrementAndGet();
+			return;
+		}
+		if (code >= 400)
+		{
+			m_errors.incrementAndGet();
+		}
+		m_corrected.recordNanos(now - due);
+		m_uncorrected.recordNanos(now - sent);
+		m_bytes.addAndGet(bytes);
+		long last = m_lastResponse.get();
+		while (now > last && !m_lastResponse.compareAndSet(last, now))
+		{
+			last = m_lastResponse.get();
+		}
+	}
+
+	/**
+	 * Sends the requests assigned to one connection
+	 */
+	protected class ConnectionLoop implements Runnable
+	{
+		/**
+		 * The index of the connection
+		 */
+		protected final int m_index;
+
+		/**
+		 * The time at which the first request is due
+		 */
+		protected final long m_start;
+
+		/**
+		 * The time between two requests, over all connections
+		 */
+		protected final long m_period;
+
+		/**
+		 * The time after which no more requests are due
+		 */
+		protected final long m_end;
+
+		/**
+		 * The time after which late requests are abandoned
+		 */
+		protected final long m_deadline;
+
+		/**
+		 * Counted down when the loop ends
+		 */
+		protected final CountDownLatch m_done;
+
+		/**
+		 * The connection, or null if it must be opened
+		 */
+		protected HttpConnection m_connection = null;
+
+		public ConnectionLoop(int index, long start, long period, long end, long deadline, CountDownLatch done)
+		{
+			super();
+			m_index = index;
+			m_start = start;
+			m_period = period;
+			m_end = end;
+			m_deadline = deadline;
+			m_done = done;
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				for (long i = m_index; ; i += m_connections)
+				{
+					long due = m_start + i * m_period;
+					if (due >= m_end)
+					{
+						break;
+					}
+					long now = waitUntil(due);
+					if (now >= m_deadline)
+					{
+						m_unsent.addAndGet((m_end - due + m_period * m_connections - 1) / (m_period * m_connections));
+						break;
+					}
+					String path = m_paths[(int) (i % m_paths.length)];
+					int code = -1;
+					long bytes = 0;
+					try
+					{
+						if (m_connection == null)
+						{
+							m_connection = new HttpConnection(m_address);
+						}
+						code = m_connection.get(path);
+						bytes = m_connection.getLastLength();
+						if (!m_connection.isOpen())
+						{
+							m_connection.close();
+							m_connection = null;
+						}
+					}
+					catch (IOException e)
+					{
+						if (m_connection != null)
+						{
+							m_connection.close();
+							m_connection = null;
+						}
+					}
+					record(due, now, code, bytes);
+				}
+			}
+			finally
+			{
+				if (m_connection != null)
+				{
+					m_connection.close();
+				}
+				m_done.countDown();
+			}
+		}
+
+		/**
+		 * Waits until a given time
+		 * @param time The time, as given by {@link System#nanoTime()}
+		 * @return The current time
+		 */
+		protected long waitUntil(long time)
+		{
+			long now = System.nanoTime();
+			while (now < time)
+			{
+				LockSupport.parkNanos(time - now);
+				now = System.nanoTime();
+			}
+			return now;
+		}
+	}
+
+	/**
+	 * A persistent HTTP/1.1 connection
+	 */
+	protected static class HttpConnection
+	{
+		/**
+		 * The socket
+		 */
+		protected final Socket m_socket;
+
+		/**
+		 * The stream the requests are written to
+		 */
+		protected final OutputStream m_out;
+
+		/**
+		 * The stream the responses are read from
+		 */
+		protected final InputStream m_in;
+
+		/**
+		 * The value of the <code>Host</code> header
+		 */
+		protected final String m_host;
+
+		/**
+		 * Whether the server keeps the connection open after the last
+		 * response
+		 */
+		protected boolean m_open = true;
+
+		/**
+		 * The length of the body of the last response
+		 */
+		protected long m_lastLength = 0;
+
+		/**
+		 * A buffer used to skip bodies
+		 */
+		protected final byte[] m_buffer = new byte[8192];
+
+		/**
+		 * Opens a connection
+		 * @param address The address of the server
+		 * @throws IOException If the connection cannot be opened
+		 */
+		public HttpConnection(InetSocketAddress address) throws IOException
+		{
+			super();
+			m_socket = new Socket();
+			m_socket.setTcpNoDelay(true);
+			m_socket.connect(address, 10000);
+			m_out = m_socket.getOutputStream();
+			m_in = new BufferedInputStream(m_socket.getInputStream());
+			m_host = address.getHostString() + ":" + address.getPort();
+		}
+
+		/**
+		 * Sends a GET request and reads the response
+		 * @param path The path, with its query
+		 * @return The status code of the response
+		 * @throws IOException If the request cannot be sent or the response
+		 * cannot be read
+		 */
+		public int get(String path) throws IOException
+		{
+			m_out.write(("GET " + path + " HTTP/1.1\r\nHost: " + m_host + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+			m_out.flush();
+			String status = readLine();
+			if (status == null || !status.startsWith("HTTP/1."))
+			{
+				throw new IOException("Invalid status line: " + status);
+			}
+			int code = Integer.parseInt(status.substring(9, 12));
+			long length = -1;
+			boolean chunked = false;
+			m_open = !status.startsWith("HTTP/1.0");
+			String line;
+			while ((line = readLine()) != null && !line.isEmpty())
+			{
+				int colon = line.indexOf(':');
+				if (colon < 0)
+				{
+					continue;
+				}
+				String name = line.substring(0, colon).trim();
+				String value = line.substring(colon + 1).trim();
+				if (name.equalsIgnoreCase("Content-Length"))
+				{
+					length = Long.parseLong(value);
+				}
+				else if (name.equalsIgnoreCase("Transfer-Encoding"))
+				{
+					chunked = value.toLowerCase().contains("chunked");
+				}
+				else if (name.equalsIgnoreCase("Connection"))
+				{
+					m_open = !value.equalsIgnoreCase("close");
+				}
+			}
+			if (line == null)
+			{
+				throw new IOException("Connection closed in the headers");
+			}
+			if (chunked)
+			{
+				m_lastLength = 0;
+				long size;
+				while ((size = Long.parseLong(trimExtension(readLine()), 16)) > 0)
+				{
+					skip(size);
+					readLine();
+					m_lastLength += size;
+				}
+				// Trailers
+				while ((line = readLine()) != null && !line.isEmpty())
+				{
+					// Ignore
+				}
+			}
+			else if (length >= 0)
+			{
+				skip(length);
+				m_lastLength = length;
+			}
+			else if (code != 204 && code != 304 && code >= 200)
+			{
+				// The body ends with the connection
+				m_lastLength = 0;
+				int len;
+				while ((len = m_in.read(m_buffer)) >= 0)
+				{
+					m_lastLength += len;
+				}
+				m_open = false;
+			}
+			else
+			{
+				m_lastLength = 0;
+			}
+			return code;
+		}
+
+		/**
+		 * Gets the length of the body of the last response
+		 * @return The number of bytes
+		 */
+		public long getLastLength()
+		{
+			return m_lastLength;
+		}
+
+		/**
+		 * Determines whether the connection can be used for another request
+		 * @return true if the connection is still open
+		 */
+		public boolean isOpen()
+		{
+			return m_open;
+		}
+
+		/**
+		 * Closes the connection
+		 */
+		public void close()
+		{
+			try
+			{
+				m_socket.close();
+			}
+			catch (IOException e)
+			{
+				// Nothing to do
+			}
+		}
+
+		/**
+		 * Reads a line ending with CRLF
+		 * @return The line, without its end, or null at the end of the stream
+		 * @throws IOException If the line cannot be read
+		 */
+		protected String readLine() throws IOException
+		{
+			StringBuilder sb = new StringBuilder();
+			int c;
+			while ((c = m_in.read()) >= 0)
+			{
+				if (c == '\n')
+				{
+					int len = sb.length();
+					if (len > 0 && sb.charAt(len - 1) == '\r')
+					{
+						sb.setLength(len - 1);
+					}
+					return sb.toString();
+				}
+				sb.append((char) c);
+			}
+			return sb.length() == 0 ? null : sb.toString();
+		}
+
+		/**
+		 * Skips bytes of the response
+		 * @param length The number of bytes
+		 * @throws IOException If the connection closes before
+		 */
+		protected void skip(long length) throws IOException
+		{
+			while (length > 0)
+			{
+				int len = m_in.read(m_buffer, 0, (int) Math.min(m_buffer.length, length));
+				if (len < 0)
+				{
+					throw new IOException("Connection closed in the body");
+				}
+				length -= len;
+			}
+		}
+
+		/**
+		 * Removes the extensions from the size line of a chunk
+		 * @param line The line
+		 * @return The size
+		 * @throws IOException If the line is missing
+		 */
+		protected static String trimExtension(String line) throws IOException
+		{
+			if (line == null)
+			{
+				throw new IOException("Connection closed in a chunk");
+			}
+			int semicolon = line.indexOf(';');
+			return (semicolon < 0 ? line : line.substring(0, semicolon)).trim();
+		}
+	}
+}
@@ -0,0 +1,431 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Starts a {@link Server} with sample callbacks, drives it over localhost
+ * with a {@link LoadGenerator}, and reports the throughput and the
+ * latency percentiles. Options are given as <code>--name=value</code>:
+ * <ul>
+ * <li><code>scenario</code>: the requests sent; one of <code>rest</code>
+ * (small JSON documents), <code>static</code> (files of a few sizes served
+ * by a {@link FileCallback}), <code>slow</code> (a callback that blocks
+ * for <code>slow-ms</code> milliseconds) or <code>mixed</code> (mostly
+ * REST, with some static and some slow requests). Default: rest.</li>
+ * <li><code>rate</code>: the number of requests per second (default 1000)</li>
+ * <li><code>duration</code>: the measured time, in seconds (default 10)</li>
+ * <li><code>warmup</code>: the time, in seconds, during which requests
+ * are sent but not measured (default 3)</li>
+ * <li><code>connections</code>: the number of connections (default 16)</li>
+ * <li><code>workers</code>: the {@link WorkerPool} of the server; one of
+ * <code>none</code>, <code>fixed</code>, <code>work_stealing</code> or
+ * <code>virtual</code> (default fixed)</li>
+ * <li><code>slow-ms</code>: the time the slow callback blocks (default 20)</li>
+ * <li><code>nodelay</code>: whether the server disables Nagle's algorithm
+ * on its connections; see {@link Server#setNoDelay(boolean)} (default true)</li>
+ * <li><code>backlog</code>: the accept backlog of the server; see
+ * {@link Server#setBacklog(int)} (default 0, the system default)</li>
+ * <li><code>transport</code>: the {@link Transport} of the server, either
+ * <code>jdk</code> or <code>nio</code> (default jdk)</li>
+ * <li><code>output</code>: a file where the report is also written in
+ * JSON format</li>
+ * </ul>
+ * Latencies are reported both corrected for coordinated omission (from
+ * the time each request was due) and uncorrected (from the time it was
+ * sent); only the former reflects what users of an overloaded server
+ * would see.
+ * @author Sylvain Hallé
+ */
+public class LoadTest
+{
+	/**
+	 * The percentiles reported
+	 */
+	protected static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+	/**
+	 * The sizes of the static files, in bytes
+	 */
+	protected static final int[] FILE_SIZES = {1024, 16 * 1024, 256 * 1024};
+
+	public static void main(String[] args) throws Exception
+	{
+		Map<String,String> options = parseOptions(args);
+		String scenario = options.containsKey("scenario") ? options.get("scenario") : "rest";
+		double rate = Double.parseDouble(get(options, "rate", "1000"));
+		long duration = Long.parseLong(get(options, "duration", "10"));
+		long warmup = Long.parseLong(get(options, "warmup", "3"));
+		int connections = Integer.parseInt(get(options, "connections", "16"));
+		String workers = get(options, "workers", "fixed");
+		String transport = get(options, "transport", "jdk");
+		int slow_ms = Integer.parseInt(get(options, "slow-ms", "20"));
+		File root = createStaticFiles();
+		Server server = createServer(root, slow_ms);
+		if (workers.compareToIgnoreCase("none") != 0)
+		{
+			server.setWorkerMode(WorkerPool.Mode.valueOf(workers.toUpperCase(Locale.ROOT)));
+		}
+		server.setNoDelay(Boolean.parseBoolean(get(options, "nodelay", "true")));
+		server.setBacklog(Integer.parseInt(get(options, "backlog", "0")));
+		if (transport.compareToIgnoreCase("nio") == 0)
+		{
+			server.setTransport(new NioTransport());
+		}
+		int port = findFreePort();
+		server.setServerPort(port);
+		server.startServer();
+		try
+		{
+			LoadGenerator gen = new LoadGenerator(new InetSocketAddress("127.0.0.1", port), getPaths(scenario), rate, connections);
+			System.out.println(String.format(Locale.ROOT, "Scenario %s, %.0f req/s over %d connections, workers %s, transport %s, %ds warmup + %ds",
+					scenario, rate, connections, workers, transport, warmup, duration));
+			gen.run(warmup * 1000, duration * 1000, Math.max(5000, duration * 1000));
+			printReport(gen, System.out);
+			System.out.println("Server connections: " + server.getConnections());
+			if (options.containsKey("output"))
+			{
+				OutputStream os = new FileOutputStream(options.get("output"));
+				try
+				{
+					PrintStream ps = new PrintStream(os, false, "UTF-8");
+					printJson(gen, scenario, rate, connections, workers, ps);
+					ps.flush();
+				}
+				finally
+				{
+					os.close();
+				}
+			}
+		}
+		finally
+		{
+			server.stopServer();
+			deleteAll(root);
+		}
+	}
+
+	/**
+	 * Creates the server under test
+	 * @param root The folder of the static files
+	 * @param slow_ms The time the slow callback blocks, in milliseconds
+	 * @return The server
+	 * @throws IOException If the folder cannot be resolved
+	 */
+	public static Server createServer(File root, int slow_ms) throws IOException
+	{
+		Server server = new Server();
+		server.registerCallback(new JsonCallback());
+		server.registerCallback(new SlowCallback(slow_ms));
+		server.registerCallback(new FileCallback("/static", root));
+		return server;
+	}
+
+	/**
+	 * Gets the paths requested in a scenario
+	 * @param scenario The name of the scenario
+	 * @return The paths, requested in turn
+	 */
+	public static List<String> getPaths(String scenario)
+	{
+		List<String> paths = new ArrayList<String>();
+		if (scenario.compareTo("rest") == 0)
+		{
+			for (int i = 0; i < 10; i++)
+			{
+				paths.add("/api/item?id=" + i);
+			}
+		}
+		else if (scenario.compareTo("static") == 0)
+		{
+			for (int size : FILE_SIZES)
+			{
+				paths.add("/static/file-" + size + ".html");
+			}
+		}
+		else if (scenario.compareTo("slow") == 0)
+		{
+			paths.add("/api/slow");
+		}
+		else if (scenario.compareTo("mixed") == 0)
+		{
+			// 16 REST requests, 3 static files and 1 slow request
+			for (int i = 0; i < 16; i++)
+			{
+				paths.add("/api/item?id=" + i);
+			}
+			for (int size : FILE_SIZES)
+			{
+				paths.add("/static/file-" + size + ".html");
+			}
+			paths.add("/api/slow");
+		}
+		else
+		{
+			throw new IllegalArgumentException("Unknown scenario " + scenario);
+		}
+		return paths;
+	}
+
+	/**
+	 * Prints a report in text format
+	 * @param gen The load generator, after its run
+	 * @param out The stream to print to
+	 */
+	public static void printReport(LoadGenerator gen, PrintStream out)
+	{
+		LatencyHistogram corrected = gen.getCorrected();
+		LatencyHistogram uncorrected = gen.getUncorrected();
+		out.println(String.format(Locale.ROOT, "Responses: %d (%d errors, %d I/O errors, %d unsent)",
+				corrected.getCount(), gen.getErrorCount(), gen.getIoErrorCount(), gen.getUnsentCount()));
+		out.println(String.format(Locale.ROOT, "Throughput: %.1f req/s, %.2f MB/s", gen.getThroughput(),
+				gen.getThroughput() * (corrected.getCount() == 0 ? 0 : (double) gen.getBytes() / corrected.getCount()) / 1000000));
+		out.println(String.format(Locale.ROOT, "%-12s %12s %12s", "Latency (ms)", "corrected", "uncorrected"));
+		out.println(String.format(Locale.ROOT, "%-12s %12.3f %12.3f", "mean", corrected.getMeanMicros() / 1000, uncorrected.getMeanMicros() / 1000));
+		for (double q : QUANTILES)
+		{
+			out.println(String.format(Locale.ROOT, "%-12s %12.3f %12.3f", getLabel(q),
+					corrected.getQuantileMicros(q) / 1000d, uncorrected.getQuantileMicros(q) / 1000d));
+		}
+		out.println(String.format(Locale.ROOT, "%-12s %12.3f %12.3f", "max", corrected.getMaxMicros() / 1000d, uncorrected.getMaxMicros() / 1000d));
+	}
+
+	/**
+	 * Prints a report in JSON format
+	 * @param gen The load generator, after its run
+	 * @param scenario The name of the scenario
+	 * @param rate The requested rate
+	 * @param connections The number of connections
+	 * @param workers The worker pool of the server
+	 * @param out The stream to print to
+	 */
+	public static void printJson(LoadGenerator gen, String scenario, double rate, int connections, String workers, PrintStream out)
+	{
+		LatencyHistogram corrected = gen.getCorrected();
+		out.println("{");
+		out.println("  \"scenario\": \"" + scenario + "\",");
+		out.println("  \"workers\": \"" + workers + "\",");
+		out.println("  \"connections\": " + connections + ",");
+		out.println(String.format(Locale.ROOT, "  \"rate\": %.1f,", rate));
+		out.println(String.format(Locale.ROOT, "  \"throughput\": %.1f,", gen.getThroughput()));
+		out.println("  \"responses\": " + corrected.getCount() + ",");
+		out.println("  \"errors\": " + (gen.getErrorCount() + gen.getIoErrorCount()) + ",");
+		out.println("  \"unsent\": " + gen.getUnsentCount() + ",");
+		out.println("  \"latency_us\": {");
+		for (double q : QUANTILES)
+		{
+			out.println("    \"" + getLabel(q) + "\": " + corrected.getQuantileMicros(q) + ",");
+		}
+		out.println("    \"max\": " + corrected.getMaxMicros());
+		out.println("  },");
+		out.println("  \"uncorrected_latency_us\": {");
+		for (double q : QUANTILES)
+		{
+			out.println("    \"" + getLabel(q) + "\": " + gen.getUncorrected().getQuantileMicros(q) + ",");
+		}
+		out.println("    \"max\": " + gen.getUncorrected().getMaxMicros());
+		out.println("  }");
+		out.println("}");
+	}
+
+	/**
+	 * Gets the name of a percentile, such as "p99" or "p999"
+	 * @param q The percentile, as a fraction
+	 * @return The name
+	 */
+	protected static String getLabel(double q)
+	{
+		String digits = String.format(Locale.ROOT, "%.3f", q).substring(2);
+		while (digits.length() > 2 && digits.endsWith("0"))
+		{
+			digits = digits.substring(0, digits.length() - 1);
+		}
+		return "p" + digits;
+	}
+
+	/**
+	 * Parses options of the form <code>--name=value</code>
+	 * @param args The command line arguments
+	 * @return A map from option names to values
+	 */
+	protected static Map<String,String> parseOptions(String[] args)
+	{
+		Map<String,String> options = new HashMap<String,String>();
+		for (String arg : args)
+		{
+			if (!arg.startsWith("--"))
+			{
+				throw new IllegalArgumentException("Invalid option " + arg);
+			}
+			int equals = arg.indexOf('=');
+			if (equals < 0)
+			{
+				options.put(arg.substring(2), "");
+			}
+			else
+			{
+				options.put(arg.substring(2, equals), arg.substring(equals + 1));
+			}
+		}
+		return options;
+	}
+
+	/**
+	 * Gets the value of an option
+	 * @param options The options
+	 * @param name The name of the option
+	 * @param def The default value
+	 * @return The value
+	 */
+	protected static String get(Map<String,String> options, String name, String def)
+	{
+		String value = options.get(name);
+		return value == null || value.isEmpty() ? def : value;
+	}
+
+	/**
+	 * Finds a free TCP port on the local host
+	 * @return The port number
+	 * @throws IOException If no port can be found
+	 */
+	protected static int findFreePort() throws IOException
+	{
+		ServerSocket s = new ServerSocket(0);
+		try
+		{
+			return s.getLocalPort();
+		}
+		finally
+		{
+			s.close();
+		}
+	}
+
+	/**
+	 * Creates a temporary folder with the static files
+	 * @return The folder
+	 * @throws IOException If the files cannot be written
+	 */
+	protected static File createStaticFiles() throws IOException
+	{
+		File root = File.createTempFile("jerrydog-load", "");
+		root.delete();
+		root.mkdir();
+		for (int size : FILE_SIZES)
+		{
+			byte[] contents = new byte[size];
+			for (int i = 0; i < size; i++)
+			{
+				contents[i] = (byte) (i % 64 == 63 ? '\n' : 'a' + i % 26);
+			}
+			OutputStream os = new FileOutputStream(new File(root, "file-" + size + ".html"));
+			try
+			{
+				os.write(contents);
+			}
+			finally
+			{
+				os.close();
+			}
+		}
+		return root;
+	}
+
+	/**
+	 * Deletes a folder and its contents
+	 * @param folder The folder
+	 */
+	protected static void deleteAll(File folder)
+	{
+		File[] files = folder.listFiles();
+		if (files != null)
+		{
+			for (File f : files)
+			{
+				f.delete();
+			}
+		}
+		folder.delete();
+	}
+
+	/**
+	 * Answers with a small JSON document
+	 */
+	protected static class JsonCallback extends RestCallback
+	{
+		public JsonCallback()
+		{
+			super(Method.GET, "/api/item");
+		}
+
+		@Override
+		public CallbackResponse process(HttpExchange t)
+		{
+			String id = getParameters(t).get("id");
+			String json = "{\"id\":" + id + ",\"name\":\"Item " + id + "\",\"price\":" + (id == null ? 0 : id.length() * 1.25)
+					+ ",\"tags\":[\"load\",\"test\"],\"available\":true}";
+			return new CallbackResponse(t, CallbackResponse.HTTP_OK, json, CallbackResponse.ContentType.JSON);
+		}
+	}
+
+	/**
+	 * Blocks for some time before answering, as a callback waiting for a
+	 * database or another service would
+	 */
+	protected static class SlowCallback extends RestCallback
+	{
+		/**
+		 * The time to block, in milliseconds
+		 */
+		protected final int m_delay;
+
+		public SlowCallback(int delay)
+		{
+			super(Method.GET, "/api/slow");
+			m_delay = delay;
+		}
+
+		@Override
+		public CallbackResponse process(HttpExchange t)
+		{
+			try
+			{
+				Thread.sleep(m_delay);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			return new CallbackResponse(t, CallbackResponse.HTTP_OK, "{\"slow\":true}", CallbackResponse.ContentType.JSON);
+		}
+	}
+}
@@ -0,0 +1,152 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import ca.uqac.lif.jerrydog.RequestCallback.Method;
+
+/**
+ * Measures the parsing of request parameters: raw queries with
+ * {@link Server#queryToMap(String, Method)}, and the parameters of a
+ * {@link RestCleanCallback}, with and without a path template.
+ * @author Sylvain Hallé
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParametersBenchmark
+{
+	/**
+	 * A typical short query
+	 */
+	protected static final String SHORT_QUERY = "id=42&sort=name&page=3";
+
+	/**
+	 * A query with escaped characters and repeated parameters
+	 */
+	protected static final String ENCODED_QUERY = "q=caf%C3%A9+au+lait&tag=a&tag=b&tag=c&redirect=%2Fhome%3Fx%3D1";
+
+	/**
+	 * A query with many parameters
+	 */
+	protected String m_longQuery;
+
+	/**
+	 * A callback whose parameters come from the path
+	 */
+	protected RestCleanCallback m_cleanCallback;
+
+	/**
+	 * A callback whose parameters come from a path template
+	 */
+	protected RestCleanCallback m_templateCallback;
+
+	/**
+	 * The request to the first callback
+	 */
+	protected BenchmarkExchange m_cleanRequest;
+
+	/**
+	 * The request to the second callback
+	 */
+	protected BenchmarkExchange m_templateRequest;
+
+	@Setup
+	public void setup()
+	{
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 100; i++)
+		{
+			if (i > 0)
+			{
+				sb.append('&');
+			}
+			sb.append("param").append(i).append('=').append(i);
+		}
+		m_longQuery = sb.toString();
+		m_cleanCallback = new NullCleanCallback("/users");
+		m_templateCallback = new NullCleanCallback("/users/{id:int}/posts/{slug}");
+		m_cleanRequest = new BenchmarkExchange("/users/42/posts/hello?sort=name&page=3");
+		m_templateRequest = new BenchmarkExchange("/users/42/posts/hello?sort=name&page=3");
+	}
+
+	@Benchmark
+	public Map<String,String> shortQuery()
+	{
+		return Server.queryToMap(SHORT_QUERY, Method.GET);
+	}
+
+	@Benchmark
+	public Map<String,String> encodedQuery()
+	{
+		return Server.queryToMap(ENCODED_QUERY, Method.GET);
+	}
+
+	@Benchmark
+	public Map<String,String> longQuery()
+	{
+		return Server.queryToMap(m_longQuery, Method.GET);
+	}
+
+	@Benchmark
+	public Map<String,String> cleanParameters()
+	{
+		return m_cleanCallback.getParameters(m_cleanRequest);
+	}
+
+	@Benchmark
+	public Map<String,String> templateParameters()
+	{
+		return m_templateCallback.getParameters(m_templateRequest);
+	}
+
+	/**
+	 * A clean REST callback that does nothing
+	 */
+	protected static class NullCleanCallback extends RestCleanCallback
+	{
+		public NullCleanCallback(String path)
+		{
+			super(Method.GET, path);
+		}
+
+		@Override
+		public CallbackResponse process(HttpExchange t)
+		{
+			return null;
+		}
+	}
+}
@@ -0,0 +1,99 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the construction of a {@link CallbackResponse} and the work of
+ * {@link Server#sendResponse(CallbackResponse)}: copying the headers,
+ * encoding the contents and writing them to the exchange.
+ * @author Sylvain Hallé
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseBenchmark
+{
+	/**
+	 * The size of the response body, in characters
+	 */
+	@Param({"16", "4096"})
+	public int m_size;
+
+	/**
+	 * The server
+	 */
+	protected Server m_server;
+
+	/**
+	 * The exchange the responses are written to
+	 */
+	protected BenchmarkExchange m_exchange;
+
+	/**
+	 * The body of the responses
+	 */
+	protected String m_body;
+
+	@Setup
+	public void setup()
+	{
+		m_server = new Server();
+		m_exchange = new BenchmarkExchange("/");
+		StringBuilder sb = new StringBuilder(m_size);
+		for (int i = 0; i < m_size; i++)
+		{
+			sb.append((char) ('a' + i % 26));
+		}
+		m_body = sb.toString();
+	}
+
+	@Benchmark
+	public CallbackResponse construct()
+	{
+		CallbackResponse cbr = new CallbackResponse(m_exchange, CallbackResponse.HTTP_OK, m_body, CallbackResponse.ContentType.HTML);
+		cbr.disableCaching();
+		return cbr;
+	}
+
+	@Benchmark
+	public int constructAndSend()
+	{
+		m_exchange.reset();
+		CallbackResponse cbr = new CallbackResponse(m_exchange, CallbackResponse.HTTP_OK, m_body, CallbackResponse.ContentType.HTML);
+		cbr.disableCaching();
+		m_server.sendResponse(cbr);
+		return m_exchange.getResponseCode();
+	}
+}
@@ -0,0 +1,66 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import java.util.concurrent.CompletableFuture;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * A callback whose response is produced asynchronously. When a callback
+ * that implements this interface accepts a request, the {@link Server}
+ * calls {@link #processAsync(HttpExchange) processAsync()} instead of
+ * {@link RequestCallback#process(HttpExchange) process()}, and releases the
+ * thread that called it right away; the response is sent once the future
+ * completes, on the thread that completes it.
+ * <ul>
+ * <li>If the future completes with an {@link HttpException}, the client
+ * receives a response with the exception's status code; any other
+ * exception produces a 500 Internal Server Error</li>
+ * <li>If it completes with null, the client receives a 400 Bad Request,
+ * as when no callback answers a request</li>
+ * <li>If it does not complete within the time given by
+ * {@link #getTimeout()}, the client receives a 504 Gateway Timeout, and
+ * the future is cancelled</li>
+ * </ul>
+ * Cancelling a {@link CompletableFuture} does not interrupt the task that
+ * was to complete it: that task keeps running after a timeout, and its
+ * result is discarded. Long computations should therefore check
+ * {@link CompletableFuture#isCancelled() isCancelled()} on the future
+ * they returned from time to time, or stop through a cancellation
+ * mechanism of their own.
+ * @see AsyncRestCallback
+ * @author Sylvain Hallé
+ */
+public interface AsyncCallback
+{
+	/**
+	 * Processes an HTTP request and prepares an HTTP response
+	 * @param t The exchange
+	 * @return A future completed with the response, or null if this callback
+	 * does not answer the request after all, in which case the server tries
+	 * the next callbacks
+	 */
+	public CompletableFuture<CallbackResponse> processAsync(HttpExchange t);
+
+	/**
+	 * Gets the maximum time the server waits for the response
+	 * @return The time, in milliseconds, or 0 to wait indefinitely
+	 */
+	public long getTimeout();
+}
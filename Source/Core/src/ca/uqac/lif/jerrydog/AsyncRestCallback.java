@@ -0,0 +1,116 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * A REST callback whose response is produced asynchronously; see
+ * {@link AsyncCallback}. A callback waiting for a database or another
+ * service should return a future completed by that service's own threads,
+ * so that no thread of the server is held during the wait.
+ * @author Sylvain Hallé
+ */
+public abstract class AsyncRestCallback extends RestCallback implements AsyncCallback
+{
+	/**
+	 * The default time the server waits for a response, in milliseconds
+	 */
+	public static final long DEFAULT_TIMEOUT = 30000;
+
+	/**
+	 * The time the server waits for a response, in milliseconds
+	 */
+	protected long m_timeout = DEFAULT_TIMEOUT;
+
+	/**
+	 * Creates an asynchronous REST callback
+	 * @param m The HTTP method this callback listens to
+	 * @param path The path this callback listens to
+	 */
+	public AsyncRestCallback(Method m, String path)
+	{
+		super(m, path);
+	}
+
+	/**
+	 * Sets the maximum time the server waits for a response
+	 * @param timeout The time, in milliseconds, or 0 to wait indefinitely
+	 * @return This callback
+	 */
+	public AsyncRestCallback setTimeout(long timeout)
+	{
+		m_timeout = timeout;
+		return this;
+	}
+
+	@Override
+	public long getTimeout()
+	{
+		return m_timeout;
+	}
+
+	/**
+	 * Processes a request synchronously, by waiting for the future
+	 * returned by {@link #processAsync(HttpExchange)}. The server never calls
+	 * this method; it is there for code that calls callbacks directly.
+	 * @param t The exchange
+	 * @return The response, or null if there is none
+	 * @throws HttpException If the future completes with an
+	 * {@link HttpException}, or with code 504 if it does not complete in
+	 * time
+	 */
+	@Override
+	public CallbackResponse process(HttpExchange t)
+	{
+		CompletableFuture<CallbackResponse> future = processAsync(t);
+		if (future == null)
+		{
+			return null;
+		}
+		try
+		{
+			return m_timeout > 0 ? future.get(m_timeout, TimeUnit.MILLISECONDS) : future.get();
+		}
+		catch (TimeoutException e)
+		{
+			future.cancel(true);
+			throw new HttpException(CallbackResponse.HTTP_GATEWAY_TIMEOUT, "The response was not ready in time");
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			future.cancel(true);
+			throw new HttpException(CallbackResponse.HTTP_INTERNAL_SERVER_ERROR, "Interrupted", e);
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+			{
+				throw (RuntimeException) cause;
+			}
+			throw new HttpException(CallbackResponse.HTTP_INTERNAL_SERVER_ERROR, String.valueOf(cause), cause);
+		}
+	}
+}
@@ -0,0 +1,142 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of direct byte buffers of a fixed size. Allocating a direct buffer
+ * is expensive, and the memory it takes is only reclaimed when the
+ * garbage collector gets to it; buffers are therefore returned to the pool
+ * when no longer needed and handed out again. The pool keeps at most a
+ * given number of idle buffers, and allocates new ones when it runs out.
+ * @author Sylvain Hallé
+ */
+public class BufferPool
+{
+	/**
+	 * The size of the buffers
+	 */
+	protected final int m_bufferSize;
+
+	/**
+	 * The maximum number of idle buffers kept by the pool
+	 */
+	protected final int m_maxIdle;
+
+	/**
+	 * The idle buffers
+	 */
+	protected final ConcurrentLinkedQueue<ByteBuffer> m_buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	/**
+	 * The number of idle buffers
+	 */
+	protected final AtomicInteger m_idle = new AtomicInteger();
+
+	/**
+	 * The number of buffers allocated by the pool
+	 */
+	protected final AtomicLong m_allocated = new AtomicLong();
+
+	/**
+	 * Creates a pool
+	 * @param buffer_size The size of the buffers, in bytes
+	 * @param max_idle The maximum number of idle buffers kept by the pool
+	 */
+	public BufferPool(int buffer_size, int max_idle)
+	{
+		super();
+		m_bufferSize = buffer_size;
+		m_maxIdle = max_idle;
+	}
+
+	/**
+	 * Gets a buffer from the pool. The buffer is cleared, and its contents
+	 * are undefined.
+	 * @return The buffer
+	 */
+	public ByteBuffer acquire()
+	{
+		ByteBuffer b = m_buffers.poll();
+		if (b == null)
+		{
+			m_allocated.incrementAndGet();
+			return ByteBuffer.allocateDirect(m_bufferSize);
+		}
+		m_idle.decrementAndGet();
+		return b;
+	}
+
+	/**
+	 * Returns a buffer to the pool. The buffer must no longer be used by
+	 * the caller.
+	 * @param b The buffer; buffers not obtained from this pool are ignored
+	 */
+	public void release(ByteBuffer b)
+	{
+		if (b == null || !b.isDirect() || b.capacity() != m_bufferSize)
+		{
+			return;
+		}
+		if (m_idle.incrementAndGet() > m_maxIdle)
+		{
+			// Enough idle buffers already: let this one be collected
+			m_idle.decrementAndGet();
+			return;
+		}
+		b.clear();
+		m_buffers.offer(b);
+	}
+
+	/**
+	 * Gets the size of the buffers of this pool
+	 * @return The size, in bytes
+	 */
+	public int getBufferSize()
+	{
+		return m_bufferSize;
+	}
+
+	/**
+	 * Gets the number of buffers allocated by this pool
+	 * @return The number of buffers
+	 */
+	public long getAllocatedCount()
+	{
+		return m_allocated.get();
+	}
+
+	/**
+	 * Gets the number of idle buffers in this pool
+	 * @return The number of buffers
+	 */
+	public int getIdleCount()
+	{
+		return m_idle.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "size=" + m_bufferSize + " allocated=" + getAllocatedCount() + " idle=" + getIdleCount();
+	}
+}
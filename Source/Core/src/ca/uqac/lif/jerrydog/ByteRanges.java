@@ -0,0 +1,378 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Answers HTTP range requests (RFC 7233) with the parts of a response that
+ * the client asks for, so that a client seeking in a video or resuming a
+ * download only receives the bytes it is missing.
+ * <p>
+ * {@link #apply(CallbackResponse)} takes a complete 200 response, whose
+ * body is either an array of bytes or a {@link FileBody}, and turns it
+ * into:
+ * <ul>
+ * <li>a 206 Partial Content response with a <code>Content-Range</code>
+ * header, when a single range is asked for</li>
+ * <li>a 206 response of type <code>multipart/byteranges</code>, when
+ * several ranges are asked for; ranges that overlap or touch are merged
+ * first</li>
+ * <li>a 416 Range Not Satisfiable response, when none of the ranges
+ * intersects the body</li>
+ * </ul>
+ * The response is left whole when the request has no valid
+ * <code>Range</code> header, when it asks for too many ranges, or when its
+ * <code>If-Range</code> header does not match the <code>ETag</code> or
+ * <code>Last-Modified</code> header of the response, which means the
+ * client's copy is outdated. In all cases, the response advertises
+ * <code>Accept-Ranges: bytes</code>. For a file, only the requested
+ * slices are read from the disk.
+ * @author Sylvain Hallé
+ */
+public class ByteRanges
+{
+	/**
+	 * The maximum number of ranges accepted in a request. Requests asking
+	 * for more ranges receive the whole body.
+	 */
+	public static final int MAX_RANGES = 16;
+
+	private ByteRanges()
+	{
+		// Utility class
+	}
+
+	/**
+	 * Restricts a response to the ranges asked for by the client, if any
+	 * @param cbr The response; it is modified in place
+	 * @return The response
+	 */
+	public static CallbackResponse apply(CallbackResponse cbr)
+	{
+		if (cbr == null || cbr.getCode() != CallbackResponse.HTTP_OK)
+		{
+			return cbr;
+		}
+		byte[] contents = cbr.getContents();
+		FileBody file = cbr.getBodyWriter() instanceof FileBody ? (FileBody) cbr.getBodyWriter() : null;
+		if (contents == null && file == null)
+		{
+			// A body of unknown length cannot be sliced
+			return cbr;
+		}
+		cbr.setHeader("Accept-Ranges", "bytes");
+		HttpExchange t = cbr.getExchange();
+		if (!"GET".equalsIgnoreCase(t.getRequestMethod()))
+		{
+			return cbr;
+		}
+		String range = t.getRequestHeaders().getFirst("Range");
+		if (range == null || !matchesIfRange(t.getRequestHeaders().getFirst("If-Range"), cbr))
+		{
+			return cbr;
+		}
+		long length = contents != null ? contents.length : file.getLength();
+		long[] ranges = parse(range, length);
+		if (ranges == null)
+		{
+			return cbr;
+		}
+		if (ranges.length == 0)
+		{
+			cbr.setCode(CallbackResponse.HTTP_RANGE_NOT_SATISFIABLE);
+			cbr.setContents(new byte[0]);
+			cbr.setHeader("Content-Range", "bytes */" + length);
+			return cbr;
+		}
+		cbr.setCode(CallbackResponse.HTTP_PARTIAL_CONTENT);
+		if (ranges.length == 2)
+		{
+			long start = ranges[0];
+			long end = ranges[1];
+			cbr.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+			if (contents != null)
+			{
+				cbr.setContents(Arrays.copyOfRange(contents, (int) start, (int) end + 1));
+			}
+			else
+			{
+				cbr.setContents(new FileBody(file.getFile(), file.getOffset() + start, end - start + 1), end - start + 1);
+			}
+			return cbr;
+		}
+		MultipartBody body = new MultipartBody(contents, file, ranges, length, cbr.getContentType());
+		cbr.setContents(body, body.getLength());
+		cbr.setContentType("multipart/byteranges; boundary=" + body.m_boundary);
+		return cbr;
+	}
+
+	/**
+	 * Determines whether the <code>If-Range</code> header of a request
+	 * allows ranges to be sent. An entity tag must be strong and equal to
+	 * the <code>ETag</code> of the response; a date must be equal to its
+	 * <code>Last-Modified</code> date.
+	 * @param if_range The value of the header, or null if there is none
+	 * @param cbr The response
+	 * @return true if the ranges can be sent, false if the whole response
+	 * must be sent
+	 */
+	protected static boolean matchesIfRange(String if_range, CallbackResponse cbr)
+	{
+		if (if_range == null)
+		{
+			return true;
+		}
+		if_range = if_range.trim();
+		if (if_range.startsWith("\"") || if_range.startsWith("W/"))
+		{
+			String etag = getHeader(cbr, "ETag");
+			return etag != null && !etag.startsWith("W/") && etag.equals(if_range);
+		}
+		long date = HttpClock.parse(if_range);
+		return date >= 0 && date == HttpClock.parse(getHeader(cbr, "Last-Modified"));
+	}
+
+	/**
+	 * Gets a header set either on a response or directly on its exchange
+	 * @param cbr The response
+	 * @param name The name of the header
+	 * @return The value of the header, or null if it is not set
+	 */
+	protected static String getHeader(CallbackResponse cbr, String name)
+	{
+		String value = cbr.getHeaders().get(name);
+		return value != null ? value : cbr.getExchange().getResponseHeaders().getFirst(name);
+	}
+
+	/**
+	 * Parses the value of a <code>Range</code> header
+	 * @param header The value of the header
+	 * @param length The length of the body
+	 * @return The satisfiable ranges, as pairs of first and last positions
+	 * (inclusive), sorted and merged; an empty array if no range is
+	 * satisfiable; or null if the header is malformed, is not in bytes, or
+	 * asks for too many ranges, in which case it must be ignored
+	 */
+	public static long[] parse(String header, long length)
+	{
+		String h = header.trim();
+		if (!h.regionMatches(true, 0, "bytes=", 0, 6))
+		{
+			return null;
+		}
+		String[] specs = h.substring(6).split(",");
+		if (specs.length > MAX_RANGES)
+		{
+			return null;
+		}
+		List<long[]> ranges = new ArrayList<long[]>(specs.length);
+		for (String spec : specs)
+		{
+			spec = spec.trim();
+			int dash = spec.indexOf('-');
+			if (dash < 0)
+			{
+				return null;
+			}
+			long first = parseNumber(spec.substring(0, dash));
+			long last = parseNumber(spec.substring(dash + 1));
+			if (dash == 0)
+			{
+				// Suffix range: the last n bytes
+				if (last < 0)
+				{
+					return null;
+				}
+				if (last > 0 && length > 0)
+				{
+					ranges.add(new long[] {Math.max(0, length - last), length - 1});
+				}
+				continue;
+			}
+			if (first < 0 || (dash < spec.length() - 1 && (last < 0 || last < first)))
+			{
+				return null;
+			}
+			if (first < length)
+			{
+				ranges.add(new long[] {first, last < 0 || last >= length ? length - 1 : last});
+			}
+		}
+		return merge(ranges);
+	}
+
+	/**
+	 * Sorts ranges and merges those that overlap or touch
+	 * @param ranges The ranges
+	 * @return The merged ranges, as pairs of first and last positions
+	 */
+	protected static long[] merge(List<long[]> ranges)
+	{
+		long[][] sorted = ranges.toArray(new long[ranges.size()][]);
+		Arrays.sort(sorted, new Comparator<long[]>()
+		{
+			@Override
+			public int compare(long[] a, long[] b)
+			{
+				return Long.compare(a[0], b[0]);
+			}
+		});
+		long[] out = new long[sorted.length * 2];
+		int size = 0;
+		for (long[] r : sorted)
+		{
+			if (size > 0 && r[0] <= out[size - 1] + 1)
+			{
+				out[size - 1] = Math.max(out[size - 1], r[1]);
+			}
+			else
+			{
+				out[size++] = r[0];
+				out[size++] = r[1];
+			}
+		}
+		return Arrays.copyOf(out, size);
+	}
+
+	/**
+	 * Parses a non-negative number made only of digits
+	 * @param s The string
+	 * @return The number, or -1 if the string is empty or not a number
+	 */
+	protected static long parseNumber(String s)
+	{
+		if (s.isEmpty() || s.length() > 18)
+		{
+			return -1;
+		}
+		long value = 0;
+		for (int i = 0; i < s.length(); i++)
+		{
+			char c = s.charAt(i);
+			if (c < '0' || c > '9')
+			{
+				return -1;
+			}
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	/**
+	 * The body of a <code>multipart/byteranges</code> response. Its length
+	 * is computed in advance, so that it is not sent in chunks.
+	 */
+	protected static class MultipartBody implements CallbackResponse.BodyWriter
+	{
+		/**
+		 * The contents, if they are held in memory
+		 */
+		protected final byte[] m_contents;
+
+		/**
+		 * The file, if the contents are read from a file
+		 */
+		protected final FileBody m_file;
+
+		/**
+		 * The ranges, as pairs of first and last positions
+		 */
+		protected final long[] m_ranges;
+
+		/**
+		 * The headers that precede each part
+		 */
+		protected final byte[][] m_partHeaders;
+
+		/**
+		 * The string separating the parts
+		 */
+		protected final String m_boundary;
+
+		/**
+		 * The line that ends the body
+		 */
+		protected final byte[] m_end;
+
+		public MultipartBody(byte[] contents, FileBody file, long[] ranges, long length, String content_type)
+		{
+			super();
+			m_contents = contents;
+			m_file = file;
+			m_ranges = ranges;
+			m_boundary = "jerrydog-" + Long.toHexString(ThreadLocalRandom.current().nextLong());
+			m_partHeaders = new byte[ranges.length / 2][];
+			for (int i = 0; i < ranges.length; i += 2)
+			{
+				StringBuilder sb = new StringBuilder();
+				sb.append("\r\n--").append(m_boundary).append("\r\n");
+				if (content_type != null)
+				{
+					sb.append("Content-Type: ").append(content_type).append("\r\n");
+				}
+				sb.append("Content-Range: bytes ").append(ranges[i]).append('-').append(ranges[i + 1]).append('/').append(length).append("\r\n\r\n");
+				m_partHeaders[i / 2] = sb.toString().getBytes(StandardCharsets.US_ASCII);
+			}
+			m_end = ("\r\n--" + m_boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+		}
+
+		/**
+		 * Gets the number of bytes of the body
+		 * @return The number of bytes
+		 */
+		public long getLength()
+		{
+			long length = m_end.length;
+			for (int i = 0; i < m_ranges.length; i += 2)
+			{
+				length += m_partHeaders[i / 2].length + m_ranges[i + 1] - m_ranges[i] + 1;
+			}
+			return length;
+		}
+
+		@Override
+		public void write(OutputStream out) throws IOException
+		{
+			for (int i = 0; i < m_ranges.length; i += 2)
+			{
+				out.write(m_partHeaders[i / 2]);
+				long start = m_ranges[i];
+				long part_length = m_ranges[i + 1] - start + 1;
+				if (m_contents != null)
+				{
+					out.write(m_contents, (int) start, (int) part_length);
+				}
+				else
+				{
+					new FileBody(m_file.getFile(), m_file.getOffset() + start, part_length).write(out);
+				}
+			}
+			out.write(m_end);
+		}
+	}
+}
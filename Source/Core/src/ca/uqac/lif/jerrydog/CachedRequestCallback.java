@@ -17,9 +17,13 @@
  */
 package ca.uqac.lif.jerrydog;
 
+import java.lang.ref.WeakReference;
 import java.net.URI;
-import java.util.HashSet;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
@@ -28,16 +32,61 @@ import com.sun.net.httpserver.HttpExchange;
  * Like a normal RequestCallback, except that it will return an HTTP 304
  * ("Not Modified") response every time except the first time it is
  * called
+ * <p>
+ * In <em>validator mode</em>, the callback rather answers 304 only when the
+ * content has not changed. Each response is given a strong
+ * {@code ETag}, which is either provided by the wrapped callback or computed
+ * from a hash of the response's contents, and a request is answered with
+ * 304 when its {@code If-None-Match} header contains this tag. If the
+ * wrapped callback implements {@link ETagProvider}, the tag is known before
+ * the response is produced, which also saves the cost of producing it.
  * @author Sylvain Hallé
  *
  */
 public class CachedRequestCallback extends RequestCallback
 {
   /**
-   * Whether the page has been already served
+   * A callback that can tell the entity tag of the response to a request
+   * without producing this response
+   */
+  public static interface ETagProvider
+  {
+    /**
+     * Gets the entity tag of the response to a request
+     * @param t The exchange
+     * @return The tag, including its double quotes, or null if it cannot
+     * be known in advance
+     */
+    public String getETag(HttpExchange t);
+  }
+  
+  /**
+   * The maximum number of paths and queries remembered by the callback.
+   * Since queries are chosen by clients, this keeps a client from filling
+   * the memory of the server with arbitrary queries.
+   */
+  protected static final int s_maxEntries = 10000;
+  
+  /**
+   * Whether the page has been already served, for each path and query
    */
   protected Set<String> m_served;
   
+  /**
+   * Whether the callback checks the contents of responses with entity tags
+   * instead of assuming that they never change
+   */
+  protected boolean m_validatorMode = false;
+  
+  /**
+   * The last tag computed for each path and query, along with the contents
+   * it was computed from, so that contents served from a cache are not
+   * hashed again. Only static contents are remembered, and only weakly:
+   * the array of a dynamic response is new on every request, and would
+   * never be found here again.
+   */
+  protected final Map<String,TaggedContents> m_tags;
+  
   /**
    * Whether caching is enabled on the server side; this means that the
    * server can answer a {@code 304} ("Not Modified") code to a client that
@@ -63,7 +112,8 @@ public class CachedRequestCallback extends RequestCallback
   public CachedRequestCallback(RequestCallback callback)
   {
     super();
-    m_served = new HashSet<String>();
+    m_served = ConcurrentHashMap.newKeySet();
+    m_tags = new ConcurrentHashMap<String,TaggedContents>();
     m_callback = callback;
   }
   
@@ -84,6 +134,18 @@ public class CachedRequestCallback extends RequestCallback
     m_serverCachingEnabled = b;
   }
 
+  /**
+   * Enables or disables validator mode. In this mode, a {@code 304} ("Not
+   * Modified") code is only sent to a client whose {@code If-None-Match}
+   * header matches the entity tag of the current contents.
+   * @param b Set to {@code true} to enable validator mode, {@code false}
+   * otherwise
+   */
+  public void setValidatorMode(boolean b)
+  {
+    m_validatorMode = b;
+  }
+
   /**
    * Sets the time during which a client is allowed to keep the response of a
    * request in its local cache before requesting it again.
@@ -105,11 +167,18 @@ public class CachedRequestCallback extends RequestCallback
   public CallbackResponse process(HttpExchange t)
   {
     URI u = t.getRequestURI();
-    String path = u.getPath();
+    String path = getKey(u);
     Headers h = t.getRequestHeaders();
+    if (m_validatorMode)
+    {
+      return processWithValidator(t, path);
+    }
     if (!m_serverCachingEnabled || !m_served.contains(path) || !h.containsKey("If-Modified-Since"))
     {
-      m_served.add(path);
+      if (m_served.size() < s_maxEntries)
+      {
+        m_served.add(path);
+      }
       CallbackResponse response = m_callback.process(t);
       if (m_clientCachingInterval > 0)
       {
@@ -123,11 +192,261 @@ public class CachedRequestCallback extends RequestCallback
     return out;
   }
   
+  /**
+   * Processes a request in validator mode
+   * @param t The exchange
+   * @param key The path and query of the request
+   * @return The response
+   */
+  protected CallbackResponse processWithValidator(HttpExchange t, String key)
+  {
+    String if_none_match = t.getRequestHeaders().getFirst("If-None-Match");
+    if (m_serverCachingEnabled && if_none_match != null && m_callback instanceof ETagProvider)
+    {
+      String tag = ((ETagProvider) m_callback).getETag(t);
+      String match = tag == null ? null : getMatch(if_none_match, tag);
+      if (match != null)
+      {
+        // The client may hold the compressed body, whose tag differs
+        return notModified(t, match);
+      }
+    }
+    CallbackResponse response = m_callback.process(t);
+    if (response == null)
+    {
+      return null;
+    }
+    if (m_clientCachingInterval > 0)
+    {
+      response.enableCaching(m_clientCachingInterval);
+    }
+    if (response.getCode() != CallbackResponse.HTTP_OK)
+    {
+      return response;
+    }
+    String tag = getETag(response, key);
+    if (tag == null)
+    {
+      return response;
+    }
+    String match = m_serverCachingEnabled && if_none_match != null ? getMatch(if_none_match, tag) : null;
+    if (match != null)
+    {
+      return notModified(t, match);
+    }
+    response.setHeader("ETag", tag);
+    return response;
+  }
+  
+  /**
+   * Gets the entity tag of a response, either from its headers or by
+   * hashing its contents
+   * @param response The response
+   * @param key The path and query of the request
+   * @return The tag, or null if the contents are streamed and the response
+   * has no tag
+   */
+  protected String getETag(CallbackResponse response, String key)
+  {
+    String tag = response.getHeaders().get("ETag");
+    if (tag == null)
+    {
+      tag = response.getExchange().getResponseHeaders().getFirst("ETag");
+    }
+    if (tag != null)
+    {
+      return tag;
+    }
+    byte[] contents = response.getContents();
+    if (contents == null)
+    {
+      return null;
+    }
+    if (!response.hasStaticContents())
+    {
+      return computeETag(contents);
+    }
+    TaggedContents tc = m_tags.get(key);
+    if (tc != null && tc.m_contents.get() == contents)
+    {
+      // Same array as last time: no need to hash it again
+      return tc.m_tag;
+    }
+    tag = computeETag(contents);
+    if (tc != null || m_tags.size() < s_maxEntries)
+    {
+      m_tags.put(key, new TaggedContents(contents, tag));
+    }
+    return tag;
+  }
+  
+  /**
+   * Creates a {@code 304} ("Not Modified") response
+   * @param t The exchange
+   * @param tag The entity tag of the contents
+   * @return The response
+   */
+  protected CallbackResponse notModified(HttpExchange t, String tag)
+  {
+    CallbackResponse out = new CallbackResponse(t, CallbackResponse.HTTP_NOT_MODIFIED, "", "");
+    out.setHeader("ETag", tag);
+    if (m_clientCachingInterval > 0)
+    {
+      out.enableCaching(m_clientCachingInterval);
+    }
+    return out;
+  }
+  
   /**
    * Resets the memory of pages that have been already cached
    */
   public void reset()
   {
     m_served.clear();
-  }  
+    m_tags.clear();
+  }
+  
+  /**
+   * Gets the key identifying the resource of a request
+   * @param u The URI of the request
+   * @return The path of the request, followed by its query if any
+   */
+  protected static String getKey(URI u)
+  {
+    String query = u.getRawQuery();
+    if (query == null)
+    {
+      return u.getPath();
+    }
+    return u.getPath() + "?" + query;
+  }
+  
+  /**
+   * Computes a strong entity tag from the contents of a response. The tag
+   * is made of the length of the contents and of a 64-bit hash, which reads
+   * the contents eight bytes at a time.
+   * @param contents The contents
+   * @return The tag, including its double quotes
+   */
+  public static String computeETag(byte[] contents)
+  {
+    ByteBuffer buf = ByteBuffer.wrap(contents).order(ByteOrder.LITTLE_ENDIAN);
+    long h = 0x9E3779B97F4A7C15L ^ contents.length;
+    while (buf.remaining() >= 8)
+    {
+      h = mix(h ^ buf.getLong());
+    }
+    long last = 0;
+    for (int shift = 0; buf.hasRemaining(); shift += 8)
+    {
+      last |= (buf.get() & 0xFFL) << shift;
+    }
+    h = mix(h ^ last);
+    return "\"" + Integer.toHexString(contents.length) + "-" + Long.toHexString(h) + "\"";
+  }
+  
+  /**
+   * Mixes the bits of a 64-bit value
+   * @param x The value
+   * @return The mixed value
+   */
+  protected static long mix(long x)
+  {
+    x = (x ^ (x >>> 33)) * 0xFF51AFD7ED558CCDL;
+    x = (x ^ (x >>> 33)) * 0xC4CEB9FE1A85EC53L;
+    return x ^ (x >>> 33);
+  }
+  
+  /**
+   * Determines whether an {@code If-None-Match} header matches an entity
+   * tag. As required for this header, weak tags are compared as if they
+   * were strong. A tag derived for a compressed body by
+   * {@link ResponseCompressor} matches the tag of the uncompressed one.
+   * @param if_none_match The value of the header
+   * @param tag The tag
+   * @return true if the header matches the tag
+   */
+  public static boolean matches(String if_none_match, String tag)
+  {
+    return getMatch(if_none_match, tag) != null;
+  }
+  
+  /**
+   * Finds the tag of an {@code If-None-Match} header that matches an
+   * entity tag, as in {@link #matches(String, String)}
+   * @param if_none_match The value of the header
+   * @param tag The tag
+   * @return The tag, with the encoding of the matching tag of the header
+   * if it has one, or null if nothing matches
+   */
+  protected static String getMatch(String if_none_match, String tag)
+  {
+    String value = if_none_match.trim();
+    if (value.compareTo("*") == 0)
+    {
+      return tag;
+    }
+    String opaque = ResponseCompressor.untagEncoding(stripWeak(tag));
+    int start = 0;
+    while (start < value.length())
+    {
+      int end = value.indexOf(',', start);
+      if (end < 0)
+      {
+        end = value.length();
+      }
+      String candidate = stripWeak(value.substring(start, end).trim());
+      String base = ResponseCompressor.untagEncoding(candidate);
+      if (base.compareTo(opaque) == 0)
+      {
+        if (base.length() == candidate.length())
+        {
+          return tag;
+        }
+        // Keep the encoding of the body the client holds
+        String encoding = candidate.substring(base.length(), candidate.length() - 1);
+        return ResponseCompressor.tagEncoding(tag, encoding);
+      }
+      start = end + 1;
+    }
+    return null;
+  }
+  
+  /**
+   * Removes the weakness indicator of an entity tag
+   * @param tag The tag
+   * @return The tag without its {@code W/} prefix
+   */
+  protected static String stripWeak(String tag)
+  {
+    return tag.startsWith("W/") ? tag.substring(2) : tag;
+  }
+  
+  /**
+   * An entity tag and the contents it has been computed from
+   */
+  protected static class TaggedContents
+  {
+    /**
+     * The contents, which the tag does not keep from being collected
+     */
+    protected final WeakReference<byte[]> m_contents;
+    
+    /**
+     * The tag
+     */
+    protected final String m_tag;
+    
+    /**
+     * Creates a new tagged contents
+     * @param contents The contents
+     * @param tag The tag
+     */
+    public TaggedContents(byte[] contents, String tag)
+    {
+      super();
+      m_contents = new WeakReference<byte[]>(contents);
+      m_tag = tag;
+    }
+  }
 }
@@ -19,10 +19,15 @@ package ca.uqac.lif.jerrydog;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Scanner;
 
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
@@ -33,17 +38,54 @@ public class CallbackResponse
 	 * Common HTTP response codes
 	 */
 	public static final int HTTP_OK = 200;
+	public static final int HTTP_PARTIAL_CONTENT = 206;
 	public static final int HTTP_REDIRECT = 303;
 	public static final int HTTP_NOT_MODIFIED = 304;
 	public static final int HTTP_BAD_REQUEST = 400;
+	public static final int HTTP_FORBIDDEN = 403;
 	public static final int HTTP_NOT_FOUND = 404;
+	public static final int HTTP_PAYLOAD_TOO_LARGE = 413;
+	public static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+	public static final int HTTP_UPGRADE_REQUIRED = 426;
+	public static final int HTTP_HEADER_FIELDS_TOO_LARGE = 431;
 	public static final int HTTP_INTERNAL_SERVER_ERROR = 500;
+	public static final int HTTP_NOT_IMPLEMENTED = 501;
+	public static final int HTTP_GATEWAY_TIMEOUT = 504;
+	public static final int HTTP_VERSION_NOT_SUPPORTED = 505;
 
 	/**
 	 * The content type of the response
 	 */
 	public static enum ContentType {JSON, TEXT, XML, PNG, JS, HTML, CSS, JPEG, PDF, ZIP, SVG, GIF, LATEX, DOT, OCTET_STREAM};
 
+	/**
+	 * Writes the body of a response directly to the connection, instead of
+	 * holding it in memory. The headers of the response have already been
+	 * sent when the writer is called, so that an error at this point can no
+	 * longer change the response code.
+	 */
+	public static interface BodyWriter
+	{
+		/**
+		 * Writes the body of the response
+		 * @param out The stream to write to. The writer does not need to
+		 * close it.
+		 * @throws IOException If the body cannot be written
+		 */
+		public void write(OutputStream out) throws IOException;
+	}
+
+	/**
+	 * A map from file extensions to MIME types, for the most common types
+	 * of files found on a web server
+	 */
+	protected static final Map<String,String> s_extensionTypes = createExtensionTypes();
+
+	/**
+	 * The size of the buffer used to copy streamed contents
+	 */
+	protected static final int s_bufferSize = 8192;
+
 	/**
 	 * The HTTP exchange containing the response headers
 	 */
@@ -64,6 +106,31 @@ public class CallbackResponse
 	 */
 	protected byte[] m_contents = null;
 
+	/**
+	 * The writer producing the response contents, if they are streamed
+	 * rather than held in {@link #m_contents}
+	 */
+	protected BodyWriter m_bodyWriter = null;
+
+	/**
+	 * The length of the streamed contents, or -1 if it is not known in
+	 * advance
+	 */
+	protected long m_contentLength = -1;
+
+	/**
+	 * Whether the stream of the response is left open once the writer
+	 * returns
+	 */
+	protected boolean m_detached = false;
+
+	/**
+	 * Whether the array of bytes in {@link #m_contents} is never modified
+	 * and is sent again for further requests, so that anything computed
+	 * from it (such as a compressed variant) can be kept
+	 */
+	protected boolean m_staticContents = false;
+
 	public CallbackResponse(HttpExchange t)
 	{
 		this(t, HTTP_OK, "", "");
@@ -151,8 +218,7 @@ public class CallbackResponse
 	 */
 	public CallbackResponse setContents(String contents)
 	{
-		m_contents = contents.getBytes();
-		return this;
+		return setContents(contents.getBytes());
 	}
 
 	/**
@@ -163,18 +229,163 @@ public class CallbackResponse
 	public CallbackResponse setContents(byte[] contents)
 	{
 		m_contents = contents;
+		m_bodyWriter = null;
+		m_contentLength = -1;
+		m_staticContents = false;
+		return this;
+	}
+
+	/**
+	 * Declares that the array of bytes of this response is never modified,
+	 * and is the same array sent for other requests for the same contents.
+	 * This is typically the case for contents read from a cache. Setting
+	 * new contents resets this flag.
+	 * @param b Set to true if the contents are static
+	 * @return This response
+	 */
+	public CallbackResponse setStaticContents(boolean b)
+	{
+		m_staticContents = b;
 		return this;
 	}
 
+	/**
+	 * Determines whether the array of bytes of this response is static
+	 * @return true if the contents are static
+	 * @see #setStaticContents(boolean)
+	 */
+	public boolean hasStaticContents()
+	{
+		return m_staticContents && m_contents != null;
+	}
+
+	/**
+	 * Sets the response contents to be streamed by a writer. Since the
+	 * length of the contents is not known, the response is sent with
+	 * chunked transfer encoding.
+	 * @param writer The writer producing the contents
+	 * @return This response
+	 */
+	public CallbackResponse setContents(BodyWriter writer)
+	{
+		return setContents(writer, -1);
+	}
+
+	/**
+	 * Sets the response contents to be streamed by a writer
+	 * @param writer The writer producing the contents
+	 * @param length The number of bytes the writer will produce, or -1 if
+	 * this is not known in advance, in which case the response is sent
+	 * with chunked transfer encoding
+	 * @return This response
+	 */
+	public CallbackResponse setContents(BodyWriter writer, long length)
+	{
+		m_contents = null;
+		m_bodyWriter = writer;
+		m_contentLength = length;
+		m_staticContents = false;
+		m_detached = false;
+		return this;
+	}
+
+	/**
+	 * Sets the response contents to be written by a writer that keeps the
+	 * response open after it returns, typically by handing the stream over
+	 * to another thread that writes to it as data becomes available. The
+	 * server sends the headers, calls the writer and moves on to other
+	 * requests without closing the stream; whoever holds the stream must
+	 * close it once the response is over. The response is sent with
+	 * chunked transfer encoding, and is never compressed.
+	 * @param writer The writer, which takes ownership of the stream
+	 * @return This response
+	 */
+	public CallbackResponse setDetachedContents(BodyWriter writer)
+	{
+		setContents(writer, -1);
+		m_detached = true;
+		return this;
+	}
+
+	/**
+	 * Determines whether the stream of this response is left open once its
+	 * writer returns
+	 * @return true if the response is detached
+	 */
+	public boolean isDetached()
+	{
+		return m_detached && m_bodyWriter != null;
+	}
+
+	/**
+	 * Sets the response contents to be streamed from an input stream. The
+	 * stream is closed once its contents have been sent.
+	 * @param is The input stream
+	 * @param length The number of bytes to send, or -1 to send the stream
+	 * until its end with chunked transfer encoding
+	 * @return This response
+	 */
+	public CallbackResponse setContents(InputStream is, long length)
+	{
+		return setContents(new StreamBodyWriter(is, length), length);
+	}
+
+	/**
+	 * Sets the response contents to be streamed from a channel. The
+	 * channel is closed once its contents have been sent.
+	 * @param channel The channel
+	 * @param length The number of bytes to send, or -1 to send the channel
+	 * until its end with chunked transfer encoding
+	 * @return This response
+	 */
+	public CallbackResponse setContents(ReadableByteChannel channel, long length)
+	{
+		return setContents(new ChannelBodyWriter(channel, length), length);
+	}
+
 	/**
 	 * Gets the response contents
-	 * @return An array of bytes with the response contents
+	 * @return An array of bytes with the response contents, or null if the
+	 * contents are streamed
 	 */
 	public byte[] getContents()
 	{
 		return m_contents;
 	}
 
+	/**
+	 * Determines whether the contents of this response are streamed by a
+	 * {@link BodyWriter} rather than held in memory
+	 * @return true if the contents are streamed
+	 */
+	public boolean isStreaming()
+	{
+		return m_bodyWriter != null;
+	}
+
+	/**
+	 * Gets the writer producing the contents of this response
+	 * @return The writer, or null if the contents are not streamed
+	 */
+	public BodyWriter getBodyWriter()
+	{
+		return m_bodyWriter;
+	}
+
+	/**
+	 * Gets the length of the contents of this response
+	 * @return The number of bytes, or -1 if the contents are streamed and
+	 * their length is not known in advance
+	 */
+	public long getContentLength()
+	{
+		if (m_bodyWriter != null)
+		{
+			return m_contentLength;
+		}
+		return m_contents == null ? 0 : m_contents.length;
+	}
+
 	/**
 	 * Sets the response's content type
 	 * @param t The content type
@@ -298,14 +509,81 @@ public class CallbackResponse
 	}
 
 	/**
-	 * Add a cookie to the response
+	 * Guesses the MIME type of a file from its name
+	 * @param filename The name of the file
+	 * @return The MIME type; if it cannot be guessed, the generic type
+	 * <code>application/octet-stream</code> is returned
+	 */
+	public static String getContentTypeForName(String filename)
+	{
+		int dot = filename.lastIndexOf('.');
+		if (dot >= 0)
+		{
+			String type = s_extensionTypes.get(filename.substring(dot + 1).toLowerCase());
+			if (type != null)
+			{
+				return type;
+			}
+		}
+		String type = URLConnection.getFileNameMap().getContentTypeFor(filename);
+		if (type != null)
+		{
+			return type;
+		}
+		return getContentTypeString(ContentType.OCTET_STREAM);
+	}
+
+	/**
+	 * Creates the map from file extensions to MIME types
+	 * @return The map
+	 */
+	protected static Map<String,String> createExtensionTypes()
+	{
+		Map<String,String> types = new HashMap<String,String>();
+		types.put("html", getContentTypeString(ContentType.HTML));
+		types.put("htm", getContentTypeString(ContentType.HTML));
+		types.put("css", getContentTypeString(ContentType.CSS));
+		types.put("js", getContentTypeString(ContentType.JS));
+		types.put("mjs", getContentTypeString(ContentType.JS));
+		types.put("json", getContentTypeString(ContentType.JSON));
+		types.put("xml", getContentTypeString(ContentType.XML));
+		types.put("txt", getContentTypeString(ContentType.TEXT));
+		types.put("png", getContentTypeString(ContentType.PNG));
+		types.put("gif", getContentTypeString(ContentType.GIF));
+		types.put("jpg", getContentTypeString(ContentType.JPEG));
+		types.put("jpeg", getContentTypeString(ContentType.JPEG));
+		types.put("svg", getContentTypeString(ContentType.SVG));
+		types.put("pdf", getContentTypeString(ContentType.PDF));
+		types.put("zip", getContentTypeString(ContentType.ZIP));
+		types.put("tex", getContentTypeString(ContentType.LATEX));
+		types.put("dot", getContentTypeString(ContentType.DOT));
+		types.put("ico", "image/x-icon");
+		types.put("webp", "image/webp");
+		types.put("csv", "text/csv");
+		types.put("wasm", "application/wasm");
+		types.put("woff", "font/woff");
+		types.put("woff2", "font/woff2");
+		types.put("ttf", "font/ttf");
+		types.put("mp3", "audio/mpeg");
+		types.put("ogg", "audio/ogg");
+		types.put("mp4", "video/mp4");
+		types.put("webm", "video/webm");
+		types.put("gz", "application/gzip");
+		types.put("tar", "application/x-tar");
+		return types;
+	}
+
+	/**
+	 * Add a cookie to the response, along with its attributes
 	 * @param c The cookie to add
 	 * @return This response
+	 * @throws IllegalArgumentException If the cookie cannot be written in
+	 * a header
 	 */
 	public CallbackResponse addResponseCookie(Cookie c)
 	{
 		Headers h = m_exchange.getResponseHeaders();
-		h.add("Set-Cookie", c.getName() + "=" + c.getValue());
+		h.add("Set-Cookie", c.toSetCookieString());
 		return this;
 	}
 
@@ -329,21 +607,126 @@ public class CallbackResponse
 	 * the HTTP request body into a string.
 	 * @param is The input stream
 	 * @return The string
+	 * @see RequestBody
 	 */
 	public static String convertStreamToString(InputStream is) 
 	{
-		Scanner s = new Scanner(is);
-		s.useDelimiter("\\A");
-		String out = s.hasNext() ? s.next() : "";
-		s.close();
-		try 
+		return Server.streamToString(is);
+	}
+
+	/**
+	 * Copies the contents of an input stream to the response
+	 */
+	protected static class StreamBodyWriter implements BodyWriter
+	{
+		/**
+		 * The stream to read from
+		 */
+		protected final InputStream m_input;
+
+		/**
+		 * The number of bytes to copy, or -1 to copy the whole stream
+		 */
+		protected final long m_length;
+
+		/**
+		 * Creates a new writer
+		 * @param is The stream to read from
+		 * @param length The number of bytes to copy, or -1 to copy the whole
+		 * stream
+		 */
+		public StreamBodyWriter(InputStream is, long length)
 		{
-			is.close();
-		} 
-		catch (IOException e) 
+			super();
+			m_input = is;
+			m_length = length;
+		}
+
+		@Override
+		public void write(OutputStream out) throws IOException
 		{
-			// Do nothing
+			byte[] buffer = new byte[s_bufferSize];
+			long remaining = m_length < 0 ? Long.MAX_VALUE : m_length;
+			try
+			{
+				while (remaining > 0)
+				{
+					int read = m_input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+					if (read < 0)
+					{
+						break;
+					}
+					out.write(buffer, 0, read);
+					remaining -= read;
+				}
+			}
+			finally
+			{
+				m_input.close();
+			}
+		}
+	}
+
+	/**
+	 * Copies the contents of a channel to the response
+	 */
+	protected static class ChannelBodyWriter implements BodyWriter
+	{
+		/**
+		 * The channel to read from
+		 */
+		protected final ReadableByteChannel m_input;
+
+		/**
+		 * The number of bytes to copy, or -1 to copy the whole channel
+		 */
+		protected final long m_length;
+
+		/**
+		 * Creates a new writer
+		 * @param channel The channel to read from
+		 * @param length The number of bytes to copy, or -1 to copy the whole
+		 * channel
+		 */
+		public ChannelBodyWriter(ReadableByteChannel channel, long length)
+		{
+			super();
+			m_input = channel;
+			m_length = length;
+		}
+
+		@Override
+		public void write(OutputStream out) throws IOException
+		{
+			WritableByteChannel out_channel = Channels.newChannel(out);
+			ByteBuffer buffer = ByteBuffer.allocate(s_bufferSize);
+			long remaining = m_length < 0 ? Long.MAX_VALUE : m_length;
+			try
+			{
+				while (remaining > 0)
+				{
+					if (remaining < buffer.capacity())
+					{
+						buffer.limit((int) remaining);
+					}
+					int read = m_input.read(buffer);
+					if (read < 0)
+					{
+						break;
+					}
+					buffer.flip();
+					while (buffer.hasRemaining())
+					{
+						out_channel.write(buffer);
+					}
+					buffer.clear();
+					remaining -= read;
+				}
+			}
+			finally
+			{
+				m_input.close();
+			}
 		}
-		return out;
 	}
 }
@@ -0,0 +1,328 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the connections of a server, and of the requests in
+ * progress on each of them. A connection is identified by any object that
+ * is distinct for each connection, typically the remote address of the
+ * client.
+ * <p>
+ * A transport that sees connections being opened and closed reports them
+ * with {@link #opened(Object)} and {@link #closed(Object)}, and the counts
+ * are exact. The Java HTTP server does not: a connection is then known
+ * from its first request, and is presumed closed once it has been idle
+ * for longer than the idle timeout, after which the HTTP server closes
+ * it. In that case, a connection closed earlier by the client is still
+ * counted until its idle timeout expires.
+ * @author Sylvain Hallé
+ */
+public class ConnectionTracker
+{
+	/**
+	 * The minimum time between two passes over the connections to find
+	 * those that have expired, in milliseconds
+	 */
+	protected static final long s_expiryInterval = 1000;
+
+	/**
+	 * The connections
+	 */
+	protected final ConcurrentHashMap<Object,Connection> m_connections = new ConcurrentHashMap<Object,Connection>();
+
+	/**
+	 * The time after which an idle connection is presumed closed, in
+	 * milliseconds, or 0 if connections are only closed explicitly
+	 */
+	protected volatile long m_idleTimeout;
+
+	/**
+	 * The number of connections seen since the tracker was created
+	 */
+	protected final AtomicLong m_openedCount = new AtomicLong();
+
+	/**
+	 * The number of requests that have been started
+	 */
+	protected final AtomicLong m_requestCount = new AtomicLong();
+
+	/**
+	 * The last time the connections were checked for expiry
+	 */
+	protected final AtomicLong m_lastExpiry = new AtomicLong();
+
+	/**
+	 * Creates a tracker
+	 * @param idle_timeout The time after which an idle connection is
+	 * presumed closed, in milliseconds, or 0 if connections are only closed
+	 * explicitly
+	 */
+	public ConnectionTracker(long idle_timeout)
+	{
+		super();
+		m_idleTimeout = idle_timeout;
+	}
+
+	/**
+	 * Sets the time after which an idle connection is presumed closed
+	 * @param timeout The time, in milliseconds, or 0 if connections are only
+	 * closed explicitly
+	 */
+	public void setIdleTimeout(long timeout)
+	{
+		m_idleTimeout = timeout;
+	}
+
+	/**
+	 * Reports a new connection
+	 * @param key The object identifying the connection
+	 */
+	public void opened(Object key)
+	{
+		getOrOpen(key, System.currentTimeMillis());
+	}
+
+	/**
+	 * Reports the closing of a connection
+	 * @param key The object identifying the connection
+	 */
+	public void closed(Object key)
+	{
+		Connection c = m_connections.remove(key);
+		if (c != null)
+		{
+			synchronized (c)
+			{
+				c.m_removed = true;
+			}
+		}
+	}
+
+	/**
+	 * Reports the start of a request on a connection. An unknown connection
+	 * is reported as opened.
+	 * @param key The object identifying the connection, or null if it is
+	 * not known, in which case nothing is recorded
+	 */
+	public void requestStarted(Object key)
+	{
+		if (key == null)
+		{
+			return;
+		}
+		long now = System.currentTimeMillis();
+		m_requestCount.incrementAndGet();
+		while (true)
+		{
+			Connection c = getOrOpen(key, now);
+			synchronized (c)
+			{
+				if (!c.m_removed)
+				{
+					c.m_active++;
+					c.m_lastActivity = now;
+					break;
+				}
+			}
+			// The connection expired in the meantime: start over
+		}
+		expire(now);
+	}
+
+	/**
+	 * Reports the end of a request on a connection
+	 * @param key The object identifying the connection, or null if it is
+	 * not known
+	 */
+	public void requestEnded(Object key)
+	{
+		if (key == null)
+		{
+			return;
+		}
+		Connection c = m_connections.get(key);
+		if (c != null)
+		{
+			synchronized (c)
+			{
+				if (c.m_active > 0)
+				{
+					c.m_active--;
+				}
+				c.m_lastActivity = System.currentTimeMillis();
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of open connections
+	 * @return The number of connections
+	 */
+	public int getOpenCount()
+	{
+		expire(System.currentTimeMillis());
+		return m_connections.size();
+	}
+
+	/**
+	 * Gets the number of open connections with no request in progress
+	 * @return The number of connections
+	 */
+	public int getIdleCount()
+	{
+		expire(System.currentTimeMillis());
+		int idle = 0;
+		for (Connection c : m_connections.values())
+		{
+			synchronized (c)
+			{
+				if (c.m_active == 0)
+				{
+					idle++;
+				}
+			}
+		}
+		return idle;
+	}
+
+	/**
+	 * Gets the number of requests in progress
+	 * @return The number of requests
+	 */
+	public int getActiveRequestCount()
+	{
+		int active = 0;
+		for (Connection c : m_connections.values())
+		{
+			synchronized (c)
+			{
+				active += c.m_active;
+			}
+		}
+		return active;
+	}
+
+	/**
+	 * Gets the number of connections seen since the tracker was created
+	 * @return The number of connections
+	 */
+	public long getOpenedCount()
+	{
+		return m_openedCount.get();
+	}
+
+	/**
+	 * Gets the number of requests started since the tracker was created
+	 * @return The number of requests
+	 */
+	public long getRequestCount()
+	{
+		return m_requestCount.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "open=" + getOpenCount() + " idle=" + getIdleCount() + " active-requests=" + getActiveRequestCount()
+				+ " opened=" + getOpenedCount() + " requests=" + getRequestCount();
+	}
+
+	/**
+	 * Gets a connection, creating it if it is unknown
+	 * @param key The object identifying the connection
+	 * @param now The current time
+	 * @return The connection
+	 */
+	protected Connection getOrOpen(Object key, long now)
+	{
+		Connection c = m_connections.get(key);
+		if (c == null)
+		{
+			Connection created = new Connection(now);
+			c = m_connections.putIfAbsent(key, created);
+			if (c == null)
+			{
+				m_openedCount.incrementAndGet();
+				c = created;
+			}
+		}
+		return c;
+	}
+
+	/**
+	 * Forgets the connections that have been idle for longer than the idle
+	 * timeout. This is done at most once per {@link #s_expiryInterval}, or
+	 * per idle timeout if it is shorter.
+	 * @param now The current time
+	 */
+	protected void expire(long now)
+	{
+		long timeout = m_idleTimeout;
+		long last = m_lastExpiry.get();
+		if (timeout <= 0 || now - last < Math.min(s_expiryInterval, timeout) || !m_lastExpiry.compareAndSet(last, now))
+		{
+			return;
+		}
+		Iterator<Map.Entry<Object,Connection>> it = m_connections.entrySet().iterator();
+		while (it.hasNext())
+		{
+			Connection c = it.next().getValue();
+			synchronized (c)
+			{
+				if (c.m_active == 0 && now - c.m_lastActivity > timeout)
+				{
+					c.m_removed = true;
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * The state of a connection. All fields are accessed while holding the
+	 * lock on the object.
+	 */
+	protected static class Connection
+	{
+		/**
+		 * The number of requests in progress
+		 */
+		protected int m_active = 0;
+
+		/**
+		 * The last time a request started or ended
+		 */
+		protected long m_lastActivity;
+
+		/**
+		 * Whether the connection has been removed from the tracker
+		 */
+		protected boolean m_removed = false;
+
+		public Connection(long now)
+		{
+			super();
+			m_lastActivity = now;
+		}
+	}
+}
@@ -16,17 +16,51 @@
     along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 package ca.uqac.lif.jerrydog;
-import java.util.Iterator;
+
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.sun.net.httpserver.HttpExchange;
 
 /**
  * Representation of an HTTP request/response cookie.
  * See <a href="http://en.wikipedia.org/wiki/HTTP_cookie">http://en.wikipedia.org/wiki/HTTP_cookie</a>.
+ * <p>
+ * On the request side, the cookies are parsed once per request by the
+ * {@link RequestContext}, and a cookie is found by its exact name. On the
+ * response side, a cookie can carry the attributes of a
+ * <tt>Set-Cookie</tt> header (lifetime, path, domain, and the
+ * <tt>HttpOnly</tt>, <tt>Secure</tt> and <tt>SameSite</tt> flags). For
+ * example, giving a session cookie the path of the application keeps
+ * the browser from sending it along with every static resource.
  */
 public class Cookie
 {
+  /**
+   * The values of the <tt>SameSite</tt> attribute
+   */
+  public static enum SameSite
+  {
+    STRICT("Strict"), LAX("Lax"), NONE("None");
+
+    /**
+     * The name of the value in a header
+     */
+    private final String m_text;
+
+    private SameSite(String text)
+    {
+      m_text = text;
+    }
+
+    @Override
+    public String toString()
+    {
+      return m_text;
+    }
+  }
+
   /**
    * The cookie's name
    */
@@ -36,6 +70,39 @@ public class Cookie
    * The cookie's value
    */
   protected final String m_value;
+
+  /**
+   * The number of seconds before the cookie expires, or -1 for a cookie
+   * that lasts until the browser is closed
+   */
+  protected long m_maxAge = -1;
+
+  /**
+   * The path for which the browser sends the cookie, or null for the
+   * browser's default
+   */
+  protected String m_path = null;
+
+  /**
+   * The domain for which the browser sends the cookie, or null for the
+   * host that set it
+   */
+  protected String m_domain = null;
+
+  /**
+   * Whether the cookie is hidden from scripts
+   */
+  protected boolean m_httpOnly = false;
+
+  /**
+   * Whether the cookie is only sent over secure connections
+   */
+  protected boolean m_secure = false;
+
+  /**
+   * The <tt>SameSite</tt> attribute, or null if it is not set
+   */
+  protected SameSite m_sameSite = null;
   
   /**
    * Instantiates a cookie
@@ -57,40 +124,87 @@ public class Cookie
    */
   public Cookie(HttpExchange t, String name)
   {
-	super();
-	m_name = name;
-	
-	//Extract cookie from header
-	List<String> cookies = t.getRequestHeaders().get("Cookie");
-	String cookie = "";
-    int cookieIndex = -1;
-    int cookieIndexEnd = -1;
-    for(Iterator<String> i = cookies.iterator(); i.hasNext();)
+    super();
+    m_name = name;
+    String value = RequestContext.of(t).getCookie(name);
+    m_value = value == null ? "" : value;
+  }
+
+  /**
+   * Gets the cookies sent with a request. The header is only parsed
+   * once, no matter how many callbacks ask for the cookies.
+   * @param t The HttpExchange instance
+   * @return An unmodifiable map from the names of the cookies to their
+   * values
+   */
+  public static Map<String,String> getCookies(HttpExchange t)
+  {
+    return RequestContext.of(t).getCookies();
+  }
+
+  /**
+   * Parses the values of the <tt>Cookie</tt> headers of a request. The
+   * pairs are separated by semicolons; pairs without an equal sign or
+   * with an empty name are skipped, and a value enclosed in double quotes
+   * loses its quotes. When a name appears more than once, its first value
+   * is kept: browsers send the cookie with the most specific path first.
+   * @param values The values of the headers, possibly null
+   * @return A map from the names of the cookies to their values
+   */
+  public static Map<String,String> parse(List<String> values)
+  {
+    Map<String,String> cookies = new HashMap<String,String>();
+    if (values == null)
     {
-      cookie = i.next();
-      cookieIndex = cookie.indexOf(name);
-      if(cookieIndex != -1)
-      {
-        //Skip "<name>=" to get to the character after "="
-        cookieIndex = cookieIndex + name.length() + 1;
-        break;
-      }
+      return cookies;
     }
-    if(cookieIndex != -1)
+    for (String value : values)
     {
-      cookie = cookie.substring(cookieIndex);
-      cookieIndexEnd = cookie.indexOf(';');
-      if(cookieIndexEnd != -1)
+      int len = value.length();
+      int start = 0;
+      while (start < len)
       {
-        cookie = cookie.substring(0, cookieIndexEnd);
+        int equal = -1;
+        int end = start;
+        for (; end < len; end++)
+        {
+          char c = value.charAt(end);
+          if (c == ';')
+          {
+            break;
+          }
+          if (c == '=' && equal < 0)
+          {
+            equal = end;
+          }
+        }
+        if (equal > 0)
+        {
+          String name = value.substring(start, equal).trim();
+          if (!name.isEmpty() && !cookies.containsKey(name))
+          {
+            cookies.put(name, unquote(value.substring(equal + 1, end).trim()));
+          }
+        }
+        start = end + 1;
       }
-      
-      m_value = cookie;
     }
-    else 
+    return cookies;
+  }
+
+  /**
+   * Removes the double quotes around a cookie value, if any
+   * @param value The value
+   * @return The value without its quotes
+   */
+  protected static String unquote(String value)
+  {
+    int len = value.length();
+    if (len >= 2 && value.charAt(0) == '"' && value.charAt(len - 1) == '"')
     {
-      m_value = "";
+      return value.substring(1, len - 1);
     }
+    return value;
   }
   
   /**
@@ -110,4 +224,220 @@ public class Cookie
   {
     return m_value;
   }
+
+  /**
+   * Sets the lifetime of the cookie. A lifetime of 0 tells the browser
+   * to delete the cookie right away.
+   * @param seconds The number of seconds before the cookie expires, or
+   * -1 for a cookie that lasts until the browser is closed
+   * @return This cookie
+   */
+  public Cookie setMaxAge(long seconds)
+  {
+    m_maxAge = seconds < 0 ? -1 : seconds;
+    return this;
+  }
+
+  /**
+   * Gets the lifetime of the cookie
+   * @return The number of seconds, or -1 if the lifetime is not set
+   */
+  public long getMaxAge()
+  {
+    return m_maxAge;
+  }
+
+  /**
+   * Sets the path for which the browser sends the cookie
+   * @param path The path, or null for the browser's default
+   * @return This cookie
+   */
+  public Cookie setPath(String path)
+  {
+    m_path = checkAttribute("path", path);
+    return this;
+  }
+
+  /**
+   * Gets the path for which the browser sends the cookie
+   * @return The path, or null if it is not set
+   */
+  public String getPath()
+  {
+    return m_path;
+  }
+
+  /**
+   * Sets the domain for which the browser sends the cookie. The cookie
+   * is then also sent to the sub-domains of this domain.
+   * @param domain The domain, or null for the host that set the cookie
+   * @return This cookie
+   */
+  public Cookie setDomain(String domain)
+  {
+    m_domain = checkAttribute("domain", domain);
+    return this;
+  }
+
+  /**
+   * Gets the domain for which the browser sends the cookie
+   * @return The domain, or null if it is not set
+   */
+  public String getDomain()
+  {
+    return m_domain;
+  }
+
+  /**
+   * Sets whether the cookie is hidden from scripts
+   * @param b true to hide the cookie from scripts
+   * @return This cookie
+   */
+  public Cookie setHttpOnly(boolean b)
+  {
+    m_httpOnly = b;
+    return this;
+  }
+
+  /**
+   * Determines whether the cookie is hidden from scripts
+   * @return true if the cookie is hidden from scripts
+   */
+  public boolean isHttpOnly()
+  {
+    return m_httpOnly;
+  }
+
+  /**
+   * Sets whether the cookie is only sent over secure connections
+   * @param b true to restrict the cookie to secure connections
+   * @return This cookie
+   */
+  public Cookie setSecure(boolean b)
+  {
+    m_secure = b;
+    return this;
+  }
+
+  /**
+   * Determines whether the cookie is only sent over secure connections
+   * @return true if the cookie is restricted to secure connections
+   */
+  public boolean isSecure()
+  {
+    return m_secure;
+  }
+
+  /**
+   * Sets whether the cookie is sent with requests coming from other
+   * sites. Browsers ignore a cookie marked {@link SameSite#NONE} that
+   * is not also secure; such a cookie is therefore always written with
+   * the <tt>Secure</tt> flag.
+   * @param s The value of the attribute, or null not to set it
+   * @return This cookie
+   */
+  public Cookie setSameSite(SameSite s)
+  {
+    m_sameSite = s;
+    return this;
+  }
+
+  /**
+   * Gets the <tt>SameSite</tt> attribute of the cookie
+   * @return The value of the attribute, or null if it is not set
+   */
+  public SameSite getSameSite()
+  {
+    return m_sameSite;
+  }
+
+  /**
+   * Writes the cookie as the value of a <tt>Set-Cookie</tt> header
+   * @return The value of the header
+   * @throws IllegalArgumentException If the name of the cookie is not a
+   * token, or if its value contains a semicolon or a control character
+   */
+  public String toSetCookieString()
+  {
+    if (m_name == null || m_name.isEmpty() || !isToken(m_name))
+    {
+      throw new IllegalArgumentException("Invalid cookie name: " + m_name);
+    }
+    String value = m_value == null ? "" : m_value;
+    checkAttribute("value", value);
+    StringBuilder out = new StringBuilder(m_name.length() + value.length() + 64);
+    out.append(m_name).append('=').append(value);
+    if (m_maxAge >= 0)
+    {
+      // Expires is kept for the clients that ignore Max-Age
+      out.append("; Max-Age=").append(m_maxAge);
+      long expires = m_maxAge == 0 ? 0 : System.currentTimeMillis() + m_maxAge * 1000;
+      out.append("; Expires=").append(HttpClock.format(expires));
+    }
+    if (m_domain != null)
+    {
+      out.append("; Domain=").append(m_domain);
+    }
+    if (m_path != null)
+    {
+      out.append("; Path=").append(m_path);
+    }
+    if (m_secure || m_sameSite == SameSite.NONE)
+    {
+      out.append("; Secure");
+    }
+    if (m_httpOnly)
+    {
+      out.append("; HttpOnly");
+    }
+    if (m_sameSite != null)
+    {
+      out.append("; SameSite=").append(m_sameSite);
+    }
+    return out.toString();
+  }
+
+  /**
+   * Checks that a string can be written in a <tt>Set-Cookie</tt> header
+   * without ending the attribute or the header it is part of
+   * @param what What the string is, for the error message
+   * @param s The string, possibly null
+   * @return The string
+   * @throws IllegalArgumentException If the string contains a semicolon
+   * or a control character
+   */
+  protected static String checkAttribute(String what, String s)
+  {
+    if (s == null)
+    {
+      return null;
+    }
+    for (int i = 0; i < s.length(); i++)
+    {
+      char c = s.charAt(i);
+      if (c == ';' || c < 0x20 || c == 0x7f)
+      {
+        throw new IllegalArgumentException("Invalid character in cookie " + what + ": " + s);
+      }
+    }
+    return s;
+  }
+
+  /**
+   * Determines whether a string is a token, as defined by HTTP
+   * @param s The string
+   * @return true if the string only contains token characters
+   */
+  protected static boolean isToken(String s)
+  {
+    for (int i = 0; i < s.length(); i++)
+    {
+      char c = s.charAt(i);
+      if (c <= 0x20 || c >= 0x7f || "()<>@,;:\\\"/[]?={}".indexOf(c) >= 0)
+      {
+        return false;
+      }
+    }
+    return true;
+  }
 }
@@ -0,0 +1,154 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The body of a response read from a region of a file. The file is only
+ * opened when the body is written, and its contents are moved to the
+ * connection with {@link FileChannel#transferTo(long, long, WritableByteChannel)
+ * transferTo()}, so that they never need to be copied into the heap. When
+ * the stream of the connection is itself a channel, the operating system
+ * can send the file without copying it at all.
+ * @author Sylvain Hallé
+ */
+public class FileBody implements CallbackResponse.BodyWriter
+{
+	/**
+	 * The file to read
+	 */
+	protected final File m_file;
+
+	/**
+	 * The position of the first byte to send
+	 */
+	protected final long m_offset;
+
+	/**
+	 * The number of bytes to send
+	 */
+	protected final long m_length;
+
+	/**
+	 * Creates a body made of a whole file
+	 * @param f The file
+	 */
+	public FileBody(File f)
+	{
+		this(f, 0, f.length());
+	}
+
+	/**
+	 * Creates a body made of a region of a file
+	 * @param f The file
+	 * @param offset The position of the first byte to send
+	 * @param length The number of bytes to send
+	 */
+	public FileBody(File f, long offset, long length)
+	{
+		super();
+		m_file = f;
+		m_offset = offset;
+		m_length = length;
+	}
+
+	/**
+	 * Gets the file read by this body
+	 * @return The file
+	 */
+	public File getFile()
+	{
+		return m_file;
+	}
+
+	/**
+	 * Gets the position of the first byte sent
+	 * @return The position
+	 */
+	public long getOffset()
+	{
+		return m_offset;
+	}
+
+	/**
+	 * Gets the number of bytes sent
+	 * @return The number of bytes
+	 */
+	public long getLength()
+	{
+		return m_length;
+	}
+
+	@Override
+	public void write(OutputStream out) throws IOException
+	{
+		WritableByteChannel target;
+		if (out instanceof WritableByteChannel)
+		{
+			target = (WritableByteChannel) out;
+		}
+		else
+		{
+			target = Channels.newChannel(out);
+		}
+		transfer(target, m_offset, m_length);
+	}
+
+	/**
+	 * Sends a region of the file to a channel
+	 * @param target The channel
+	 * @param offset The position of the first byte to send
+	 * @param length The number of bytes to send
+	 * @throws IOException If the file cannot be read, or if it became
+	 * shorter than the region to send
+	 */
+	protected void transfer(WritableByteChannel target, long offset, long length) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(m_file, "r");
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			long position = offset;
+			long end = offset + length;
+			while (position < end)
+			{
+				long sent = channel.transferTo(position, end - position, target);
+				if (sent <= 0)
+				{
+					if (position >= channel.size())
+					{
+						throw new IOException("File " + m_file + " was truncated while being sent");
+					}
+					continue;
+				}
+				position += sent;
+			}
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+}
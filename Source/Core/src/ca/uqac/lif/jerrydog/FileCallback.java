@@ -0,0 +1,159 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Serves files from a folder of the local filesystem. Contrary to
+ * {@link InnerFileCallback}, which reads resources from the classpath into
+ * memory, the contents of a file are streamed to the client as a
+ * {@link FileBody}, so that serving a file, however large, costs almost no
+ * memory.
+ * @author Sylvain Hallé
+ */
+public class FileCallback extends RequestCallback
+{
+	/**
+	 * The path prefix of the requests served by this callback
+	 */
+	protected final String m_prefix;
+
+	/**
+	 * The folder where files are read
+	 */
+	protected final File m_root;
+
+	/**
+	 * The canonical path of the root folder, used to make sure that no file
+	 * outside of it is served
+	 */
+	protected final String m_canonicalRoot;
+
+	/**
+	 * Whether or not to send a "404 Not Found" when the file is not found
+	 */
+	protected boolean m_send404 = true;
+
+	/**
+	 * Creates a callback serving all requests from a folder
+	 * @param root The folder where files are read
+	 * @throws IOException If the path of the folder cannot be resolved
+	 */
+	public FileCallback(File root) throws IOException
+	{
+		this("", root);
+	}
+
+	/**
+	 * Creates a callback serving the requests whose path starts with a
+	 * prefix. For example, with prefix <code>/static</code>, the request
+	 * <code>/static/img/a.png</code> is answered with the file
+	 * <code>img/a.png</code> in the root folder.
+	 * @param prefix The path prefix, without a trailing slash
+	 * @param root The folder where files are read
+	 * @throws IOException If the path of the folder cannot be resolved
+	 */
+	public FileCallback(String prefix, File root) throws IOException
+	{
+		super();
+		m_prefix = prefix;
+		m_root = root;
+		m_canonicalRoot = root.getCanonicalPath();
+	}
+
+	/**
+	 * Sets whether or not to send a "404 Not Found" when the file is not
+	 * found. If set to false, the callback returns null instead, letting the
+	 * server try the request on further callbacks.
+	 * @param b true to send a 404 when a file is not found, false 
+	 *   to send null instead
+	 */
+	public void send404(boolean b)
+	{
+		m_send404 = b;
+	}
+
+	@Override
+	public boolean fire(HttpExchange t)
+	{
+		String path = RequestContext.of(t).getPath();
+		return m_prefix.isEmpty() || path.compareTo(m_prefix) == 0 || path.startsWith(m_prefix + "/");
+	}
+
+	@Override
+	public CallbackResponse process(HttpExchange t)
+	{
+		CallbackResponse response = new CallbackResponse(t);
+		String path = RequestContext.of(t).getPath().substring(m_prefix.length());
+		if (path.contains(".."))
+		{
+			// We try to move up in the structure, and possibly access
+			// files outside the root folder: deny it
+			response.setCode(CallbackResponse.HTTP_BAD_REQUEST);
+			return response;
+		}
+		File f = resolve(path);
+		if (f == null)
+		{
+			if (!m_send404)
+			{
+				// Don't return a 404; send null to indicate failure to the server
+				return null;
+			}
+			response.setCode(CallbackResponse.HTTP_NOT_FOUND);
+			return response;
+		}
+		response.setContentType(CallbackResponse.getContentTypeForName(f.getName()));
+		response.setHeader("Last-Modified", Server.formatDate(new Date(f.lastModified())));
+		response.setContents(new FileBody(f), f.length());
+		return ByteRanges.apply(response);
+	}
+
+	/**
+	 * Finds the file corresponding to a path
+	 * @param path The path, relative to the root folder
+	 * @return The file, or null if it does not exist, is not a regular
+	 * file, or lies outside of the root folder
+	 */
+	protected File resolve(String path)
+	{
+		File f = new File(m_root, path);
+		try
+		{
+			String canonical = f.getCanonicalPath();
+			if (!canonical.equals(m_canonicalRoot) && !canonical.startsWith(m_canonicalRoot + File.separator))
+			{
+				return null;
+			}
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+		if (!f.isFile() || !f.canRead())
+		{
+			return null;
+		}
+		return f;
+	}
+}
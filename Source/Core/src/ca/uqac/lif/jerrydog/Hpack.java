@@ -0,0 +1,808 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The header compression of HTTP/2, as defined by
+ * <a href="https://www.rfc-editor.org/rfc/rfc7541">RFC 7541</a>. Each side
+ * of a connection keeps a table of the headers it has recently seen, so
+ * that a header repeated from one request to the next is sent as a single
+ * index; names and values that are sent in full are Huffman-coded when
+ * this makes them shorter.
+ * <p>
+ * An {@link Encoder} and a {@link Decoder} each hold the state of one
+ * direction of a connection, and must be used for the header blocks of
+ * that direction in the order in which they are sent.
+ * @author Sylvain Hallé
+ */
+public class Hpack
+{
+	/**
+	 * The default maximum size of a dynamic table
+	 */
+	public static final int DEFAULT_TABLE_SIZE = 4096;
+
+	/**
+	 * The number of bytes counted for each entry of a table besides its
+	 * name and value
+	 */
+	protected static final int s_entryOverhead = 32;
+
+	/**
+	 * The charset of names and values
+	 */
+	protected static final Charset s_charset = Charset.forName("ISO-8859-1");
+
+	/**
+	 * The static table, whose indices start at 1
+	 */
+	protected static final String[][] s_staticTable = {
+		{":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"},
+		{":path", "/index.html"}, {":scheme", "http"}, {":scheme", "https"}, {":status", "200"},
+		{":status", "204"}, {":status", "206"}, {":status", "304"}, {":status", "400"},
+		{":status", "404"}, {":status", "500"}, {"accept-charset", ""}, {"accept-encoding", "gzip, deflate"},
+		{"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""}, {"access-control-allow-origin", ""},
+		{"age", ""}, {"allow", ""}, {"authorization", ""}, {"cache-control", ""},
+		{"content-disposition", ""}, {"content-encoding", ""}, {"content-language", ""}, {"content-length", ""},
+		{"content-location", ""}, {"content-range", ""}, {"content-type", ""}, {"cookie", ""},
+		{"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""},
+		{"from", ""}, {"host", ""}, {"if-match", ""}, {"if-modified-since", ""},
+		{"if-none-match", ""}, {"if-range", ""}, {"if-unmodified-since", ""}, {"last-modified", ""},
+		{"link", ""}, {"location", ""}, {"max-forwards", ""}, {"proxy-authenticate", ""},
+		{"proxy-authorization", ""}, {"range", ""}, {"referer", ""}, {"refresh", ""},
+		{"retry-after", ""}, {"server", ""}, {"set-cookie", ""}, {"strict-transport-security", ""},
+		{"transfer-encoding", ""}, {"user-agent", ""}, {"vary", ""}, {"via", ""},
+		{"www-authenticate", ""}
+	};
+
+	/**
+	 * The index in the static table of each name, and of each name and
+	 * value separated by a null character
+	 */
+	protected static final Map<String,Integer> s_staticIndex = createStaticIndex();
+
+	/**
+	 * The Huffman code of each symbol, the last one being the end of
+	 * string, from Appendix B of RFC 7541
+	 */
+	protected static final int[] s_huffmanCodes = {
+		0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+		0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+		0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+		0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+		0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+		0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+		0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+		0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+		0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+		0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+		0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+		0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+		0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+		0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+		0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+		0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+		0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+		0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+		0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+		0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+		0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+		0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+		0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+		0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+		0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+		0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+		0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+		0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+		0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+		0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+		0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+		0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+		0x3fffffff
+	};
+
+	protected static final byte[] s_huffmanLengths = {
+		13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+		28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+		6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+		5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+		13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+		7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+		15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+		6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+		20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+		24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+		22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+		21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+		26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+		19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+		20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+		26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+		30
+	};
+
+	/**
+	 * The Huffman decoding tree: the children of each node, and the symbol
+	 * of each leaf (or -1 for an inner node)
+	 */
+	protected static final int[][] s_huffmanTree = createHuffmanTree();
+
+	/**
+	 * The names of the headers whose values change too often to be worth
+	 * adding to the dynamic table
+	 */
+	protected static final String[] s_volatileNames = {":path", "age", "content-length",
+		"content-range", "date", "etag", "expires", "last-modified", "location"};
+
+	/**
+	 * The names of the headers that must never be added to a table, so that
+	 * their value cannot be guessed by probing the compression
+	 */
+	protected static final String[] s_sensitiveNames = {"authorization", "cookie",
+		"proxy-authorization", "set-cookie"};
+
+	/**
+	 * Prevents instantiation
+	 */
+	private Hpack()
+	{
+		super();
+	}
+
+	/**
+	 * A name-value pair
+	 */
+	public static class Field
+	{
+		/**
+		 * The name
+		 */
+		protected final String m_name;
+
+		/**
+		 * The value
+		 */
+		protected final String m_value;
+
+		/**
+		 * Creates a field
+		 * @param name The name
+		 * @param value The value
+		 */
+		public Field(String name, String value)
+		{
+			super();
+			m_name = name;
+			m_value = value;
+		}
+
+		/**
+		 * Gets the name of the field
+		 * @return The name
+		 */
+		public String getName()
+		{
+			return m_name;
+		}
+
+		/**
+		 * Gets the value of the field
+		 * @return The value
+		 */
+		public String getValue()
+		{
+			return m_value;
+		}
+
+		/**
+		 * Gets the size of the field in a table
+		 * @return The size, in bytes
+		 */
+		public int getSize()
+		{
+			return m_name.length() + m_value.length() + s_entryOverhead;
+		}
+
+		@Override
+		public String toString()
+		{
+			return m_name + ": " + m_value;
+		}
+	}
+
+	/**
+	 * Encodes the header blocks sent in one direction of a connection
+	 */
+	public static class Encoder
+	{
+		/**
+		 * The dynamic table
+		 */
+		protected final DynamicTable m_table = new DynamicTable(DEFAULT_TABLE_SIZE);
+
+		/**
+		 * The smallest table size set since the last header block, or -1 if
+		 * the size has not changed
+		 */
+		protected int m_minSize = -1;
+
+		/**
+		 * Sets the maximum size of the dynamic table, as allowed by the other
+		 * side of the connection. The change is announced at the start of
+		 * the next header block.
+		 * @param size The size, in bytes
+		 */
+		public void setMaxTableSize(int size)
+		{
+			// Never use a larger table than the default, whatever the peer allows
+			size = Math.min(size, DEFAULT_TABLE_SIZE);
+			if (size == m_table.getMaxSize() && m_minSize < 0)
+			{
+				return;
+			}
+			m_minSize = m_minSize < 0 ? size : Math.min(m_minSize, size);
+			m_table.setMaxSize(size);
+		}
+
+		/**
+		 * Encodes a header block
+		 * @param fields The fields of the block, whose names must be in
+		 * lower case
+		 * @param out The stream to write to
+		 */
+		public void encode(List<Field> fields, ByteArrayOutputStream out)
+		{
+			if (m_minSize >= 0)
+			{
+				// Announce the smallest size first, then the current one
+				writeInteger(out, 0x20, 5, m_minSize);
+				if (m_minSize != m_table.getMaxSize())
+				{
+					writeInteger(out, 0x20, 5, m_table.getMaxSize());
+				}
+				m_minSize = -1;
+			}
+			for (Field f : fields)
+			{
+				encode(f, out);
+			}
+		}
+
+		/**
+		 * Encodes a field
+		 * @param f The field
+		 * @param out The stream to write to
+		 */
+		protected void encode(Field f, ByteArrayOutputStream out)
+		{
+			String name = f.getName();
+			String value = f.getValue();
+			boolean sensitive = contains(s_sensitiveNames, name);
+			if (!sensitive)
+			{
+				Integer index = s_staticIndex.get(name + '\0' + value);
+				int found = index != null ? index : m_table.indexOf(name, value);
+				if (found > 0)
+				{
+					writeInteger(out, 0x80, 7, found);
+					return;
+				}
+			}
+			Integer name_index = s_staticIndex.get(name);
+			int found = name_index != null ? name_index : m_table.indexOf(name, null);
+			if (sensitive)
+			{
+				writeInteger(out, 0x10, 4, Math.max(found, 0));
+			}
+			else if (contains(s_volatileNames, name))
+			{
+				writeInteger(out, 0x00, 4, Math.max(found, 0));
+			}
+			else
+			{
+				writeInteger(out, 0x40, 6, Math.max(found, 0));
+				m_table.add(new Field(name, value));
+			}
+			if (found <= 0)
+			{
+				writeString(out, name);
+			}
+			writeString(out, value);
+		}
+	}
+
+	/**
+	 * Decodes the header blocks received in one direction of a connection
+	 */
+	public static class Decoder
+	{
+		/**
+		 * The dynamic table
+		 */
+		protected final DynamicTable m_table = new DynamicTable(DEFAULT_TABLE_SIZE);
+
+		/**
+		 * The maximum size of the dynamic table allowed to the other side
+		 */
+		protected final int m_maxSize;
+
+		/**
+		 * The maximum size of a decoded header block
+		 */
+		protected final int m_maxListSize;
+
+		/**
+		 * Creates a decoder
+		 * @param max_list_size The maximum size of a decoded header block, in
+		 * bytes, counted as in a table
+		 */
+		public Decoder(int max_list_size)
+		{
+			super();
+			m_maxSize = DEFAULT_TABLE_SIZE;
+			m_maxListSize = max_list_size;
+		}
+
+		/**
+		 * Decodes a header block
+		 * @param in The buffer holding the whole block
+		 * @param out The list to which the fields are added, in order
+		 * @throws IOException If the block is malformed, in which case the
+		 * connection can no longer be used
+		 */
+		public void decode(ByteBuffer in, List<Field> out) throws IOException
+		{
+			int list_size = 0;
+			boolean first = true;
+			while (in.hasRemaining())
+			{
+				int b = in.get(in.position()) & 0xff;
+				Field f;
+				if ((b & 0x80) != 0)
+				{
+					f = get(readInteger(in, 7));
+				}
+				else if ((b & 0x40) != 0)
+				{
+					f = readLiteral(in, 6);
+					m_table.add(f);
+				}
+				else if ((b & 0x20) != 0)
+				{
+					if (!first)
+					{
+						throw new IOException("Table size update after the first field");
+					}
+					int size = readInteger(in, 5);
+					if (size > m_maxSize)
+					{
+						throw new IOException("Table size update beyond the limit");
+					}
+					m_table.setMaxSize(size);
+					continue;
+				}
+				else
+				{
+					f = readLiteral(in, 4);
+				}
+				first = false;
+				list_size += f.getSize();
+				if (list_size > m_maxListSize)
+				{
+					throw new IOException("Header list too large");
+				}
+				out.add(f);
+			}
+		}
+
+		/**
+		 * Gets the field at an index of the static or dynamic table
+		 * @param index The index
+		 * @return The field
+		 * @throws IOException If the index is out of bounds
+		 */
+		protected Field get(int index) throws IOException
+		{
+			if (index <= 0)
+			{
+				throw new IOException("Invalid index " + index);
+			}
+			if (index <= s_staticTable.length)
+			{
+				String[] entry = s_staticTable[index - 1];
+				return new Field(entry[0], entry[1]);
+			}
+			Field f = m_table.get(index - s_staticTable.length);
+			if (f == null)
+			{
+				throw new IOException("Invalid index " + index);
+			}
+			return f;
+		}
+
+		/**
+		 * Reads a literal field
+		 * @param in The buffer
+		 * @param prefix The number of bits of the name's index
+		 * @return The field
+		 * @throws IOException If the field is malformed
+		 */
+		protected Field readLiteral(ByteBuffer in, int prefix) throws IOException
+		{
+			int index = readInteger(in, prefix);
+			String name = index == 0 ? readString(in) : get(index).getName();
+			return new Field(name, readString(in));
+		}
+	}
+
+	/**
+	 * A dynamic table, where the most recent entry has index 1
+	 */
+	protected static class DynamicTable
+	{
+		/**
+		 * The entries, from the most recent
+		 */
+		protected final ArrayDeque<Field> m_entries = new ArrayDeque<Field>();
+
+		/**
+		 * The size of the entries
+		 */
+		protected int m_size = 0;
+
+		/**
+		 * The maximum size of the entries
+		 */
+		protected int m_maxSize;
+
+		/**
+		 * Creates a table
+		 * @param max_size The maximum size of the entries
+		 */
+		public DynamicTable(int max_size)
+		{
+			super();
+			m_maxSize = max_size;
+		}
+
+		/**
+		 * Gets the maximum size of the entries
+		 * @return The size
+		 */
+		public int getMaxSize()
+		{
+			return m_maxSize;
+		}
+
+		/**
+		 * Changes the maximum size of the entries, evicting the oldest ones
+		 * if needed
+		 * @param size The size
+		 */
+		public void setMaxSize(int size)
+		{
+			m_maxSize = size;
+			evict(0);
+		}
+
+		/**
+		 * Adds an entry, evicting the oldest ones to make room. An entry
+		 * larger than the table empties it.
+		 * @param f The entry
+		 */
+		public void add(Field f)
+		{
+			int size = f.getSize();
+			evict(size);
+			if (size <= m_maxSize)
+			{
+				m_entries.addFirst(f);
+				m_size += size;
+			}
+		}
+
+		/**
+		 * Gets an entry
+		 * @param index The index of the entry, starting at 1
+		 * @return The entry, or null if there is none
+		 */
+		public Field get(int index)
+		{
+			if (index < 1 || index > m_entries.size())
+			{
+				return null;
+			}
+			Iterator<Field> it = m_entries.iterator();
+			for (int i = 1; i < index; i++)
+			{
+				it.next();
+			}
+			return it.next();
+		}
+
+		/**
+		 * Finds an entry
+		 * @param name The name of the entry
+		 * @param value The value of the entry, or null to match any value
+		 * @return The index of the entry in the whole index space (after the
+		 * static table), or -1 if it is not found
+		 */
+		public int indexOf(String name, String value)
+		{
+			int index = s_staticTable.length + 1;
+			for (Field f : m_entries)
+			{
+				if (f.getName().equals(name) && (value == null || f.getValue().equals(value)))
+				{
+					return index;
+				}
+				index++;
+			}
+			return -1;
+		}
+
+		/**
+		 * Evicts the oldest entries until some room is free
+		 * @param room The room to free, in bytes
+		 */
+		protected void evict(int room)
+		{
+			while (!m_entries.isEmpty() && m_size + room > m_maxSize)
+			{
+				m_size -= m_entries.removeLast().getSize();
+			}
+		}
+	}
+
+	/**
+	 * Writes an integer with a prefix of a given number of bits
+	 * @param out The stream
+	 * @param flags The bits of the first byte above the prefix
+	 * @param prefix The number of bits of the prefix
+	 * @param value The value
+	 */
+	protected static void writeInteger(ByteArrayOutputStream out, int flags, int prefix, int value)
+	{
+		int max = (1 << prefix) - 1;
+		if (value < max)
+		{
+			out.write(flags | value);
+			return;
+		}
+		out.write(flags | max);
+		value -= max;
+		while (value >= 0x80)
+		{
+			out.write((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	/**
+	 * Reads an integer with a prefix of a given number of bits
+	 * @param in The buffer
+	 * @param prefix The number of bits of the prefix
+	 * @return The value
+	 * @throws IOException If the integer is truncated or too large
+	 */
+	protected static int readInteger(ByteBuffer in, int prefix) throws IOException
+	{
+		if (!in.hasRemaining())
+		{
+			throw new IOException("Truncated integer");
+		}
+		int max = (1 << prefix) - 1;
+		int value = in.get() & max;
+		if (value < max)
+		{
+			return value;
+		}
+		for (int shift = 0; ; shift += 7)
+		{
+			if (!in.hasRemaining() || shift > 21)
+			{
+				throw new IOException("Truncated or oversized integer");
+			}
+			int b = in.get() & 0xff;
+			value += (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+			{
+				return value;
+			}
+		}
+	}
+
+	/**
+	 * Writes a string, Huffman-coded if this makes it shorter
+	 * @param out The stream
+	 * @param s The string
+	 */
+	protected static void writeString(ByteArrayOutputStream out, String s)
+	{
+		byte[] bytes = s.getBytes(s_charset);
+		long bits = 0;
+		for (byte b : bytes)
+		{
+			bits += s_huffmanLengths[b & 0xff];
+		}
+		int huffman_length = (int) ((bits + 7) / 8);
+		if (huffman_length >= bytes.length)
+		{
+			writeInteger(out, 0x00, 7, bytes.length);
+			out.write(bytes, 0, bytes.length);
+			return;
+		}
+		writeInteger(out, 0x80, 7, huffman_length);
+		long current = 0;
+		int count = 0;
+		for (byte b : bytes)
+		{
+			int sym = b & 0xff;
+			current = (current << s_huffmanLengths[sym]) | s_huffmanCodes[sym];
+			count += s_huffmanLengths[sym];
+			while (count >= 8)
+			{
+				count -= 8;
+				out.write((int) (current >>> count));
+			}
+		}
+		if (count > 0)
+		{
+			// Pad with the most significant bits of the end of string
+			out.write((int) ((current << (8 - count)) | (0xff >>> count)));
+		}
+	}
+
+	/**
+	 * Reads a string
+	 * @param in The buffer
+	 * @return The string
+	 * @throws IOException If the string is truncated or badly coded
+	 */
+	protected static String readString(ByteBuffer in) throws IOException
+	{
+		if (!in.hasRemaining())
+		{
+			throw new IOException("Truncated string");
+		}
+		boolean huffman = (in.get(in.position()) & 0x80) != 0;
+		int length = readInteger(in, 7);
+		if (length > in.remaining())
+		{
+			throw new IOException("Truncated string");
+		}
+		if (!huffman)
+		{
+			byte[] bytes = new byte[length];
+			in.get(bytes);
+			return new String(bytes, s_charset);
+		}
+		StringBuilder out = new StringBuilder(length * 8 / 5);
+		int[] left = s_huffmanTree[0];
+		int[] right = s_huffmanTree[1];
+		int[] symbols = s_huffmanTree[2];
+		int node = 0;
+		int pad_bits = 0;
+		boolean all_ones = true;
+		for (int i = 0; i < length; i++)
+		{
+			int b = in.get() & 0xff;
+			for (int bit = 7; bit >= 0; bit--)
+			{
+				boolean one = ((b >>> bit) & 1) != 0;
+				node = one ? right[node] : left[node];
+				pad_bits++;
+				all_ones &= one;
+				int sym = symbols[node];
+				if (sym >= 0)
+				{
+					if (sym == 256)
+					{
+						throw new IOException("End of string in a Huffman-coded string");
+					}
+					out.append((char) sym);
+					node = 0;
+					pad_bits = 0;
+					all_ones = true;
+				}
+			}
+		}
+		if (pad_bits > 7 || !all_ones)
+		{
+			throw new IOException("Invalid padding in a Huffman-coded string");
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Determines whether an array contains a string
+	 * @param array The array
+	 * @param s The string
+	 * @return true if it does
+	 */
+	protected static boolean contains(String[] array, String s)
+	{
+		for (String e : array)
+		{
+			if (e.equals(s))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Creates the index of the static table
+	 * @return The index
+	 */
+	protected static Map<String,Integer> createStaticIndex()
+	{
+		Map<String,Integer> index = new HashMap<String,Integer>();
+		for (int i = s_staticTable.length - 1; i >= 0; i--)
+		{
+			// Going backwards, each name ends up with its lowest index
+			index.put(s_staticTable[i][0], i + 1);
+			index.put(s_staticTable[i][0] + '\0' + s_staticTable[i][1], i + 1);
+		}
+		return index;
+	}
+
+	/**
+	 * Creates the Huffman decoding tree
+	 * @return The left children, the right children and the symbols of the
+	 * nodes, the root being node 0
+	 */
+	protected static int[][] createHuffmanTree()
+	{
+		int size = 2 * s_huffmanCodes.length;
+		int[] left = new int[size];
+		int[] right = new int[size];
+		int[] symbols = new int[size];
+		Arrays.fill(symbols, -1);
+		int nodes = 1;
+		for (int sym = 0; sym < s_huffmanCodes.length; sym++)
+		{
+			int node = 0;
+			for (int bit = s_huffmanLengths[sym] - 1; bit >= 0; bit--)
+			{
+				boolean one = ((s_huffmanCodes[sym] >>> bit) & 1) != 0;
+				int[] children = one ? right : left;
+				if (children[node] == 0)
+				{
+					children[node] = nodes++;
+				}
+				node = children[node];
+			}
+			symbols[node] = sym;
+		}
+		return new int[][] {left, right, symbols};
+	}
+}
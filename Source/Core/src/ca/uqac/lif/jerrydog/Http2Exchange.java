@@ -0,0 +1,186 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.sun.net.httpserver.Headers;
+
+/**
+ * The exchange handed to the callbacks for a request received on an
+ * HTTP/2 stream. It behaves like any other exchange; the status and the
+ * headers of the response are turned into a header block, and its body
+ * into data frames, by the {@link Http2Session} of the connection.
+ * @author Sylvain Hallé
+ */
+public class Http2Exchange extends NioHttpExchange
+{
+	/**
+	 * The headers that are specific to a connection, which HTTP/2 forbids
+	 */
+	protected static final String[] s_connectionHeaders = {"connection", "keep-alive",
+		"proxy-connection", "transfer-encoding", "upgrade"};
+
+	/**
+	 * The identifier of the stream
+	 */
+	protected final int m_streamId;
+
+	/**
+	 * The fields of the response's header block, once the headers are sent
+	 * and until the session takes them
+	 */
+	protected List<Hpack.Field> m_responseFields = null;
+
+	/**
+	 * Whether the response has no body
+	 */
+	protected volatile boolean m_noBody = false;
+
+	/**
+	 * Whether the response has been given up
+	 */
+	protected boolean m_abandoned = false;
+
+	/**
+	 * Creates an exchange
+	 * @param connection The connection on which the request was received
+	 * @param stream_id The identifier of the stream
+	 * @param method The request's method
+	 * @param uri The request's URI
+	 * @param headers The request's headers
+	 * @param body The request's body
+	 */
+	public Http2Exchange(NioTransport.Connection connection, int stream_id, String method, URI uri, Headers headers, byte[] body)
+	{
+		super(connection, method, uri, "HTTP/2.0", headers, body);
+		m_streamId = stream_id;
+	}
+
+	/**
+	 * Gets the identifier of the stream of this exchange
+	 * @return The identifier
+	 */
+	public int getStreamId()
+	{
+		return m_streamId;
+	}
+
+	@Override
+	protected void writeHead(int code, long length) throws IOException
+	{
+		boolean head = m_method.compareTo("HEAD") == 0;
+		int mode;
+		if (head || code < 200 || code == 204 || code == 304 || length < 0)
+		{
+			mode = NO_BODY;
+		}
+		else if (length > 0)
+		{
+			mode = FIXED;
+		}
+		else
+		{
+			// The end of the stream marks the end of the body
+			mode = UNTIL_CLOSE;
+		}
+		List<Hpack.Field> fields = new ArrayList<Hpack.Field>();
+		fields.add(new Hpack.Field(":status", Integer.toString(code)));
+		if (length > 0 && (mode == FIXED || head))
+		{
+			fields.add(new Hpack.Field("content-length", Long.toString(length)));
+		}
+		for (Map.Entry<String,List<String>> e : m_responseHeaders.entrySet())
+		{
+			String name = e.getKey().toLowerCase(Locale.ROOT);
+			if (name.equals("content-length") || Hpack.contains(s_connectionHeaders, name))
+			{
+				continue;
+			}
+			for (String value : e.getValue())
+			{
+				fields.add(new Hpack.Field(name, value));
+			}
+		}
+		m_noBody = mode == NO_BODY;
+		m_responseStream.start(mode, length);
+		synchronized (this)
+		{
+			if (m_aborted)
+			{
+				throw new IOException("Stream closed");
+			}
+			m_responseFields = fields;
+		}
+		m_connection.outputReady();
+		if (mode == NO_BODY)
+		{
+			m_responseStream.close();
+		}
+	}
+
+	/**
+	 * Gives up on a response that cannot be completed. Only the stream is
+	 * reset, the other streams of the connection are not affected.
+	 */
+	@Override
+	protected void abandon()
+	{
+		synchronized (this)
+		{
+			m_abandoned = true;
+		}
+		m_connection.outputReady();
+	}
+
+	/**
+	 * Determines whether the response has been given up
+	 * @return true if the stream must be reset
+	 */
+	protected synchronized boolean isAbandoned()
+	{
+		return m_abandoned;
+	}
+
+	/**
+	 * Takes the fields of the response's header block. This is called by
+	 * the session of the connection.
+	 * @return The fields, or null if the headers are not sent yet or have
+	 * already been taken
+	 */
+	protected synchronized List<Hpack.Field> takeResponseFields()
+	{
+		List<Hpack.Field> fields = m_responseFields;
+		m_responseFields = null;
+		return fields;
+	}
+
+	/**
+	 * Determines whether the response has no body
+	 * @return true if it has none
+	 */
+	protected boolean hasNoBody()
+	{
+		return m_noBody;
+	}
+}
@@ -0,0 +1,1353 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.sun.net.httpserver.Headers;
+
+/**
+ * The HTTP/2 side of a connection of the {@link NioTransport}, as defined
+ * by <a href="https://www.rfc-editor.org/rfc/rfc9113">RFC 9113</a>. Only
+ * cleartext HTTP/2 ("h2c") is spoken, entered in one of two ways:
+ * <ul>
+ * <li>with prior knowledge, when a new connection starts with the HTTP/2
+ * preface instead of an HTTP/1.1 request</li>
+ * <li>through an HTTP/1.1 request asking to upgrade to <code>h2c</code>,
+ * which is answered with a 101 Switching Protocols response; the request
+ * itself becomes the first stream</li>
+ * </ul>
+ * Each stream carries one request, handed to the server as an
+ * {@link Http2Exchange}. The streams of a connection are processed
+ * concurrently, and the data frames of their responses are interleaved
+ * in turn, within the limits of flow control set by the client. Server
+ * push is not used.
+ * <p>
+ * All the methods of a session run on the event loop of its connection.
+ * @author Sylvain Hallé
+ */
+public class Http2Session
+{
+	/**
+	 * Frame types
+	 */
+	protected static final int DATA = 0;
+	protected static final int HEADERS = 1;
+	protected static final int PRIORITY = 2;
+	protected static final int RST_STREAM = 3;
+	protected static final int SETTINGS = 4;
+	protected static final int PUSH_PROMISE = 5;
+	protected static final int PING = 6;
+	protected static final int GOAWAY = 7;
+	protected static final int WINDOW_UPDATE = 8;
+	protected static final int CONTINUATION = 9;
+
+	/**
+	 * Frame flags
+	 */
+	protected static final int FLAG_END_STREAM = 0x1;
+	protected static final int FLAG_ACK = 0x1;
+	protected static final int FLAG_END_HEADERS = 0x4;
+	protected static final int FLAG_PADDED = 0x8;
+	protected static final int FLAG_PRIORITY = 0x20;
+
+	/**
+	 * Error codes
+	 */
+	public static final int NO_ERROR = 0x0;
+	public static final int PROTOCOL_ERROR = 0x1;
+	public static final int INTERNAL_ERROR = 0x2;
+	public static final int FLOW_CONTROL_ERROR = 0x3;
+	public static final int STREAM_CLOSED = 0x5;
+	public static final int FRAME_SIZE_ERROR = 0x6;
+	public static final int REFUSED_STREAM = 0x7;
+	public static final int CANCEL = 0x8;
+	public static final int COMPRESSION_ERROR = 0x9;
+	public static final int ENHANCE_YOUR_CALM = 0xb;
+
+	/**
+	 * Settings
+	 */
+	protected static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+	protected static final int SETTINGS_ENABLE_PUSH = 0x2;
+	protected static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+	protected static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+	protected static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+	protected static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+	/**
+	 * The bytes a client sends first on an HTTP/2 connection
+	 */
+	protected static final byte[] s_preface = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(NioHttpExchange.s_headerCharset);
+
+	/**
+	 * The size of a frame header
+	 */
+	protected static final int s_frameHeaderSize = 9;
+
+	/**
+	 * The initial size of the flow control windows, before any setting
+	 */
+	protected static final int s_defaultWindow = 65535;
+
+	/**
+	 * The largest flow control window
+	 */
+	protected static final long s_maxWindow = 0x7fffffffL;
+
+	/**
+	 * The largest frame the server accepts
+	 */
+	protected static final int s_maxFrameSize = 16384;
+
+	/**
+	 * The maximum number of streams a client may open at the same time
+	 */
+	protected static final int s_maxConcurrentStreams = 100;
+
+	/**
+	 * The maximum number of streams a client may reset within
+	 * {@link #s_resetInterval} before the session is ended
+	 */
+	protected static final int s_maxResets = 200;
+
+	/**
+	 * The period over which the resets of a client are counted, in
+	 * milliseconds
+	 */
+	protected static final long s_resetInterval = 10000;
+
+	/**
+	 * The flow control window the server gives to the connection and to
+	 * each stream
+	 */
+	protected static final int s_receiveWindow = 1024 * 1024;
+
+	/**
+	 * The connection of this session
+	 */
+	protected final NioTransport.Connection m_connection;
+
+	/**
+	 * The decoder of the header blocks sent by the client
+	 */
+	protected final Hpack.Decoder m_decoder = new Hpack.Decoder(HttpRequestParser.DEFAULT_MAX_HEADER_SIZE);
+
+	/**
+	 * The encoder of the header blocks sent by the server
+	 */
+	protected final Hpack.Encoder m_encoder = new Hpack.Encoder();
+
+	/**
+	 * The open streams, in the order they were opened
+	 */
+	protected final Map<Integer,Stream> m_streams = new LinkedHashMap<Integer,Stream>();
+
+	/**
+	 * The exchanges of the streams that are closed, but whose callbacks
+	 * are still running. They count against the limit of concurrent
+	 * streams: otherwise, a client resetting each stream right after
+	 * opening it could make the server run any number of callbacks.
+	 */
+	protected final List<Http2Exchange> m_running = new ArrayList<Http2Exchange>();
+
+	/**
+	 * The number of streams reset by the client in the current period
+	 */
+	protected int m_resets = 0;
+
+	/**
+	 * The time at which the current period of counting resets started
+	 */
+	protected long m_resetPeriodStart = 0;
+
+	/**
+	 * Whether the client's preface has been received
+	 */
+	protected boolean m_prefaceReceived = false;
+
+	/**
+	 * A frame too large to fit in the input buffer, being read, or null
+	 */
+	protected byte[] m_partial = null;
+
+	/**
+	 * The number of bytes of {@link #m_partial} read so far
+	 */
+	protected int m_partialLength = 0;
+
+	/**
+	 * The highest identifier of a stream opened by the client
+	 */
+	protected int m_lastStreamId = 0;
+
+	/**
+	 * The stream whose header block continues in the next frame, or 0
+	 */
+	protected int m_continuationStream = 0;
+
+	/**
+	 * The flags of the frame that started the current header block
+	 */
+	protected int m_headerFlags = 0;
+
+	/**
+	 * The fragments of the current header block
+	 */
+	protected final ByteArrayOutputStream m_headerBlock = new ByteArrayOutputStream();
+
+	/**
+	 * The window for the data sent on the connection
+	 */
+	protected long m_sendWindow = s_defaultWindow;
+
+	/**
+	 * The initial window for the data sent on each stream
+	 */
+	protected long m_initialSendWindow = s_defaultWindow;
+
+	/**
+	 * The largest frame the client accepts
+	 */
+	protected int m_peerMaxFrameSize = 16384;
+
+	/**
+	 * The number of bytes received on the connection that have not been
+	 * given back to the client's window
+	 */
+	protected int m_unacknowledged = 0;
+
+	/**
+	 * Whether the session is ending: no new stream is accepted
+	 */
+	protected boolean m_goingAway = false;
+
+	/**
+	 * Creates a session and queues the server's preface
+	 * @param connection The connection of this session
+	 */
+	public Http2Session(NioTransport.Connection connection)
+	{
+		super();
+		m_connection = connection;
+		ByteBuffer settings = frame(18, SETTINGS, 0, 0);
+		settings.putShort((short) SETTINGS_MAX_CONCURRENT_STREAMS).putInt(s_maxConcurrentStreams);
+		settings.putShort((short) SETTINGS_INITIAL_WINDOW_SIZE).putInt(s_receiveWindow);
+		settings.putShort((short) SETTINGS_MAX_HEADER_LIST_SIZE).putInt(HttpRequestParser.DEFAULT_MAX_HEADER_SIZE);
+		send(settings);
+		sendWindowUpdate(0, s_receiveWindow - s_defaultWindow);
+	}
+
+	/**
+	 * Determines whether a buffer starts with the HTTP/2 preface
+	 * @param in The buffer
+	 * @return 1 if it does, 0 if the buffer holds too few bytes to tell,
+	 * -1 if it does not
+	 */
+	public static int matchPreface(ByteBuffer in)
+	{
+		int n = Math.min(in.remaining(), s_preface.length);
+		for (int i = 0; i < n; i++)
+		{
+			if (in.get(in.position() + i) != s_preface[i])
+			{
+				return -1;
+			}
+		}
+		return n == s_preface.length ? 1 : 0;
+	}
+
+	/**
+	 * Determines whether an HTTP/1.1 request asks to upgrade to h2c
+	 * @param headers The headers of the request
+	 * @return true if it does
+	 */
+	public static boolean isUpgrade(Headers headers)
+	{
+		return NioHttpExchange.hasToken(headers.get("Upgrade"), "h2c")
+				&& headers.getFirst("HTTP2-Settings") != null
+				&& NioHttpExchange.hasToken(headers.get("Connection"), "upgrade")
+				&& NioHttpExchange.hasToken(headers.get("Connection"), "http2-settings");
+	}
+
+	/**
+	 * Creates a session for a connection upgraded from HTTP/1.1. The 101
+	 * response is queued, followed by the server's preface, and the request
+	 * is processed as stream 1.
+	 * @param connection The connection
+	 * @param method The method of the request
+	 * @param uri The URI of the request
+	 * @param headers The headers of the request
+	 * @param body The body of the request
+	 * @return The session
+	 */
+	public static Http2Session upgrade(NioTransport.Connection connection, String method, URI uri, Headers headers, byte[] body)
+	{
+		connection.queue(ByteBuffer.wrap("HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n".getBytes(NioHttpExchange.s_headerCharset)));
+		Http2Session session = new Http2Session(connection);
+		try
+		{
+			byte[] settings = Base64.getUrlDecoder().decode(headers.getFirst("HTTP2-Settings").trim());
+			// The 101 response acknowledges these settings
+			session.applySettings(ByteBuffer.wrap(settings), false);
+		}
+		catch (IllegalArgumentException e)
+		{
+			session.goAway(PROTOCOL_ERROR);
+			return session;
+		}
+		catch (ConnectionError e)
+		{
+			session.goAway(e.m_code);
+			return session;
+		}
+		for (String name : new String[] {"Connection", "Upgrade", "HTTP2-Settings"})
+		{
+			headers.remove(name);
+		}
+		Stream s = new Stream(1, session.m_initialSendWindow);
+		s.m_remoteClosed = true;
+		session.m_lastStreamId = 1;
+		session.m_streams.put(1, s);
+		session.dispatch(s, new Http2Exchange(connection, 1, method, uri, headers, body));
+		return session;
+	}
+
+	/**
+	 * Reads the frames found in a buffer. The frames that are not complete
+	 * are left in the buffer, or copied aside if they are larger than it.
+	 * @param in The buffer, whose position is moved past the bytes read
+	 */
+	public void read(ByteBuffer in)
+	{
+		try
+		{
+			if (!m_prefaceReceived)
+			{
+				int match = matchPreface(in);
+				if (match < 0)
+				{
+					throw new ConnectionError(PROTOCOL_ERROR, "Invalid preface");
+				}
+				if (match == 0)
+				{
+					return;
+				}
+				in.position(in.position() + s_preface.length);
+				m_prefaceReceived = true;
+			}
+			while (!m_goingAway || !m_streams.isEmpty())
+			{
+				if (m_partial != null)
+				{
+					int n = Math.min(in.remaining(), m_partial.length - m_partialLength);
+					in.get(m_partial, m_partialLength, n);
+					m_partialLength += n;
+					if (m_partialLength < m_partial.length)
+					{
+						return;
+					}
+					ByteBuffer frame = ByteBuffer.wrap(m_partial);
+					m_partial = null;
+					process(frame);
+					continue;
+				}
+				if (in.remaining() < s_frameHeaderSize)
+				{
+					return;
+				}
+				int p = in.position();
+				int length = ((in.get(p) & 0xff) << 16) | ((in.get(p + 1) & 0xff) << 8) | (in.get(p + 2) & 0xff);
+				if (length > s_maxFrameSize)
+				{
+					throw new ConnectionError(FRAME_SIZE_ERROR, "Frame too large");
+				}
+				int size = s_frameHeaderSize + length;
+				if (in.remaining() >= size)
+				{
+					// The frame is read in place
+					ByteBuffer frame = in.slice();
+					frame.limit(size);
+					in.position(p + size);
+					process(frame);
+				}
+				else if (size > in.capacity())
+				{
+					m_partial = new byte[size];
+					m_partialLength = 0;
+				}
+				else
+				{
+					return;
+				}
+			}
+			// The session is over: what follows is ignored
+			in.position(in.limit());
+		}
+		catch (ConnectionError e)
+		{
+			goAway(e.m_code);
+			in.position(in.limit());
+		}
+	}
+
+	/**
+	 * Queues the frames of the responses, taking the streams in turn so that
+	 * their data frames are interleaved
+	 * @param budget The number of bytes that may be queued
+	 * @return true if anything was queued
+	 */
+	public boolean produce(long budget)
+	{
+		boolean any = false;
+		boolean progress = true;
+		while (progress && budget > 0)
+		{
+			progress = false;
+			Iterator<Stream> it = m_streams.values().iterator();
+			while (it.hasNext() && budget > 0)
+			{
+				Stream s = it.next();
+				long queued = produce(s);
+				if (queued > 0)
+				{
+					progress = true;
+					any = true;
+					budget -= queued;
+				}
+				if (s.m_closed)
+				{
+					it.remove();
+					if (s.m_exchange != null)
+					{
+						m_connection.retire();
+						keepIfRunning(s.m_exchange);
+					}
+				}
+			}
+		}
+		if (m_goingAway && m_streams.isEmpty())
+		{
+			m_connection.m_closing = true;
+		}
+		return any;
+	}
+
+	/**
+	 * Determines whether some streams are open
+	 * @return true if a stream is open
+	 */
+	public boolean hasStreams()
+	{
+		return !m_streams.isEmpty();
+	}
+
+	/**
+	 * Determines whether no stream is open, and no frame is being received
+	 * @return true if the session is idle
+	 */
+	public boolean isIdle()
+	{
+		return m_streams.isEmpty() && m_partial == null && m_continuationStream == 0;
+	}
+
+	/**
+	 * Aborts all the streams, when the connection is closed
+	 */
+	public void abort()
+	{
+		for (Stream s : m_streams.values())
+		{
+			if (s.m_exchange != null)
+			{
+				s.m_exchange.abort();
+				m_connection.retire();
+			}
+		}
+		m_streams.clear();
+		m_running.clear();
+	}
+
+	/**
+	 * Ends the session with an error, or normally. The connection is closed
+	 * once the frames already queued are written.
+	 * @param code The error code
+	 */
+	public void goAway(int code)
+	{
+		if (m_goingAway && code == NO_ERROR)
+		{
+			return;
+		}
+		ByteBuffer b = frame(8, GOAWAY, 0, 0);
+		b.putInt(m_lastStreamId).putInt(code);
+		send(b);
+		m_goingAway = true;
+		if (code != NO_ERROR)
+		{
+			abort();
+		}
+		m_connection.m_closing = true;
+	}
+
+	/**
+	 * Queues the frames of the response of a stream: its header block
+	 * first, and then at most one data frame
+	 * @param s The stream
+	 * @return The number of bytes queued
+	 */
+	protected long produce(Stream s)
+	{
+		Http2Exchange t = s.m_exchange;
+		if (t == null || s.m_closed)
+		{
+			return 0;
+		}
+		if (t.isAbandoned())
+		{
+			resetStream(s, INTERNAL_ERROR);
+			return s_frameHeaderSize + 4;
+		}
+		long queued = 0;
+		if (!s.m_headersSent)
+		{
+			List<Hpack.Field> fields = t.takeResponseFields();
+			if (fields == null)
+			{
+				return 0;
+			}
+			s.m_headersSent = true;
+			queued += sendHeaders(s.m_id, fields, t.hasNoBody());
+			if (t.hasNoBody())
+			{
+				s.m_closed = true;
+				return queued;
+			}
+		}
+		if (s.m_current == null || !s.m_current.hasRemaining())
+		{
+			s.m_current = t.poll();
+		}
+		if (s.m_current == null)
+		{
+			if (t.isDone())
+			{
+				if (!t.isKeepAlive())
+				{
+					// The body is incomplete
+					resetStream(s, INTERNAL_ERROR);
+					return queued + s_frameHeaderSize + 4;
+				}
+				send(frame(0, DATA, FLAG_END_STREAM, s.m_id));
+				s.m_closed = true;
+				queued += s_frameHeaderSize;
+			}
+			return queued;
+		}
+		long window = Math.min(m_sendWindow, s.m_sendWindow);
+		if (window <= 0)
+		{
+			return queued;
+		}
+		int n = (int) Math.min(Math.min(window, m_peerMaxFrameSize), s.m_current.remaining());
+		ByteBuffer data = s.m_current.duplicate();
+		data.limit(data.position() + n);
+		s.m_current.position(s.m_current.position() + n);
+		boolean end = false;
+		if (!s.m_current.hasRemaining())
+		{
+			s.m_current = t.poll();
+			end = s.m_current == null && t.isDone() && t.isKeepAlive();
+		}
+		ByteBuffer header = frame(n, DATA, end ? FLAG_END_STREAM : 0, s.m_id);
+		header.flip();
+		m_connection.queue(header);
+		m_connection.queue(data);
+		m_sendWindow -= n;
+		s.m_sendWindow -= n;
+		s.m_closed = end;
+		return queued + s_frameHeaderSize + n;
+	}
+
+	/**
+	 * Processes a frame
+	 * @param f The frame, including its header
+	 * @throws ConnectionError If the frame violates the protocol
+	 */
+	protected void process(ByteBuffer f) throws ConnectionError
+	{
+		int length = f.limit() - s_frameHeaderSize;
+		int type = f.get(3) & 0xff;
+		int flags = f.get(4) & 0xff;
+		int stream_id = f.getInt(5) & 0x7fffffff;
+		f.position(s_frameHeaderSize);
+		if (m_continuationStream != 0 && (type != CONTINUATION || stream_id != m_continuationStream))
+		{
+			throw new ConnectionError(PROTOCOL_ERROR, "Expected a continuation");
+		}
+		switch (type)
+		{
+		case DATA:
+			processData(f, flags, stream_id, length);
+			break;
+		case HEADERS:
+			processHeaders(f, flags, stream_id);
+			break;
+		case CONTINUATION:
+			if (m_continuationStream == 0)
+			{
+				throw new ConnectionError(PROTOCOL_ERROR, "Unexpected continuation");
+			}
+			appendHeaderBlock(f);
+			if ((flags & FLAG_END_HEADERS) != 0)
+			{
+				m_continuationStream = 0;
+				endHeaders(stream_id, m_headerFlags);
+			}
+			break;
+		case PRIORITY:
+			if (stream_id == 0)
+			{
+				throw new ConnectionError(PROTOCOL_ERROR, "Priority on stream 0");
+			}
+			// Priorities are ignored
+			break;
+		case RST_STREAM:
+			if (stream_id == 0 || length != 4)
+			{
+				throw new ConnectionError(stream_id == 0 ? PROTOCOL_ERROR : FRAME_SIZE_ERROR, "Malformed reset");
+			}
+			if (stream_id > m_lastStreamId)
+			{
+				throw new ConnectionError(PROTOCOL_ERROR, "Reset of an idle stream");
+			}
+			Stream s = m_streams.remove(stream_id);
+			if (s != null && s.m_exchange != null)
+			{
+				s.m_exchange.abort();
+				m_connection.retire();
+				keepIfRunning(s.m_exchange);
+			}
+			countReset();
+			break;
+		case SETTINGS:
+			if (stream_id != 0)
+			{
+				throw new ConnectionError(PROTOCOL_ERROR, "Settings on a stream");
+			}
+			if ((flags & FLAG_ACK) != 0)
+			{
+				if (length != 0)
+				{
+					throw new ConnectionError(FRAME_SIZE_ERROR, "Settings acknowledgement with a payload");
+				}
+				break;
+			}
+			applySettings(f, true);
+			break;
+		case PUSH_PROMISE:
+			throw new ConnectionError(PROTOCOL_ERROR, "Push promise from a client");
+		case PING:
+			if (stream_id != 0 || length != 8)
+			{
+				throw new ConnectionError(stream_id != 0 ? PROTOCOL_ERROR : FRAME_SIZE_ERROR, "Malformed ping");
+			}
+			if ((flags & FLAG_ACK) == 0)
+			{
+				ByteBuffer b = frame(8, PING, FLAG_ACK, 0);
+				b.putLong(f.getLong());
+				send(b);
+			}
+			break;
+		case GOAWAY:
+			m_goingAway = true;
+			break;
+		case WINDOW_UPDATE:
+			processWindowUpdate(f, stream_id, length);
+			break;
+		default:
+			// Unknown frames are ignored
+			break;
+		}
+	}
+
+	/**
+	 * Processes a data frame
+	 * @param f The frame, positioned at its payload
+	 * @param flags The flags of the frame
+	 * @param stream_id The stream of the frame
+	 * @param length The length of the payload
+	 * @throws ConnectionError If the frame violates the protocol
+	 */
+	protected void processData(ByteBuffer f, int flags, int stream_id, int length) throws ConnectionError
+	{
+		if (stream_id == 0)
+		{
+			throw new ConnectionError(PROTOCOL_ERROR, "Data on stream 0");
+		}
+		int data_length = length - readPadding(f, flags, length);
+		// The whole frame counts against flow control
+		acknowledge(length);
+		Stream s = m_streams.get(stream_id);
+		if (s == null || s.m_remoteClosed)
+		{
+			if (stream_id > m_lastStreamId)
+			{
+				throw new ConnectionError(PROTOCOL_ERROR, "Data on an idle stream");
+			}
+			sendReset(stream_id, STREAM_CLOSED);
+			return;
+		}
+		if (s.m_body.size() + data_length > RequestBody.DEFAULT_MAX_SIZE)
+		{
+			resetStream(s, CANCEL);
+			m_streams.remove(stream_id);
+			return;
+		}
+		s.m_body.write(copy(f, data_length), 0, data_length);
+		if ((flags & FLAG_END_STREAM) != 0)
+		{
+			s.m_remoteClosed = true;
+			startRequest(s);
+		}
+		else if (length > 0)
+		{
+			s.m_unacknowledged += length;
+			if (s.m_unacknowledged >= s_receiveWindow / 2)
+			{
+				sendWindowUpdate(stream_id, s.m_unacknowledged);
+				s.m_unacknowledged = 0;
+			}
+		}
+	}
+
+	/**
+	 * Processes a headers frame
+	 * @param f The frame, positioned at its payload
+	 * @param flags The flags of the frame
+	 * @param stream_id The stream of the frame
+	 * @throws ConnectionError If the frame violates the protocol
+	 */
+	protected void processHeaders(ByteBuffer f, int flags, int stream_id) throws ConnectionError
+	{
+		if (stream_id == 0 || (stream_id & 1) == 0)
+		{
+			throw new ConnectionError(PROTOCOL_ERROR, "Invalid stream identifier");
+		}
+		int length = f.remaining();
+		int padding = readPadding(f, flags, length);
+		if ((flags & FLAG_PRIORITY) != 0)
+		{
+			if (f.remaining() - padding < 5)
+			{
+				throw new ConnectionError(FRAME_SIZE_ERROR, "Truncated priority");
+			}
+			f.position(f.position() + 5);
+		}
+		f.limit(f.limit() - padding);
+		m_headerBlock.reset();
+		appendHeaderBlock(f);
+		if ((flags & FLAG_END_HEADERS) != 0)
+		{
+			endHeaders(stream_id, flags);
+		}
+		else
+		{
+			m_continuationStream = stream_id;
+			m_headerFlags = flags;
+		}
+	}
+
+	/**
+	 * Processes a complete header block
+	 * @param stream_id The stream of the block
+	 * @param flags The flags of the headers frame that started the block
+	 * @throws ConnectionError If the block violates the protocol
+	 */
+	protected void endHeaders(int stream_id, int flags) throws ConnectionError
+	{
+		List<Hpack.Field> fields = new ArrayList<Hpack.Field>();
+		try
+		{
+			// The block must be decoded even if the stream is refused, to
+			// keep the table in sync with the client's
+			m_decoder.decode(ByteBuffer.wrap(m_headerBlock.toByteArray()), fields);
+		}
+		catch (IOException e)
+		{
+			throw new ConnectionError(COMPRESSION_ERROR, e.getMessage());
+		}
+		boolean end_stream = (flags & FLAG_END_STREAM) != 0;
+		Stream s = m_streams.get(stream_id);
+		if (stream_id <= m_lastStreamId)
+		{
+			if (s == null || s.m_remoteClosed)
+			{
+				throw new ConnectionError(STREAM_CLOSED, "Headers on a closed stream");
+			}
+			if (!end_stream)
+			{
+				throw new ConnectionError(PROTOCOL_ERROR, "Trailers without the end of the stream");
+			}
+			// Trailers are ignored
+			s.m_remoteClosed = true;
+			startRequest(s);
+			return;
+		}
+		m_lastStreamId = stream_id;
+		if (m_goingAway)
+		{
+			return;
+		}
+		if (m_streams.size() + countRunning() >= s_maxConcurrentStreams)
+		{
+			sendReset(stream_id, REFUSED_STREAM);
+			return;
+		}
+		s = new Stream(stream_id, m_initialSendWindow);
+		if (!s.setRequest(fields))
+		{
+			sendReset(stream_id, PROTOCOL_ERROR);
+			return;
+		}
+		m_streams.put(stream_id, s);
+		if (end_stream)
+		{
+			s.m_remoteClosed = true;
+			startRequest(s);
+		}
+	}
+
+	/**
+	 * Processes a window update frame
+	 * @param f The frame, positioned at its payload
+	 * @param stream_id The stream of the frame
+	 * @param length The length of the payload
+	 * @throws ConnectionError If the frame violates the protocol
+	 */
+	protected void processWindowUpdate(ByteBuffer f, int stream_id, int length) throws ConnectionError
+	{
+		if (length != 4)
+		{
+			throw new ConnectionError(FRAME_SIZE_ERROR, "Malformed window update");
+		}
+		int increment = f.getInt() & 0x7fffffff;
+		if (stream_id == 0)
+		{
+			if (increment == 0)
+			{
+				throw new ConnectionError(PROTOCOL_ERROR, "Empty window update");
+			}
+			m_sendWindow += increment;
+			if (m_sendWindow > s_maxWindow)
+			{
+				throw new ConnectionError(FLOW_CONTROL_ERROR, "Window too large");
+			}
+			return;
+		}
+		Stream s = m_streams.get(stream_id);
+		if (s == null)
+		{
+			return;
+		}
+		s.m_sendWindow += increment;
+		if (increment == 0)
+		{
+			resetStream(s, PROTOCOL_ERROR);
+		}
+		else if (s.m_sendWindow > s_maxWindow)
+		{
+			resetStream(s, FLOW_CONTROL_ERROR);
+		}
+	}
+
+	/**
+	 * Applies the settings sent by the client
+	 * @param f The payload of a settings frame
+	 * @param acknowledge Whether to acknowledge the settings
+	 * @throws ConnectionError If a setting has an invalid value
+	 */
+	protected void applySettings(ByteBuffer f, boolean acknowledge) throws ConnectionError
+	{
+		if (f.remaining() % 6 != 0)
+		{
+			throw new ConnectionError(FRAME_SIZE_ERROR, "Malformed settings");
+		}
+		while (f.hasRemaining())
+		{
+			int id = f.getShort() & 0xffff;
+			long value = f.getInt() & 0xffffffffL;
+			switch (id)
+			{
+			case SETTINGS_HEADER_TABLE_SIZE:
+				m_encoder.setMaxTableSize((int) Math.min(value, Integer.MAX_VALUE));
+				break;
+			case SETTINGS_ENABLE_PUSH:
+				if (value > 1)
+				{
+					throw new ConnectionError(PROTOCOL_ERROR, "Invalid push setting");
+				}
+				break;
+			case SETTINGS_INITIAL_WINDOW_SIZE:
+				if (value > s_maxWindow)
+				{
+					throw new ConnectionError(FLOW_CONTROL_ERROR, "Window too large");
+				}
+				long delta = value - m_initialSendWindow;
+				m_initialSendWindow = value;
+				for (Stream s : m_streams.values())
+				{
+					s.m_sendWindow += delta;
+				}
+				break;
+			case SETTINGS_MAX_FRAME_SIZE:
+				if (value < 16384 || value > 0xffffff)
+				{
+					throw new ConnectionError(PROTOCOL_ERROR, "Invalid frame size");
+				}
+				m_peerMaxFrameSize = (int) value;
+				break;
+			default:
+				// Other settings do not concern the server
+				break;
+			}
+		}
+		if (acknowledge)
+		{
+			send(frame(0, SETTINGS, FLAG_ACK, 0));
+		}
+	}
+
+	/**
+	 * Remembers the exchange of a closed stream if its callbacks are still
+	 * running
+	 * @param t The exchange
+	 */
+	protected void keepIfRunning(Http2Exchange t)
+	{
+		if (!t.isHandled())
+		{
+			m_running.add(t);
+		}
+	}
+
+	/**
+	 * Counts the exchanges of closed streams whose callbacks are still
+	 * running, forgetting those that are done
+	 * @return The number of exchanges
+	 */
+	protected int countRunning()
+	{
+		Iterator<Http2Exchange> it = m_running.iterator();
+		while (it.hasNext())
+		{
+			if (it.next().isHandled())
+			{
+				it.remove();
+			}
+		}
+		return m_running.size();
+	}
+
+	/**
+	 * Counts a stream reset by the client. A client that resets streams
+	 * faster than any legitimate use would is most likely trying to make
+	 * the server do work that nobody will read.
+	 * @throws ConnectionError If the client has reset too many streams
+	 */
+	protected void countReset() throws ConnectionError
+	{
+		long now = System.currentTimeMillis();
+		if (now - m_resetPeriodStart > s_resetInterval)
+		{
+			m_resetPeriodStart = now;
+			m_resets = 0;
+		}
+		if (++m_resets > s_maxResets)
+		{
+			throw new ConnectionError(ENHANCE_YOUR_CALM, "Too many streams reset");
+		}
+	}
+
+	/**
+	 * Hands the request of a stream to the server, once it is complete
+	 * @param s The stream
+	 */
+	protected void startRequest(Stream s)
+	{
+		URI uri;
+		try
+		{
+			uri = new URI(s.m_path);
+		}
+		catch (URISyntaxException e)
+		{
+			resetStream(s, PROTOCOL_ERROR);
+			m_streams.remove(s.m_id);
+			return;
+		}
+		dispatch(s, new Http2Exchange(m_connection, s.m_id, s.m_method, uri, s.m_headers, s.m_body.toByteArray()));
+		s.m_body = null;
+	}
+
+	/**
+	 * Hands an exchange to the server
+	 * @param s The stream of the exchange
+	 * @param t The exchange
+	 */
+	protected void dispatch(Stream s, Http2Exchange t)
+	{
+		s.m_exchange = t;
+		m_connection.execute(t);
+	}
+
+	/**
+	 * Resets a stream from the server's side
+	 * @param s The stream
+	 * @param code The error code
+	 */
+	protected void resetStream(Stream s, int code)
+	{
+		sendReset(s.m_id, code);
+		s.m_closed = true;
+		if (s.m_exchange != null)
+		{
+			s.m_exchange.abort();
+		}
+	}
+
+	/**
+	 * Queues a reset frame
+	 * @param stream_id The stream
+	 * @param code The error code
+	 */
+	protected void sendReset(int stream_id, int code)
+	{
+		ByteBuffer b = frame(4, RST_STREAM, 0, stream_id);
+		b.putInt(code);
+		send(b);
+	}
+
+	/**
+	 * Queues a window update frame
+	 * @param stream_id The stream, or 0 for the connection
+	 * @param increment The increment
+	 */
+	protected void sendWindowUpdate(int stream_id, int increment)
+	{
+		ByteBuffer b = frame(4, WINDOW_UPDATE, 0, stream_id);
+		b.putInt(increment);
+		send(b);
+	}
+
+	/**
+	 * Gives back bytes received to the connection's window, once enough of
+	 * them are received
+	 * @param length The number of bytes
+	 */
+	protected void acknowledge(int length)
+	{
+		m_unacknowledged += length;
+		if (m_unacknowledged >= s_receiveWindow / 2)
+		{
+			sendWindowUpdate(0, m_unacknowledged);
+			m_unacknowledged = 0;
+		}
+	}
+
+	/**
+	 * Queues a header block, split into a headers frame and as many
+	 * continuation frames as needed
+	 * @param stream_id The stream
+	 * @param fields The fields of the block
+	 * @param end_stream Whether the stream ends with the block
+	 * @return The number of bytes queued
+	 */
+	protected long sendHeaders(int stream_id, List<Hpack.Field> fields, boolean end_stream)
+	{
+		ByteArrayOutputStream block = new ByteArrayOutputStream(256);
+		m_encoder.encode(fields, block);
+		byte[] bytes = block.toByteArray();
+		int offset = 0;
+		long queued = 0;
+		do
+		{
+			int n = Math.min(bytes.length - offset, m_peerMaxFrameSize);
+			int flags = offset + n == bytes.length ? FLAG_END_HEADERS : 0;
+			int type = CONTINUATION;
+			if (offset == 0)
+			{
+				type = HEADERS;
+				flags |= end_stream ? FLAG_END_STREAM : 0;
+			}
+			ByteBuffer b = frame(n, type, flags, stream_id);
+			b.put(bytes, offset, n);
+			send(b);
+			offset += n;
+			queued += s_frameHeaderSize + n;
+		} while (offset < bytes.length);
+		return queued;
+	}
+
+	/**
+	 * Allocates a frame and writes its header
+	 * @param length The length of the payload
+	 * @param type The type of the frame
+	 * @param flags The flags of the frame
+	 * @param stream_id The stream of the frame
+	 * @return A buffer positioned after the header, with room for the payload
+	 */
+	protected static ByteBuffer frame(int length, int type, int flags, int stream_id)
+	{
+		ByteBuffer b = ByteBuffer.allocate(s_frameHeaderSize + length);
+		b.put((byte) (length >>> 16)).put((byte) (length >>> 8)).put((byte) length);
+		b.put((byte) type).put((byte) flags).putInt(stream_id);
+		return b;
+	}
+
+	/**
+	 * Queues a complete frame
+	 * @param b The frame, positioned after its last byte
+	 */
+	protected void send(ByteBuffer b)
+	{
+		b.flip();
+		m_connection.queue(b);
+	}
+
+	/**
+	 * Reads the padding length of a frame, if it is padded
+	 * @param f The frame, positioned at its payload
+	 * @param flags The flags of the frame
+	 * @param length The length of the payload
+	 * @return The number of bytes of the payload that are not data
+	 * @throws ConnectionError If the padding is longer than the payload
+	 */
+	protected static int readPadding(ByteBuffer f, int flags, int length) throws ConnectionError
+	{
+		if ((flags & FLAG_PADDED) == 0)
+		{
+			return 0;
+		}
+		if (length < 1)
+		{
+			throw new ConnectionError(FRAME_SIZE_ERROR, "Truncated padding");
+		}
+		int padding = f.get() & 0xff;
+		if (padding >= length)
+		{
+			throw new ConnectionError(PROTOCOL_ERROR, "Padding too long");
+		}
+		return padding + 1;
+	}
+
+	/**
+	 * Appends a fragment of a header block
+	 * @param f The frame, positioned at the fragment
+	 * @throws ConnectionError If the header block is too large
+	 */
+	protected void appendHeaderBlock(ByteBuffer f) throws ConnectionError
+	{
+		int n = f.remaining();
+		if (m_headerBlock.size() + n > HttpRequestParser.DEFAULT_MAX_HEADER_SIZE)
+		{
+			throw new ConnectionError(PROTOCOL_ERROR, "Header block too large");
+		}
+		m_headerBlock.write(copy(f, n), 0, n);
+	}
+
+	/**
+	 * Copies bytes out of a buffer
+	 * @param f The buffer
+	 * @param n The number of bytes
+	 * @return The bytes
+	 */
+	protected static byte[] copy(ByteBuffer f, int n)
+	{
+		byte[] bytes = new byte[n];
+		f.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * A stream of the session
+	 */
+	protected static class Stream
+	{
+		/**
+		 * The identifier of the stream
+		 */
+		protected final int m_id;
+
+		/**
+		 * The method, path and headers of the request
+		 */
+		protected String m_method;
+		protected String m_path;
+		protected Headers m_headers;
+
+		/**
+		 * The body of the request, until it is handed to the server
+		 */
+		protected ByteArrayOutputStream m_body = new ByteArrayOutputStream();
+
+		/**
+		 * The exchange, once the request is handed to the server
+		 */
+		protected Http2Exchange m_exchange = null;
+
+		/**
+		 * The window for the data sent on this stream
+		 */
+		protected long m_sendWindow;
+
+		/**
+		 * The number of bytes received on the stream that have not been
+		 * given back to the client's window
+		 */
+		protected int m_unacknowledged = 0;
+
+		/**
+		 * The buffer of the response being sent, or null
+		 */
+		protected ByteBuffer m_current = null;
+
+		/**
+		 * Whether the client has ended its side of the stream
+		 */
+		protected boolean m_remoteClosed = false;
+
+		/**
+		 * Whether the response's header block has been queued
+		 */
+		protected boolean m_headersSent = false;
+
+		/**
+		 * Whether the stream is closed on the server's side
+		 */
+		protected boolean m_closed = false;
+
+		/**
+		 * Creates a stream
+		 * @param id The identifier of the stream
+		 * @param window The window for the data sent on this stream
+		 */
+		public Stream(int id, long window)
+		{
+			super();
+			m_id = id;
+			m_sendWindow = window;
+		}
+
+		/**
+		 * Sets the request of this stream from the fields of a header block
+		 * @param fields The fields
+		 * @return false if the fields do not make a valid request
+		 */
+		protected boolean setRequest(List<Hpack.Field> fields)
+		{
+			Headers headers = new Headers();
+			Map<String,String> pseudo = new HashMap<String,String>();
+			StringBuilder cookies = null;
+			for (Hpack.Field f : fields)
+			{
+				String name = f.getName();
+				if (!name.equals(name.toLowerCase(Locale.ROOT)))
+				{
+					return false;
+				}
+				if (name.startsWith(":"))
+				{
+					if (!headers.isEmpty() || pseudo.put(name, f.getValue()) != null)
+					{
+						// Pseudo-headers come first, once each
+						return false;
+					}
+					continue;
+				}
+				if (Hpack.contains(Http2Exchange.s_connectionHeaders, name) && !(name.equals("te") && f.getValue().equals("trailers")))
+				{
+					return false;
+				}
+				if (name.equals("cookie"))
+				{
+					// Cookies may be split into several fields
+					cookies = cookies == null ? new StringBuilder(f.getValue()) : cookies.append("; ").append(f.getValue());
+					continue;
+				}
+				headers.add(name, f.getValue());
+			}
+			m_method = pseudo.get(":method");
+			m_path = pseudo.get(":path");
+			if (m_method == null || m_path == null || m_path.isEmpty() || pseudo.get(":scheme") == null)
+			{
+				return false;
+			}
+			String authority = pseudo.get(":authority");
+			if (authority != null && !headers.containsKey("Host"))
+			{
+				headers.add("Host", authority);
+			}
+			if (cookies != null)
+			{
+				headers.add("Cookie", cookies.toString());
+			}
+			m_headers = headers;
+			return true;
+		}
+	}
+
+	/**
+	 * An error that ends the whole session
+	 */
+	protected static class ConnectionError extends Exception
+	{
+		/**
+		 * Dummy UID
+		 */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * The error code sent to the client
+		 */
+		protected final int m_code;
+
+		/**
+		 * Creates an error
+		 * @param code The error code sent to the client
+		 * @param message A description of the error
+		 */
+		public ConnectionError(int code, String message)
+		{
+			super(message);
+			m_code = code;
+		}
+	}
+}
@@ -0,0 +1,153 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * Produces the dates written in HTTP headers, in the format
+ * <code>Sun, 06 Nov 1994 08:49:37 GMT</code> required by RFC 7231.
+ * <p>
+ * The date of the current second is formatted once, and then handed out
+ * to every response sent during that second; a thread that sees that the
+ * second has changed formats the new date and publishes it. Reading the
+ * current date therefore requires neither a lock nor a call to a
+ * formatter. Formatting an arbitrary date is also safe to do from any
+ * thread, unlike with a shared {@link java.text.SimpleDateFormat}.
+ * @author Sylvain Hallé
+ */
+public class HttpClock
+{
+	/**
+	 * The formatter for HTTP dates. Unlike
+	 * {@link DateTimeFormatter#RFC_1123_DATE_TIME}, it always writes the day
+	 * of the month with two digits, as HTTP requires.
+	 */
+	protected static final DateTimeFormatter s_formatter = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+	/**
+	 * The date of the current second. The object is immutable, and replaced
+	 * as a whole when the second changes.
+	 */
+	protected static volatile CachedDate s_current = new CachedDate(System.currentTimeMillis() / 1000);
+
+	private HttpClock()
+	{
+		// Utility class
+	}
+
+	/**
+	 * Gets the current date, formatted for an HTTP header
+	 * @return The date
+	 */
+	public static String now()
+	{
+		return at(System.currentTimeMillis());
+	}
+
+	/**
+	 * Gets the date of a clock reading, formatted for an HTTP header. Dates
+	 * that fall in the current second are taken from the cache, and a later
+	 * date becomes the current second, however long the clock has not been
+	 * read. Arbitrary dates, such as modification dates, should rather be
+	 * passed to {@link #format(long)}.
+	 * @param millis The date, in milliseconds since the epoch
+	 * @return The formatted date
+	 */
+	public static String at(long millis)
+	{
+		long second = Math.floorDiv(millis, 1000L);
+		CachedDate current = s_current;
+		if (current.m_second == second)
+		{
+			return current.m_text;
+		}
+		if (second > current.m_second)
+		{
+			// The clock has moved forward: publish the new date. Concurrent
+			// threads may do the same; they all produce the same string.
+			current = new CachedDate(second);
+			s_current = current;
+			return current.m_text;
+		}
+		return format(millis);
+	}
+
+	/**
+	 * Formats a date for an HTTP header, without using the cache
+	 * @param millis The date, in milliseconds since the epoch
+	 * @return The formatted date
+	 */
+	public static String format(long millis)
+	{
+		return s_formatter.format(Instant.ofEpochMilli(millis));
+	}
+
+	/**
+	 * Parses a date written in an HTTP header
+	 * @param date The date, in the format produced by {@link #format(long)}
+	 * @return The date, in milliseconds since the epoch, or -1 if the
+	 * string is not a valid date
+	 */
+	public static long parse(String date)
+	{
+		if (date == null)
+		{
+			return -1;
+		}
+		try
+		{
+			return Instant.from(DateTimeFormatter.RFC_1123_DATE_TIME.parse(date.trim())).toEpochMilli();
+		}
+		catch (DateTimeException e)
+		{
+			return -1;
+		}
+	}
+
+	/**
+	 * The formatted date of a given second
+	 */
+	protected static final class CachedDate
+	{
+		/**
+		 * The second, counted since the epoch
+		 */
+		protected final long m_second;
+
+		/**
+		 * The formatted date
+		 */
+		protected final String m_text;
+
+		/**
+		 * Formats the date of a second
+		 * @param second The second, counted since the epoch
+		 */
+		protected CachedDate(long second)
+		{
+			super();
+			m_second = second;
+			m_text = format(second * 1000L);
+		}
+	}
+}
@@ -0,0 +1,70 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+/**
+ * An exception that a callback can throw to end the processing of a request
+ * with a given HTTP status code. The {@link Server} catches it and replies
+ * with this code and the exception's message, instead of the generic
+ * "Internal Server Error" page.
+ * @author Sylvain Hallé
+ */
+public class HttpException extends RuntimeException
+{
+	/**
+	 * Dummy UID
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The HTTP status code to send
+	 */
+	protected final int m_code;
+
+	/**
+	 * Creates a new HTTP exception
+	 * @param code The HTTP status code to send
+	 * @param message The message sent in the body of the response
+	 */
+	public HttpException(int code, String message)
+	{
+		super(message);
+		m_code = code;
+	}
+
+	/**
+	 * Creates a new HTTP exception
+	 * @param code The HTTP status code to send
+	 * @param message The message sent in the body of the response
+	 * @param cause The cause of this exception
+	 */
+	public HttpException(int code, String message, Throwable cause)
+	{
+		super(message, cause);
+		m_code = code;
+	}
+
+	/**
+	 * Gets the HTTP status code to send
+	 * @return The code
+	 */
+	public int getCode()
+	{
+		return m_code;
+	}
+}
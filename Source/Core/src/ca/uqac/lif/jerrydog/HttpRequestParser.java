@@ -0,0 +1,648 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import com.sun.net.httpserver.Headers;
+
+/**
+ * An incremental parser of HTTP/1.x requests. The parser reads directly
+ * from the buffer into which the bytes are received: the request line and
+ * the headers are decoded into strings straight from the buffer, without
+ * first copying each line, and only the body is copied into an array.
+ * <p>
+ * The bytes of a request may arrive in any number of pieces. Each call to
+ * {@link #parse(ByteBuffer)} consumes the complete lines and the body
+ * bytes found in the buffer, and leaves an incomplete line in the buffer
+ * until the rest of it arrives. A line must therefore fit in the buffer.
+ * Once a request is complete, the bytes that follow it in the buffer (a
+ * pipelined request) are left untouched until {@link #reset()} is called.
+ * <p>
+ * Malformed requests are reported with an {@link HttpException} carrying
+ * the status code to reply with; the connection should then be closed, as
+ * the parser no longer knows where the next request starts.
+ * @author Sylvain Hallé
+ */
+public class HttpRequestParser
+{
+	/**
+	 * Parser states
+	 */
+	protected static final int REQUEST_LINE = 0;
+	protected static final int HEADERS = 1;
+	protected static final int BODY = 2;
+	protected static final int CHUNK_SIZE = 3;
+	protected static final int CHUNK_DATA = 4;
+	protected static final int CHUNK_END = 5;
+	protected static final int TRAILERS = 6;
+	protected static final int DONE = 7;
+
+	/**
+	 * The default maximum number of header lines in a request
+	 */
+	public static final int DEFAULT_MAX_HEADERS = 200;
+
+	/**
+	 * The default maximum size of the request line and headers, in bytes
+	 */
+	public static final int DEFAULT_MAX_HEADER_SIZE = 64 * 1024;
+
+	/**
+	 * An empty body
+	 */
+	protected static final byte[] s_noBody = new byte[0];
+
+	/**
+	 * The maximum size of the request line and headers
+	 */
+	protected final int m_maxHeaderSize;
+
+	/**
+	 * The maximum number of header lines
+	 */
+	protected final int m_maxHeaders;
+
+	/**
+	 * The maximum size of a body
+	 */
+	protected final long m_maxBodySize;
+
+	/**
+	 * The current state of the parser
+	 */
+	protected int m_state = REQUEST_LINE;
+
+	/**
+	 * The parts of the request line
+	 */
+	protected String m_method;
+	protected String m_target;
+	protected String m_protocol;
+
+	/**
+	 * The headers of the request
+	 */
+	protected Headers m_headers = new Headers();
+
+	/**
+	 * The number of bytes of the request line and headers read so far
+	 */
+	protected int m_headerSize = 0;
+
+	/**
+	 * The number of header lines read so far
+	 */
+	protected int m_headerCount = 0;
+
+	/**
+	 * The body of the request, possibly larger than its actual length
+	 */
+	protected byte[] m_body = s_noBody;
+
+	/**
+	 * The number of bytes of the body read so far
+	 */
+	protected int m_bodyLength = 0;
+
+	/**
+	 * The number of bytes left in the body or in the current chunk
+	 */
+	protected long m_remaining = 0;
+
+	/**
+	 * Whether the client waits for a 100 Continue response before sending
+	 * the body
+	 */
+	protected boolean m_expectContinue = false;
+
+	/**
+	 * Creates a parser with the default limits
+	 */
+	public HttpRequestParser()
+	{
+		this(DEFAULT_MAX_HEADER_SIZE, DEFAULT_MAX_HEADERS, RequestBody.DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * Creates a parser
+	 * @param max_header_size The maximum size of the request line and
+	 * headers, in bytes
+	 * @param max_headers The maximum number of header lines
+	 * @param max_body_size The maximum size of a body, in bytes
+	 */
+	public HttpRequestParser(int max_header_size, int max_headers, long max_body_size)
+	{
+		super();
+		m_maxHeaderSize = max_header_size;
+		m_maxHeaders = max_headers;
+		m_maxBodySize = Math.min(max_body_size, Integer.MAX_VALUE - 8);
+	}
+
+	/**
+	 * Parses the bytes of a buffer, from its position to its limit. The
+	 * position is moved past the bytes that have been consumed. A line is
+	 * only consumed once complete: when false is returned with a buffer full
+	 * of an incomplete line, the caller must grow the buffer. The length of
+	 * that line is bounded by the maximum size of the headers.
+	 * @param in The buffer
+	 * @return true if a request is complete, false if more bytes are needed
+	 * @throws HttpException If the request is malformed or exceeds the
+	 * limits of the parser
+	 */
+	public boolean parse(ByteBuffer in)
+	{
+		while (true)
+		{
+			if (m_state == DONE)
+			{
+				return true;
+			}
+			if (m_state == BODY || m_state == CHUNK_DATA)
+			{
+				if (!readBody(in))
+				{
+					return false;
+				}
+				continue;
+			}
+			int lf = findLineFeed(in);
+			if (lf < 0)
+			{
+				// The line may be longer than the buffer, which the caller
+				// must then grow; it may not be longer than the headers can be
+				long room = m_state == CHUNK_SIZE || m_state == CHUNK_END ? m_maxHeaderSize : m_maxHeaderSize - m_headerSize;
+				if (in.remaining() > room)
+				{
+					throw new HttpException(CallbackResponse.HTTP_HEADER_FIELDS_TOO_LARGE, "Line too long");
+				}
+				return false;
+			}
+			int start = in.position();
+			int end = lf > start && in.get(lf - 1) == '\r' ? lf - 1 : lf;
+			if (m_state != CHUNK_SIZE && m_state != CHUNK_END)
+			{
+				m_headerSize += lf + 1 - start;
+				if (m_headerSize > m_maxHeaderSize)
+				{
+					throw new HttpException(CallbackResponse.HTTP_HEADER_FIELDS_TOO_LARGE, "Request headers too large");
+				}
+			}
+			switch (m_state)
+			{
+			case REQUEST_LINE:
+				if (end > start)
+				{
+					parseRequestLine(in, start, end);
+					m_state = HEADERS;
+				}
+				else
+				{
+					// Empty lines before a request are ignored
+					m_headerSize = 0;
+				}
+				break;
+			case HEADERS:
+				if (end > start)
+				{
+					parseHeader(in, start, end);
+				}
+				else
+				{
+					startBody();
+				}
+				break;
+			case CHUNK_SIZE:
+				startChunk(in, start, end);
+				break;
+			case CHUNK_END:
+				if (end > start)
+				{
+					throw new HttpException(CallbackResponse.HTTP_BAD_REQUEST, "Malformed chunk");
+				}
+				m_state = CHUNK_SIZE;
+				break;
+			default:
+				// Trailers are ignored
+				if (end == start)
+				{
+					m_state = DONE;
+				}
+				break;
+			}
+			in.position(lf + 1);
+		}
+	}
+
+	/**
+	 * Prepares the parser for the next request on the same connection
+	 */
+	public void reset()
+	{
+		m_state = REQUEST_LINE;
+		m_method = null;
+		m_target = null;
+		m_protocol = null;
+		// The previous headers belong to the previous request
+		m_headers = new Headers();
+		m_headerSize = 0;
+		m_headerCount = 0;
+		m_body = s_noBody;
+		m_bodyLength = 0;
+		m_remaining = 0;
+		m_expectContinue = false;
+	}
+
+	/**
+	 * Determines whether a request is complete
+	 * @return true if the request is complete
+	 */
+	public boolean isComplete()
+	{
+		return m_state == DONE;
+	}
+
+	/**
+	 * Determines whether the parser has started reading a request, that is,
+	 * whether it has read at least its request line
+	 * @return true if a request has been started
+	 */
+	public boolean isStarted()
+	{
+		return m_state != REQUEST_LINE;
+	}
+
+	/**
+	 * Determines whether the client waits for a 100 Continue response
+	 * before sending the body of the request. This is true only once per
+	 * request: the caller is expected to send the response.
+	 * @return true if the response must be sent
+	 */
+	public boolean takeExpectContinue()
+	{
+		boolean b = m_expectContinue && m_bodyLength == 0 && m_state != DONE;
+		m_expectContinue = false;
+		return b;
+	}
+
+	/**
+	 * Gets the method of the request
+	 * @return The method
+	 */
+	public String getMethod()
+	{
+		return m_method;
+	}
+
+	/**
+	 * Gets the target of the request, as written in the request line
+	 * @return The target
+	 */
+	public String getTarget()
+	{
+		return m_target;
+	}
+
+	/**
+	 * Gets the protocol of the request, such as <code>HTTP/1.1</code>
+	 * @return The protocol
+	 */
+	public String getProtocol()
+	{
+		return m_protocol;
+	}
+
+	/**
+	 * Gets the headers of the request
+	 * @return The headers
+	 */
+	public Headers getHeaders()
+	{
+		return m_headers;
+	}
+
+	/**
+	 * Gets the body of the request
+	 * @return The body, possibly empty
+	 */
+	public byte[] getBody()
+	{
+		if (m_body.length != m_bodyLength)
+		{
+			m_body = Arrays.copyOf(m_body, m_bodyLength);
+		}
+		return m_body;
+	}
+
+	/**
+	 * Finds the next line feed in a buffer
+	 * @param in The buffer
+	 * @return The position of the line feed, or -1 if there is none
+	 */
+	protected static int findLineFeed(ByteBuffer in)
+	{
+		for (int i = in.position(), limit = in.limit(); i < limit; i++)
+		{
+			if (in.get(i) == '\n')
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Parses the request line
+	 * @param in The buffer
+	 * @param start The position of the first byte of the line
+	 * @param end The position after the last byte of the line
+	 */
+	protected void parseRequestLine(ByteBuffer in, int start, int end)
+	{
+		int sp1 = start;
+		while (sp1 < end && isTokenChar(in.get(sp1)))
+		{
+			sp1++;
+		}
+		int sp2 = end - 1;
+		while (sp2 > sp1 && in.get(sp2) != ' ')
+		{
+			sp2--;
+		}
+		if (sp1 == start || sp1 >= end || in.get(sp1) != ' ' || sp2 <= sp1 + 1)
+		{
+			throw new HttpException(CallbackResponse.HTTP_BAD_REQUEST, "Malformed request line");
+		}
+		for (int i = sp1 + 1; i < sp2; i++)
+		{
+			byte b = in.get(i);
+			if (b <= ' ' || b == 0x7f)
+			{
+				throw new HttpException(CallbackResponse.HTTP_BAD_REQUEST, "Malformed request target");
+			}
+		}
+		m_method = decode(in, start, sp1);
+		m_target = decode(in, sp1 + 1, sp2);
+		m_protocol = decode(in, sp2 + 1, end);
+		if (m_protocol.compareTo("HTTP/1.1") != 0 && m_protocol.compareTo("HTTP/1.0") != 0)
+		{
+			if (m_protocol.startsWith("HTTP/"))
+			{
+				throw new HttpException(CallbackResponse.HTTP_VERSION_NOT_SUPPORTED, "Unsupported protocol " + m_protocol);
+			}
+			throw new HttpException(CallbackResponse.HTTP_BAD_REQUEST, "Malformed request line");
+		}
+	}
+
+	/**
+	 * Parses a header line
+	 * @param in The buffer
+	 * @param start The position of the first byte of the line
+	 * @param end The position after the last byte of the line
+	 */
+	protected void parseHeader(ByteBuffer in, int start, int end)
+	{
+		if (++m_headerCount > m_maxHeaders)
+		{
+			throw new HttpException(CallbackResponse.HTTP_HEADER_FIELDS_TOO_LARGE, "Too many headers");
+		}
+		int colon = start;
+		while (colon < end && isTokenChar(in.get(colon)))
+		{
+			colon++;
+		}
+		// This also rejects folded lines and spaces before the colon
+		if (colon == start || colon == end || in.get(colon) != ':')
+		{
+			throw new HttpException(CallbackResponse.HTTP_BAD_REQUEST, "Malformed header");
+		}
+		int v_start = colon + 1;
+		while (v_start < end && isSpace(in.get(v_start)))
+		{
+			v_start++;
+		}
+		int v_end = end;
+		while (v_end > v_start && isSpace(in.get(v_end - 1)))
+		{
+			v_end--;
+		}
+		m_headers.add(decode(in, start, colon), decode(in, v_start, v_end));
+	}
+
+	/**
+	 * Determines how the body of the request is delimited, once all the
+	 * headers have been read
+	 */
+	protected void startBody()
+	{
+		String encoding = m_headers.getFirst("Transfer-Encoding");
+		List<String> lengths = m_headers.get("Content-Length");
+		if (encoding != null)
+		{
+			if (lengths != null)
+			{
+				throw new HttpException(CallbackResponse.HTTP_BAD_REQUEST, "Both a length and a transfer encoding");
+			}
+			String last = encoding.substring(encoding.lastIndexOf(',') + 1).trim();
+			if (!last.equalsIgnoreCase("chunked"))
+			{
+				throw new HttpException(CallbackResponse.HTTP_BAD_REQUEST, "Unsupported transfer encoding " + encoding);
+			}
+			m_body = new byte[1024];
+			m_state = CHUNK_SIZE;
+		}
+		else if (lengths != null)
+		{
+			long length = -1;
+			for (String value : lengths)
+			{
+				for (String part : value.split(","))
+				{
+					long l = parseLength(part.trim());
+					if (length >= 0 && l != length)
+					{
+						throw new HttpException(CallbackResponse.HTTP_BAD_REQUEST, "Conflicting content lengths");
+					}
+					length = l;
+				}
+			}
+			if (length > m_maxBodySize)
+			{
+				throw new HttpException(CallbackResponse.HTTP_PAYLOAD_TOO_LARGE, "Request body too large");
+			}
+			if (length == 0)
+			{
+				m_state = DONE;
+				return;
+			}
+			m_body = new byte[(int) length];
+			m_remaining = length;
+			m_state = BODY;
+		}
+		else
+		{
+			m_state = DONE;
+			return;
+		}
+		String expect = m_headers.getFirst("Expect");
+		m_expectContinue = expect != null && expect.equalsIgnoreCase("100-continue");
+	}
+
+	/**
+	 * Parses the line that starts a chunk
+	 * @param in The buffer
+	 * @param start The position of the first byte of the line
+	 * @param end The position after the last byte of the line
+	 */
+	protected void startChunk(ByteBuffer in, int start, int end)
+	{
+		long size = 0;
+		int i = start;
+		for (; i < end; i++)
+		{
+			int digit = Character.digit(in.get(i), 16);
+			if (digit < 0)
+			{
+				break;
+			}
+			if (i - start >= 15)
+			{
+				throw new HttpException(CallbackResponse.HTTP_BAD_REQUEST, "Malformed chunk size");
+			}
+			size = size * 16 + digit;
+		}
+		// Chunk extensions are ignored
+		if (i == start || (i < end && in.get(i) != ';' && !isSpace(in.get(i))))
+		{
+			throw new HttpException(CallbackResponse.HTTP_BAD_REQUEST, "Malformed chunk size");
+		}
+		if (size == 0)
+		{
+			m_state = TRAILERS;
+			return;
+		}
+		if (m_bodyLength + size > m_maxBodySize)
+		{
+			throw new HttpException(CallbackResponse.HTTP_PAYLOAD_TOO_LARGE, "Request body too large");
+		}
+		int needed = (int) (m_bodyLength + size);
+		if (needed > m_body.length)
+		{
+			m_body = Arrays.copyOf(m_body, (int) Math.min(m_maxBodySize, Math.max(needed, 2L * m_body.length)));
+		}
+		m_remaining = size;
+		m_state = CHUNK_DATA;
+	}
+
+	/**
+	 * Copies the bytes of the body, or of the current chunk, found in a
+	 * buffer
+	 * @param in The buffer
+	 * @return true if the body or the chunk is complete
+	 */
+	protected boolean readBody(ByteBuffer in)
+	{
+		int n = (int) Math.min(m_remaining, in.remaining());
+		in.get(m_body, m_bodyLength, n);
+		m_bodyLength += n;
+		m_remaining -= n;
+		if (m_remaining > 0)
+		{
+			return false;
+		}
+		m_state = m_state == BODY ? DONE : CHUNK_END;
+		return true;
+	}
+
+	/**
+	 * Parses the value of a <code>Content-Length</code> header
+	 * @param s The value
+	 * @return The length
+	 */
+	protected static long parseLength(String s)
+	{
+		if (s.isEmpty() || s.length() > 18)
+		{
+			throw new HttpException(CallbackResponse.HTTP_BAD_REQUEST, "Malformed content length");
+		}
+		long length = 0;
+		for (int i = 0; i < s.length(); i++)
+		{
+			char c = s.charAt(i);
+			if (c < '0' || c > '9')
+			{
+				throw new HttpException(CallbackResponse.HTTP_BAD_REQUEST, "Malformed content length");
+			}
+			length = length * 10 + (c - '0');
+		}
+		return length;
+	}
+
+	/**
+	 * Decodes a region of a buffer as ISO-8859-1 characters, as the Java
+	 * HTTP server does for the request line and headers
+	 * @param in The buffer
+	 * @param start The position of the first byte
+	 * @param end The position after the last byte
+	 * @return The string
+	 */
+	protected static String decode(ByteBuffer in, int start, int end)
+	{
+		char[] chars = new char[end - start];
+		for (int i = 0; i < chars.length; i++)
+		{
+			chars[i] = (char) (in.get(start + i) & 0xff);
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * Determines whether a byte is a space or a horizontal tab
+	 * @param b The byte
+	 * @return true if it is
+	 */
+	protected static boolean isSpace(byte b)
+	{
+		return b == ' ' || b == '\t';
+	}
+
+	/**
+	 * Determines whether a byte may appear in a token, such as a method or
+	 * the name of a header
+	 * @param b The byte
+	 * @return true if it may
+	 */
+	protected static boolean isTokenChar(byte b)
+	{
+		if (b <= ' ' || b >= 0x7f)
+		{
+			return false;
+		}
+		switch (b)
+		{
+		case '(': case ')': case ',': case '/': case ':': case ';': case '<': case '=':
+		case '>': case '?': case '@': case '[': case '\\': case ']': case '{': case '}':
+		case '"':
+			return false;
+		default:
+			return true;
+		}
+	}
+}
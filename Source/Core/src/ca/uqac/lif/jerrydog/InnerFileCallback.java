@@ -17,8 +17,17 @@
  */
 package ca.uqac.lif.jerrydog;
 
-import java.net.URI;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Enumeration;
 import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
 
 import ca.uqac.lif.jerrydog.InnerFileServer.PackageFileReader;
 
@@ -48,6 +57,12 @@ public class InnerFileCallback extends RequestCallback
 	 */
 	protected boolean m_send404;
 
+	/**
+	 * A cache of the contents of the resources already served, or null
+	 * to read resources every time they are requested
+	 */
+	protected ResourceCache m_cache = null;
+
 	public InnerFileCallback(String path, Class<?> context)
 	{
 		super();
@@ -72,12 +87,180 @@ public class InnerFileCallback extends RequestCallback
 		m_send404 = b;
 	}
 
+	/**
+	 * Sets a cache for the contents of the resources served by this
+	 * callback. Without a cache, every request reads the resource again
+	 * from the classpath.
+	 * @param cache The cache, or null to disable caching
+	 */
+	public void setCache(ResourceCache cache)
+	{
+		m_cache = cache;
+	}
+
+	/**
+	 * Gets the cache for the contents of the resources served by this
+	 * callback
+	 * @return The cache, or null if there is none
+	 */
+	public ResourceCache getCache()
+	{
+		return m_cache;
+	}
+
+	/**
+	 * Loads into the cache all the resources found in the resource folder,
+	 * until the cache is full. This works when the folder is a directory
+	 * of the filesystem or is inside a JAR file.
+	 * @return The number of resources loaded
+	 */
+	public int preload()
+	{
+		if (m_cache == null)
+		{
+			return 0;
+		}
+		URL url = m_context.getResource(m_path);
+		if (url == null)
+		{
+			return 0;
+		}
+		try
+		{
+			if (url.getProtocol().compareTo("file") == 0)
+			{
+				return preloadFolder(new File(url.toURI()), m_path);
+			}
+			if (url.getProtocol().compareTo("jar") == 0)
+			{
+				return preloadJar(url);
+			}
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		catch (URISyntaxException e)
+		{
+			e.printStackTrace();
+		}
+		return 0;
+	}
+
+	/**
+	 * Loads into the cache the resources of a folder of the filesystem
+	 * and its sub-folders
+	 * @param folder The folder
+	 * @param path The resource path corresponding to this folder
+	 * @return The number of resources loaded
+	 */
+	protected int preloadFolder(File folder, String path)
+	{
+		File[] files = folder.listFiles();
+		if (files == null)
+		{
+			return 0;
+		}
+		int count = 0;
+		for (File f : files)
+		{
+			String f_path = path + "/" + f.getName();
+			if (f.isDirectory())
+			{
+				count += preloadFolder(f, f_path);
+			}
+			else if (m_cache.hasRoomFor(f.length()))
+			{
+				byte[] contents = PackageFileReader.readPackageFileToBytes(m_context, f_path);
+				if (contents != null && m_cache.put(f_path, contents))
+				{
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Loads into the cache the resources of a folder inside a JAR file
+	 * @param url The URL of the folder
+	 * @return The number of resources loaded
+	 * @throws IOException If the JAR file cannot be read
+	 */
+	protected int preloadJar(URL url) throws IOException
+	{
+		URLConnection conn = url.openConnection();
+		if (!(conn instanceof JarURLConnection))
+		{
+			return 0;
+		}
+		JarURLConnection jar_conn = (JarURLConnection) conn;
+		String folder = jar_conn.getEntryName();
+		if (folder == null)
+		{
+			return 0;
+		}
+		if (!folder.endsWith("/"))
+		{
+			folder += "/";
+		}
+		int count = 0;
+		JarFile jar = jar_conn.getJarFile();
+		Enumeration<JarEntry> entries = jar.entries();
+		while (entries.hasMoreElements())
+		{
+			JarEntry entry = entries.nextElement();
+			String name = entry.getName();
+			if (entry.isDirectory() || !name.startsWith(folder) || !m_cache.hasRoomFor(entry.getSize()))
+			{
+				continue;
+			}
+			InputStream is = jar.getInputStream(entry);
+			try
+			{
+				String f_path = m_path + "/" + name.substring(folder.length());
+				if (m_cache.put(f_path, InnerFileServer.readBytes(is)))
+				{
+					count++;
+				}
+			}
+			finally
+			{
+				is.close();
+			}
+		}
+		return count;
+	}
+
 	@Override
 	public boolean fire(HttpExchange t)
 	{
 		return true;
 	}
 
+	/**
+	 * Reads the contents of a resource, from the cache if possible
+	 * @param path The path of the resource
+	 * @return The contents, or null if the resource does not exist
+	 */
+	protected byte[] readResource(String path)
+	{
+		if (m_cache == null)
+		{
+			return PackageFileReader.readPackageFileToBytes(m_context, path);
+		}
+		byte[] contents = m_cache.get(path);
+		if (contents == null)
+		{
+			contents = PackageFileReader.readPackageFileToBytes(m_context, path);
+			if (contents != null)
+			{
+				m_cache.put(path, contents);
+			}
+		}
+		return contents;
+	}
+
 	@Override
 	public CallbackResponse process(HttpExchange t)
 	{
@@ -88,8 +271,7 @@ public class InnerFileCallback extends RequestCallback
 		String accept_Header = accept_list.get(0);
 		response.setContentType(accept_Header.split(",")[0]);
 
-		URI uri = t.getRequestURI();
-		String path = uri.getPath();
+		String path = RequestContext.of(t).getPath();
 		if (path.contains(".."))
 		{
 			// We try to move up in the structure, and possibly access
@@ -102,10 +284,14 @@ public class InnerFileCallback extends RequestCallback
 		{
 			System.err.println("Looking for " + m_path + path + " in context " + m_context);
 		}
-		byte[] file_contents = PackageFileReader.readPackageFileToBytes(m_context, m_path + path);
+		byte[] file_contents = readResource(m_path + path);
 		if (file_contents != null)
 		{
 			response.setContents(file_contents);
+			// Contents kept in the cache are the same array for every request;
+			// an array that was too large, or already evicted, is not
+			response.setStaticContents(m_cache != null && m_cache.holds(m_path + path, file_contents));
+			ByteRanges.apply(response);
 		}
 		else
 		{
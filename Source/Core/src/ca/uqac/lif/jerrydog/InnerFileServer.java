@@ -43,6 +43,11 @@ public class InnerFileServer extends Server
 	 */
 	protected Class<? extends InnerFileServer> m_referenceClass;
 
+	/**
+	 * The callback serving the files of the resource folder
+	 */
+	protected InnerFileCallback m_fileCallback;
+
 	/**
 	 * Instantiates a new server with all caching disabled
 	 * @param reference The class used as a reference for fetching files. All
@@ -68,6 +73,7 @@ public class InnerFileServer extends Server
 		super();
 		m_resourceFolder = s_resourceFolderDefaultName;
 		InnerFileCallback ifc = new InnerFileCallback(m_resourceFolder, this.getClass());
+		m_fileCallback = ifc;
 		if (server_caching)
 		{
 			CachedRequestCallback crc = new CachedRequestCallback(ifc);
@@ -81,6 +87,26 @@ public class InnerFileServer extends Server
 		m_referenceClass = reference;    
 	}
 
+	/**
+	 * Keeps the contents of the files served by this server in memory, so
+	 * that the most frequently requested files are no longer read from the
+	 * classpath every time.
+	 * @param max_bytes The maximum number of bytes kept in memory
+	 * @param preload Set to true to load the files of the resource folder
+	 * into memory right away
+	 * @return The cache
+	 */
+	public ResourceCache enableResourceCache(long max_bytes, boolean preload)
+	{
+		ResourceCache cache = new ResourceCache(max_bytes);
+		m_fileCallback.setCache(cache);
+		if (preload)
+		{
+			m_fileCallback.preload();
+		}
+		return cache;
+	}
+
 	public InputStream getResourceAsStream(String path)
 	{
 		return m_referenceClass.getResourceAsStream(path);
@@ -0,0 +1,74 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A transport relying on the HTTP server bundled with the JDK. Most
+ * settings of the connections are passed to this server through system
+ * properties, which it reads only once per JVM; see
+ * {@link Server#setIdleTimeout(long)}.
+ * @author Sylvain Hallé
+ */
+public class JdkTransport implements Transport
+{
+	/**
+	 * The underlying Java HTTP server
+	 */
+	protected HttpServer m_server = null;
+
+	@Override
+	public void start(Server server) throws IOException
+	{
+		server.applyListenerSettings();
+		m_server = HttpServer.create(new InetSocketAddress(server.getServerPort()), server.getBacklog());
+		m_server.createContext("/", server);
+		// A null executor runs every request on the dispatcher thread
+		m_server.setExecutor(server.getWorkerPool());
+		m_server.start();
+	}
+
+	@Override
+	public void stop(int delay)
+	{
+		if (m_server != null)
+		{
+			m_server.stop(delay);
+			m_server = null;
+		}
+	}
+
+	@Override
+	public InetSocketAddress getAddress()
+	{
+		return m_server == null ? null : m_server.getAddress();
+	}
+
+	/**
+	 * Gets the underlying Java HTTP server
+	 * @return The server, or null if the transport is not started
+	 */
+	public HttpServer getHttpServer()
+	{
+		return m_server;
+	}
+}
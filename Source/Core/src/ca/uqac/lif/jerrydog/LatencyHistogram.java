@@ -0,0 +1,333 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations that can be updated by many threads at once
+ * without locks. Durations are recorded in microseconds into log-linear
+ * buckets: each power of two is split into 16 buckets of equal width, so
+ * that any percentile read from the histogram is within about 6% of the
+ * true value, for durations ranging from a microsecond to several days.
+ * Recording a value takes a handful of arithmetic operations and one
+ * atomic increment.
+ * @author Sylvain Hallé
+ */
+public class LatencyHistogram
+{
+	/**
+	 * The number of bits of precision within each power of two
+	 */
+	protected static final int SUB_BITS = 4;
+
+	/**
+	 * The number of buckets within each power of two
+	 */
+	protected static final int SUB_COUNT = 1 << SUB_BITS;
+
+	/**
+	 * The position of the highest bit of the largest value recorded
+	 * exactly; larger values go into the last bucket
+	 */
+	protected static final int MAX_BIT = 40;
+
+	/**
+	 * The total number of buckets
+	 */
+	protected static final int BUCKET_COUNT = (MAX_BIT - SUB_BITS + 2) * SUB_COUNT;
+
+	/**
+	 * The number of values in each bucket
+	 */
+	protected final AtomicLongArray m_counts = new AtomicLongArray(BUCKET_COUNT);
+
+	/**
+	 * The number of values recorded
+	 */
+	protected final AtomicLong m_count = new AtomicLong();
+
+	/**
+	 * The sum of the values recorded, in microseconds
+	 */
+	protected final AtomicLong m_sum = new AtomicLong();
+
+	/**
+	 * The largest value recorded, in microseconds
+	 */
+	protected final AtomicLong m_max = new AtomicLong();
+
+	/**
+	 * Creates an empty histogram
+	 */
+	public LatencyHistogram()
+	{
+		super();
+	}
+
+	/**
+	 * Records a duration
+	 * @param nanos The duration, in nanoseconds
+	 */
+	public void recordNanos(long nanos)
+	{
+		recordMicros(nanos / 1000);
+	}
+
+	/**
+	 * Records a duration
+	 * @param micros The duration, in microseconds
+	 */
+	public void recordMicros(long micros)
+	{
+		if (micros < 0)
+		{
+			micros = 0;
+		}
+		m_counts.incrementAndGet(bucketOf(micros));
+		m_count.incrementAndGet();
+		m_sum.addAndGet(micros);
+		long max = m_max.get();
+		while (micros > max && !m_max.compareAndSet(max, micros))
+		{
+			max = m_max.get();
+		}
+	}
+
+	/**
+	 * Adds the values of another histogram to this one
+	 * @param other The other histogram
+	 */
+	public void add(LatencyHistogram other)
+	{
+		for (int i = 0; i < BUCKET_COUNT; i++)
+		{
+			long c = other.m_counts.get(i);
+			if (c != 0)
+			{
+				m_counts.addAndGet(i, c);
+			}
+		}
+		m_count.addAndGet(other.m_count.get());
+		m_sum.addAndGet(other.m_sum.get());
+		long other_max = other.m_max.get();
+		long max = m_max.get();
+		while (other_max > max && !m_max.compareAndSet(max, other_max))
+		{
+			max = m_max.get();
+		}
+	}
+
+	/**
+	 * Empties the histogram. Values recorded while the histogram is being
+	 * reset may be partially lost.
+	 */
+	public void reset()
+	{
+		for (int i = 0; i < BUCKET_COUNT; i++)
+		{
+			m_counts.set(i, 0);
+		}
+		m_count.set(0);
+		m_sum.set(0);
+		m_max.set(0);
+	}
+
+	/**
+	 * Gets the number of values recorded
+	 * @return The number of values
+	 */
+	public long getCount()
+	{
+		return m_count.get();
+	}
+
+	/**
+	 * Gets the sum of the values recorded
+	 * @return The sum, in microseconds
+	 */
+	public long getSumMicros()
+	{
+		return m_sum.get();
+	}
+
+	/**
+	 * Gets the largest value recorded
+	 * @return The value, in microseconds
+	 */
+	public long getMaxMicros()
+	{
+		return m_max.get();
+	}
+
+	/**
+	 * Gets the mean of the values recorded
+	 * @return The mean, in microseconds, or 0 if the histogram is empty
+	 */
+	public double getMeanMicros()
+	{
+		long count = m_count.get();
+		return count == 0 ? 0 : (double) m_sum.get() / count;
+	}
+
+	/**
+	 * Gets the value below which a given fraction of the recorded values
+	 * fall. The histogram is read without stopping the threads that update
+	 * it, so that the result is approximate while values are recorded.
+	 * @param quantile The fraction, between 0 and 1 (e.g. 0.99 for the
+	 * 99th percentile)
+	 * @return The value, in microseconds, or 0 if the histogram is empty
+	 */
+	public long getQuantileMicros(double quantile)
+	{
+		long total = 0;
+		long[] counts = new long[BUCKET_COUNT];
+		for (int i = 0; i < BUCKET_COUNT; i++)
+		{
+			counts[i] = m_counts.get(i);
+			total += counts[i];
+		}
+		if (total == 0)
+		{
+			return 0;
+		}
+		long rank = (long) Math.ceil(Math.max(0, Math.min(1, quantile)) * total);
+		if (rank < 1)
+		{
+			rank = 1;
+		}
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++)
+		{
+			seen += counts[i];
+			if (seen >= rank)
+			{
+				return Math.min(bucketHigh(i), m_max.get());
+			}
+		}
+		return m_max.get();
+	}
+
+	/**
+	 * Gets the number of values at most equal to each of a list of bounds,
+	 * as in the cumulative buckets of a Prometheus histogram. A value is
+	 * counted under a bound when it falls in the same bucket as the bound
+	 * or in a lower one, so that counts are within the precision of the
+	 * buckets. All counts are read from the same pass over the histogram.
+	 * @param bounds The bounds, in microseconds, in increasing order
+	 * @return The count for each bound, followed by the number of values
+	 * in the histogram
+	 */
+	public long[] getCumulativeCounts(long[] bounds)
+	{
+		long[] out = new long[bounds.length + 1];
+		long seen = 0;
+		int b = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++)
+		{
+			while (b < bounds.length && bucketOf(bounds[b]) < i)
+			{
+				out[b++] = seen;
+			}
+			seen += m_counts.get(i);
+		}
+		while (b < bounds.length)
+		{
+			out[b++] = seen;
+		}
+		out[bounds.length] = seen;
+		return out;
+	}
+
+	/**
+	 * Gets the number of values recorded in a bucket
+	 * @param bucket The bucket
+	 * @return The number of values
+	 */
+	public long getBucketCount(int bucket)
+	{
+		return m_counts.get(bucket);
+	}
+
+	/**
+	 * Gets the number of buckets of a histogram
+	 * @return The number of buckets
+	 */
+	public static int getBucketCount()
+	{
+		return BUCKET_COUNT;
+	}
+
+	/**
+	 * Gets the bucket in which a value is recorded
+	 * @param micros The value, in microseconds
+	 * @return The bucket
+	 */
+	public static int bucketOf(long micros)
+	{
+		if (micros < SUB_COUNT)
+		{
+			return (int) micros;
+		}
+		int msb = 63 - Long.numberOfLeadingZeros(micros);
+		if (msb > MAX_BIT)
+		{
+			return BUCKET_COUNT - 1;
+		}
+		int shift = msb - SUB_BITS;
+		return (shift + 1) * SUB_COUNT + (int) ((micros >> shift) - SUB_COUNT);
+	}
+
+	/**
+	 * Gets the smallest value recorded in a bucket
+	 * @param bucket The bucket
+	 * @return The value, in microseconds
+	 */
+	public static long bucketLow(int bucket)
+	{
+		if (bucket < SUB_COUNT)
+		{
+			return bucket;
+		}
+		int shift = bucket / SUB_COUNT - 1;
+		return ((long) (bucket % SUB_COUNT + SUB_COUNT)) << shift;
+	}
+
+	/**
+	 * Gets the largest value recorded in a bucket
+	 * @param bucket The bucket
+	 * @return The value, in microseconds
+	 */
+	public static long bucketHigh(int bucket)
+	{
+		if (bucket >= BUCKET_COUNT - 1)
+		{
+			return Long.MAX_VALUE;
+		}
+		return bucketLow(bucket + 1) - 1;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "count=" + getCount() + " mean=" + Math.round(getMeanMicros()) + "us"
+				+ " p50=" + getQuantileMicros(0.5) + "us p99=" + getQuantileMicros(0.99) + "us"
+				+ " max=" + getMaxMicros() + "us";
+	}
+}
@@ -0,0 +1,202 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import java.util.Map;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Exposes the {@link RequestMetrics} of a server in the text format read by
+ * Prometheus. For each callback, the callback answers with:
+ * <ul>
+ * <li><code>jerrydog_requests_total</code>: the number of requests, for
+ * each status code</li>
+ * <li><code>jerrydog_errors_total</code>: the number of requests answered
+ * with a status code of 500 or above</li>
+ * <li><code>jerrydog_response_bytes_total</code>: the number of bytes sent
+ * in response bodies</li>
+ * <li><code>jerrydog_request_duration_seconds</code>: a histogram of the
+ * time taken to answer, for each class of status codes</li>
+ * </ul>
+ * Callbacks are identified by their {@link RequestCallback#getName() name}.
+ * Durations are exported as cumulative buckets rather than precomputed
+ * percentiles, so that they can be aggregated over time and across
+ * instances, e.g. with
+ * <code>histogram_quantile(0.99, rate(jerrydog_request_duration_seconds_bucket[5m]))</code>.
+ * @author Sylvain Hallé
+ */
+public class MetricsCallback extends RestCallback
+{
+	/**
+	 * The content type of the Prometheus text format
+	 */
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	/**
+	 * The upper bounds of the buckets of each histogram, in seconds
+	 */
+	protected static final double[] s_buckets = {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+	/**
+	 * The same bounds, in microseconds
+	 */
+	protected static final long[] s_bucketMicros = new long[s_buckets.length];
+
+	static
+	{
+		for (int i = 0; i < s_buckets.length; i++)
+		{
+			s_bucketMicros[i] = Math.round(s_buckets[i] * 1000000);
+		}
+	}
+
+	/**
+	 * The metrics to expose
+	 */
+	protected final RequestMetrics m_metrics;
+
+	/**
+	 * Creates a callback answering at <code>/metrics</code>
+	 * @param metrics The metrics to expose
+	 */
+	public MetricsCallback(RequestMetrics metrics)
+	{
+		this(metrics, "/metrics");
+	}
+
+	/**
+	 * Creates a callback
+	 * @param metrics The metrics to expose
+	 * @param path The path this callback listens to
+	 */
+	public MetricsCallback(RequestMetrics metrics, String path)
+	{
+		super(Method.GET, path);
+		m_metrics = metrics;
+	}
+
+	@Override
+	public CallbackResponse process(HttpExchange t)
+	{
+		CallbackResponse cbr = new CallbackResponse(t, CallbackResponse.HTTP_OK, format(m_metrics), CONTENT_TYPE);
+		cbr.disableCaching();
+		return cbr;
+	}
+
+	/**
+	 * Formats metrics in the Prometheus text format
+	 * @param metrics The metrics
+	 * @return The text
+	 */
+	public static String format(RequestMetrics metrics)
+	{
+		Map<String,RequestMetrics.Stats> stats = metrics.getStats();
+		StringBuilder out = new StringBuilder();
+		out.append("# HELP jerrydog_requests_total Requests answered, by callback and status code\n");
+		out.append("# TYPE jerrydog_requests_total counter\n");
+		for (Map.Entry<String,RequestMetrics.Stats> e : stats.entrySet())
+		{
+			String label = escape(e.getKey());
+			for (int code : e.getValue().getCodes())
+			{
+				out.append("jerrydog_requests_total{callback=\"").append(label).append("\",code=\"").append(code).append("\"} ");
+				out.append(e.getValue().getCodeCount(code)).append('\n');
+			}
+		}
+		out.append("# HELP jerrydog_errors_total Requests answered with a server error\n");
+		out.append("# TYPE jerrydog_errors_total counter\n");
+		for (Map.Entry<String,RequestMetrics.Stats> e : stats.entrySet())
+		{
+			out.append("jerrydog_errors_total{callback=\"").append(escape(e.getKey())).append("\"} ");
+			out.append(e.getValue().getErrorCount()).append('\n');
+		}
+		out.append("# HELP jerrydog_response_bytes_total Bytes sent in response bodies\n");
+		out.append("# TYPE jerrydog_response_bytes_total counter\n");
+		for (Map.Entry<String,RequestMetrics.Stats> e : stats.entrySet())
+		{
+			out.append("jerrydog_response_bytes_total{callback=\"").append(escape(e.getKey())).append("\"} ");
+			out.append(e.getValue().getBytesOut()).append('\n');
+		}
+		out.append("# HELP jerrydog_request_duration_seconds Time taken to answer requests, by callback and class of status code\n");
+		out.append("# TYPE jerrydog_request_duration_seconds histogram\n");
+		for (Map.Entry<String,RequestMetrics.Stats> e : stats.entrySet())
+		{
+			RequestMetrics.Stats st = e.getValue();
+			for (int c : st.getClasses())
+			{
+				String labels = "callback=\"" + escape(e.getKey()) + "\",class=\"" + (c == 0 ? "other" : c + "xx") + "\"";
+				LatencyHistogram h = st.getLatency(c);
+				long[] counts = h.getCumulativeCounts(s_bucketMicros);
+				for (int i = 0; i < s_buckets.length; i++)
+				{
+					out.append("jerrydog_request_duration_seconds_bucket{").append(labels).append(",le=\"").append(s_buckets[i]).append("\"} ");
+					out.append(counts[i]).append('\n');
+				}
+				out.append("jerrydog_request_duration_seconds_bucket{").append(labels).append(",le=\"+Inf\"} ");
+				out.append(counts[s_buckets.length]).append('\n');
+				out.append("jerrydog_request_duration_seconds_sum{").append(labels).append("} ");
+				out.append(toSeconds(h.getSumMicros())).append('\n');
+				// Same count as the last bucket, even if requests are recorded
+				// meanwhile
+				out.append("jerrydog_request_duration_seconds_count{").append(labels).append("} ");
+				out.append(counts[s_buckets.length]).append('\n');
+			}
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Converts microseconds into seconds
+	 * @param micros The duration in microseconds
+	 * @return The duration in seconds
+	 */
+	protected static double toSeconds(long micros)
+	{
+		return micros / 1000000d;
+	}
+
+	/**
+	 * Escapes the value of a label
+	 * @param s The value
+	 * @return The escaped value
+	 */
+	protected static String escape(String s)
+	{
+		StringBuilder out = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); i++)
+		{
+			char c = s.charAt(i);
+			switch (c)
+			{
+			case '\\':
+				out.append("\\\\");
+				break;
+			case '"':
+				out.append("\\\"");
+				break;
+			case '\n':
+				out.append("\\n");
+				break;
+			default:
+				out.append(c);
+			}
+		}
+		return out.toString();
+	}
+}
@@ -0,0 +1,443 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The parts of a <code>multipart/form-data</code> body, read with a
+ * {@link MultipartReader}. Small parts are kept in memory; a part that
+ * grows beyond a threshold is written to a temporary file as it is read,
+ * so that large uploads only take a small buffer of memory each.
+ * <p>
+ * The temporary files are deleted when the form is closed. A callback
+ * that wants to keep an uploaded file should move it elsewhere with
+ * {@link FormPart#moveTo(File)} before that.
+ * @author Sylvain Hallé
+ */
+public class MultipartForm implements Closeable
+{
+	/**
+	 * The default size above which a part is written to disk
+	 */
+	public static final long DEFAULT_MEMORY_THRESHOLD = 64 * 1024;
+
+	/**
+	 * The default maximum number of parts
+	 */
+	public static final int DEFAULT_MAX_PARTS = 1000;
+
+	/**
+	 * The size of the buffer used to copy parts
+	 */
+	protected static final int s_bufferSize = 8192;
+
+	/**
+	 * The parts of the form
+	 */
+	protected final List<FormPart> m_parts = new ArrayList<FormPart>();
+
+	/**
+	 * Reads all the parts of a multipart body with the default settings
+	 * @param reader The reader of the body
+	 * @return The form
+	 * @throws IOException If the body cannot be read or is malformed
+	 */
+	public static MultipartForm read(MultipartReader reader) throws IOException
+	{
+		return read(reader, DEFAULT_MEMORY_THRESHOLD, null, DEFAULT_MAX_PARTS);
+	}
+
+	/**
+	 * Reads all the parts of a multipart body
+	 * @param reader The reader of the body
+	 * @param memory_threshold The size above which a part is written to a
+	 * temporary file
+	 * @param temp_dir The folder where temporary files are created, or null
+	 * to use the default temporary folder
+	 * @param max_parts The maximum number of parts
+	 * @return The form
+	 * @throws IOException If the body cannot be read or is malformed
+	 * @throws HttpException If the body has more than the maximum number
+	 * of parts
+	 */
+	public static MultipartForm read(MultipartReader reader, long memory_threshold, File temp_dir, int max_parts) throws IOException
+	{
+		MultipartForm form = new MultipartForm();
+		boolean ok = false;
+		try
+		{
+			MultipartReader.Part part;
+			while ((part = reader.nextPart()) != null)
+			{
+				if (form.m_parts.size() >= max_parts)
+				{
+					throw new HttpException(CallbackResponse.HTTP_BAD_REQUEST, "Multipart body has more than " + max_parts + " parts");
+				}
+				form.m_parts.add(FormPart.read(part, memory_threshold, temp_dir));
+			}
+			ok = true;
+			return form;
+		}
+		finally
+		{
+			if (!ok)
+			{
+				// Do not leave temporary files behind
+				form.close();
+			}
+		}
+	}
+
+	/**
+	 * Gets all the parts of the form
+	 * @return The parts, in the order of the body
+	 */
+	public List<FormPart> getParts()
+	{
+		return Collections.unmodifiableList(m_parts);
+	}
+
+	/**
+	 * Gets the last part with a given name
+	 * @param name The name of the form field
+	 * @return The part, or null if there is none
+	 */
+	public FormPart getPart(String name)
+	{
+		for (int i = m_parts.size() - 1; i >= 0; i--)
+		{
+			FormPart p = m_parts.get(i);
+			if (name.equals(p.getName()))
+			{
+				return p;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the form fields that are not files as a map of parameters
+	 * @return The parameters
+	 * @throws IOException If a spooled part cannot be read
+	 */
+	public ParameterMap getParameters() throws IOException
+	{
+		ParameterMap out = new ParameterMap();
+		for (FormPart p : m_parts)
+		{
+			if (p.getName() != null && p.getFileName() == null)
+			{
+				out.add(p.getName(), p.getString());
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Deletes the temporary files of this form
+	 */
+	@Override
+	public void close()
+	{
+		for (FormPart p : m_parts)
+		{
+			p.delete();
+		}
+	}
+
+	/**
+	 * A part of a form, held in memory or in a temporary file
+	 */
+	public static class FormPart
+	{
+		/**
+		 * The headers of the part
+		 */
+		protected final Map<String,String> m_headers;
+
+		/**
+		 * The name of the form field
+		 */
+		protected final String m_name;
+
+		/**
+		 * The name of the uploaded file
+		 */
+		protected final String m_fileName;
+
+		/**
+		 * The content type of the part
+		 */
+		protected final String m_contentType;
+
+		/**
+		 * The contents of the part, if it is held in memory
+		 */
+		protected byte[] m_bytes;
+
+		/**
+		 * The file holding the contents of the part, if it is on disk
+		 */
+		protected File m_file;
+
+		/**
+		 * The size of the part in bytes
+		 */
+		protected long m_size;
+
+		/**
+		 * Whether the file of this part must be kept when the form is closed
+		 */
+		protected boolean m_kept = false;
+
+		/**
+		 * Creates a new form part
+		 * @param part The part read from the body
+		 */
+		protected FormPart(MultipartReader.Part part)
+		{
+			super();
+			m_headers = part.getHeaders();
+			m_name = part.getName();
+			m_fileName = part.getFileName();
+			m_contentType = part.getContentType();
+		}
+
+		/**
+		 * Reads a part from a multipart body
+		 * @param part The part
+		 * @param memory_threshold The size above which the part is written
+		 * to a temporary file
+		 * @param temp_dir The folder of the temporary file, or null
+		 * @return The form part
+		 * @throws IOException If the part cannot be read or written
+		 */
+		protected static FormPart read(MultipartReader.Part part, long memory_threshold, File temp_dir) throws IOException
+		{
+			FormPart fp = new FormPart(part);
+			InputStream in = part.getInputStream();
+			byte[] buffer = new byte[(int) Math.min(s_bufferSize, Math.max(memory_threshold, 16))];
+			int size = 0;
+			int read;
+			while ((read = in.read(buffer, size, buffer.length - size)) >= 0)
+			{
+				size += read;
+				if (size == buffer.length)
+				{
+					if (size >= memory_threshold)
+					{
+						fp.spool(buffer, size, in, temp_dir);
+						return fp;
+					}
+					buffer = Arrays.copyOf(buffer, (int) Math.min(memory_threshold, buffer.length * 2L));
+				}
+			}
+			fp.m_bytes = Arrays.copyOf(buffer, size);
+			fp.m_size = size;
+			return fp;
+		}
+
+		/**
+		 * Writes the contents of the part to a temporary file
+		 * @param head The bytes already read
+		 * @param length The number of bytes already read
+		 * @param in The stream giving the rest of the part
+		 * @param temp_dir The folder of the temporary file, or null
+		 * @throws IOException If the part cannot be read or written
+		 */
+		protected void spool(byte[] head, int length, InputStream in, File temp_dir) throws IOException
+		{
+			m_file = File.createTempFile("jerrydog-", ".part", temp_dir);
+			OutputStream out = new FileOutputStream(m_file);
+			boolean ok = false;
+			try
+			{
+				out.write(head, 0, length);
+				long size = length;
+				byte[] buffer = new byte[s_bufferSize];
+				int read;
+				while ((read = in.read(buffer)) >= 0)
+				{
+					out.write(buffer, 0, read);
+					size += read;
+				}
+				m_size = size;
+				ok = true;
+			}
+			finally
+			{
+				out.close();
+				if (!ok)
+				{
+					m_file.delete();
+				}
+			}
+		}
+
+		/**
+		 * Gets the headers of this part
+		 * @return The headers, whose names are case-insensitive
+		 */
+		public Map<String,String> getHeaders()
+		{
+			return m_headers;
+		}
+
+		/**
+		 * Gets the name of the form field
+		 * @return The name, or null if the part does not declare one
+		 */
+		public String getName()
+		{
+			return m_name;
+		}
+
+		/**
+		 * Gets the name of the uploaded file
+		 * @return The name, or null if this part is not a file
+		 */
+		public String getFileName()
+		{
+			return m_fileName;
+		}
+
+		/**
+		 * Gets the content type of this part
+		 * @return The content type, or null if the part does not declare one
+		 */
+		public String getContentType()
+		{
+			return m_contentType;
+		}
+
+		/**
+		 * Gets the size of this part
+		 * @return The number of bytes
+		 */
+		public long getSize()
+		{
+			return m_size;
+		}
+
+		/**
+		 * Determines whether this part is held in memory
+		 * @return true if it is in memory, false if it is in a file
+		 */
+		public boolean isInMemory()
+		{
+			return m_file == null;
+		}
+
+		/**
+		 * Gets the temporary file holding this part
+		 * @return The file, or null if the part is held in memory
+		 */
+		public File getFile()
+		{
+			return m_file;
+		}
+
+		/**
+		 * Gets the contents of this part as a stream
+		 * @return The stream
+		 * @throws IOException If the temporary file cannot be opened
+		 */
+		public InputStream getInputStream() throws IOException
+		{
+			if (m_file != null)
+			{
+				return new FileInputStream(m_file);
+			}
+			return new ByteArrayInputStream(m_bytes == null ? new byte[0] : m_bytes);
+		}
+
+		/**
+		 * Gets the contents of this part. For a part held in a file, the
+		 * whole file is read into memory.
+		 * @return The contents
+		 * @throws IOException If the temporary file cannot be read
+		 */
+		public byte[] getBytes() throws IOException
+		{
+			if (m_file != null)
+			{
+				return Files.readAllBytes(m_file.toPath());
+			}
+			return m_bytes == null ? new byte[0] : m_bytes;
+		}
+
+		/**
+		 * Gets the contents of this part as a string, decoded with the
+		 * character set of its content type, or UTF-8
+		 * @return The string
+		 * @throws IOException If the temporary file cannot be read
+		 */
+		public String getString() throws IOException
+		{
+			return new String(getBytes(), RequestBody.getCharset(m_contentType, RequestBody.DEFAULT_CHARSET));
+		}
+
+		/**
+		 * Moves the contents of this part to a file. Once moved, the part
+		 * reads its contents from this file, which is no longer deleted when
+		 * the form is closed.
+		 * @param target The file
+		 * @throws IOException If the file cannot be written
+		 */
+		public void moveTo(File target) throws IOException
+		{
+			if (m_file != null)
+			{
+				Files.move(m_file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			else
+			{
+				Files.write(target.toPath(), getBytes());
+			}
+			m_file = target;
+			m_bytes = null;
+			m_kept = true;
+		}
+
+		/**
+		 * Deletes the temporary file of this part, if any
+		 */
+		protected void delete()
+		{
+			if (m_file != null && !m_kept)
+			{
+				m_file.delete();
+			}
+		}
+	}
+}
@@ -0,0 +1,552 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Reads a <code>multipart/form-data</code> body one part at a time,
+ * without ever holding more than a small buffer in memory. Each part is
+ * exposed as a stream that ends at the boundary that separates it from the
+ * next part; calling {@link #nextPart()} skips whatever is left of the
+ * current part.
+ * <p>
+ * The boundary is searched with the Boyer-Moore-Horspool algorithm, which
+ * usually skips over the contents of a part several bytes at a time.
+ * @author Sylvain Hallé
+ */
+public class MultipartReader
+{
+	/**
+	 * The maximum size of the headers of a part
+	 */
+	protected static final int s_maxHeaderSize = 16 * 1024;
+
+	/**
+	 * The size of the read buffer
+	 */
+	protected static final int s_bufferSize = 16 * 1024;
+
+	/**
+	 * The character set of the headers of a part
+	 */
+	protected static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/**
+	 * The stream from which the body is read
+	 */
+	protected final InputStream m_in;
+
+	/**
+	 * The delimiter that precedes each part, made of a line break, two
+	 * dashes and the boundary
+	 */
+	protected final byte[] m_delimiter;
+
+	/**
+	 * For each byte value, how far the search window can move when this
+	 * byte is the last of the window and the window does not match
+	 */
+	protected final int[] m_skip = new int[256];
+
+	/**
+	 * The read buffer
+	 */
+	protected final byte[] m_buffer;
+
+	/**
+	 * The position of the next byte to read in the buffer
+	 */
+	protected int m_pos = 0;
+
+	/**
+	 * The position past the last valid byte of the buffer
+	 */
+	protected int m_limit = 0;
+
+	/**
+	 * Whether the end of the underlying stream has been reached
+	 */
+	protected boolean m_eof = false;
+
+	/**
+	 * Whether the closing delimiter has been read
+	 */
+	protected boolean m_done = false;
+
+	/**
+	 * The part currently being read, or null
+	 */
+	protected Part m_current = null;
+
+	/**
+	 * Creates a new multipart reader
+	 * @param in The stream from which the body is read
+	 * @param boundary The boundary declared in the <code>Content-Type</code>
+	 * header of the request
+	 */
+	public MultipartReader(InputStream in, String boundary)
+	{
+		super();
+		if (boundary == null || boundary.isEmpty() || boundary.length() > 70)
+		{
+			throw new IllegalArgumentException("Invalid multipart boundary");
+		}
+		m_in = in;
+		m_delimiter = ("\r\n--" + boundary).getBytes(UTF_8);
+		m_buffer = new byte[Math.max(s_bufferSize, m_delimiter.length * 4)];
+		int last = m_delimiter.length - 1;
+		for (int i = 0; i < 256; i++)
+		{
+			m_skip[i] = m_delimiter.length;
+		}
+		for (int i = 0; i < last; i++)
+		{
+			m_skip[m_delimiter[i] & 0xFF] = last - i;
+		}
+		// The first delimiter is not preceded by a line break: pretend it is,
+		// so that the preamble is read like the contents of a part
+		m_buffer[0] = '\r';
+		m_buffer[1] = '\n';
+		m_limit = 2;
+	}
+
+	/**
+	 * Gets the boundary declared in a <code>Content-Type</code> header, such
+	 * as <code>multipart/form-data; boundary=----abc</code>
+	 * @param content_type The value of the header, possibly null
+	 * @return The boundary, or null if the header does not describe a
+	 * multipart body
+	 */
+	public static String getBoundary(String content_type)
+	{
+		if (content_type == null || !content_type.trim().toLowerCase().startsWith("multipart/"))
+		{
+			return null;
+		}
+		Map<String,String> params = parseParameters(content_type);
+		String boundary = params.get("boundary");
+		return boundary == null || boundary.isEmpty() ? null : boundary;
+	}
+
+	/**
+	 * Moves to the next part of the body. The rest of the current part is
+	 * skipped.
+	 * @return The next part, or null if there are no more parts
+	 * @throws IOException If the body cannot be read or is malformed
+	 */
+	public Part nextPart() throws IOException
+	{
+		if (m_done)
+		{
+			return null;
+		}
+		if (m_current == null)
+		{
+			// Skip the preamble
+			new Part(null).skipAll();
+		}
+		else
+		{
+			m_current.skipAll();
+		}
+		m_current = null;
+		// After a delimiter comes either "--" (the end) or a line break
+		if (!ensure(2))
+		{
+			throw new IOException("Malformed multipart body: unexpected end after boundary");
+		}
+		if (m_buffer[m_pos] == '-' && m_buffer[m_pos + 1] == '-')
+		{
+			// The epilogue that may follow is ignored
+			m_done = true;
+			return null;
+		}
+		// Ignore padding after the boundary
+		while (ensure(1) && (m_buffer[m_pos] == ' ' || m_buffer[m_pos] == '\t'))
+		{
+			m_pos++;
+		}
+		if (!ensure(2) || m_buffer[m_pos] != '\r' || m_buffer[m_pos + 1] != '\n')
+		{
+			throw new IOException("Malformed multipart body: expected line break after boundary");
+		}
+		m_pos += 2;
+		m_current = new Part(readHeaders());
+		return m_current;
+	}
+
+	/**
+	 * Reads the headers of a part, up to and including the empty line
+	 * that ends them
+	 * @return The headers, whose names are case-insensitive
+	 * @throws IOException If the headers cannot be read or are malformed
+	 */
+	protected Map<String,String> readHeaders() throws IOException
+	{
+		Map<String,String> headers = new TreeMap<String,String>(String.CASE_INSENSITIVE_ORDER);
+		int total = 0;
+		while (true)
+		{
+			// Find the end of the line
+			int end = -1;
+			while (true)
+			{
+				for (int i = m_pos; i + 1 < m_limit; i++)
+				{
+					if (m_buffer[i] == '\r' && m_buffer[i + 1] == '\n')
+					{
+						end = i;
+						break;
+					}
+				}
+				if (end >= 0)
+				{
+					break;
+				}
+				if (m_limit - m_pos >= m_buffer.length - 1 || !fill())
+				{
+					throw new IOException("Malformed multipart body: unterminated part headers");
+				}
+			}
+			int len = end - m_pos;
+			total += len + 2;
+			if (total > s_maxHeaderSize)
+			{
+				throw new IOException("Multipart headers are too large");
+			}
+			if (len == 0)
+			{
+				m_pos += 2;
+				return headers;
+			}
+			String line = new String(m_buffer, m_pos, len, UTF_8);
+			m_pos = end + 2;
+			int colon = line.indexOf(':');
+			if (colon > 0)
+			{
+				headers.put(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+			}
+		}
+	}
+
+	/**
+	 * Makes sure that a number of bytes are available in the buffer
+	 * @param n The number of bytes
+	 * @return true if they are, false if the stream ends before
+	 * @throws IOException If the stream cannot be read
+	 */
+	protected boolean ensure(int n) throws IOException
+	{
+		while (m_limit - m_pos < n)
+		{
+			if (!fill())
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reads more bytes into the buffer, moving the unread bytes to its
+	 * beginning first
+	 * @return true if bytes were read, false at the end of the stream
+	 * @throws IOException If the stream cannot be read
+	 */
+	protected boolean fill() throws IOException
+	{
+		if (m_eof)
+		{
+			return false;
+		}
+		if (m_pos > 0)
+		{
+			System.arraycopy(m_buffer, m_pos, m_buffer, 0, m_limit - m_pos);
+			m_limit -= m_pos;
+			m_pos = 0;
+		}
+		int read = m_in.read(m_buffer, m_limit, m_buffer.length - m_limit);
+		if (read < 0)
+		{
+			m_eof = true;
+			return false;
+		}
+		m_limit += read;
+		return true;
+	}
+
+	/**
+	 * Finds the next delimiter in the buffer
+	 * @return The position of the delimiter, or -1 if the buffer does not
+	 * contain it
+	 */
+	protected int findDelimiter()
+	{
+		int last = m_delimiter.length - 1;
+		int i = m_pos;
+		while (i + last < m_limit)
+		{
+			int j = last;
+			while (m_buffer[i + j] == m_delimiter[j])
+			{
+				if (j == 0)
+				{
+					return i;
+				}
+				j--;
+			}
+			i += m_skip[m_buffer[i + last] & 0xFF];
+		}
+		return -1;
+	}
+
+	/**
+	 * Parses the parameters of a header value, such as
+	 * <code>form-data; name="file"; filename="a.txt"</code>
+	 * @param value The value of the header
+	 * @return A map from the (lowercase) name of each parameter to its
+	 * unquoted value
+	 */
+	public static Map<String,String> parseParameters(String value)
+	{
+		Map<String,String> out = new TreeMap<String,String>();
+		int len = value.length();
+		int pos = value.indexOf(';');
+		while (pos >= 0 && pos < len)
+		{
+			pos++;
+			int equal = value.indexOf('=', pos);
+			if (equal < 0)
+			{
+				break;
+			}
+			String name = value.substring(pos, equal).trim().toLowerCase();
+			pos = equal + 1;
+			while (pos < len && value.charAt(pos) == ' ')
+			{
+				pos++;
+			}
+			StringBuilder sb = new StringBuilder();
+			if (pos < len && value.charAt(pos) == '"')
+			{
+				for (pos++; pos < len && value.charAt(pos) != '"'; pos++)
+				{
+					char c = value.charAt(pos);
+					if (c == '\\' && pos + 1 < len)
+					{
+						c = value.charAt(++pos);
+					}
+					sb.append(c);
+				}
+				pos = value.indexOf(';', pos);
+			}
+			else
+			{
+				int end = value.indexOf(';', pos);
+				sb.append((end < 0 ? value.substring(pos) : value.substring(pos, end)).trim());
+				pos = end;
+			}
+			out.put(name, sb.toString());
+		}
+		return out;
+	}
+
+	/**
+	 * A part of a multipart body
+	 */
+	public class Part
+	{
+		/**
+		 * The headers of the part
+		 */
+		protected final Map<String,String> m_headers;
+
+		/**
+		 * The parameters of the <code>Content-Disposition</code> header
+		 */
+		protected final Map<String,String> m_disposition;
+
+		/**
+		 * Whether the end of the part has been reached
+		 */
+		protected boolean m_ended = false;
+
+		/**
+		 * The stream giving the contents of the part
+		 */
+		protected final InputStream m_stream = new PartInputStream();
+
+		/**
+		 * Creates a new part
+		 * @param headers The headers of the part
+		 */
+		protected Part(Map<String,String> headers)
+		{
+			super();
+			if (headers == null)
+			{
+				m_headers = Collections.emptyMap();
+				m_disposition = Collections.emptyMap();
+			}
+			else
+			{
+				m_headers = Collections.unmodifiableMap(headers);
+				String cd = headers.get("Content-Disposition");
+				m_disposition = cd == null ? Collections.<String,String>emptyMap() : parseParameters(cd);
+			}
+		}
+
+		/**
+		 * Gets the headers of this part
+		 * @return The headers, whose names are case-insensitive
+		 */
+		public Map<String,String> getHeaders()
+		{
+			return m_headers;
+		}
+
+		/**
+		 * Gets the name of the form field this part holds
+		 * @return The name, or null if the part does not declare one
+		 */
+		public String getName()
+		{
+			return m_disposition.get("name");
+		}
+
+		/**
+		 * Gets the name of the file this part holds
+		 * @return The name, or null if the part is not a file
+		 */
+		public String getFileName()
+		{
+			return m_disposition.get("filename");
+		}
+
+		/**
+		 * Gets the content type of this part
+		 * @return The content type, or null if the part does not declare one
+		 */
+		public String getContentType()
+		{
+			return m_headers.get("Content-Type");
+		}
+
+		/**
+		 * Gets the contents of this part. The stream ends at the end of the
+		 * part, and becomes unusable once the next part is requested.
+		 * @return The stream
+		 */
+		public InputStream getInputStream()
+		{
+			return m_stream;
+		}
+
+		/**
+		 * Reads and discards the rest of this part
+		 * @throws IOException If the body cannot be read or is malformed
+		 */
+		protected void skipAll() throws IOException
+		{
+			while (!m_ended)
+			{
+				// readable() may move the bytes of the buffer: call it first
+				int n = readable();
+				m_pos += n;
+			}
+		}
+
+		/**
+		 * Gets the number of bytes of this part that can be read from the
+		 * buffer, filling it if necessary
+		 * @return The number of bytes, or 0 if the part has ended
+		 * @throws IOException If the body cannot be read or is malformed
+		 */
+		protected int readable() throws IOException
+		{
+			if (m_ended)
+			{
+				return 0;
+			}
+			while (true)
+			{
+				int delim = findDelimiter();
+				if (delim == m_pos)
+				{
+					m_pos += m_delimiter.length;
+					m_ended = true;
+					return 0;
+				}
+				if (delim >= 0)
+				{
+					return delim - m_pos;
+				}
+				// The last bytes of the buffer may be the start of a delimiter
+				int safe = m_limit - m_pos - (m_delimiter.length - 1);
+				if (safe > 0)
+				{
+					return safe;
+				}
+				if (!fill())
+				{
+					throw new IOException("Malformed multipart body: missing closing boundary");
+				}
+			}
+		}
+
+		/**
+		 * The stream giving the contents of a part
+		 */
+		protected class PartInputStream extends InputStream
+		{
+			@Override
+			public int read() throws IOException
+			{
+				if (readable() <= 0)
+				{
+					return -1;
+				}
+				return m_buffer[m_pos++] & 0xFF;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException
+			{
+				if (len == 0)
+				{
+					return 0;
+				}
+				int available = readable();
+				if (available <= 0)
+				{
+					return -1;
+				}
+				int n = Math.min(len, available);
+				System.arraycopy(m_buffer, m_pos, b, off, n);
+				m_pos += n;
+				return n;
+			}
+		}
+	}
+}
@@ -0,0 +1,810 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+/**
+ * The exchange handed to the callbacks by the {@link NioTransport}. It
+ * behaves like the exchanges of the Java HTTP server: the length given to
+ * {@link #sendResponseHeaders(int, long) sendResponseHeaders()} is the
+ * length of the body, 0 for a body of unknown length sent in chunks, or -1
+ * for no body at all, and the response is complete once its body stream,
+ * or the exchange itself, is closed.
+ * <p>
+ * What the callback writes is not sent by its own thread: the bytes are
+ * queued, and the event loop of the connection writes them when the
+ * socket can take them, after the responses to the requests received
+ * before on the same connection. A callback that writes faster than the
+ * client reads is made to wait once too many bytes are queued.
+ * @author Sylvain Hallé
+ */
+public class NioHttpExchange extends HttpExchange
+{
+	/**
+	 * The ways the body of a response is delimited
+	 */
+	protected static final int NO_BODY = 0;
+	protected static final int FIXED = 1;
+	protected static final int CHUNKED = 2;
+	protected static final int UNTIL_CLOSE = 3;
+
+	/**
+	 * The number of queued bytes above which a callback writing to the
+	 * response waits for the connection to catch up
+	 */
+	protected static final long s_highWatermark = 1024 * 1024;
+
+	/**
+	 * The size of the buffer into which small writes are gathered
+	 */
+	protected static final int s_tailSize = 8192;
+
+	/**
+	 * The charset of the status line and headers
+	 */
+	protected static final Charset s_headerCharset = Charset.forName("ISO-8859-1");
+
+	/**
+	 * The connection of this exchange
+	 */
+	protected final NioTransport.Connection m_connection;
+
+	/**
+	 * The request's method
+	 */
+	protected final String m_method;
+
+	/**
+	 * The request's URI
+	 */
+	protected final URI m_uri;
+
+	/**
+	 * The request's protocol
+	 */
+	protected final String m_protocol;
+
+	/**
+	 * The request's headers
+	 */
+	protected final Headers m_requestHeaders;
+
+	/**
+	 * The response's headers
+	 */
+	protected final Headers m_responseHeaders = new Headers();
+
+	/**
+	 * The attributes of this exchange
+	 */
+	protected final Map<String,Object> m_attributes = new HashMap<String,Object>();
+
+	/**
+	 * The stream from which the request's body is read
+	 */
+	protected InputStream m_requestBody;
+
+	/**
+	 * The stream to which the response's body is written
+	 */
+	protected final ResponseStream m_responseStream = new ResponseStream();
+
+	/**
+	 * The stream returned by {@link #getResponseBody()}, which is the
+	 * response stream unless replaced by {@link #setStreams(InputStream, OutputStream)}
+	 */
+	protected OutputStream m_responseBody = m_responseStream;
+
+	/**
+	 * The response code, or -1 if the headers have not been sent
+	 */
+	protected int m_responseCode = -1;
+
+	/**
+	 * The time at which the response's headers were sent, in milliseconds
+	 */
+	protected volatile long m_headersSent = 0;
+
+	/**
+	 * Whether the connection can be used for another request after this one
+	 */
+	protected volatile boolean m_keepAlive;
+
+	/**
+	 * The buffers of the response waiting to be taken by the connection,
+	 * guarded by this object's lock
+	 */
+	protected final ArrayDeque<ByteBuffer> m_chunks = new ArrayDeque<ByteBuffer>();
+
+	/**
+	 * The number of bytes in {@link #m_chunks}
+	 */
+	protected long m_queuedBytes = 0;
+
+	/**
+	 * Whether the whole response has been queued
+	 */
+	protected boolean m_finished = false;
+
+	/**
+	 * Whether the connection has been closed before the response was sent
+	 */
+	protected boolean m_aborted = false;
+
+	/**
+	 * Whether the server is done running the callbacks on this exchange
+	 */
+	protected volatile boolean m_handled = false;
+
+	/**
+	 * Creates an exchange
+	 * @param connection The connection on which the request was received
+	 * @param method The request's method
+	 * @param uri The request's URI
+	 * @param protocol The request's protocol
+	 * @param headers The request's headers
+	 * @param body The request's body
+	 */
+	public NioHttpExchange(NioTransport.Connection connection, String method, URI uri, String protocol, Headers headers, byte[] body)
+	{
+		super();
+		m_connection = connection;
+		m_method = method;
+		m_uri = uri;
+		m_protocol = protocol;
+		m_requestHeaders = headers;
+		m_requestBody = new ByteArrayInputStream(body);
+		if (protocol.compareTo("HTTP/1.0") == 0)
+		{
+			m_keepAlive = hasToken(headers.get("Connection"), "keep-alive");
+		}
+		else
+		{
+			m_keepAlive = !hasToken(headers.get("Connection"), "close");
+		}
+	}
+
+	@Override
+	public Headers getRequestHeaders()
+	{
+		return m_requestHeaders;
+	}
+
+	@Override
+	public Headers getResponseHeaders()
+	{
+		return m_responseHeaders;
+	}
+
+	@Override
+	public URI getRequestURI()
+	{
+		return m_uri;
+	}
+
+	@Override
+	public String getRequestMethod()
+	{
+		return m_method;
+	}
+
+	@Override
+	public HttpContext getHttpContext()
+	{
+		// There are no contexts: the server receives all the requests
+		return null;
+	}
+
+	@Override
+	public void close()
+	{
+		try
+		{
+			m_requestBody.close();
+			if (m_responseCode < 0)
+			{
+				abandon();
+				return;
+			}
+			m_responseBody.close();
+		}
+		catch (IOException e)
+		{
+			abandon();
+		}
+	}
+
+	/**
+	 * Gives up on a response that cannot be completed. Since the client
+	 * cannot tell where the response ends, the connection is closed.
+	 */
+	protected void abandon()
+	{
+		m_connection.closeLater();
+	}
+
+	@Override
+	public InputStream getRequestBody()
+	{
+		return m_requestBody;
+	}
+
+	@Override
+	public OutputStream getResponseBody()
+	{
+		return m_responseBody;
+	}
+
+	@Override
+	public void sendResponseHeaders(int code, long length) throws IOException
+	{
+		synchronized (this)
+		{
+			if (m_responseCode >= 0)
+			{
+				throw new IOException("Headers already sent");
+			}
+			m_responseCode = code;
+		}
+		m_headersSent = System.currentTimeMillis();
+		writeHead(code, length);
+	}
+
+	/**
+	 * Queues the status line and the headers of the response, and sets how
+	 * its body is delimited
+	 * @param code The response code
+	 * @param length The length given to {@link #sendResponseHeaders(int, long)}
+	 * @throws IOException If the connection is closed
+	 */
+	protected void writeHead(int code, long length) throws IOException
+	{
+		boolean head = m_method.compareTo("HEAD") == 0;
+		boolean http10 = m_protocol.compareTo("HTTP/1.0") == 0;
+		StringBuilder out = new StringBuilder(256);
+		out.append("HTTP/1.1 ").append(code).append(' ').append(getReasonPhrase(code)).append("\r\n");
+		int mode;
+		if (head || code < 200 || code == 204 || code == 304)
+		{
+			mode = NO_BODY;
+			if (head && length > 0)
+			{
+				out.append("Content-Length: ").append(length).append("\r\n");
+			}
+		}
+		else if (length > 0)
+		{
+			mode = FIXED;
+			out.append("Content-Length: ").append(length).append("\r\n");
+		}
+		else if (length == 0)
+		{
+			if (http10)
+			{
+				// HTTP/1.0 clients do not know chunks: the end of the
+				// connection marks the end of the body
+				mode = UNTIL_CLOSE;
+				m_keepAlive = false;
+			}
+			else
+			{
+				mode = CHUNKED;
+				out.append("Transfer-Encoding: chunked\r\n");
+			}
+		}
+		else
+		{
+			mode = NO_BODY;
+			out.append("Content-Length: 0\r\n");
+		}
+		if (hasToken(m_responseHeaders.get("Connection"), "close"))
+		{
+			m_keepAlive = false;
+		}
+		for (Map.Entry<String,List<String>> e : m_responseHeaders.entrySet())
+		{
+			String name = e.getKey();
+			if (name.equalsIgnoreCase("Content-Length") || name.equalsIgnoreCase("Transfer-Encoding") || name.equalsIgnoreCase("Connection"))
+			{
+				// Set by the exchange itself
+				continue;
+			}
+			for (String value : e.getValue())
+			{
+				out.append(name).append(": ").append(value).append("\r\n");
+			}
+		}
+		if (!m_keepAlive)
+		{
+			out.append("Connection: close\r\n");
+		}
+		else if (http10)
+		{
+			out.append("Connection: keep-alive\r\n");
+		}
+		out.append("\r\n");
+		m_responseStream.start(mode, length);
+		offer(ByteBuffer.wrap(out.toString().getBytes(s_headerCharset)), false);
+		if (mode == NO_BODY)
+		{
+			m_responseStream.close();
+		}
+	}
+
+	@Override
+	public InetSocketAddress getRemoteAddress()
+	{
+		return m_connection.getRemoteAddress();
+	}
+
+	@Override
+	public int getResponseCode()
+	{
+		return m_responseCode;
+	}
+
+	@Override
+	public InetSocketAddress getLocalAddress()
+	{
+		return m_connection.getLocalAddress();
+	}
+
+	@Override
+	public String getProtocol()
+	{
+		return m_protocol;
+	}
+
+	@Override
+	public Object getAttribute(String name)
+	{
+		synchronized (m_attributes)
+		{
+			return m_attributes.get(name);
+		}
+	}
+
+	@Override
+	public void setAttribute(String name, Object value)
+	{
+		synchronized (m_attributes)
+		{
+			if (value == null)
+			{
+				m_attributes.remove(name);
+			}
+			else
+			{
+				m_attributes.put(name, value);
+			}
+		}
+	}
+
+	@Override
+	public void setStreams(InputStream i, OutputStream o)
+	{
+		if (i != null)
+		{
+			m_requestBody = i;
+		}
+		if (o != null)
+		{
+			m_responseBody = o;
+		}
+	}
+
+	@Override
+	public HttpPrincipal getPrincipal()
+	{
+		return null;
+	}
+
+	/**
+	 * Determines whether the connection can be used for another request
+	 * once the response to this one is sent
+	 * @return true if the connection can be kept open
+	 */
+	public boolean isKeepAlive()
+	{
+		return m_keepAlive;
+	}
+
+	/**
+	 * Gets the time at which the response's headers were sent
+	 * @return The time, in milliseconds, or 0 if they have not been sent
+	 */
+	public long getHeadersSentTime()
+	{
+		return m_headersSent;
+	}
+
+	/**
+	 * Queues a buffer of the response
+	 * @param b The buffer
+	 * @param wait Whether to wait if too many bytes are already queued
+	 * @throws IOException If the connection is closed
+	 */
+	protected void offer(ByteBuffer b, boolean wait) throws IOException
+	{
+		synchronized (this)
+		{
+			if (m_aborted)
+			{
+				throw new IOException("Connection closed");
+			}
+			m_chunks.add(b);
+			m_queuedBytes += b.remaining();
+		}
+		m_connection.outputReady();
+		// The event loop itself must never wait for its own connection
+		if (!wait || m_connection.inEventLoop())
+		{
+			return;
+		}
+		synchronized (this)
+		{
+			while (m_queuedBytes > s_highWatermark && !m_aborted)
+			{
+				try
+				{
+					wait();
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+			}
+			if (m_aborted)
+			{
+				throw new IOException("Connection closed");
+			}
+		}
+	}
+
+	/**
+	 * Marks the whole response as queued
+	 */
+	protected void finish()
+	{
+		synchronized (this)
+		{
+			m_finished = true;
+		}
+		m_connection.outputReady();
+	}
+
+	/**
+	 * Takes the next buffer of the response. This is called by the event
+	 * loop of the connection.
+	 * @return The buffer, or null if none is queued
+	 */
+	protected ByteBuffer poll()
+	{
+		synchronized (this)
+		{
+			ByteBuffer b = m_chunks.poll();
+			if (b != null)
+			{
+				m_queuedBytes -= b.remaining();
+				notifyAll();
+			}
+			return b;
+		}
+	}
+
+	/**
+	 * Determines whether the whole response has been taken by the
+	 * connection
+	 * @return true if the response is complete
+	 */
+	protected boolean isDone()
+	{
+		synchronized (this)
+		{
+			return m_finished && m_chunks.isEmpty();
+		}
+	}
+
+	/**
+	 * Discards the response because the connection is closed. A callback
+	 * still writing to the response gets an exception.
+	 */
+	protected void abort()
+	{
+		synchronized (this)
+		{
+			m_aborted = true;
+			m_chunks.clear();
+			m_queuedBytes = 0;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Determines whether the connection or the stream was closed before
+	 * the response was sent
+	 * @return true if the response will never be sent
+	 */
+	protected synchronized boolean isAborted()
+	{
+		return m_aborted;
+	}
+
+	/**
+	 * Determines whether the server is done running the callbacks on this
+	 * exchange. An asynchronous callback may still be producing the
+	 * response.
+	 * @return true if the callbacks have returned
+	 */
+	protected boolean isHandled()
+	{
+		return m_handled;
+	}
+
+	/**
+	 * Determines whether a comma-separated list of header values contains
+	 * a token, ignoring case
+	 * @param values The values, possibly null
+	 * @param token The token
+	 * @return true if the token is found
+	 */
+	protected static boolean hasToken(List<String> values, String token)
+	{
+		if (values == null)
+		{
+			return false;
+		}
+		for (String value : values)
+		{
+			for (String part : value.split(","))
+			{
+				if (part.trim().equalsIgnoreCase(token))
+				{
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the reason phrase of a status code
+	 * @param code The code
+	 * @return The phrase, or an empty string for an unknown code
+	 */
+	protected static String getReasonPhrase(int code)
+	{
+		switch (code)
+		{
+		case 100: return "Continue";
+		case 101: return "Switching Protocols";
+		case 200: return "OK";
+		case 201: return "Created";
+		case 202: return "Accepted";
+		case 204: return "No Content";
+		case 206: return "Partial Content";
+		case 301: return "Moved Permanently";
+		case 302: return "Found";
+		case 303: return "See Other";
+		case 304: return "Not Modified";
+		case 307: return "Temporary Redirect";
+		case 308: return "Permanent Redirect";
+		case 400: return "Bad Request";
+		case 401: return "Unauthorized";
+		case 403: return "Forbidden";
+		case 404: return "Not Found";
+		case 405: return "Method Not Allowed";
+		case 408: return "Request Timeout";
+		case 409: return "Conflict";
+		case 410: return "Gone";
+		case 411: return "Length Required";
+		case 412: return "Precondition Failed";
+		case 413: return "Payload Too Large";
+		case 414: return "URI Too Long";
+		case 415: return "Unsupported Media Type";
+		case 416: return "Range Not Satisfiable";
+		case 417: return "Expectation Failed";
+		case 426: return "Upgrade Required";
+		case 429: return "Too Many Requests";
+		case 431: return "Request Header Fields Too Large";
+		case 500: return "Internal Server Error";
+		case 501: return "Not Implemented";
+		case 502: return "Bad Gateway";
+		case 503: return "Service Unavailable";
+		case 504: return "Gateway Timeout";
+		case 505: return "HTTP Version Not Supported";
+		default: return "";
+		}
+	}
+
+	/**
+	 * The stream to which the body of the response is written. Small
+	 * writes are gathered into a buffer, which is queued when full, when
+	 * the stream is flushed, or when it is closed; in chunked mode, each
+	 * queued buffer becomes a chunk.
+	 */
+	protected class ResponseStream extends OutputStream
+	{
+		/**
+		 * How the body is delimited, or -1 if the headers are not sent
+		 */
+		protected int m_mode = -1;
+
+		/**
+		 * The number of bytes the body may still take, in fixed mode
+		 */
+		protected long m_remaining = 0;
+
+		/**
+		 * The buffer gathering small writes, or null
+		 */
+		protected ByteBuffer m_tail = null;
+
+		/**
+		 * Whether the stream is closed
+		 */
+		protected boolean m_closed = false;
+
+		/**
+		 * Sets how the body is delimited, once the headers are sent
+		 * @param mode The mode
+		 * @param length The length of the body, in fixed mode
+		 */
+		protected synchronized void start(int mode, long length)
+		{
+			m_mode = mode;
+			m_remaining = length;
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) throws IOException
+		{
+			if (m_closed)
+			{
+				throw new IOException("Stream closed");
+			}
+			if (m_mode < 0)
+			{
+				throw new IOException("Response headers not sent yet");
+			}
+			if (m_mode == NO_BODY || len == 0)
+			{
+				return;
+			}
+			if (m_mode == FIXED)
+			{
+				if (len > m_remaining)
+				{
+					throw new IOException("Too many bytes to write to stream");
+				}
+				m_remaining -= len;
+			}
+			if (m_tail != null && len <= m_tail.remaining())
+			{
+				m_tail.put(b, off, len);
+				return;
+			}
+			flushTail();
+			if (len < s_tailSize / 2)
+			{
+				m_tail = ByteBuffer.allocate(s_tailSize);
+				m_tail.put(b, off, len);
+				return;
+			}
+			byte[] copy = new byte[len];
+			System.arraycopy(b, off, copy, 0, len);
+			queue(ByteBuffer.wrap(copy));
+		}
+
+		@Override
+		public synchronized void flush() throws IOException
+		{
+			if (!m_closed)
+			{
+				flushTail();
+			}
+		}
+
+		@Override
+		public synchronized void close() throws IOException
+		{
+			if (m_closed || m_mode < 0)
+			{
+				return;
+			}
+			m_closed = true;
+			try
+			{
+				flushTail();
+				if (m_mode == CHUNKED)
+				{
+					offer(ByteBuffer.wrap(new byte[] {'0', '\r', '\n', '\r', '\n'}), false);
+				}
+				else if (m_mode == FIXED && m_remaining > 0)
+				{
+					// The client expects more bytes than it will get
+					m_keepAlive = false;
+					throw new IOException("Insufficient bytes written to stream");
+				}
+			}
+			finally
+			{
+				finish();
+			}
+		}
+
+		/**
+		 * Queues the bytes gathered so far
+		 * @throws IOException If the connection is closed
+		 */
+		protected void flushTail() throws IOException
+		{
+			if (m_tail != null && m_tail.position() > 0)
+			{
+				m_tail.flip();
+				ByteBuffer b = m_tail;
+				m_tail = null;
+				queue(b);
+			}
+		}
+
+		/**
+		 * Queues a buffer of the body, framed as a chunk if needed
+		 * @param b The buffer
+		 * @throws IOException If the connection is closed
+		 */
+		protected void queue(ByteBuffer b) throws IOException
+		{
+			if (m_mode == CHUNKED)
+			{
+				offer(ByteBuffer.wrap((Integer.toHexString(b.remaining()) + "\r\n").getBytes(s_headerCharset)), false);
+				offer(b, false);
+				offer(ByteBuffer.wrap(new byte[] {'\r', '\n'}), true);
+			}
+			else
+			{
+				offer(b, true);
+			}
+		}
+	}
+}
@@ -0,0 +1,1413 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A non-blocking transport built directly on selectors, as an alternative
+ * to the HTTP server of the JDK.
+ * <ul>
+ * <li>Connections are spread over a number of event loops, one per
+ * processor by default; each loop is a thread that waits on a selector
+ * for its connections to become readable or writable.</li>
+ * <li>Requests are read into direct buffers taken from a
+ * {@link BufferPool}, and parsed in place by an {@link HttpRequestParser};
+ * a connection gives its buffer back to the pool whenever it holds no
+ * unread bytes, so that idle connections take no buffer at all.</li>
+ * <li>Persistent connections and pipelining are supported: several
+ * requests of a connection may be processed at the same time, and their
+ * responses are written back in the order the requests were received.</li>
+ * <li>The buffers of the responses are written with gathering writes, so
+ * that the headers and the body of one or more responses usually go out
+ * in a single system call.</li>
+ * <li>Clients may also speak cleartext HTTP/2, either with prior knowledge
+ * or by asking to upgrade an HTTP/1.1 connection; the streams of such a
+ * connection are handled by an {@link Http2Session}, and run concurrently
+ * whatever the order of their responses.</li>
+ * <li>A request to the path of a {@link WebSocketEndpoint} may switch its
+ * connection to the WebSocket protocol; the frames of the
+ * {@link WebSocket} are then read and written by the same loop.</li>
+ * </ul>
+ * The callbacks never run on an event loop: each request is handed to the
+ * server's {@link WorkerPool}, or to a pool of the transport if the
+ * server has none. Unlike the Java HTTP server, all the settings of the
+ * connections of the {@link Server} apply to each server separately, and
+ * connections are reported to its {@link ConnectionTracker} as they are
+ * opened and closed, so that the counts are exact.
+ * @author Sylvain Hallé
+ */
+public class NioTransport implements Transport
+{
+	/**
+	 * The size of the buffers into which requests are read; a line of the
+	 * request line or headers must fit in a buffer
+	 */
+	protected static final int s_bufferSize = 16 * 1024;
+
+	/**
+	 * The maximum number of requests of a connection being processed at
+	 * the same time; the connection is not read any further until some of
+	 * them are answered
+	 */
+	protected static final int s_maxPipelined = 16;
+
+	/**
+	 * The number of bytes of responses taken by a connection before it
+	 * waits for the socket to accept them
+	 */
+	protected static final long s_lowWatermark = 256 * 1024;
+
+	/**
+	 * The maximum number of buffers passed to a single gathering write
+	 */
+	protected static final int s_maxGather = 64;
+
+	/**
+	 * The response sent to a client expecting to be told to go on
+	 */
+	protected static final byte[] s_continue = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(NioHttpExchange.s_headerCharset);
+
+	/**
+	 * The number of event loops
+	 */
+	protected final int m_loopCount;
+
+	/**
+	 * The server using this transport
+	 */
+	protected Server m_server = null;
+
+	/**
+	 * The channel accepting the connections
+	 */
+	protected ServerSocketChannel m_channel = null;
+
+	/**
+	 * The event loops
+	 */
+	protected EventLoop[] m_loops = null;
+
+	/**
+	 * The index of the loop receiving the next connection; only used by the
+	 * loop that accepts the connections
+	 */
+	protected int m_nextLoop = 0;
+
+	/**
+	 * The executor running the callbacks
+	 */
+	protected Executor m_executor = null;
+
+	/**
+	 * The pool created by this transport when the server has none
+	 */
+	protected WorkerPool m_ownPool = null;
+
+	/**
+	 * The pool of buffers into which requests are read
+	 */
+	protected BufferPool m_buffers = null;
+
+	/**
+	 * The settings of the connections, copied from the server when the
+	 * transport is started
+	 */
+	protected long m_idleTimeout;
+	protected long m_requestTimeout;
+	protected long m_responseTimeout;
+	protected int m_maxConnections;
+	protected int m_maxRequestHeaders;
+	protected boolean m_noDelay;
+
+	/**
+	 * The interval at which the loops look for connections that have timed
+	 * out, in milliseconds
+	 */
+	protected long m_tick;
+
+	/**
+	 * The number of open connections
+	 */
+	protected final AtomicInteger m_openCount = new AtomicInteger();
+
+	/**
+	 * The number of requests received and not yet fully answered
+	 */
+	protected final AtomicInteger m_inProgress = new AtomicInteger();
+
+	/**
+	 * Whether clients may switch to HTTP/2
+	 */
+	protected boolean m_http2 = true;
+
+	/**
+	 * Creates a transport with one event loop per available processor
+	 */
+	public NioTransport()
+	{
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Creates a transport
+	 * @param loops The number of event loops
+	 */
+	public NioTransport(int loops)
+	{
+		super();
+		m_loopCount = Math.max(1, loops);
+	}
+
+	@Override
+	public void start(Server server) throws IOException
+	{
+		m_server = server;
+		m_idleTimeout = server.getIdleTimeout() > 0 ? server.getIdleTimeout() : Server.s_defaultIdleTimeout;
+		m_requestTimeout = server.getRequestTimeout();
+		m_responseTimeout = server.getResponseTimeout();
+		m_maxConnections = server.getMaxConnections();
+		m_maxRequestHeaders = server.getMaxRequestHeaders() > 0 ? server.getMaxRequestHeaders() : HttpRequestParser.DEFAULT_MAX_HEADERS;
+		m_noDelay = server.isNoDelay();
+		long shortest = m_idleTimeout;
+		if (m_requestTimeout > 0)
+		{
+			shortest = Math.min(shortest, m_requestTimeout);
+		}
+		if (m_responseTimeout > 0)
+		{
+			shortest = Math.min(shortest, m_responseTimeout);
+		}
+		m_tick = Math.max(10, Math.min(1000, shortest / 4));
+		m_buffers = new BufferPool(s_bufferSize, 64 * m_loopCount);
+		m_executor = server.getWorkerPool();
+		if (m_executor == null)
+		{
+			m_ownPool = WorkerPool.create(WorkerPool.Mode.FIXED);
+			m_executor = m_ownPool;
+		}
+		// Connections are reported as they are opened and closed
+		server.getConnections().setIdleTimeout(0);
+		m_channel = ServerSocketChannel.open();
+		m_channel.socket().setReuseAddress(true);
+		m_channel.bind(new InetSocketAddress(server.getServerPort()), server.getBacklog());
+		m_channel.configureBlocking(false);
+		m_loops = new EventLoop[m_loopCount];
+		for (int i = 0; i < m_loopCount; i++)
+		{
+			m_loops[i] = new EventLoop(i);
+		}
+		m_channel.register(m_loops[0].m_selector, SelectionKey.OP_ACCEPT);
+		for (EventLoop loop : m_loops)
+		{
+			loop.m_thread.start();
+		}
+	}
+
+	@Override
+	public void stop(int delay)
+	{
+		if (m_loops == null)
+		{
+			return;
+		}
+		try
+		{
+			m_channel.close();
+		}
+		catch (IOException e)
+		{
+			// Nothing else to do
+		}
+		long deadline = System.currentTimeMillis() + delay * 1000L;
+		while (m_inProgress.get() > 0 && System.currentTimeMillis() < deadline)
+		{
+			try
+			{
+				Thread.sleep(50);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		for (EventLoop loop : m_loops)
+		{
+			loop.shutdown();
+		}
+		for (EventLoop loop : m_loops)
+		{
+			try
+			{
+				loop.m_thread.join(1000);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+		m_loops = null;
+		if (m_ownPool != null)
+		{
+			m_ownPool.shutdown(0);
+			m_ownPool = null;
+		}
+	}
+
+	@Override
+	public InetSocketAddress getAddress()
+	{
+		try
+		{
+			return m_channel == null || !m_channel.isOpen() ? null : (InetSocketAddress) m_channel.getLocalAddress();
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Sets whether clients may speak HTTP/2 on the connections of this
+	 * transport. When disabled, the HTTP/2 preface is rejected as a
+	 * malformed request, and requests to upgrade are answered in HTTP/1.1.
+	 * This must be called before the transport is started.
+	 * @param b true to accept HTTP/2 (the default), false otherwise
+	 */
+	public void setHttp2(boolean b)
+	{
+		m_http2 = b;
+	}
+
+	/**
+	 * Determines whether clients may speak HTTP/2 on the connections of
+	 * this transport
+	 * @return true if HTTP/2 is accepted
+	 */
+	public boolean isHttp2()
+	{
+		return m_http2;
+	}
+
+	/**
+	 * Gets the number of event loops of this transport
+	 * @return The number of loops
+	 */
+	public int getLoopCount()
+	{
+		return m_loopCount;
+	}
+
+	/**
+	 * Gets the pool of buffers into which requests are read
+	 * @return The pool, or null if the transport is not started
+	 */
+	public BufferPool getBufferPool()
+	{
+		return m_buffers;
+	}
+
+	/**
+	 * Accepts the pending connections, and hands each of them to an event
+	 * loop in turn
+	 */
+	protected void accept()
+	{
+		while (true)
+		{
+			SocketChannel sc;
+			try
+			{
+				sc = m_channel.accept();
+			}
+			catch (IOException e)
+			{
+				// Typically too many open files: try again on the next round
+				return;
+			}
+			if (sc == null)
+			{
+				return;
+			}
+			try
+			{
+				if (m_maxConnections > 0 && m_openCount.get() >= m_maxConnections)
+				{
+					sc.close();
+					continue;
+				}
+				sc.configureBlocking(false);
+				sc.setOption(StandardSocketOptions.TCP_NODELAY, m_noDelay);
+				m_openCount.incrementAndGet();
+				EventLoop loop = m_loops[m_nextLoop];
+				m_nextLoop = (m_nextLoop + 1) % m_loops.length;
+				final Connection c = new Connection(loop, sc);
+				loop.execute(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						c.register();
+					}
+				});
+			}
+			catch (IOException e)
+			{
+				try
+				{
+					sc.close();
+				}
+				catch (IOException ex)
+				{
+					// Nothing else to do
+				}
+			}
+		}
+	}
+
+	/**
+	 * An event loop, which waits on a selector for its connections to be
+	 * ready, and runs the tasks handed to it by other threads
+	 */
+	protected class EventLoop implements Runnable
+	{
+		/**
+		 * The selector of this loop
+		 */
+		protected final Selector m_selector;
+
+		/**
+		 * The thread running this loop
+		 */
+		protected final Thread m_thread;
+
+		/**
+		 * The tasks handed to this loop by other threads
+		 */
+		protected final ConcurrentLinkedQueue<Runnable> m_tasks = new ConcurrentLinkedQueue<Runnable>();
+
+		/**
+		 * The connections of this loop
+		 */
+		protected final Set<Connection> m_connections = new HashSet<Connection>();
+
+		/**
+		 * Whether the loop must stop
+		 */
+		protected volatile boolean m_stopping = false;
+
+		/**
+		 * Creates an event loop
+		 * @param index The number of the loop
+		 * @throws IOException If the selector cannot be opened
+		 */
+		public EventLoop(int index) throws IOException
+		{
+			super();
+			m_selector = Selector.open();
+			m_thread = new Thread(this, "jerrydog-nio-" + m_server.getServerPort() + "-" + index);
+		}
+
+		/**
+		 * Runs a task on this loop
+		 * @param task The task
+		 */
+		public void execute(Runnable task)
+		{
+			m_tasks.add(task);
+			if (Thread.currentThread() != m_thread)
+			{
+				m_selector.wakeup();
+			}
+		}
+
+		/**
+		 * Stops this loop and closes its connections
+		 */
+		public void shutdown()
+		{
+			m_stopping = true;
+			m_selector.wakeup();
+		}
+
+		@Override
+		public void run()
+		{
+			long last_check = System.currentTimeMillis();
+			while (!m_stopping)
+			{
+				try
+				{
+					m_selector.select(m_tick);
+				}
+				catch (IOException e)
+				{
+					break;
+				}
+				Iterator<SelectionKey> it = m_selector.selectedKeys().iterator();
+				while (it.hasNext())
+				{
+					SelectionKey key = it.next();
+					it.remove();
+					process(key);
+				}
+				Runnable task;
+				while ((task = m_tasks.poll()) != null)
+				{
+					task.run();
+				}
+				long now = System.currentTimeMillis();
+				if (now - last_check >= m_tick)
+				{
+					last_check = now;
+					for (Connection c : new ArrayList<Connection>(m_connections))
+					{
+						c.checkTimeouts(now);
+					}
+				}
+			}
+			for (Connection c : new ArrayList<Connection>(m_connections))
+			{
+				c.close();
+			}
+			try
+			{
+				m_selector.close();
+			}
+			catch (IOException e)
+			{
+				// Nothing else to do
+			}
+		}
+
+		/**
+		 * Processes a key selected by the selector
+		 * @param key The key
+		 */
+		protected void process(SelectionKey key)
+		{
+			Connection c = (Connection) key.attachment();
+			try
+			{
+				if (!key.isValid())
+				{
+					return;
+				}
+				if (key.isAcceptable())
+				{
+					accept();
+					return;
+				}
+				if (key.isReadable())
+				{
+					c.read();
+				}
+				if (key.isValid() && key.isWritable())
+				{
+					c.pump();
+				}
+			}
+			catch (CancelledKeyException e)
+			{
+				if (c != null)
+				{
+					c.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * A connection with a client. All the methods of a connection run on
+	 * its event loop, except {@link #outputReady()} and
+	 * {@link #closeLater()}, which may be called by the exchanges from any
+	 * thread.
+	 */
+	protected class Connection
+	{
+		/**
+		 * The loop of this connection
+		 */
+		protected final EventLoop m_loop;
+
+		/**
+		 * The channel of this connection
+		 */
+		protected final SocketChannel m_channel;
+
+		/**
+		 * The addresses of both ends of the connection
+		 */
+		protected final InetSocketAddress m_remote;
+		protected final InetSocketAddress m_local;
+
+		/**
+		 * The key of the channel in the loop's selector
+		 */
+		protected SelectionKey m_key = null;
+
+		/**
+		 * The buffer holding the bytes received and not yet parsed, in write
+		 * mode, or null if there are none
+		 */
+		protected ByteBuffer m_in = null;
+
+		/**
+		 * The parser of the requests
+		 */
+		protected final HttpRequestParser m_parser;
+
+		/**
+		 * The exchanges whose response is not fully taken, in the order
+		 * their requests were received
+		 */
+		protected final ArrayDeque<NioHttpExchange> m_exchanges = new ArrayDeque<NioHttpExchange>();
+
+		/**
+		 * The buffers waiting to be written to the socket
+		 */
+		protected final ArrayDeque<ByteBuffer> m_out = new ArrayDeque<ByteBuffer>();
+
+		/**
+		 * The number of bytes in {@link #m_out}
+		 */
+		protected long m_outBytes = 0;
+
+		/**
+		 * The array passed to gathering writes
+		 */
+		protected final ByteBuffer[] m_gather = new ByteBuffer[s_maxGather];
+
+		/**
+		 * A response to write once all the exchanges are answered, after
+		 * which the connection is closed
+		 */
+		protected ByteBuffer m_lastResponse = null;
+
+		/**
+		 * The last time bytes were read or written
+		 */
+		protected long m_lastActivity;
+
+		/**
+		 * The time at which the first bytes of the current request were
+		 * received, or 0 if no request is being received
+		 */
+		protected long m_requestStart = 0;
+
+		/**
+		 * Whether no more requests are read, the connection being closed
+		 * once the pending responses are written
+		 */
+		protected boolean m_closing = false;
+
+		/**
+		 * Whether the connection is closed
+		 */
+		protected volatile boolean m_closed = false;
+
+		/**
+		 * Whether a call to {@link #pump()} is already scheduled on the loop
+		 */
+		protected final AtomicBoolean m_pumpScheduled = new AtomicBoolean(false);
+
+		/**
+		 * The HTTP/2 session of this connection, or null if it speaks
+		 * HTTP/1.x
+		 */
+		protected Http2Session m_h2 = null;
+
+		/**
+		 * The WebSocket opened on this connection, or null if it speaks
+		 * HTTP
+		 */
+		protected WebSocket m_ws = null;
+
+		/**
+		 * The number of HTTP/1.x requests received on this connection
+		 */
+		protected int m_requestCount = 0;
+
+		/**
+		 * Creates a connection
+		 * @param loop The loop of this connection
+		 * @param channel The channel of this connection
+		 * @throws IOException If the addresses of the channel cannot be read
+		 */
+		public Connection(EventLoop loop, SocketChannel channel) throws IOException
+		{
+			super();
+			m_loop = loop;
+			m_channel = channel;
+			m_remote = (InetSocketAddress) channel.getRemoteAddress();
+			m_local = (InetSocketAddress) channel.getLocalAddress();
+			m_parser = new HttpRequestParser(HttpRequestParser.DEFAULT_MAX_HEADER_SIZE, m_maxRequestHeaders, RequestBody.DEFAULT_MAX_SIZE);
+			m_lastActivity = System.currentTimeMillis();
+		}
+
+		/**
+		 * Gets the address of the client
+		 * @return The address
+		 */
+		public InetSocketAddress getRemoteAddress()
+		{
+			return m_remote;
+		}
+
+		/**
+		 * Gets the local address of the connection
+		 * @return The address
+		 */
+		public InetSocketAddress getLocalAddress()
+		{
+			return m_local;
+		}
+
+		/**
+		 * Gets the executor running the callbacks
+		 * @return The executor
+		 */
+		protected Executor getExecutor()
+		{
+			return m_executor;
+		}
+
+		/**
+		 * Registers the connection with the selector of its loop
+		 */
+		protected void register()
+		{
+			try
+			{
+				m_key = m_channel.register(m_loop.m_selector, SelectionKey.OP_READ, this);
+			}
+			catch (IOException e)
+			{
+				m_closed = true;
+				m_openCount.decrementAndGet();
+				try
+				{
+					m_channel.close();
+				}
+				catch (IOException ex)
+				{
+					// Nothing else to do
+				}
+				return;
+			}
+			m_loop.m_connections.add(this);
+			m_server.getConnections().opened(m_remote);
+		}
+
+		/**
+		 * Determines whether the current thread is the event loop of this
+		 * connection
+		 * @return true if it is
+		 */
+		protected boolean inEventLoop()
+		{
+			return Thread.currentThread() == m_loop.m_thread;
+		}
+
+		/**
+		 * Tells the connection that an exchange has queued bytes to write.
+		 * This can be called from any thread.
+		 */
+		protected void outputReady()
+		{
+			if (!m_closed && m_pumpScheduled.compareAndSet(false, true))
+			{
+				m_loop.execute(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						m_pumpScheduled.set(false);
+						pump();
+					}
+				});
+			}
+		}
+
+		/**
+		 * Closes the connection from any thread
+		 */
+		protected void closeLater()
+		{
+			m_loop.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					close();
+				}
+			});
+		}
+
+		/**
+		 * Reads the bytes available on the channel, and parses the requests
+		 * they contain
+		 */
+		protected void read()
+		{
+			if (m_in == null)
+			{
+				m_in = m_buffers.acquire();
+			}
+			int n;
+			try
+			{
+				n = m_channel.read(m_in);
+			}
+			catch (IOException e)
+			{
+				close();
+				return;
+			}
+			if (n < 0)
+			{
+				// The client will send nothing more; answer what it has sent
+				m_closing = true;
+				if (!hasPendingResponses())
+				{
+					close();
+				}
+				else
+				{
+					updateInterest();
+				}
+				return;
+			}
+			if (n > 0)
+			{
+				m_lastActivity = System.currentTimeMillis();
+				if (m_requestStart == 0)
+				{
+					m_requestStart = m_lastActivity;
+				}
+				parse();
+			}
+		}
+
+		/**
+		 * Parses the requests in the input buffer, and dispatches each of
+		 * them to the executor
+		 */
+		protected void parse()
+		{
+			if (m_in == null)
+			{
+				return;
+			}
+			m_in.flip();
+			if (m_h2 == null && m_http2 && m_requestCount == 0 && !m_parser.isStarted() && m_in.hasRemaining())
+			{
+				// A client with prior knowledge starts with the HTTP/2 preface
+				int match = Http2Session.matchPreface(m_in);
+				if (match == 0)
+				{
+					m_in.compact();
+					updateInterest();
+					return;
+				}
+				if (match > 0)
+				{
+					m_h2 = new Http2Session(this);
+				}
+			}
+			boolean failed = false;
+			boolean starved = false;
+			try
+			{
+				if (m_h2 != null)
+				{
+					m_h2.read(m_in);
+				}
+				else if (m_ws != null)
+				{
+					m_ws.read(m_in);
+				}
+				while (m_h2 == null && m_ws == null && !m_closing && !m_closed && m_exchanges.size() < s_maxPipelined)
+				{
+					if (!m_parser.parse(m_in))
+					{
+						starved = true;
+						if (m_parser.takeExpectContinue() && m_exchanges.isEmpty())
+						{
+							queue(ByteBuffer.wrap(s_continue));
+							write();
+						}
+						break;
+					}
+					m_requestCount++;
+					if (m_http2 && m_exchanges.isEmpty() && m_parser.getProtocol().compareTo("HTTP/1.1") == 0
+							&& Http2Session.isUpgrade(m_parser.getHeaders()))
+					{
+						// What follows the request is already in HTTP/2
+						m_h2 = Http2Session.upgrade(this, m_parser.getMethod(), parseTarget(), m_parser.getHeaders(), m_parser.getBody());
+						m_parser.reset();
+						m_requestStart = 0;
+						m_h2.read(m_in);
+						break;
+					}
+					if (WebSocket.isUpgrade(m_parser.getHeaders()))
+					{
+						URI target = parseTarget();
+						WebSocketEndpoint endpoint = m_server.getWebSocketEndpoint(target.getPath());
+						if (endpoint != null)
+						{
+							if (!m_exchanges.isEmpty())
+							{
+								throw new HttpException(CallbackResponse.HTTP_BAD_REQUEST, "A WebSocket cannot be opened by a pipelined request");
+							}
+							// What follows the request is in frames
+							m_ws = WebSocket.upgrade(this, endpoint, m_parser.getMethod(), m_parser.getProtocol(), target, m_parser.getHeaders());
+							m_parser.reset();
+							m_requestStart = 0;
+							m_ws.read(m_in);
+							break;
+						}
+					}
+					dispatch(newExchange());
+					m_parser.reset();
+					m_requestStart = m_in.hasRemaining() ? m_lastActivity : 0;
+				}
+			}
+			catch (HttpException e)
+			{
+				fail(e);
+				failed = true;
+			}
+			if (m_closed)
+			{
+				return;
+			}
+			if (failed)
+			{
+				// What follows the malformed request is never read
+				m_in.position(m_in.limit());
+			}
+			if (m_in.hasRemaining())
+			{
+				m_in.compact();
+				if (starved && !m_in.hasRemaining())
+				{
+					// A line longer than the buffer; the parser bounds its length
+					m_in = grow(m_in);
+				}
+			}
+			else
+			{
+				m_buffers.release(m_in);
+				m_in = null;
+			}
+			if (failed || m_h2 != null || m_ws != null)
+			{
+				pump();
+			}
+			else
+			{
+				updateInterest();
+			}
+		}
+
+		/**
+		 * Replaces a full input buffer by one twice as large. The larger
+		 * buffer is not taken from the pool, and is dropped once emptied.
+		 * @param b The buffer, in write mode
+		 * @return The new buffer, in write mode
+		 */
+		protected ByteBuffer grow(ByteBuffer b)
+		{
+			ByteBuffer bigger = ByteBuffer.allocate(b.capacity() * 2);
+			b.flip();
+			bigger.put(b);
+			m_buffers.release(b);
+			return bigger;
+		}
+
+		/**
+		 * Creates the exchange for the request just parsed
+		 * @return The exchange
+		 */
+		protected NioHttpExchange newExchange()
+		{
+			return new NioHttpExchange(this, m_parser.getMethod(), parseTarget(), m_parser.getProtocol(), m_parser.getHeaders(), m_parser.getBody());
+		}
+
+		/**
+		 * Gets the target of the request just parsed
+		 * @return The target
+		 */
+		protected URI parseTarget()
+		{
+			try
+			{
+				return new URI(m_parser.getTarget());
+			}
+			catch (URISyntaxException e)
+			{
+				throw new HttpException(CallbackResponse.HTTP_BAD_REQUEST, "Malformed request target");
+			}
+		}
+
+		/**
+		 * Hands an exchange to the executor running the callbacks
+		 * @param t The exchange
+		 */
+		protected void dispatch(NioHttpExchange t)
+		{
+			m_exchanges.add(t);
+			if (!t.isKeepAlive())
+			{
+				m_closing = true;
+			}
+			execute(t);
+		}
+
+		/**
+		 * Runs the callbacks on an exchange in the executor
+		 * @param t The exchange
+		 */
+		protected void execute(final NioHttpExchange t)
+		{
+			m_inProgress.incrementAndGet();
+			try
+			{
+				m_executor.execute(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						try
+						{
+							// Nobody will read the response of a request whose
+							// connection or stream is already closed
+							if (m_closed || t.isAborted())
+							{
+								return;
+							}
+							try
+							{
+								m_server.handle(t);
+							}
+							catch (Throwable e)
+							{
+								// The response may be incomplete
+								t.abandon();
+							}
+							if (m_closed)
+							{
+								// The connection was closed while the request was
+								// processed, and the server saw it again
+								m_server.getConnections().closed(m_remote);
+							}
+						}
+						finally
+						{
+							t.m_handled = true;
+						}
+					}
+				});
+			}
+			catch (RejectedExecutionException e)
+			{
+				t.m_handled = true;
+				close();
+			}
+		}
+
+		/**
+		 * Records that the response to a request has been fully taken
+		 */
+		protected void retire()
+		{
+			m_inProgress.decrementAndGet();
+			m_lastActivity = System.currentTimeMillis();
+		}
+
+		/**
+		 * Determines whether responses remain to be sent on this connection
+		 * @return true if some requests are not fully answered
+		 */
+		protected boolean hasPendingResponses()
+		{
+			return !m_exchanges.isEmpty() || (m_h2 != null && m_h2.hasStreams()) || (m_ws != null && m_ws.hasOutput());
+		}
+
+		/**
+		 * Prepares the response to a request that cannot be parsed, which is
+		 * sent after the responses to the previous requests, before closing
+		 * the connection
+		 * @param e The exception describing the problem
+		 */
+		protected void fail(HttpException e)
+		{
+			byte[] body = (e.getMessage() == null ? "" : e.getMessage()).getBytes(NioHttpExchange.s_headerCharset);
+			String head = "HTTP/1.1 " + e.getCode() + " " + NioHttpExchange.getReasonPhrase(e.getCode())
+					+ "\r\nContent-Type: text/plain\r\nContent-Length: " + body.length
+					+ "\r\nConnection: close\r\n\r\n";
+			ByteBuffer b = ByteBuffer.allocate(head.length() + body.length);
+			b.put(head.getBytes(NioHttpExchange.s_headerCharset)).put(body).flip();
+			m_lastResponse = b;
+			m_closing = true;
+		}
+
+		/**
+		 * Moves the buffers of the responses to the output queue, in the
+		 * order of the requests, and writes as much as possible to the
+		 * channel
+		 */
+		protected void pump()
+		{
+			if (m_closed)
+			{
+				return;
+			}
+			if (m_h2 != null)
+			{
+				pumpStreams();
+				return;
+			}
+			if (m_ws != null)
+			{
+				pumpFrames();
+				return;
+			}
+			boolean progress = true;
+			while (progress && !m_closed)
+			{
+				progress = false;
+				while (!m_exchanges.isEmpty() && m_outBytes < s_lowWatermark)
+				{
+					NioHttpExchange t = m_exchanges.peek();
+					ByteBuffer b = t.poll();
+					if (b != null)
+					{
+						queue(b);
+						continue;
+					}
+					if (!t.isDone())
+					{
+						break;
+					}
+					m_exchanges.poll();
+					retire();
+					if (!t.isKeepAlive())
+					{
+						// Nothing may be sent after this response
+						m_closing = true;
+						discardExchanges();
+						m_lastResponse = null;
+					}
+				}
+				if (m_exchanges.isEmpty() && m_lastResponse != null)
+				{
+					queue(m_lastResponse);
+					m_lastResponse = null;
+				}
+				long before = m_outBytes;
+				write();
+				progress = m_outBytes < before && m_outBytes < s_lowWatermark && !m_exchanges.isEmpty();
+			}
+			if (m_closed)
+			{
+				return;
+			}
+			if (m_closing && m_exchanges.isEmpty() && m_out.isEmpty())
+			{
+				close();
+				return;
+			}
+			if (m_in != null && m_in.position() > 0 && !m_closing && m_exchanges.size() < s_maxPipelined)
+			{
+				// Requests held back by the limit on pipelining
+				parse();
+				return;
+			}
+			updateInterest();
+		}
+
+		/**
+		 * Moves the frames of the HTTP/2 streams to the output queue, and
+		 * writes as much as possible to the channel
+		 */
+		protected void pumpStreams()
+		{
+			boolean progress = true;
+			while (progress && !m_closed)
+			{
+				if (m_outBytes < s_lowWatermark)
+				{
+					m_h2.produce(s_lowWatermark - m_outBytes);
+				}
+				long before = m_outBytes;
+				write();
+				progress = m_outBytes < before && m_outBytes < s_lowWatermark;
+			}
+			if (m_closed)
+			{
+				return;
+			}
+			if (m_closing && !hasPendingResponses() && m_out.isEmpty())
+			{
+				close();
+				return;
+			}
+			updateInterest();
+		}
+
+		/**
+		 * Moves the frames of the WebSocket to the output queue, and writes
+		 * as much as possible to the channel
+		 */
+		protected void pumpFrames()
+		{
+			boolean progress = true;
+			while (progress && !m_closed)
+			{
+				if (m_outBytes < s_lowWatermark)
+				{
+					m_ws.produce(s_lowWatermark - m_outBytes);
+				}
+				long before = m_outBytes;
+				write();
+				progress = m_outBytes < before && m_outBytes < s_lowWatermark && m_ws.hasOutput();
+			}
+			if (m_closed)
+			{
+				return;
+			}
+			if ((m_closing || m_ws.isFinished()) && m_out.isEmpty() && !m_ws.hasOutput())
+			{
+				close();
+				return;
+			}
+			if (m_ws.takeResumed() && m_in != null && m_in.position() > 0)
+			{
+				// Frames held back while the endpoint was catching up
+				parse();
+				return;
+			}
+			updateInterest();
+		}
+
+		/**
+		 * Adds a buffer to the output queue
+		 * @param b The buffer
+		 */
+		protected void queue(ByteBuffer b)
+		{
+			m_out.add(b);
+			m_outBytes += b.remaining();
+		}
+
+		/**
+		 * Writes as many buffers of the output queue as the channel accepts
+		 */
+		protected void write()
+		{
+			while (!m_out.isEmpty())
+			{
+				int n = 0;
+				for (ByteBuffer b : m_out)
+				{
+					m_gather[n++] = b;
+					if (n == m_gather.length)
+					{
+						break;
+					}
+				}
+				long written;
+				try
+				{
+					written = m_channel.write(m_gather, 0, n);
+				}
+				catch (IOException e)
+				{
+					close();
+					return;
+				}
+				finally
+				{
+					for (int i = 0; i < n; i++)
+					{
+						m_gather[i] = null;
+					}
+				}
+				m_outBytes -= written;
+				while (!m_out.isEmpty() && !m_out.peek().hasRemaining())
+				{
+					m_out.poll();
+				}
+				if (written == 0)
+				{
+					// The socket is full: wait until it is writable again
+					break;
+				}
+				m_lastActivity = System.currentTimeMillis();
+			}
+		}
+
+		/**
+		 * Updates the events the selector waits for on this connection
+		 */
+		protected void updateInterest()
+		{
+			if (m_closed || m_key == null || !m_key.isValid())
+			{
+				return;
+			}
+			int ops = 0;
+			if (!m_closing && (m_h2 != null || (m_ws != null ? !m_ws.isPaused() : m_exchanges.size() < s_maxPipelined)))
+			{
+				ops |= SelectionKey.OP_READ;
+			}
+			if (!m_out.isEmpty())
+			{
+				ops |= SelectionKey.OP_WRITE;
+			}
+			m_key.interestOps(ops);
+		}
+
+		/**
+		 * Closes the connection if it has been idle, or busy with the same
+		 * request or response, for too long
+		 * @param now The current time
+		 */
+		protected void checkTimeouts(long now)
+		{
+			if (m_h2 != null)
+			{
+				if (m_h2.isIdle() && m_out.isEmpty() && now - m_lastActivity > m_idleTimeout)
+				{
+					// Tell the client no more streams will be accepted
+					m_h2.goAway(Http2Session.NO_ERROR);
+					pump();
+				}
+				return;
+			}
+			if (m_ws != null)
+			{
+				if (m_ws.checkTimeouts(now, m_lastActivity))
+				{
+					close();
+				}
+				return;
+			}
+			if (m_exchanges.isEmpty() && m_out.isEmpty())
+			{
+				if (m_requestStart != 0 && m_requestTimeout > 0 && now - m_requestStart > m_requestTimeout)
+				{
+					close();
+				}
+				else if (m_requestStart == 0 && now - m_lastActivity > m_idleTimeout)
+				{
+					close();
+				}
+				return;
+			}
+			if (m_responseTimeout > 0 && !m_exchanges.isEmpty())
+			{
+				long sent = m_exchanges.peek().getHeadersSentTime();
+				if (sent != 0 && now - sent > m_responseTimeout)
+				{
+					close();
+				}
+			}
+		}
+
+		/**
+		 * Aborts the exchanges still waiting to be answered
+		 */
+		protected void discardExchanges()
+		{
+			for (NioHttpExchange t : m_exchanges)
+			{
+				t.abort();
+				m_inProgress.decrementAndGet();
+			}
+			m_exchanges.clear();
+		}
+
+		/**
+		 * Closes the connection
+		 */
+		protected void close()
+		{
+			if (m_closed)
+			{
+				return;
+			}
+			m_closed = true;
+			if (m_key != null)
+			{
+				m_key.cancel();
+			}
+			try
+			{
+				m_channel.close();
+			}
+			catch (IOException e)
+			{
+				// Nothing else to do
+			}
+			if (m_in != null)
+			{
+				m_buffers.release(m_in);
+				m_in = null;
+			}
+			if (m_h2 != null)
+			{
+				m_h2.abort();
+			}
+			if (m_ws != null)
+			{
+				m_ws.abort();
+			}
+			discardExchanges();
+			m_out.clear();
+			m_outBytes = 0;
+			m_lastResponse = null;
+			m_loop.m_connections.remove(this);
+			m_openCount.decrementAndGet();
+			m_server.getConnections().closed(m_remote);
+		}
+	}
+}
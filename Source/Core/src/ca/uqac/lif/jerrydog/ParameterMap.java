@@ -0,0 +1,400 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A map of request parameters. A parameter can appear several times in a
+ * query; all its values are kept, in the order in which they appear, and
+ * can be read with {@link #getAll(String)}. Seen as a {@link Map}, the
+ * object associates each name to its <em>last</em> value, as the former
+ * {@code HashMap}-based parsing did.
+ * <p>
+ * The parameters are stored as a flat array of name-value pairs, which
+ * takes little memory and is searched linearly for the handful of
+ * parameters most requests have. Past a few parameters, an index from
+ * names to positions is built so that lookups stay fast.
+ * @author Sylvain Hallé
+ */
+public class ParameterMap extends AbstractMap<String,String>
+{
+	/**
+	 * The number of pairs above which an index is built
+	 */
+	protected static final int s_indexThreshold = 8;
+
+	/**
+	 * The names and values, stored alternately
+	 */
+	protected String[] m_pairs;
+
+	/**
+	 * The number of pairs in the map
+	 */
+	protected int m_count = 0;
+
+	/**
+	 * The number of distinct names in the map
+	 */
+	protected int m_distinct = 0;
+
+	/**
+	 * An index from a name to the position of its last pair, or null if
+	 * the map is small enough to be searched linearly
+	 */
+	protected Map<String,Integer> m_index = null;
+
+	/**
+	 * Creates an empty parameter map
+	 */
+	public ParameterMap()
+	{
+		this(4);
+	}
+
+	/**
+	 * Creates an empty parameter map
+	 * @param capacity The number of pairs the map can hold before growing
+	 */
+	public ParameterMap(int capacity)
+	{
+		super();
+		m_pairs = new String[Math.max(1, capacity) * 2];
+	}
+
+	/**
+	 * Creates a copy of a parameter map
+	 * @param other The map to copy
+	 */
+	public ParameterMap(ParameterMap other)
+	{
+		super();
+		m_pairs = Arrays.copyOf(other.m_pairs, Math.max(2, other.m_count * 2));
+		m_count = other.m_count;
+		m_distinct = other.m_distinct;
+		if (other.m_index != null)
+		{
+			m_index = new HashMap<String,Integer>(other.m_index);
+		}
+	}
+
+	/**
+	 * Adds a value to a parameter, keeping the values it already has
+	 * @param name The name of the parameter
+	 * @param value The value
+	 */
+	public void add(String name, String value)
+	{
+		if (m_count * 2 == m_pairs.length)
+		{
+			m_pairs = Arrays.copyOf(m_pairs, m_pairs.length * 2);
+		}
+		if (lastIndexOf(name) < 0)
+		{
+			m_distinct++;
+		}
+		m_pairs[m_count * 2] = name;
+		m_pairs[m_count * 2 + 1] = value;
+		if (m_index != null)
+		{
+			m_index.put(name, m_count);
+		}
+		m_count++;
+		if (m_index == null && m_count > s_indexThreshold)
+		{
+			buildIndex();
+		}
+	}
+
+	/**
+	 * Gets all the values of a parameter
+	 * @param name The name of the parameter
+	 * @return The values, in the order in which they were added; the list
+	 * is empty if the parameter is absent
+	 */
+	public List<String> getAll(String name)
+	{
+		int last = lastIndexOf(name);
+		if (last < 0)
+		{
+			return Collections.emptyList();
+		}
+		List<String> out = new ArrayList<String>(2);
+		for (int i = 0; i <= last; i++)
+		{
+			if (name.equals(m_pairs[i * 2]))
+			{
+				out.add(m_pairs[i * 2 + 1]);
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Gets the first value of a parameter
+	 * @param name The name of the parameter
+	 * @return The value, or null if the parameter is absent
+	 */
+	public String getFirst(String name)
+	{
+		for (int i = 0; i < m_count; i++)
+		{
+			if (name.equals(m_pairs[i * 2]))
+			{
+				return m_pairs[i * 2 + 1];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the number of name-value pairs in the map, counting every value
+	 * of a parameter that appears several times
+	 * @return The number of pairs
+	 */
+	public int getPairCount()
+	{
+		return m_count;
+	}
+
+	/**
+	 * Gets the name of a pair
+	 * @param index The position of the pair
+	 * @return The name
+	 */
+	public String getName(int index)
+	{
+		checkIndex(index);
+		return m_pairs[index * 2];
+	}
+
+	/**
+	 * Gets the value of a pair
+	 * @param index The position of the pair
+	 * @return The value
+	 */
+	public String getValue(int index)
+	{
+		checkIndex(index);
+		return m_pairs[index * 2 + 1];
+	}
+
+	@Override
+	public String get(Object key)
+	{
+		int index = lastIndexOf(key);
+		return index < 0 ? null : m_pairs[index * 2 + 1];
+	}
+
+	@Override
+	public boolean containsKey(Object key)
+	{
+		return lastIndexOf(key) >= 0;
+	}
+
+	/**
+	 * Sets the value of a parameter, replacing all the values it had
+	 */
+	@Override
+	public String put(String name, String value)
+	{
+		String old = remove(name);
+		add(name, value);
+		return old;
+	}
+
+	/**
+	 * Removes all the values of a parameter
+	 * @return The last value of the parameter, or null if it was absent
+	 */
+	@Override
+	public String remove(Object key)
+	{
+		int last = lastIndexOf(key);
+		if (last < 0)
+		{
+			return null;
+		}
+		String old = m_pairs[last * 2 + 1];
+		int j = 0;
+		for (int i = 0; i < m_count; i++)
+		{
+			if (!key.equals(m_pairs[i * 2]))
+			{
+				m_pairs[j * 2] = m_pairs[i * 2];
+				m_pairs[j * 2 + 1] = m_pairs[i * 2 + 1];
+				j++;
+			}
+		}
+		Arrays.fill(m_pairs, j * 2, m_count * 2, null);
+		m_count = j;
+		m_distinct--;
+		if (m_index != null)
+		{
+			buildIndex();
+		}
+		return old;
+	}
+
+	@Override
+	public void clear()
+	{
+		Arrays.fill(m_pairs, 0, m_count * 2, null);
+		m_count = 0;
+		m_distinct = 0;
+		m_index = null;
+	}
+
+	@Override
+	public int size()
+	{
+		return m_distinct;
+	}
+
+	@Override
+	public Set<Map.Entry<String,String>> entrySet()
+	{
+		return new AbstractSet<Map.Entry<String,String>>()
+		{
+			@Override
+			public Iterator<Map.Entry<String,String>> iterator()
+			{
+				return new EntryIterator();
+			}
+
+			@Override
+			public int size()
+			{
+				return m_distinct;
+			}
+		};
+	}
+
+	/**
+	 * Finds the last pair with a given name
+	 * @param key The name
+	 * @return The position of the pair, or -1 if there is none
+	 */
+	protected int lastIndexOf(Object key)
+	{
+		if (key == null)
+		{
+			return -1;
+		}
+		if (m_index != null)
+		{
+			Integer index = m_index.get(key);
+			return index == null ? -1 : index;
+		}
+		for (int i = m_count - 1; i >= 0; i--)
+		{
+			if (key.equals(m_pairs[i * 2]))
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Builds the index of names from scratch
+	 */
+	protected void buildIndex()
+	{
+		m_index = new HashMap<String,Integer>(m_count * 2);
+		for (int i = 0; i < m_count; i++)
+		{
+			m_index.put(m_pairs[i * 2], i);
+		}
+	}
+
+	/**
+	 * Checks that a position refers to a pair of the map
+	 * @param index The position
+	 */
+	protected void checkIndex(int index)
+	{
+		if (index < 0 || index >= m_count)
+		{
+			throw new IndexOutOfBoundsException("No pair at position " + index);
+		}
+	}
+
+	/**
+	 * Iterates over the last pair of each name
+	 */
+	protected class EntryIterator implements Iterator<Map.Entry<String,String>>
+	{
+		/**
+		 * The position of the next pair to return
+		 */
+		protected int m_next = -1;
+
+		/**
+		 * Creates a new iterator
+		 */
+		public EntryIterator()
+		{
+			super();
+			advance();
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			return m_next < m_count;
+		}
+
+		@Override
+		public Map.Entry<String,String> next()
+		{
+			if (m_next >= m_count)
+			{
+				throw new NoSuchElementException();
+			}
+			Map.Entry<String,String> e = new AbstractMap.SimpleImmutableEntry<String,String>(m_pairs[m_next * 2], m_pairs[m_next * 2 + 1]);
+			advance();
+			return e;
+		}
+
+		/**
+		 * Moves to the next pair that is the last one of its name
+		 */
+		protected void advance()
+		{
+			for (m_next++; m_next < m_count; m_next++)
+			{
+				if (lastIndexOf(m_pairs[m_next * 2]) == m_next)
+				{
+					return;
+				}
+			}
+		}
+	}
+}
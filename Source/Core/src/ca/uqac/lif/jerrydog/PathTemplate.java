@@ -0,0 +1,479 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A compiled path template, such as <code>/users/{id:int}/posts/{slug}</code>.
+ * A template is a sequence of segments separated by slashes; each segment
+ * is either a literal string, or a variable written between braces that
+ * captures a whole segment of the path. A variable followed by
+ * <code>:int</code> only matches segments that are (32-bit) integers.
+ * <p>
+ * Matching a path against a template is done in a single pass over the
+ * characters of the path, without regular expressions and without
+ * splitting the path. The captured variables are written into a
+ * {@link Match} object, which can be reused from one request to the next.
+ * @author Sylvain Hallé
+ */
+public class PathTemplate
+{
+	/**
+	 * Segment types
+	 */
+	protected static final int LITERAL = 0;
+	protected static final int STRING = 1;
+	protected static final int INT = 2;
+
+	/**
+	 * The template, as written by the user
+	 */
+	protected final String m_template;
+
+	/**
+	 * The type of each segment
+	 */
+	protected final int[] m_types;
+
+	/**
+	 * For each segment, the literal string, or the variable's name
+	 */
+	protected final String[] m_segments;
+
+	/**
+	 * For each segment, the index of its variable, or -1 for a literal
+	 */
+	protected final int[] m_variableIndex;
+
+	/**
+	 * The names of the variables, in the order they appear
+	 */
+	protected final String[] m_names;
+
+	/**
+	 * The literal part of the template that precedes the first variable,
+	 * without a trailing slash
+	 */
+	protected final String m_prefix;
+
+	/**
+	 * Compiles a path template
+	 * @param template The template
+	 * @throws IllegalArgumentException If the template is malformed
+	 */
+	public PathTemplate(String template)
+	{
+		super();
+		if (!template.startsWith("/"))
+		{
+			throw new IllegalArgumentException("Path template must start with a slash: " + template);
+		}
+		m_template = template;
+		List<String> segments = new ArrayList<String>();
+		int start = 1;
+		while (true)
+		{
+			int end = template.indexOf('/', start);
+			if (end < 0)
+			{
+				segments.add(template.substring(start));
+				break;
+			}
+			segments.add(template.substring(start, end));
+			start = end + 1;
+		}
+		int num_segments = segments.size();
+		m_types = new int[num_segments];
+		m_segments = new String[num_segments];
+		m_variableIndex = new int[num_segments];
+		List<String> names = new ArrayList<String>();
+		StringBuilder prefix = new StringBuilder();
+		boolean in_prefix = true;
+		for (int i = 0; i < num_segments; i++)
+		{
+			String seg = segments.get(i);
+			if (seg.startsWith("{"))
+			{
+				if (!seg.endsWith("}") || seg.length() < 3)
+				{
+					throw new IllegalArgumentException("Malformed variable " + seg + " in path template " + template);
+				}
+				String name = seg.substring(1, seg.length() - 1);
+				int type = STRING;
+				int colon = name.indexOf(':');
+				if (colon >= 0)
+				{
+					String type_name = name.substring(colon + 1);
+					name = name.substring(0, colon);
+					if (type_name.compareTo("int") == 0)
+					{
+						type = INT;
+					}
+					else if (type_name.compareTo("string") != 0)
+					{
+						throw new IllegalArgumentException("Unknown type " + type_name + " in path template " + template);
+					}
+				}
+				if (name.isEmpty() || names.contains(name))
+				{
+					throw new IllegalArgumentException("Empty or duplicate variable name in path template " + template);
+				}
+				m_types[i] = type;
+				m_segments[i] = name;
+				m_variableIndex[i] = names.size();
+				names.add(name);
+				in_prefix = false;
+			}
+			else
+			{
+				if (seg.indexOf('{') >= 0 || seg.indexOf('}') >= 0)
+				{
+					throw new IllegalArgumentException("A variable must span a whole segment in path template " + template);
+				}
+				m_types[i] = LITERAL;
+				m_segments[i] = seg;
+				m_variableIndex[i] = -1;
+				if (in_prefix && !(i == num_segments - 1 && seg.isEmpty()))
+				{
+					prefix.append('/').append(seg);
+				}
+			}
+		}
+		m_names = names.toArray(new String[names.size()]);
+		m_prefix = prefix.toString();
+	}
+
+	/**
+	 * Gets the literal part of the template that precedes the first
+	 * variable. Every path that matches the template is either equal to
+	 * this prefix, or starts with this prefix followed by a slash.
+	 * @return The prefix
+	 */
+	public String getPrefix()
+	{
+		return m_prefix;
+	}
+
+	/**
+	 * Gets the number of variables in this template
+	 * @return The number of variables
+	 */
+	public int getVariableCount()
+	{
+		return m_names.length;
+	}
+
+	/**
+	 * Gets the name of a variable
+	 * @param index The position of the variable in the template
+	 * @return The name
+	 */
+	public String getVariableName(int index)
+	{
+		return m_names[index];
+	}
+
+	/**
+	 * Gets the position of a variable
+	 * @param name The name of the variable
+	 * @return The position, or -1 if there is no such variable
+	 */
+	public int indexOf(String name)
+	{
+		for (int i = 0; i < m_names.length; i++)
+		{
+			if (m_names[i].compareTo(name) == 0)
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Creates an empty match object for this template
+	 * @return The match
+	 */
+	public Match newMatch()
+	{
+		return new Match(this);
+	}
+
+	/**
+	 * Matches a path against this template
+	 * @param path The path
+	 * @return The match, or null if the path does not match
+	 */
+	public Match match(String path)
+	{
+		Match m = newMatch();
+		return match(path, m) ? m : null;
+	}
+
+	/**
+	 * Matches a path against this template
+	 * @param path The path
+	 * @param m A match object created by this template, into which the
+	 * variables are written
+	 * @return true if the path matches, false otherwise. In the latter
+	 * case, the contents of the match object are unspecified.
+	 */
+	public boolean match(String path, Match m)
+	{
+		m.m_path = null;
+		if (path == null)
+		{
+			return false;
+		}
+		int len = path.length();
+		int pos = 0;
+		for (int i = 0; i < m_types.length; i++)
+		{
+			if (pos >= len || path.charAt(pos) != '/')
+			{
+				return false;
+			}
+			pos++;
+			if (m_types[i] == LITERAL)
+			{
+				String seg = m_segments[i];
+				int seg_len = seg.length();
+				if (!path.regionMatches(pos, seg, 0, seg_len))
+				{
+					return false;
+				}
+				pos += seg_len;
+				if (pos < len && path.charAt(pos) != '/')
+				{
+					return false;
+				}
+				continue;
+			}
+			int var = m_variableIndex[i];
+			int start = pos;
+			if (m_types[i] == INT)
+			{
+				boolean negative = false;
+				if (pos < len && path.charAt(pos) == '-')
+				{
+					negative = true;
+					pos++;
+				}
+				long value = 0;
+				int digits = 0;
+				for (; pos < len; pos++)
+				{
+					char c = path.charAt(pos);
+					if (c == '/')
+					{
+						break;
+					}
+					if (c < '0' || c > '9')
+					{
+						return false;
+					}
+					value = value * 10 + (c - '0');
+					if (++digits > 10 || value > (negative ? -(long) Integer.MIN_VALUE : Integer.MAX_VALUE))
+					{
+						return false;
+					}
+				}
+				if (digits == 0)
+				{
+					return false;
+				}
+				m.m_ints[var] = (int) (negative ? -value : value);
+			}
+			else
+			{
+				while (pos < len && path.charAt(pos) != '/')
+				{
+					pos++;
+				}
+				if (pos == start)
+				{
+					// A variable cannot match an empty segment
+					return false;
+				}
+			}
+			m.m_starts[var] = start;
+			m.m_ends[var] = pos;
+		}
+		if (pos != len)
+		{
+			return false;
+		}
+		m.m_path = path;
+		return true;
+	}
+
+	@Override
+	public String toString()
+	{
+		return m_template;
+	}
+
+	/**
+	 * The variables captured when matching a path against a template. The
+	 * values are stored as offsets into the path, and are only turned into
+	 * strings when asked for; integer variables are parsed while matching.
+	 */
+	public static class Match
+	{
+		/**
+		 * The template that produced this match
+		 */
+		protected final PathTemplate m_template;
+
+		/**
+		 * The path that was matched, or null if the last match failed
+		 */
+		protected String m_path;
+
+		/**
+		 * The start offset of each variable in the path
+		 */
+		protected final int[] m_starts;
+
+		/**
+		 * The end offset of each variable in the path
+		 */
+		protected final int[] m_ends;
+
+		/**
+		 * The value of each integer variable
+		 */
+		protected final int[] m_ints;
+
+		/**
+		 * Creates an empty match
+		 * @param template The template that produces this match
+		 */
+		protected Match(PathTemplate template)
+		{
+			super();
+			m_template = template;
+			int size = template.getVariableCount();
+			m_starts = new int[size];
+			m_ends = new int[size];
+			m_ints = new int[size];
+		}
+
+		/**
+		 * Gets the path that was last matched successfully
+		 * @return The path, or null if the last match failed
+		 */
+		public String getPath()
+		{
+			return m_path;
+		}
+
+		/**
+		 * Gets the number of variables
+		 * @return The number of variables
+		 */
+		public int size()
+		{
+			return m_starts.length;
+		}
+
+		/**
+		 * Gets the name of a variable
+		 * @param index The position of the variable
+		 * @return The name
+		 */
+		public String getName(int index)
+		{
+			return m_template.getVariableName(index);
+		}
+
+		/**
+		 * Gets the value of a variable as a string
+		 * @param index The position of the variable
+		 * @return The value
+		 */
+		public String getString(int index)
+		{
+			return m_path.substring(m_starts[index], m_ends[index]);
+		}
+
+		/**
+		 * Gets the value of a variable as a string
+		 * @param name The name of the variable
+		 * @return The value, or null if there is no such variable
+		 */
+		public String getString(String name)
+		{
+			int index = m_template.indexOf(name);
+			return index < 0 ? null : getString(index);
+		}
+
+		/**
+		 * Gets the value of an integer variable
+		 * @param index The position of the variable
+		 * @return The value
+		 * @throws IllegalArgumentException If the variable is not declared
+		 * as an integer in the template
+		 */
+		public int getInt(int index)
+		{
+			if (m_template.m_types[segmentOf(index)] != INT)
+			{
+				throw new IllegalArgumentException("Variable " + getName(index) + " is not an integer");
+			}
+			return m_ints[index];
+		}
+
+		/**
+		 * Gets the value of an integer variable
+		 * @param name The name of the variable
+		 * @return The value
+		 * @throws IllegalArgumentException If there is no such variable, or
+		 * if it is not declared as an integer in the template
+		 */
+		public int getInt(String name)
+		{
+			int index = m_template.indexOf(name);
+			if (index < 0)
+			{
+				throw new IllegalArgumentException("No variable " + name + " in template " + m_template);
+			}
+			return getInt(index);
+		}
+
+		/**
+		 * Finds the segment of the template where a variable is declared
+		 * @param index The position of the variable
+		 * @return The position of the segment
+		 */
+		protected int segmentOf(int index)
+		{
+			int[] indices = m_template.m_variableIndex;
+			for (int i = 0; i < indices.length; i++)
+			{
+				if (indices[i] == index)
+				{
+					return i;
+				}
+			}
+			throw new IndexOutOfBoundsException("No variable at position " + index);
+		}
+	}
+}
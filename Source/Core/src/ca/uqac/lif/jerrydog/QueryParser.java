@@ -0,0 +1,344 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import ca.uqac.lif.jerrydog.RequestCallback.Method;
+
+/**
+ * Parses URL-encoded queries and form bodies, such as
+ * <code>a=1&amp;b=caf%C3%A9&amp;b=th%C3%A9</code>, into a
+ * {@link ParameterMap}. The query is read in a single pass: names and
+ * values are cut directly out of the input string, and only those that
+ * contain escaped characters are decoded. Percent-escapes are decoded as
+ * UTF-8 (or another character set), and a plus sign stands for a space.
+ * Malformed escapes are kept as they are.
+ * <p>
+ * The parser refuses inputs that are too long or contain too many
+ * parameters, by throwing an {@link HttpException} that the server turns
+ * into an error response. This bounds the work an attacker can force on
+ * the server with a single request.
+ * @author Sylvain Hallé
+ */
+public class QueryParser
+{
+	/**
+	 * The default maximum number of parameters in a query
+	 */
+	public static final int DEFAULT_MAX_PARAMETERS = 1000;
+
+	/**
+	 * The default maximum length of a query, in characters
+	 */
+	public static final int DEFAULT_MAX_LENGTH = 2 * 1024 * 1024;
+
+	/**
+	 * The UTF-8 character set
+	 */
+	protected static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/**
+	 * A parser with the default settings
+	 */
+	protected static final QueryParser s_defaultParser = new QueryParser();
+
+	/**
+	 * The maximum number of parameters in a query
+	 */
+	protected int m_maxParameters = DEFAULT_MAX_PARAMETERS;
+
+	/**
+	 * The maximum length of a query
+	 */
+	protected int m_maxLength = DEFAULT_MAX_LENGTH;
+
+	/**
+	 * The character set of escaped bytes
+	 */
+	protected Charset m_charset = UTF_8;
+
+	/**
+	 * Creates a parser with the default settings
+	 */
+	public QueryParser()
+	{
+		super();
+	}
+
+	/**
+	 * Gets a parser with the default settings. This parser must not be
+	 * modified.
+	 * @return The parser
+	 */
+	public static QueryParser getDefault()
+	{
+		return s_defaultParser;
+	}
+
+	/**
+	 * Sets the maximum number of parameters in a query
+	 * @param max The number of parameters
+	 * @return This parser
+	 */
+	public QueryParser setMaxParameters(int max)
+	{
+		m_maxParameters = max;
+		return this;
+	}
+
+	/**
+	 * Sets the maximum length of a query
+	 * @param max The number of characters
+	 * @return This parser
+	 */
+	public QueryParser setMaxLength(int max)
+	{
+		m_maxLength = max;
+		return this;
+	}
+
+	/**
+	 * Sets the character set used to decode escaped bytes
+	 * @param charset The character set
+	 * @return This parser
+	 */
+	public QueryParser setCharset(Charset charset)
+	{
+		m_charset = charset;
+		return this;
+	}
+
+	/**
+	 * Parses a query the way Jerrydog always has for the given method. A
+	 * query made of a single token without an equal sign is not a list of
+	 * parameters: for a GET request, it is a parameter without a value;
+	 * for other methods, it is a raw payload (such as a JSON document),
+	 * which is put verbatim under the empty name.
+	 * @param query The query, possibly null
+	 * @param m The method of the request
+	 * @return The parameters
+	 * @throws HttpException If the query exceeds the limits of this parser
+	 */
+	public ParameterMap parse(String query, Method m)
+	{
+		ParameterMap out = new ParameterMap();
+		if (query == null)
+		{
+			return out;
+		}
+		if (m != Method.GET && query.indexOf('=') < 0 && query.indexOf('&') < 0)
+		{
+			// No params; likely a POST request with payload
+			out.add("", query);
+			return out;
+		}
+		parse(query, out);
+		return out;
+	}
+
+	/**
+	 * Parses a query and adds its parameters to a map
+	 * @param query The query, possibly null
+	 * @param out The map to which the parameters are added
+	 * @throws HttpException If the query exceeds the limits of this parser
+	 */
+	public void parse(String query, ParameterMap out)
+	{
+		if (query == null)
+		{
+			return;
+		}
+		int len = query.length();
+		if (len > m_maxLength)
+		{
+			throw new HttpException(CallbackResponse.HTTP_PAYLOAD_TOO_LARGE, "Query is longer than " + m_maxLength + " characters");
+		}
+		int count = 0;
+		int start = 0;
+		while (true)
+		{
+			// Find the end of the pair, remembering where the name ends
+			int equal = -1;
+			int end = start;
+			boolean name_escaped = false;
+			boolean value_escaped = false;
+			for (; end < len; end++)
+			{
+				char c = query.charAt(end);
+				if (c == '&')
+				{
+					break;
+				}
+				if (c == '=' && equal < 0)
+				{
+					equal = end;
+				}
+				else if (c == '%' || c == '+')
+				{
+					if (equal < 0)
+					{
+						name_escaped = true;
+					}
+					else
+					{
+						value_escaped = true;
+					}
+				}
+			}
+			// Empty pairs, as in "a=1&&b=2", are skipped, except for an
+			// empty query, which the former parser mapped to the empty name
+			if (end > start || (start == 0 && end == len))
+			{
+				if (++count > m_maxParameters)
+				{
+					throw new HttpException(CallbackResponse.HTTP_BAD_REQUEST, "Query has more than " + m_maxParameters + " parameters");
+				}
+				String name, value;
+				if (equal < 0)
+				{
+					name = decode(query, start, end, name_escaped);
+					value = "";
+				}
+				else
+				{
+					name = decode(query, start, equal, name_escaped);
+					value = decode(query, equal + 1, end, value_escaped);
+				}
+				out.add(name, value);
+			}
+			if (end >= len)
+			{
+				break;
+			}
+			start = end + 1;
+		}
+	}
+
+	/**
+	 * Parses a query with the default settings
+	 * @param query The query, possibly null
+	 * @return The parameters
+	 * @throws HttpException If the query exceeds the default limits
+	 */
+	public static ParameterMap parseQuery(String query)
+	{
+		ParameterMap out = new ParameterMap();
+		s_defaultParser.parse(query, out);
+		return out;
+	}
+
+	/**
+	 * Decodes a part of a string
+	 * @param s The string
+	 * @param start The start of the part
+	 * @param end The end of the part
+	 * @param escaped Whether the part contains a plus sign or a
+	 * percent-escape
+	 * @return The decoded part
+	 */
+	protected String decode(String s, int start, int end, boolean escaped)
+	{
+		if (!escaped)
+		{
+			return s.substring(start, end);
+		}
+		// Decode into bytes: non-ASCII characters that were not escaped are
+		// re-encoded, so that they can be mixed with escaped bytes
+		byte[] bytes = new byte[(end - start) * 4];
+		int n = 0;
+		for (int i = start; i < end; i++)
+		{
+			char c = s.charAt(i);
+			int b;
+			if (c == '+')
+			{
+				bytes[n++] = ' ';
+			}
+			else if (c == '%' && (b = hexValue(s, i + 1, end)) >= 0)
+			{
+				bytes[n++] = (byte) b;
+				i += 2;
+			}
+			else if (c < 0x80)
+			{
+				bytes[n++] = (byte) c;
+			}
+			else
+			{
+				int cp_end = Character.isHighSurrogate(c) && i + 1 < end ? i + 2 : i + 1;
+				byte[] enc = s.substring(i, cp_end).getBytes(m_charset);
+				if (n + enc.length > bytes.length)
+				{
+					bytes = Arrays.copyOf(bytes, (n + enc.length) * 2);
+				}
+				System.arraycopy(enc, 0, bytes, n, enc.length);
+				n += enc.length;
+				i = cp_end - 1;
+			}
+		}
+		return new String(bytes, 0, n, m_charset);
+	}
+
+	/**
+	 * Reads the two hexadecimal digits of a percent-escape
+	 * @param s The string
+	 * @param pos The position of the first digit
+	 * @param end The position beyond which the string must not be read
+	 * @return The value of the escaped byte, or -1 if the escape is
+	 * malformed
+	 */
+	protected static int hexValue(String s, int pos, int end)
+	{
+		if (pos + 1 >= end)
+		{
+			return -1;
+		}
+		int hi = hexDigit(s.charAt(pos));
+		int lo = hexDigit(s.charAt(pos + 1));
+		if (hi < 0 || lo < 0)
+		{
+			return -1;
+		}
+		return (hi << 4) | lo;
+	}
+
+	/**
+	 * Gets the value of a hexadecimal digit
+	 * @param c The digit
+	 * @return The value, or -1 if the character is not an ASCII
+	 * hexadecimal digit
+	 */
+	protected static int hexDigit(char c)
+	{
+		if (c >= '0' && c <= '9')
+		{
+			return c - '0';
+		}
+		if (c >= 'a' && c <= 'f')
+		{
+			return c - 'a' + 10;
+		}
+		if (c >= 'A' && c <= 'F')
+		{
+			return c - 'A' + 10;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,434 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.Arrays;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * The body of an HTTP request. The body can be read at once as an array
+ * of bytes or as a string, or consumed progressively as a stream; in all
+ * cases, it is read at most once from the connection.
+ * <ul>
+ * <li>When the request declares its <code>Content-Length</code>, the body is
+ * read into a buffer of exactly this size, without intermediate copies</li>
+ * <li>The string is decoded with the character set declared in the
+ * <code>Content-Type</code> header, or UTF-8 if there is none</li>
+ * <li>A body larger than a maximum size is refused with an
+ * {@link HttpException} carrying the status code 413 (Payload Too Large);
+ * a request whose declared length exceeds the maximum is refused before
+ * anything is read</li>
+ * </ul>
+ * @author Sylvain Hallé
+ */
+public class RequestBody
+{
+	/**
+	 * The default maximum size of a request body, in bytes
+	 */
+	public static final long DEFAULT_MAX_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * The character set used when the request does not declare one
+	 */
+	public static final Charset DEFAULT_CHARSET = Charset.forName("UTF-8");
+
+	/**
+	 * The size of the buffer used when the length is unknown
+	 */
+	protected static final int s_bufferSize = 8192;
+
+	/**
+	 * The largest buffer allocated before reading a body whose length is
+	 * known
+	 */
+	protected static final int s_initialSize = 64 * 1024;
+
+	/**
+	 * The stream from which the body is read
+	 */
+	protected final InputStream m_in;
+
+	/**
+	 * The length declared by the request, or -1 if it is unknown
+	 */
+	protected final long m_contentLength;
+
+	/**
+	 * The character set of the body
+	 */
+	protected final Charset m_charset;
+
+	/**
+	 * The maximum number of bytes of the body
+	 */
+	protected final long m_maxSize;
+
+	/**
+	 * The contents of the body, once they have been read
+	 */
+	protected byte[] m_bytes = null;
+
+	/**
+	 * Whether the stream has been handed out to the caller
+	 */
+	protected boolean m_streamed = false;
+
+	/**
+	 * Creates the body of a request, with the default maximum size
+	 * @param t The exchange
+	 */
+	public RequestBody(HttpExchange t)
+	{
+		this(t, DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * Creates the body of a request
+	 * @param t The exchange
+	 * @param max_size The maximum number of bytes of the body
+	 */
+	public RequestBody(HttpExchange t, long max_size)
+	{
+		this(t.getRequestBody(), getContentLength(t), getCharset(t.getRequestHeaders().getFirst("Content-Type"), DEFAULT_CHARSET), max_size);
+	}
+
+	/**
+	 * Creates a request body out of a stream
+	 * @param in The stream
+	 * @param length The number of bytes to read, or -1 to read until the
+	 * end of the stream
+	 * @param charset The character set of the body
+	 * @param max_size The maximum number of bytes of the body
+	 */
+	public RequestBody(InputStream in, long length, Charset charset, long max_size)
+	{
+		super();
+		m_in = in;
+		m_contentLength = length;
+		m_charset = charset;
+		m_maxSize = max_size;
+	}
+
+	/**
+	 * Gets the length declared by the request
+	 * @return The length, or -1 if it is unknown
+	 */
+	public long getContentLength()
+	{
+		return m_contentLength;
+	}
+
+	/**
+	 * Gets the character set used to decode the body
+	 * @return The character set
+	 */
+	public Charset getCharset()
+	{
+		return m_charset;
+	}
+
+	/**
+	 * Gets the maximum number of bytes of the body
+	 * @return The number of bytes
+	 */
+	public long getMaxSize()
+	{
+		return m_maxSize;
+	}
+
+	/**
+	 * Gets the body as a stream, so that it can be processed without being
+	 * held in memory. The stream fails with an {@link HttpException} if
+	 * more than the maximum number of bytes are read from it.
+	 * @return The stream
+	 * @throws HttpException If the declared length of the body exceeds the
+	 * maximum size
+	 */
+	public InputStream getStream()
+	{
+		if (m_bytes != null)
+		{
+			return new ByteArrayInputStream(m_bytes);
+		}
+		checkDeclaredLength();
+		m_streamed = true;
+		return new LimitedInputStream(m_in, m_maxSize);
+	}
+
+	/**
+	 * Gets the contents of the body
+	 * @return The contents
+	 * @throws IOException If the body cannot be read
+	 * @throws HttpException If the body exceeds the maximum size
+	 * @throws IllegalStateException If the body has already been consumed
+	 * as a stream
+	 */
+	public byte[] getBytes() throws IOException
+	{
+		if (m_bytes != null)
+		{
+			return m_bytes;
+		}
+		if (m_streamed)
+		{
+			throw new IllegalStateException("The request body has already been consumed as a stream");
+		}
+		checkDeclaredLength();
+		try
+		{
+			m_bytes = m_contentLength >= 0 ? readFixed((int) m_contentLength) : readUntilEnd();
+		}
+		finally
+		{
+			m_in.close();
+		}
+		return m_bytes;
+	}
+
+	/**
+	 * Gets the contents of the body as a string
+	 * @return The string
+	 * @throws IOException If the body cannot be read
+	 * @throws HttpException If the body exceeds the maximum size
+	 */
+	public String getString() throws IOException
+	{
+		return new String(getBytes(), m_charset);
+	}
+
+	/**
+	 * Reads a body whose length is known. The buffer grows as data
+	 * arrives, so that a client announcing a large body without sending it
+	 * does not get that much memory allocated up front.
+	 * @param length The length
+	 * @return The contents
+	 * @throws IOException If the body cannot be read
+	 */
+	protected byte[] readFixed(int length) throws IOException
+	{
+		byte[] buffer = new byte[Math.min(length, s_initialSize)];
+		int pos = 0;
+		while (pos < length)
+		{
+			if (pos == buffer.length)
+			{
+				buffer = Arrays.copyOf(buffer, (int) Math.min(length, (long) buffer.length * 2));
+			}
+			int read = m_in.read(buffer, pos, buffer.length - pos);
+			if (read < 0)
+			{
+				// The client sent less than it announced
+				return Arrays.copyOf(buffer, pos);
+			}
+			pos += read;
+		}
+		return buffer;
+	}
+
+	/**
+	 * Reads a body whose length is unknown
+	 * @return The contents
+	 * @throws IOException If the body cannot be read
+	 */
+	protected byte[] readUntilEnd() throws IOException
+	{
+		byte[] buffer = new byte[(int) Math.min(s_bufferSize, Math.max(0, m_maxSize))];
+		int pos = 0;
+		while (true)
+		{
+			if (pos == buffer.length)
+			{
+				if (pos >= m_maxSize)
+				{
+					// Is there anything beyond the maximum?
+					if (m_in.read() < 0)
+					{
+						return buffer;
+					}
+					throw tooLarge();
+				}
+				buffer = Arrays.copyOf(buffer, (int) Math.min(m_maxSize, Math.min(Integer.MAX_VALUE - 8, (long) buffer.length * 2)));
+			}
+			int read = m_in.read(buffer, pos, buffer.length - pos);
+			if (read < 0)
+			{
+				return Arrays.copyOf(buffer, pos);
+			}
+			pos += read;
+		}
+	}
+
+	/**
+	 * Refuses a body whose declared length exceeds the maximum size
+	 */
+	protected void checkDeclaredLength()
+	{
+		if (m_contentLength > m_maxSize || m_contentLength > Integer.MAX_VALUE - 8)
+		{
+			throw tooLarge();
+		}
+	}
+
+	/**
+	 * Creates the exception thrown for a body that is too large
+	 * @return The exception
+	 */
+	protected HttpException tooLarge()
+	{
+		return new HttpException(CallbackResponse.HTTP_PAYLOAD_TOO_LARGE, "Request body is larger than " + m_maxSize + " bytes");
+	}
+
+	/**
+	 * Gets the length of the body declared by a request
+	 * @param t The exchange
+	 * @return The length, or -1 if the request does not declare it
+	 */
+	public static long getContentLength(HttpExchange t)
+	{
+		String value = t.getRequestHeaders().getFirst("Content-Length");
+		if (value == null || t.getRequestHeaders().containsKey("Transfer-Encoding"))
+		{
+			return -1;
+		}
+		try
+		{
+			long length = Long.parseLong(value.trim());
+			return length < 0 ? -1 : length;
+		}
+		catch (NumberFormatException e)
+		{
+			return -1;
+		}
+	}
+
+	/**
+	 * Gets the character set declared in a <code>Content-Type</code> header,
+	 * such as <code>text/plain; charset=ISO-8859-1</code>
+	 * @param content_type The value of the header, possibly null
+	 * @param default_charset The character set to use if the header does
+	 * not declare one, or declares one that is not supported
+	 * @return The character set
+	 */
+	public static Charset getCharset(String content_type, Charset default_charset)
+	{
+		if (content_type == null)
+		{
+			return default_charset;
+		}
+		int pos = content_type.toLowerCase().indexOf("charset=");
+		if (pos < 0)
+		{
+			return default_charset;
+		}
+		int start = pos + 8;
+		int end = content_type.indexOf(';', start);
+		String name = (end < 0 ? content_type.substring(start) : content_type.substring(start, end)).trim();
+		if (name.length() > 1 && name.startsWith("\"") && name.endsWith("\""))
+		{
+			name = name.substring(1, name.length() - 1);
+		}
+		try
+		{
+			return Charset.forName(name);
+		}
+		catch (IllegalCharsetNameException e)
+		{
+			return default_charset;
+		}
+		catch (UnsupportedCharsetException e)
+		{
+			return default_charset;
+		}
+	}
+
+	/**
+	 * A stream that fails once more than a given number of bytes have been
+	 * read from it
+	 */
+	protected class LimitedInputStream extends FilterInputStream
+	{
+		/**
+		 * The number of bytes that can still be read
+		 */
+		protected long m_remaining;
+
+		/**
+		 * Creates a new limited stream
+		 * @param in The underlying stream
+		 * @param limit The maximum number of bytes
+		 */
+		public LimitedInputStream(InputStream in, long limit)
+		{
+			super(in);
+			m_remaining = limit;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			int b = super.read();
+			if (b >= 0 && --m_remaining < 0)
+			{
+				throw tooLarge();
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			int read = super.read(b, off, len);
+			if (read > 0)
+			{
+				m_remaining -= read;
+				if (m_remaining < 0)
+				{
+					throw tooLarge();
+				}
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException
+		{
+			long skipped = super.skip(n);
+			m_remaining -= skipped;
+			if (m_remaining < 0)
+			{
+				throw tooLarge();
+			}
+			return skipped;
+		}
+
+		@Override
+		public boolean markSupported()
+		{
+			return false;
+		}
+	}
+}
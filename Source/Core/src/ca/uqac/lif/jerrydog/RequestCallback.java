@@ -27,6 +27,12 @@ public abstract class RequestCallback
 	 */
 	public static enum Method {GET, POST, PUT, DELETE};
 
+	/**
+	 * A name identifying this callback in statistics, or null to use a
+	 * default name
+	 */
+	protected String m_name = null;
+
 	/**
 	 * Creates a callback
 	 */
@@ -35,6 +41,33 @@ public abstract class RequestCallback
 		super();
 	}
 
+	/**
+	 * Gets the name identifying this callback in statistics, such as
+	 * those collected by {@link RequestMetrics}
+	 * @return The name set with {@link #setName(String)}, or by default the
+	 * name of the callback's class
+	 */
+	public String getName()
+	{
+		if (m_name != null)
+		{
+			return m_name;
+		}
+		String name = getClass().getSimpleName();
+		return name.isEmpty() ? getClass().getName() : name;
+	}
+
+	/**
+	 * Sets the name identifying this callback in statistics
+	 * @param name The name
+	 * @return This callback
+	 */
+	public RequestCallback setName(String name)
+	{
+		m_name = name;
+		return this;
+	}
+
 	/**
 	 * Determines whether the request contained in the argument should
 	 * be handled by this callback
@@ -70,5 +103,27 @@ public abstract class RequestCallback
 			return "DELETE";
 		}
 		return "";
-	}  
+	}
+
+	/**
+	 * Creates a method out of a string, regardless of case
+	 * @param s The string
+	 * @return The method, or null if the string is not one of the methods
+	 * in {@link Method}
+	 */
+	public static final Method parseMethod(String s)
+	{
+		if (s == null)
+		{
+			return null;
+		}
+		for (Method m : Method.values())
+		{
+			if (s.equalsIgnoreCase(m.name()))
+			{
+				return m;
+			}
+		}
+		return null;
+	}
 }
@@ -0,0 +1,313 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ca.uqac.lif.jerrydog.RequestCallback.Method;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+/**
+ * An exchange that remembers what was parsed from its request. The
+ * {@link Server} wraps each exchange into a context before giving it to
+ * the callbacks, so that the method and the path of the request are
+ * parsed once, however many callbacks are asked whether they
+ * {@link RequestCallback#fire(HttpExchange) fire}; the query and the
+ * cookies are only parsed if a callback asks for them, and then at most
+ * once. Every other method is passed on to the wrapped exchange.
+ * <p>
+ * Callbacks obtain the context of an exchange with
+ * {@link #of(HttpExchange)}. A context is meant to be used by one thread
+ * at a time, like the exchange it wraps.
+ * @author Sylvain Hallé
+ */
+public class RequestContext extends HttpExchange
+{
+	/**
+	 * The exchange
+	 */
+	protected final HttpExchange m_exchange;
+
+	/**
+	 * The method of the request, or null if it is not one of the methods
+	 * in {@link Method}
+	 */
+	protected final Method m_method;
+
+	/**
+	 * The URI of the request
+	 */
+	protected final URI m_uri;
+
+	/**
+	 * The decoded path of the request
+	 */
+	protected final String m_path;
+
+	/**
+	 * The parameters of the query, or null if they are not parsed yet
+	 */
+	protected ParameterMap m_query = null;
+
+	/**
+	 * The cookies of the request, or null if they are not parsed yet
+	 */
+	protected Map<String,String> m_cookies = null;
+
+	/**
+	 * The first value of the headers asked for so far
+	 */
+	protected Map<String,String> m_headers = null;
+
+	/**
+	 * Creates a context
+	 * @param t The exchange
+	 */
+	protected RequestContext(HttpExchange t)
+	{
+		super();
+		m_exchange = t;
+		m_method = RequestCallback.parseMethod(t.getRequestMethod());
+		m_uri = t.getRequestURI();
+		m_path = m_uri == null ? null : m_uri.getPath();
+	}
+
+	/**
+	 * Gets the context of an exchange
+	 * @param t The exchange
+	 * @return The exchange itself if it is already a context, and
+	 * otherwise a new context wrapping it
+	 */
+	public static RequestContext of(HttpExchange t)
+	{
+		if (t instanceof RequestContext)
+		{
+			return (RequestContext) t;
+		}
+		return new RequestContext(t);
+	}
+
+	/**
+	 * Gets the exchange wrapped by this context
+	 * @return The exchange
+	 */
+	public HttpExchange getExchange()
+	{
+		return m_exchange;
+	}
+
+	/**
+	 * Gets the method of the request
+	 * @return The method, or null if it is not one of the methods in
+	 * {@link Method}
+	 */
+	public Method getMethod()
+	{
+		return m_method;
+	}
+
+	/**
+	 * Gets the decoded path of the request
+	 * @return The path
+	 */
+	public String getPath()
+	{
+		return m_path;
+	}
+
+	/**
+	 * Gets the parameters of the query of the request, parsing them the
+	 * first time. The map is shared by all the callers: use
+	 * {@link ParameterMap#ParameterMap(ParameterMap)} to obtain a copy
+	 * that can be modified.
+	 * @return The parameters
+	 * @throws HttpException If the query exceeds the limits of the
+	 * {@link QueryParser}
+	 */
+	public ParameterMap getQuery()
+	{
+		if (m_query == null)
+		{
+			m_query = Server.queryToMap(m_uri == null ? null : m_uri.getRawQuery(), Method.GET);
+		}
+		return m_query;
+	}
+
+	/**
+	 * Gets the cookies sent with the request, parsing them the first time
+	 * with {@link Cookie#parse(List)}. When a name appears more than once,
+	 * its first value is kept.
+	 * @return An unmodifiable map from the names of the cookies to their
+	 * values
+	 */
+	public Map<String,String> getCookies()
+	{
+		if (m_cookies == null)
+		{
+			Map<String,String> cookies = Cookie.parse(m_exchange.getRequestHeaders().get("Cookie"));
+			m_cookies = Collections.unmodifiableMap(cookies);
+		}
+		return m_cookies;
+	}
+
+	/**
+	 * Gets the value of a cookie sent with the request
+	 * @param name The name of the cookie
+	 * @return The value, or null if there is no cookie with this name
+	 */
+	public String getCookie(String name)
+	{
+		return getCookies().get(name);
+	}
+
+	/**
+	 * Gets the first value of a header of the request. The value is
+	 * remembered, so that asking again for the same header costs a
+	 * single lookup.
+	 * @param name The name of the header
+	 * @return The value, or null if the header is absent
+	 */
+	public String getHeader(String name)
+	{
+		if (m_headers == null)
+		{
+			m_headers = new HashMap<String,String>();
+		}
+		else if (m_headers.containsKey(name))
+		{
+			return m_headers.get(name);
+		}
+		String value = m_exchange.getRequestHeaders().getFirst(name);
+		m_headers.put(name, value);
+		return value;
+	}
+
+	@Override
+	public Headers getRequestHeaders()
+	{
+		return m_exchange.getRequestHeaders();
+	}
+
+	@Override
+	public Headers getResponseHeaders()
+	{
+		return m_exchange.getResponseHeaders();
+	}
+
+	@Override
+	public URI getRequestURI()
+	{
+		return m_uri;
+	}
+
+	@Override
+	public String getRequestMethod()
+	{
+		return m_exchange.getRequestMethod();
+	}
+
+	@Override
+	public HttpContext getHttpContext()
+	{
+		return m_exchange.getHttpContext();
+	}
+
+	@Override
+	public void close()
+	{
+		m_exchange.close();
+	}
+
+	@Override
+	public InputStream getRequestBody()
+	{
+		return m_exchange.getRequestBody();
+	}
+
+	@Override
+	public OutputStream getResponseBody()
+	{
+		return m_exchange.getResponseBody();
+	}
+
+	@Override
+	public void sendResponseHeaders(int code, long length) throws IOException
+	{
+		m_exchange.sendResponseHeaders(code, length);
+	}
+
+	@Override
+	public InetSocketAddress getRemoteAddress()
+	{
+		return m_exchange.getRemoteAddress();
+	}
+
+	@Override
+	public int getResponseCode()
+	{
+		return m_exchange.getResponseCode();
+	}
+
+	@Override
+	public InetSocketAddress getLocalAddress()
+	{
+		return m_exchange.getLocalAddress();
+	}
+
+	@Override
+	public String getProtocol()
+	{
+		return m_exchange.getProtocol();
+	}
+
+	@Override
+	public Object getAttribute(String name)
+	{
+		return m_exchange.getAttribute(name);
+	}
+
+	@Override
+	public void setAttribute(String name, Object value)
+	{
+		m_exchange.setAttribute(name, value);
+	}
+
+	@Override
+	public void setStreams(InputStream i, OutputStream o)
+	{
+		m_exchange.setStreams(i, o);
+	}
+
+	@Override
+	public HttpPrincipal getPrincipal()
+	{
+		return m_exchange.getPrincipal();
+	}
+}
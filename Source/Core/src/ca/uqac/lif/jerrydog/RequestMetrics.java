@@ -0,0 +1,415 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics on the requests processed by a {@link Server}, kept for each
+ * callback: the number of requests for each status code, the number of
+ * errors (status codes 500 and above), the number of bytes sent, and a
+ * {@link LatencyHistogram} of the time taken to answer, both overall and
+ * for each class of status codes (2xx, 4xx, etc.). Requests that no
+ * callback accepts are counted under the name {@value #UNMATCHED}.
+ * <p>
+ * Recording a request only updates counters that are designed for
+ * concurrent updates; the request path never takes a lock.
+ * @author Sylvain Hallé
+ */
+public class RequestMetrics
+{
+	/**
+	 * The name under which requests that no callback accepts are counted
+	 */
+	public static final String UNMATCHED = "unmatched";
+
+	/**
+	 * The statistics of each callback
+	 */
+	protected final Map<RequestCallback,Stats> m_stats = new ConcurrentHashMap<RequestCallback,Stats>();
+
+	/**
+	 * The statistics of requests that no callback accepts
+	 */
+	protected final Stats m_unmatched = new Stats();
+
+	/**
+	 * Creates an empty set of statistics
+	 */
+	public RequestMetrics()
+	{
+		super();
+	}
+
+	/**
+	 * Records a request
+	 * @param cb The callback that answered the request, or null if none did
+	 * @param cbr The response sent
+	 * @param nanos The time taken to answer, in nanoseconds
+	 */
+	public void record(RequestCallback cb, CallbackResponse cbr, long nanos)
+	{
+		long bytes;
+		if (cbr.isStreaming())
+		{
+			bytes = Math.max(0, cbr.getContentLength());
+		}
+		else
+		{
+			byte[] contents = cbr.getContents();
+			bytes = contents == null ? 0 : contents.length;
+		}
+		record(cb, cbr.getCode(), bytes, nanos);
+	}
+
+	/**
+	 * Records a request
+	 * @param cb The callback that answered the request, or null if none did
+	 * @param code The status code of the response
+	 * @param bytes The number of bytes in the body of the response
+	 * @param nanos The time taken to answer, in nanoseconds
+	 */
+	public void record(RequestCallback cb, int code, long bytes, long nanos)
+	{
+		Stats s;
+		if (cb == null)
+		{
+			s = m_unmatched;
+		}
+		else
+		{
+			s = m_stats.get(cb);
+			if (s == null)
+			{
+				Stats new_stats = new Stats();
+				s = m_stats.putIfAbsent(cb, new_stats);
+				if (s == null)
+				{
+					s = new_stats;
+				}
+			}
+		}
+		s.record(code, bytes, nanos);
+	}
+
+	/**
+	 * Gets the statistics of each callback, merging the callbacks that have
+	 * the same name
+	 * @return A map from a callback's name to its statistics, sorted by name
+	 */
+	public Map<String,Stats> getStats()
+	{
+		Map<String,Stats> out = new TreeMap<String,Stats>();
+		for (Map.Entry<RequestCallback,Stats> e : m_stats.entrySet())
+		{
+			addTo(out, e.getKey().getName(), e.getValue());
+		}
+		if (m_unmatched.getRequestCount() > 0)
+		{
+			addTo(out, UNMATCHED, m_unmatched);
+		}
+		return out;
+	}
+
+	/**
+	 * Gets the statistics of a callback
+	 * @param cb The callback
+	 * @return The statistics, or null if the callback has not answered any
+	 * request
+	 */
+	public Stats getStats(RequestCallback cb)
+	{
+		return cb == null ? m_unmatched : m_stats.get(cb);
+	}
+
+	/**
+	 * Forgets all the requests recorded so far
+	 */
+	public void reset()
+	{
+		m_stats.clear();
+		m_unmatched.reset();
+	}
+
+	/**
+	 * Adds statistics to a map, merging them with those already under the
+	 * same name
+	 * @param map The map
+	 * @param name The name
+	 * @param s The statistics
+	 */
+	protected static void addTo(Map<String,Stats> map, String name, Stats s)
+	{
+		Stats existing = map.get(name);
+		if (existing == null)
+		{
+			existing = new Stats();
+			map.put(name, existing);
+		}
+		existing.add(s);
+	}
+
+	/**
+	 * The statistics of a callback
+	 */
+	public static class Stats
+	{
+		/**
+		 * The highest status code counted separately; other codes are
+		 * counted under 0
+		 */
+		protected static final int MAX_CODE = 599;
+
+		/**
+		 * The number of classes of status codes; codes outside of 1xx to
+		 * 5xx are counted under class 0
+		 */
+		protected static final int CLASS_COUNT = 6;
+
+		/**
+		 * The number of requests for each status code
+		 */
+		protected final AtomicLongArray m_codes = new AtomicLongArray(MAX_CODE + 1);
+
+		/**
+		 * The number of requests
+		 */
+		protected final LongAdder m_requests = new LongAdder();
+
+		/**
+		 * The number of requests answered with an error
+		 */
+		protected final LongAdder m_errors = new LongAdder();
+
+		/**
+		 * The number of bytes sent
+		 */
+		protected final LongAdder m_bytes = new LongAdder();
+
+		/**
+		 * The time taken to answer requests
+		 */
+		protected final LatencyHistogram m_latency = new LatencyHistogram();
+
+		/**
+		 * The time taken to answer requests, for each class of status codes.
+		 * A histogram is only created once a code of its class is sent.
+		 */
+		protected final AtomicReferenceArray<LatencyHistogram> m_classLatency = new AtomicReferenceArray<LatencyHistogram>(CLASS_COUNT);
+
+		/**
+		 * Records a request
+		 * @param code The status code of the response
+		 * @param bytes The number of bytes in the body of the response
+		 * @param nanos The time taken to answer, in nanoseconds
+		 */
+		public void record(int code, long bytes, long nanos)
+		{
+			m_codes.incrementAndGet(code > 0 && code <= MAX_CODE ? code : 0);
+			m_requests.increment();
+			if (code >= 500)
+			{
+				m_errors.increment();
+			}
+			m_bytes.add(bytes);
+			m_latency.recordNanos(nanos);
+			getClassHistogram(classOf(code)).recordNanos(nanos);
+		}
+
+		/**
+		 * Gets the class of a status code
+		 * @param code The status code
+		 * @return The class, from 1 to 5, or 0 for codes outside of these
+		 * classes
+		 */
+		public static int classOf(int code)
+		{
+			return code >= 100 && code <= MAX_CODE ? code / 100 : 0;
+		}
+
+		/**
+		 * Gets the histogram of a class of status codes, creating it if
+		 * needed
+		 * @param status_class The class
+		 * @return The histogram
+		 */
+		protected LatencyHistogram getClassHistogram(int status_class)
+		{
+			LatencyHistogram h = m_classLatency.get(status_class);
+			if (h == null)
+			{
+				m_classLatency.compareAndSet(status_class, null, new LatencyHistogram());
+				h = m_classLatency.get(status_class);
+			}
+			return h;
+		}
+
+		/**
+		 * Adds the statistics of another callback to these
+		 * @param other The other statistics
+		 */
+		protected void add(Stats other)
+		{
+			for (int i = 0; i <= MAX_CODE; i++)
+			{
+				long c = other.m_codes.get(i);
+				if (c != 0)
+				{
+					m_codes.addAndGet(i, c);
+				}
+			}
+			m_requests.add(other.m_requests.sum());
+			m_errors.add(other.m_errors.sum());
+			m_bytes.add(other.m_bytes.sum());
+			m_latency.add(other.m_latency);
+			for (int i = 0; i < CLASS_COUNT; i++)
+			{
+				LatencyHistogram h = other.m_classLatency.get(i);
+				if (h != null)
+				{
+					getClassHistogram(i).add(h);
+				}
+			}
+		}
+
+		/**
+		 * Forgets all the requests recorded so far
+		 */
+		protected void reset()
+		{
+			for (int i = 0; i <= MAX_CODE; i++)
+			{
+				m_codes.set(i, 0);
+			}
+			m_requests.reset();
+			m_errors.reset();
+			m_bytes.reset();
+			m_latency.reset();
+			for (int i = 0; i < CLASS_COUNT; i++)
+			{
+				m_classLatency.set(i, null);
+			}
+		}
+
+		/**
+		 * Gets the number of requests
+		 * @return The number of requests
+		 */
+		public long getRequestCount()
+		{
+			return m_requests.sum();
+		}
+
+		/**
+		 * Gets the number of requests answered with a status code of 500 or
+		 * above
+		 * @return The number of requests
+		 */
+		public long getErrorCount()
+		{
+			return m_errors.sum();
+		}
+
+		/**
+		 * Gets the number of bytes sent in the body of responses
+		 * @return The number of bytes
+		 */
+		public long getBytesOut()
+		{
+			return m_bytes.sum();
+		}
+
+		/**
+		 * Gets the number of requests answered with a given status code
+		 * @param code The status code
+		 * @return The number of requests
+		 */
+		public long getCodeCount(int code)
+		{
+			return code > 0 && code <= MAX_CODE ? m_codes.get(code) : 0;
+		}
+
+		/**
+		 * Gets the status codes sent at least once
+		 * @return The status codes, in increasing order
+		 */
+		public List<Integer> getCodes()
+		{
+			List<Integer> out = new ArrayList<Integer>();
+			for (int i = 1; i <= MAX_CODE; i++)
+			{
+				if (m_codes.get(i) != 0)
+				{
+					out.add(i);
+				}
+			}
+			return out;
+		}
+
+		/**
+		 * Gets the histogram of the time taken to answer requests
+		 * @return The histogram
+		 */
+		public LatencyHistogram getLatency()
+		{
+			return m_latency;
+		}
+
+		/**
+		 * Gets the histogram of the time taken to answer requests with a
+		 * class of status codes
+		 * @param status_class The class, as given by {@link #classOf(int)}
+		 * @return The histogram, or null if no code of that class was sent
+		 */
+		public LatencyHistogram getLatency(int status_class)
+		{
+			return status_class >= 0 && status_class < CLASS_COUNT ? m_classLatency.get(status_class) : null;
+		}
+
+		/**
+		 * Gets the classes of the status codes sent at least once
+		 * @return The classes, in increasing order
+		 */
+		public List<Integer> getClasses()
+		{
+			List<Integer> out = new ArrayList<Integer>();
+			for (int i = 0; i < CLASS_COUNT; i++)
+			{
+				if (m_classLatency.get(i) != null)
+				{
+					out.add(i);
+				}
+			}
+			return out;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "requests=" + getRequestCount() + " errors=" + getErrorCount()
+					+ " bytes=" + getBytesOut() + " " + m_latency;
+		}
+	}
+}
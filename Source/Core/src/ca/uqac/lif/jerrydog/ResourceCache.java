@@ -0,0 +1,270 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory cache of the contents of resources, bounded by a total
+ * number of bytes. When adding an entry would exceed this budget, the
+ * least recently used entries are evicted. The cache keeps count of hits,
+ * misses and evictions.
+ * <p>
+ * The arrays returned by {@link #get(String)} are shared by all callers
+ * and must not be modified.
+ * @author Sylvain Hallé
+ */
+public class ResourceCache
+{
+	/**
+	 * The maximum number of bytes held by the cache
+	 */
+	protected final long m_maxBytes;
+
+	/**
+	 * The maximum size of a single entry; larger resources are not cached
+	 */
+	protected final long m_maxEntryBytes;
+
+	/**
+	 * The entries, from least to most recently used
+	 */
+	protected final LinkedHashMap<String,byte[]> m_entries;
+
+	/**
+	 * The number of bytes currently held by the cache
+	 */
+	protected long m_size = 0;
+
+	/**
+	 * The number of lookups that found an entry
+	 */
+	protected final AtomicLong m_hits = new AtomicLong();
+
+	/**
+	 * The number of lookups that did not find an entry
+	 */
+	protected final AtomicLong m_misses = new AtomicLong();
+
+	/**
+	 * The number of entries evicted to make room for others
+	 */
+	protected final AtomicLong m_evictions = new AtomicLong();
+
+	/**
+	 * Creates a new cache. A single entry can take up to a quarter of the
+	 * cache's budget.
+	 * @param max_bytes The maximum number of bytes held by the cache
+	 */
+	public ResourceCache(long max_bytes)
+	{
+		this(max_bytes, max_bytes / 4);
+	}
+
+	/**
+	 * Creates a new cache
+	 * @param max_bytes The maximum number of bytes held by the cache
+	 * @param max_entry_bytes The maximum size of a single entry
+	 */
+	public ResourceCache(long max_bytes, long max_entry_bytes)
+	{
+		super();
+		m_maxBytes = max_bytes;
+		m_maxEntryBytes = Math.min(max_bytes, max_entry_bytes);
+		m_entries = new LinkedHashMap<String,byte[]>(64, 0.75f, true);
+	}
+
+	/**
+	 * Gets the contents of a resource
+	 * @param key The name of the resource
+	 * @return The contents, or null if the resource is not in the cache
+	 */
+	public byte[] get(String key)
+	{
+		byte[] contents;
+		synchronized (m_entries)
+		{
+			contents = m_entries.get(key);
+		}
+		if (contents == null)
+		{
+			m_misses.incrementAndGet();
+		}
+		else
+		{
+			m_hits.incrementAndGet();
+		}
+		return contents;
+	}
+
+	/**
+	 * Puts the contents of a resource into the cache, evicting the least
+	 * recently used entries if necessary
+	 * @param key The name of the resource
+	 * @param contents The contents
+	 * @return true if the contents have been cached, false if they are too
+	 * large for the cache
+	 */
+	public boolean put(String key, byte[] contents)
+	{
+		if (contents.length > m_maxEntryBytes)
+		{
+			return false;
+		}
+		synchronized (m_entries)
+		{
+			byte[] old = m_entries.put(key, contents);
+			if (old != null)
+			{
+				m_size -= old.length;
+			}
+			m_size += contents.length;
+			Iterator<Map.Entry<String,byte[]>> it = m_entries.entrySet().iterator();
+			while (m_size > m_maxBytes && it.hasNext())
+			{
+				Map.Entry<String,byte[]> e = it.next();
+				m_size -= e.getValue().length;
+				it.remove();
+				m_evictions.incrementAndGet();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Determines whether there is room left in the cache for a given
+	 * number of bytes without evicting anything
+	 * @param size The number of bytes
+	 * @return true if there is room left
+	 */
+	public boolean hasRoomFor(long size)
+	{
+		synchronized (m_entries)
+		{
+			return m_size + size <= m_maxBytes && size <= m_maxEntryBytes;
+		}
+	}
+
+	/**
+	 * Determines whether an array is the one held by the cache for a
+	 * resource. Unlike {@link #get(String)}, this is not counted as a hit
+	 * or a miss.
+	 * @param key The name of the resource
+	 * @param contents The array
+	 * @return true if the cache holds this very array for the resource
+	 */
+	public boolean holds(String key, byte[] contents)
+	{
+		synchronized (m_entries)
+		{
+			return contents != null && m_entries.get(key) == contents;
+		}
+	}
+
+	/**
+	 * Determines whether an entry of a given size can be put into the cache
+	 * @param size The size of the entry
+	 * @return true if the entry is not too large for the cache
+	 */
+	public boolean isCacheable(long size)
+	{
+		return size <= m_maxEntryBytes;
+	}
+
+	/**
+	 * Empties the cache. The counters are not reset.
+	 */
+	public void clear()
+	{
+		synchronized (m_entries)
+		{
+			m_entries.clear();
+			m_size = 0;
+		}
+	}
+
+	/**
+	 * Gets the number of bytes held by the cache
+	 * @return The number of bytes
+	 */
+	public long getSize()
+	{
+		synchronized (m_entries)
+		{
+			return m_size;
+		}
+	}
+
+	/**
+	 * Gets the maximum number of bytes held by the cache
+	 * @return The number of bytes
+	 */
+	public long getMaxSize()
+	{
+		return m_maxBytes;
+	}
+
+	/**
+	 * Gets the number of entries in the cache
+	 * @return The number of entries
+	 */
+	public int getEntryCount()
+	{
+		synchronized (m_entries)
+		{
+			return m_entries.size();
+		}
+	}
+
+	/**
+	 * Gets the number of lookups that found an entry
+	 * @return The number of hits
+	 */
+	public long getHitCount()
+	{
+		return m_hits.get();
+	}
+
+	/**
+	 * Gets the number of lookups that did not find an entry
+	 * @return The number of misses
+	 */
+	public long getMissCount()
+	{
+		return m_misses.get();
+	}
+
+	/**
+	 * Gets the number of entries evicted to make room for others
+	 * @return The number of evictions
+	 */
+	public long getEvictionCount()
+	{
+		return m_evictions.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "entries=" + getEntryCount() + " bytes=" + getSize() + "/" + m_maxBytes
+				+ " hits=" + getHitCount() + " misses=" + getMissCount() + " evictions=" + getEvictionCount();
+	}
+}
@@ -0,0 +1,447 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * A server-side store of complete responses, shared by any number of
+ * {@link ResponseCacheCallback}s. The store is bounded by a total number of
+ * bytes, and evicts the least recently used responses when this budget is
+ * exceeded. It also holds the executor on which stale responses are
+ * refreshed in the background.
+ * @author Sylvain Hallé
+ */
+public class ResponseCache
+{
+	/**
+	 * An estimate of the memory taken by an entry besides its body
+	 */
+	protected static final int s_entryOverhead = 256;
+
+	/**
+	 * The maximum number of bytes held by the cache
+	 */
+	protected final long m_maxBytes;
+
+	/**
+	 * The entries, from least to most recently used
+	 */
+	protected final LinkedHashMap<String,Entry> m_entries;
+
+	/**
+	 * The number of bytes currently held by the cache
+	 */
+	protected long m_size = 0;
+
+	/**
+	 * The executor used to refresh stale entries
+	 */
+	protected Executor m_refreshExecutor = null;
+
+	/**
+	 * Counters
+	 */
+	protected final AtomicLong m_hits = new AtomicLong();
+	protected final AtomicLong m_staleHits = new AtomicLong();
+	protected final AtomicLong m_misses = new AtomicLong();
+	protected final AtomicLong m_refreshes = new AtomicLong();
+	protected final AtomicLong m_evictions = new AtomicLong();
+
+	/**
+	 * Creates a new response cache
+	 * @param max_bytes The maximum number of bytes held by the cache
+	 */
+	public ResponseCache(long max_bytes)
+	{
+		super();
+		m_maxBytes = max_bytes;
+		m_entries = new LinkedHashMap<String,Entry>(64, 0.75f, true);
+	}
+
+	/**
+	 * Sets the executor on which stale responses are refreshed. By default,
+	 * the cache creates its own small pool of threads when first needed.
+	 * @param e The executor
+	 */
+	public void setRefreshExecutor(Executor e)
+	{
+		synchronized (this)
+		{
+			m_refreshExecutor = e;
+		}
+	}
+
+	/**
+	 * Gets the executor on which stale responses are refreshed
+	 * @return The executor
+	 */
+	public Executor getRefreshExecutor()
+	{
+		synchronized (this)
+		{
+			if (m_refreshExecutor == null)
+			{
+				m_refreshExecutor = createDefaultExecutor();
+			}
+			return m_refreshExecutor;
+		}
+	}
+
+	/**
+	 * Gets an entry
+	 * @param key The key of the entry
+	 * @return The entry, or null if there is none
+	 */
+	public Entry get(String key)
+	{
+		synchronized (m_entries)
+		{
+			return m_entries.get(key);
+		}
+	}
+
+	/**
+	 * Puts an entry into the cache, evicting the least recently used
+	 * entries if necessary
+	 * @param key The key of the entry
+	 * @param e The entry
+	 * @return true if the entry has been stored, false if it is too large
+	 * for the cache
+	 */
+	public boolean put(String key, Entry e)
+	{
+		long size = e.getSize();
+		if (size > m_maxBytes / 4)
+		{
+			return false;
+		}
+		synchronized (m_entries)
+		{
+			Entry old = m_entries.put(key, e);
+			if (old != null)
+			{
+				m_size -= old.getSize();
+			}
+			m_size += size;
+			Iterator<Map.Entry<String,Entry>> it = m_entries.entrySet().iterator();
+			while (m_size > m_maxBytes && it.hasNext())
+			{
+				Map.Entry<String,Entry> me = it.next();
+				m_size -= me.getValue().getSize();
+				it.remove();
+				m_evictions.incrementAndGet();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Removes an entry
+	 * @param key The key of the entry
+	 */
+	public void remove(String key)
+	{
+		synchronized (m_entries)
+		{
+			Entry old = m_entries.remove(key);
+			if (old != null)
+			{
+				m_size -= old.getSize();
+			}
+		}
+	}
+
+	/**
+	 * Empties the cache. The counters are not reset.
+	 */
+	public void clear()
+	{
+		synchronized (m_entries)
+		{
+			m_entries.clear();
+			m_size = 0;
+		}
+	}
+
+	/**
+	 * Gets the number of entries in the cache
+	 * @return The number of entries
+	 */
+	public int getEntryCount()
+	{
+		synchronized (m_entries)
+		{
+			return m_entries.size();
+		}
+	}
+
+	/**
+	 * Gets the number of bytes held by the cache
+	 * @return The number of bytes
+	 */
+	public long getSize()
+	{
+		synchronized (m_entries)
+		{
+			return m_size;
+		}
+	}
+
+	/**
+	 * Gets the number of requests answered with a fresh response
+	 * @return The number of requests
+	 */
+	public long getHitCount()
+	{
+		return m_hits.get();
+	}
+
+	/**
+	 * Gets the number of requests answered with a stale response while it
+	 * was being refreshed
+	 * @return The number of requests
+	 */
+	public long getStaleHitCount()
+	{
+		return m_staleHits.get();
+	}
+
+	/**
+	 * Gets the number of requests for which no usable response was found
+	 * @return The number of requests
+	 */
+	public long getMissCount()
+	{
+		return m_misses.get();
+	}
+
+	/**
+	 * Gets the number of background refreshes started
+	 * @return The number of refreshes
+	 */
+	public long getRefreshCount()
+	{
+		return m_refreshes.get();
+	}
+
+	/**
+	 * Gets the number of entries evicted to make room for others
+	 * @return The number of evictions
+	 */
+	public long getEvictionCount()
+	{
+		return m_evictions.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "entries=" + getEntryCount() + " bytes=" + getSize() + "/" + m_maxBytes
+				+ " hits=" + getHitCount() + " stale-hits=" + getStaleHitCount()
+				+ " misses=" + getMissCount() + " refreshes=" + getRefreshCount()
+				+ " evictions=" + getEvictionCount();
+	}
+
+	/**
+	 * Creates the executor used by default to refresh stale entries
+	 * @return The executor
+	 */
+	protected static ExecutorService createDefaultExecutor()
+	{
+		return Executors.newFixedThreadPool(2, new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "jerrydog-cache-refresh");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * A stored response
+	 */
+	public static class Entry
+	{
+		/**
+		 * The response code
+		 */
+		protected final int m_code;
+
+		/**
+		 * The headers set on the response object
+		 */
+		protected final Map<String,String> m_headers;
+
+		/**
+		 * The headers written directly to the exchange by the callback
+		 */
+		protected final Map<String,List<String>> m_exchangeHeaders;
+
+		/**
+		 * The body
+		 */
+		protected final byte[] m_contents;
+
+		/**
+		 * The time at which the response was produced
+		 */
+		protected final long m_created;
+
+		/**
+		 * The time after which the response is stale
+		 */
+		protected final long m_expires;
+
+		/**
+		 * The time after which the stale response can no longer be served
+		 */
+		protected final long m_staleUntil;
+
+		/**
+		 * Whether a refresh of this entry is in progress
+		 */
+		protected final AtomicBoolean m_refreshing = new AtomicBoolean(false);
+
+		/**
+		 * Creates an entry from a response
+		 * @param cbr The response, whose contents must not be streamed
+		 * @param now The current time
+		 * @param ttl The time during which the response is fresh
+		 * @param stale The time during which the response can still be
+		 * served once it is stale
+		 */
+		public Entry(CallbackResponse cbr, long now, long ttl, long stale)
+		{
+			super();
+			m_code = cbr.getCode();
+			Map<String,String> headers = new HashMap<String,String>(cbr.getHeaders());
+			for (String name : cbr.getHeaders().keySet())
+			{
+				if (name.equalsIgnoreCase("Set-Cookie"))
+				{
+					headers.remove(name);
+				}
+			}
+			m_headers = Collections.unmodifiableMap(headers);
+			Map<String,List<String>> exchange_headers = new HashMap<String,List<String>>();
+			for (Map.Entry<String,List<String>> e : cbr.getExchange().getResponseHeaders().entrySet())
+			{
+				if (e.getKey().equalsIgnoreCase("Set-Cookie"))
+				{
+					// A cookie belongs to the client it was sent to
+					continue;
+				}
+				exchange_headers.put(e.getKey(), new ArrayList<String>(e.getValue()));
+			}
+			m_exchangeHeaders = Collections.unmodifiableMap(exchange_headers);
+			m_contents = cbr.getContents();
+			m_created = now;
+			m_expires = now + ttl;
+			m_staleUntil = m_expires + stale;
+		}
+
+		/**
+		 * Determines whether the entry is fresh
+		 * @param now The current time
+		 * @return true if the entry is fresh
+		 */
+		public boolean isFresh(long now)
+		{
+			return now < m_expires;
+		}
+
+		/**
+		 * Determines whether the entry can be served while it is refreshed
+		 * @param now The current time
+		 * @return true if the entry is stale but still usable
+		 */
+		public boolean isUsableWhileStale(long now)
+		{
+			return now < m_staleUntil;
+		}
+
+		/**
+		 * Marks the entry as being refreshed
+		 * @return true if the caller must refresh the entry, false if a
+		 * refresh is already in progress
+		 */
+		public boolean startRefresh()
+		{
+			return m_refreshing.compareAndSet(false, true);
+		}
+
+		/**
+		 * Marks the entry as no longer being refreshed, so that a failed
+		 * refresh can be attempted again
+		 */
+		public void endRefresh()
+		{
+			m_refreshing.set(false);
+		}
+
+		/**
+		 * Gets the approximate memory taken by this entry
+		 * @return The number of bytes
+		 */
+		public long getSize()
+		{
+			return m_contents.length + s_entryOverhead;
+		}
+
+		/**
+		 * Creates a response to an exchange out of this entry
+		 * @param t The exchange
+		 * @param now The current time
+		 * @return The response
+		 */
+		public CallbackResponse toResponse(HttpExchange t, long now)
+		{
+			CallbackResponse cbr = new CallbackResponse(t, m_code, m_contents, m_headers.get("Content-Type"));
+			for (Map.Entry<String,String> e : m_headers.entrySet())
+			{
+				cbr.setHeader(e.getKey(), e.getValue());
+			}
+			for (Map.Entry<String,List<String>> e : m_exchangeHeaders.entrySet())
+			{
+				t.getResponseHeaders().put(e.getKey(), new ArrayList<String>(e.getValue()));
+			}
+			cbr.setHeader("Age", Long.toString(Math.max(0, (now - m_created) / 1000)));
+			// The same array is sent to every client
+			cbr.setStaticContents(true);
+			return cbr;
+		}
+	}
+}
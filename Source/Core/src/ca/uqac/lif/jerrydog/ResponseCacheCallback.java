@@ -0,0 +1,435 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Wraps a callback and keeps its responses in a shared {@link ResponseCache}
+ * for a given time, so that an expensive response is produced once per
+ * period instead of once per request.
+ * <p>
+ * Responses are stored under a key made of the request's method, path and
+ * query, and of the values of the request headers declared with
+ * {@link #addVaryHeader(String)}. Only successful responses to
+ * {@code GET} requests whose contents are held in memory are stored.
+ * Responses that set cookies, or whose <tt>Cache-Control</tt> header
+ * says <tt>no-store</tt> or <tt>private</tt>, belong to a single client
+ * and are never stored.
+ * <p>
+ * Once a response is older than its time-to-live, it can still be served
+ * for a further period, during which a single background task produces a
+ * new one. Concurrent requests for a response that is not in the cache
+ * wait for the first of them to produce it, instead of all calling the
+ * wrapped callback.
+ * @author Sylvain Hallé
+ */
+public class ResponseCacheCallback extends RequestCallback
+{
+	/**
+	 * The maximum time a request waits for another one producing the
+	 * same response, in milliseconds
+	 */
+	protected static final long s_waitTimeout = 30000;
+
+	/**
+	 * The callback this object wraps around
+	 */
+	protected final RequestCallback m_callback;
+
+	/**
+	 * The store of responses
+	 */
+	protected final ResponseCache m_cache;
+
+	/**
+	 * The time during which a response is fresh, in milliseconds
+	 */
+	protected final long m_ttl;
+
+	/**
+	 * The time during which a stale response is still served while it is
+	 * refreshed, in milliseconds
+	 */
+	protected long m_staleWhileRevalidate = 0;
+
+	/**
+	 * The names of the request headers that are part of the key
+	 */
+	protected final List<String> m_varyHeaders = new ArrayList<String>();
+
+	/**
+	 * The keys of the responses currently being produced, with a latch
+	 * released when they are done
+	 */
+	protected final Map<String,CountDownLatch> m_inFlight = new ConcurrentHashMap<String,CountDownLatch>();
+
+	/**
+	 * Creates a new caching callback
+	 * @param callback The callback whose responses are cached
+	 * @param cache The store of responses, which may be shared with other
+	 * callbacks
+	 * @param ttl The time during which a response is fresh, in milliseconds
+	 */
+	public ResponseCacheCallback(RequestCallback callback, ResponseCache cache, long ttl)
+	{
+		super();
+		m_callback = callback;
+		m_cache = cache;
+		m_ttl = ttl;
+	}
+
+	/**
+	 * Sets the time during which a stale response is still served while a
+	 * new one is produced in the background
+	 * @param duration The time, in milliseconds
+	 * @return This callback
+	 */
+	public ResponseCacheCallback setStaleWhileRevalidate(long duration)
+	{
+		m_staleWhileRevalidate = Math.max(0, duration);
+		return this;
+	}
+
+	/**
+	 * Declares a request header on which the response depends. Requests
+	 * with different values for this header are cached separately.
+	 * @param name The name of the header
+	 * @return This callback
+	 */
+	public ResponseCacheCallback addVaryHeader(String name)
+	{
+		m_varyHeaders.add(name);
+		return this;
+	}
+
+	@Override
+	public boolean fire(HttpExchange t)
+	{
+		return m_callback.fire(t);
+	}
+
+	@Override
+	public CallbackResponse process(HttpExchange t)
+	{
+		if (RequestContext.of(t).getMethod() != Method.GET)
+		{
+			return m_callback.process(t);
+		}
+		String key = getKey(t);
+		long now = System.currentTimeMillis();
+		ResponseCache.Entry e = m_cache.get(key);
+		if (e != null)
+		{
+			if (e.isFresh(now))
+			{
+				m_cache.m_hits.incrementAndGet();
+				return e.toResponse(t, now);
+			}
+			if (e.isUsableWhileStale(now))
+			{
+				m_cache.m_staleHits.incrementAndGet();
+				if (e.startRefresh())
+				{
+					refresh(key, e, new RequestSnapshot(t));
+				}
+				return e.toResponse(t, now);
+			}
+		}
+		m_cache.m_misses.incrementAndGet();
+		CountDownLatch latch = new CountDownLatch(1);
+		CountDownLatch other = m_inFlight.putIfAbsent(key, latch);
+		if (other != null)
+		{
+			// Another request is producing the same response: wait for it
+			try
+			{
+				other.await(s_waitTimeout, TimeUnit.MILLISECONDS);
+			}
+			catch (InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+			}
+			now = System.currentTimeMillis();
+			e = m_cache.get(key);
+			if (e != null && e.isFresh(now))
+			{
+				return e.toResponse(t, now);
+			}
+			return m_callback.process(t);
+		}
+		try
+		{
+			CallbackResponse cbr = m_callback.process(t);
+			store(key, cbr);
+			return cbr;
+		}
+		finally
+		{
+			m_inFlight.remove(key);
+			latch.countDown();
+		}
+	}
+
+	/**
+	 * Produces a new response for a stale entry in the background
+	 * @param key The key of the entry
+	 * @param e The entry
+	 * @param snapshot A copy of the request that produced the entry
+	 */
+	protected void refresh(final String key, final ResponseCache.Entry e, final RequestSnapshot snapshot)
+	{
+		m_cache.m_refreshes.incrementAndGet();
+		m_cache.getRefreshExecutor().execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					store(key, m_callback.process(snapshot));
+				}
+				catch (RuntimeException ex)
+				{
+					// Keep serving the stale entry until it expires
+					ex.printStackTrace();
+				}
+				finally
+				{
+					e.endRefresh();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stores a response in the cache, if it can be cached
+	 * @param key The key of the response
+	 * @param cbr The response
+	 */
+	protected void store(String key, CallbackResponse cbr)
+	{
+		if (cbr == null || cbr.getCode() != CallbackResponse.HTTP_OK || cbr.getContents() == null || !isShareable(cbr))
+		{
+			return;
+		}
+		ResponseCache.Entry e = new ResponseCache.Entry(cbr, System.currentTimeMillis(), m_ttl, m_staleWhileRevalidate);
+		if (m_cache.put(key, e))
+		{
+			// The array now belongs to the cache, and is shared by all clients
+			cbr.setStaticContents(true);
+		}
+	}
+
+	/**
+	 * Determines whether a response can be sent to other clients than the
+	 * one it was produced for
+	 * @param cbr The response
+	 * @return false if the response sets a cookie or forbids shared caches
+	 * to store it
+	 */
+	protected static boolean isShareable(CallbackResponse cbr)
+	{
+		for (Map.Entry<String,String> e : cbr.getHeaders().entrySet())
+		{
+			if (!isShareable(e.getKey(), e.getValue()))
+			{
+				return false;
+			}
+		}
+		for (Map.Entry<String,List<String>> e : cbr.getExchange().getResponseHeaders().entrySet())
+		{
+			for (String value : e.getValue())
+			{
+				if (!isShareable(e.getKey(), value))
+				{
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Determines whether a response header allows the response to be sent
+	 * to other clients
+	 * @param name The name of the header
+	 * @param value The value of the header
+	 * @return false if the header sets a cookie or forbids shared caches
+	 * to store the response
+	 */
+	protected static boolean isShareable(String name, String value)
+	{
+		if (name.equalsIgnoreCase("Set-Cookie"))
+		{
+			return false;
+		}
+		if (name.equalsIgnoreCase("Cache-Control") && value != null)
+		{
+			for (String directive : value.split(","))
+			{
+				// Directives may have arguments, as in private="Set-Cookie"
+				String d = directive.trim().toLowerCase();
+				if (d.equals("no-store") || d.equals("private") || d.startsWith("private="))
+				{
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Computes the key of the response to a request
+	 * @param t The exchange
+	 * @return The key
+	 */
+	protected String getKey(HttpExchange t)
+	{
+		URI u = t.getRequestURI();
+		StringBuilder key = new StringBuilder();
+		key.append(t.getRequestMethod()).append(' ').append(u.getRawPath());
+		String query = u.getRawQuery();
+		if (query != null)
+		{
+			key.append('?').append(query);
+		}
+		if (!m_varyHeaders.isEmpty())
+		{
+			Headers h = t.getRequestHeaders();
+			for (String name : m_varyHeaders)
+			{
+				key.append('\n').append(name).append(':');
+				List<String> values = h.get(name);
+				if (values != null)
+				{
+					for (String v : values)
+					{
+						key.append(v).append(',');
+					}
+				}
+			}
+		}
+		return key.toString();
+	}
+
+	/**
+	 * A copy of a request, used to produce a new response once the client
+	 * that sent the original request has been answered
+	 */
+	protected static class RequestSnapshot extends EmptyHttpExchange
+	{
+		/**
+		 * The method of the request
+		 */
+		protected final String m_method;
+
+		/**
+		 * The headers of the request
+		 */
+		protected final Headers m_requestHeaders = new Headers();
+
+		/**
+		 * The headers written by the callback
+		 */
+		protected final Headers m_responseHeaders = new Headers();
+
+		/**
+		 * The addresses of the original connection
+		 */
+		protected final InetSocketAddress m_local;
+		protected final InetSocketAddress m_remote;
+
+		/**
+		 * The protocol of the request
+		 */
+		protected final String m_protocol;
+
+		/**
+		 * Copies a request
+		 * @param t The exchange of the original request
+		 */
+		public RequestSnapshot(HttpExchange t)
+		{
+			super();
+			m_requestUri = t.getRequestURI();
+			m_method = t.getRequestMethod();
+			m_protocol = t.getProtocol();
+			m_local = t.getLocalAddress();
+			m_remote = t.getRemoteAddress();
+			for (Map.Entry<String,List<String>> e : t.getRequestHeaders().entrySet())
+			{
+				m_requestHeaders.put(e.getKey(), new ArrayList<String>(e.getValue()));
+			}
+		}
+
+		@Override
+		public String getRequestMethod()
+		{
+			return m_method;
+		}
+
+		@Override
+		public Headers getRequestHeaders()
+		{
+			return m_requestHeaders;
+		}
+
+		@Override
+		public Headers getResponseHeaders()
+		{
+			return m_responseHeaders;
+		}
+
+		@Override
+		public InputStream getRequestBody()
+		{
+			return new ByteArrayInputStream(new byte[0]);
+		}
+
+		@Override
+		public String getProtocol()
+		{
+			return m_protocol;
+		}
+
+		@Override
+		public InetSocketAddress getLocalAddress()
+		{
+			return m_local;
+		}
+
+		@Override
+		public InetSocketAddress getRemoteAddress()
+		{
+			return m_remote;
+		}
+	}
+}
@@ -0,0 +1,640 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Compresses the body of responses with gzip or deflate, when the client
+ * accepts it. Only responses whose content type is in a configurable list,
+ * and whose body is larger than a threshold, are compressed.
+ * <p>
+ * When a response is marked as having
+ * {@link CallbackResponse#setStaticContents(boolean) static contents}, its
+ * compressed variants are kept for as long as the original array of bytes
+ * is in memory, so that a file served from a cache is compressed only once.
+ * <p>
+ * Compression costs CPU. When the load of the machine, as reported by the
+ * operating system, exceeds a first threshold, responses are compressed
+ * at the fastest level; above a second threshold, they are not compressed
+ * at all, unless a compressed variant is already available.
+ * @author Sylvain Hallé
+ */
+public class ResponseCompressor
+{
+	/**
+	 * Names of the supported encodings
+	 */
+	public static final String GZIP = "gzip";
+	public static final String DEFLATE = "deflate";
+
+	/**
+	 * The interval, in milliseconds, between two readings of the system load
+	 */
+	protected static final long s_loadInterval = 1000;
+
+	/**
+	 * The prefixes of the content types that are compressed
+	 */
+	protected final List<String> m_contentTypes;
+
+	/**
+	 * The minimum size of a body to be compressed, in bytes
+	 */
+	protected int m_minSize = 1024;
+
+	/**
+	 * The compression level, from 1 (fastest) to 9 (smallest)
+	 */
+	protected int m_level = 6;
+
+	/**
+	 * The load per processor above which the fastest level is used
+	 */
+	protected double m_reducedLoad = 0.75;
+
+	/**
+	 * The load per processor above which responses are not compressed
+	 */
+	protected double m_skipLoad = 1.5;
+
+	/**
+	 * The compressed variants of static contents. Arrays use identity for
+	 * equality, so that the variants are found from the original array, and
+	 * are discarded when it is garbage collected.
+	 */
+	protected final Map<byte[],byte[][]> m_variants = new WeakHashMap<byte[],byte[][]>();
+
+	/**
+	 * The variant recorded for contents that do not get smaller when
+	 * compressed
+	 */
+	protected static final byte[] s_notWorth = new byte[0];
+
+	/**
+	 * The last reading of the load per processor
+	 */
+	protected volatile double m_load = 0;
+
+	/**
+	 * The time of the last reading of the load
+	 */
+	protected volatile long m_loadTime = 0;
+
+	/**
+	 * Creates a compressor for the content types that usually benefit
+	 * from compression: text, JSON, JavaScript, XML and SVG
+	 */
+	public ResponseCompressor()
+	{
+		super();
+		m_contentTypes = new ArrayList<String>();
+		m_contentTypes.add("text/");
+		m_contentTypes.add("application/json");
+		m_contentTypes.add("application/javascript");
+		m_contentTypes.add("application/xml");
+		m_contentTypes.add("image/svg+xml");
+	}
+
+	/**
+	 * Adds a content type to compress
+	 * @param prefix The content type, or a prefix of it such as
+	 * <code>text/</code>
+	 * @return This compressor
+	 */
+	public ResponseCompressor addContentType(String prefix)
+	{
+		m_contentTypes.add(prefix);
+		return this;
+	}
+
+	/**
+	 * Sets the minimum size of a body to be compressed. Compressing small
+	 * bodies is not worth the effort, and may even make them larger.
+	 * @param size The size, in bytes
+	 * @return This compressor
+	 */
+	public ResponseCompressor setMinSize(int size)
+	{
+		m_minSize = size;
+		return this;
+	}
+
+	/**
+	 * Sets the compression level
+	 * @param level The level, from 1 (fastest) to 9 (smallest)
+	 * @return This compressor
+	 */
+	public ResponseCompressor setLevel(int level)
+	{
+		m_level = Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION, level));
+		return this;
+	}
+
+	/**
+	 * Sets the thresholds on the load per processor that reduce or
+	 * disable compression
+	 * @param reduced The load above which the fastest level is used
+	 * @param skip The load above which responses are not compressed
+	 * @return This compressor
+	 */
+	public ResponseCompressor setLoadThresholds(double reduced, double skip)
+	{
+		m_reducedLoad = reduced;
+		m_skipLoad = skip;
+		return this;
+	}
+
+	/**
+	 * Compresses the body of a response, if the client accepts it and if
+	 * the response qualifies. The response is modified in place: its
+	 * contents are replaced, and the <code>Content-Encoding</code> and
+	 * <code>Vary</code> headers are set.
+	 * @param cbr The response
+	 */
+	public void apply(CallbackResponse cbr)
+	{
+		int code = cbr.getCode();
+		if (code < 200 || code == 204 || code == CallbackResponse.HTTP_NOT_MODIFIED
+				|| code == CallbackResponse.HTTP_PARTIAL_CONTENT || code == CallbackResponse.HTTP_RANGE_NOT_SATISFIABLE)
+		{
+			// The ranges of a partial response are positions in the
+			// uncompressed body
+			return;
+		}
+		if (cbr.isDetached())
+		{
+			// Whatever is written must reach the client at once
+			return;
+		}
+		if (!isCompressible(cbr.getContentType()))
+		{
+			return;
+		}
+		Map<String,String> headers = cbr.getHeaders();
+		HttpExchange t = cbr.getExchange();
+		if (headers.containsKey("Content-Encoding") || t.getResponseHeaders().containsKey("Content-Encoding"))
+		{
+			return;
+		}
+		// The response depends on the encodings accepted by the client
+		String vary = headers.get("Vary");
+		if (vary == null)
+		{
+			cbr.setHeader("Vary", "Accept-Encoding");
+		}
+		else if (!vary.contains("Accept-Encoding"))
+		{
+			cbr.setHeader("Vary", vary + ", Accept-Encoding");
+		}
+		long length = cbr.getContentLength();
+		if (length >= 0 && length < m_minSize)
+		{
+			return;
+		}
+		String encoding = negotiate(t.getRequestHeaders().getFirst("Accept-Encoding"));
+		if (encoding == null)
+		{
+			return;
+		}
+		byte[] contents = cbr.getContents();
+		if (contents != null && cbr.hasStaticContents())
+		{
+			byte[] variant = getVariant(contents, encoding);
+			if (variant != null)
+			{
+				cbr.setContents(variant);
+				cbr.setStaticContents(true);
+				setEncoding(cbr, encoding);
+			}
+			return;
+		}
+		int level = getCurrentLevel();
+		if (level < 0)
+		{
+			return;
+		}
+		if (contents != null)
+		{
+			byte[] compressed = compress(contents, encoding, level);
+			if (compressed.length < contents.length)
+			{
+				cbr.setContents(compressed);
+				setEncoding(cbr, encoding);
+			}
+		}
+		else if (cbr.isStreaming())
+		{
+			cbr.setContents(new CompressingBodyWriter(cbr.getBodyWriter(), encoding, level));
+			setEncoding(cbr, encoding);
+		}
+	}
+
+	/**
+	 * Marks a response as compressed. The response no longer advertises
+	 * support for ranges, since {@link ByteRanges} only serves ranges of the
+	 * uncompressed body.
+	 * @param cbr The response
+	 * @param encoding The encoding applied to the response
+	 */
+	protected static void setEncoding(CallbackResponse cbr, String encoding)
+	{
+		cbr.setHeader("Content-Encoding", encoding);
+		cbr.getHeaders().remove("Accept-Ranges");
+		// A strong tag guarantees identical bytes, which the compressed
+		// body no longer is
+		String tag = cbr.getHeaders().get("ETag");
+		if (tag != null)
+		{
+			cbr.setHeader("ETag", tagEncoding(tag, encoding));
+		}
+		Headers headers = cbr.getExchange().getResponseHeaders();
+		tag = headers.getFirst("ETag");
+		if (tag != null)
+		{
+			headers.set("ETag", tagEncoding(tag, encoding));
+		}
+	}
+
+	/**
+	 * Derives the entity tag of a compressed body from the tag of the
+	 * uncompressed one, by appending the encoding inside the quotes
+	 * @param tag The tag of the uncompressed body
+	 * @param encoding The encoding
+	 * @return The tag of the compressed body
+	 */
+	public static String tagEncoding(String tag, String encoding)
+	{
+		if (!tag.endsWith("\""))
+		{
+			return tag;
+		}
+		return tag.substring(0, tag.length() - 1) + "-" + encoding + "\"";
+	}
+
+	/**
+	 * Gets the entity tag of an uncompressed body from the tag of a
+	 * compressed one. This is the reverse of
+	 * {@link #tagEncoding(String, String)}.
+	 * @param tag The tag
+	 * @return The tag without its encoding, or the tag itself if it does not
+	 * have one
+	 */
+	public static String untagEncoding(String tag)
+	{
+		for (String encoding : new String[] {GZIP, DEFLATE})
+		{
+			int end = tag.length() - encoding.length() - 2;
+			if (end > 0 && tag.endsWith("\"") && tag.charAt(end) == '-'
+					&& tag.regionMatches(end + 1, encoding, 0, encoding.length()))
+			{
+				return tag.substring(0, end) + "\"";
+			}
+		}
+		return tag;
+	}
+
+	/**
+	 * Determines whether a content type should be compressed
+	 * @param content_type The content type, possibly with parameters
+	 * @return true if it should be compressed
+	 */
+	public boolean isCompressible(String content_type)
+	{
+		if (content_type == null)
+		{
+			return false;
+		}
+		for (String prefix : m_contentTypes)
+		{
+			if (content_type.regionMatches(true, 0, prefix, 0, prefix.length()))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Chooses an encoding from the <code>Accept-Encoding</code> header of a
+	 * request. Gzip is preferred over deflate when the client accepts both
+	 * with the same weight.
+	 * @param accept_encoding The value of the header, possibly null
+	 * @return The encoding, or null if the client accepts none of them
+	 */
+	public static String negotiate(String accept_encoding)
+	{
+		if (accept_encoding == null)
+		{
+			return null;
+		}
+		double q_gzip = -1, q_deflate = -1, q_any = -1;
+		int start = 0;
+		int len = accept_encoding.length();
+		while (start < len)
+		{
+			int end = accept_encoding.indexOf(',', start);
+			if (end < 0)
+			{
+				end = len;
+			}
+			String token = accept_encoding.substring(start, end).trim();
+			start = end + 1;
+			double q = 1;
+			int semi = token.indexOf(';');
+			if (semi >= 0)
+			{
+				String param = token.substring(semi + 1).trim();
+				token = token.substring(0, semi).trim();
+				if (param.startsWith("q="))
+				{
+					try
+					{
+						q = Double.parseDouble(param.substring(2));
+					}
+					catch (NumberFormatException e)
+					{
+						q = 0;
+					}
+				}
+			}
+			if (token.equalsIgnoreCase(GZIP) || token.equalsIgnoreCase("x-gzip"))
+			{
+				q_gzip = q;
+			}
+			else if (token.equalsIgnoreCase(DEFLATE))
+			{
+				q_deflate = q;
+			}
+			else if (token.compareTo("*") == 0)
+			{
+				q_any = q;
+			}
+		}
+		if (q_gzip < 0)
+		{
+			q_gzip = q_any;
+		}
+		if (q_deflate < 0)
+		{
+			q_deflate = q_any;
+		}
+		if (q_gzip > 0 && q_gzip >= q_deflate)
+		{
+			return GZIP;
+		}
+		if (q_deflate > 0)
+		{
+			return DEFLATE;
+		}
+		return null;
+	}
+
+	/**
+	 * Compresses an array of bytes
+	 * @param contents The bytes to compress
+	 * @param encoding The encoding, either {@link #GZIP} or {@link #DEFLATE}
+	 * @param level The compression level
+	 * @return The compressed bytes
+	 */
+	public static byte[] compress(byte[] contents, String encoding, int level)
+	{
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(contents.length / 4 + 64);
+		Deflater deflater = new Deflater(level, GZIP.equals(encoding));
+		try
+		{
+			OutputStream os = wrap(baos, encoding, deflater);
+			os.write(contents);
+			os.close();
+		}
+		catch (IOException e)
+		{
+			// Cannot happen when writing to memory
+			e.printStackTrace();
+		}
+		finally
+		{
+			deflater.end();
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Gets the number of original arrays for which compressed variants are
+	 * currently kept
+	 * @return The number of arrays
+	 */
+	public int getVariantCount()
+	{
+		synchronized (m_variants)
+		{
+			return m_variants.size();
+		}
+	}
+
+	/**
+	 * Gets the compressed variant of static contents, computing it if
+	 * necessary
+	 * @param contents The contents
+	 * @param encoding The encoding
+	 * @return The variant, or null if the contents should be sent
+	 * uncompressed
+	 */
+	protected byte[] getVariant(byte[] contents, String encoding)
+	{
+		int index = GZIP.equals(encoding) ? 0 : 1;
+		byte[][] variants;
+		synchronized (m_variants)
+		{
+			variants = m_variants.get(contents);
+		}
+		if (variants != null && variants[index] != null)
+		{
+			return variants[index] == s_notWorth ? null : variants[index];
+		}
+		// Compress at the configured level, since the result is kept
+		if (getCurrentLevel() < 0)
+		{
+			return null;
+		}
+		byte[] compressed = compress(contents, encoding, m_level);
+		if (compressed.length >= contents.length)
+		{
+			// Not worth it; remember this with the marker, since storing the
+			// original array would keep its own key from being collected
+			compressed = s_notWorth;
+		}
+		synchronized (m_variants)
+		{
+			variants = m_variants.get(contents);
+			if (variants == null)
+			{
+				variants = new byte[2][];
+				m_variants.put(contents, variants);
+			}
+			variants[index] = compressed;
+		}
+		return compressed == s_notWorth ? null : compressed;
+	}
+
+	/**
+	 * Gets the compression level to use given the current load of the
+	 * machine
+	 * @return The level, or -1 if responses should not be compressed
+	 */
+	protected int getCurrentLevel()
+	{
+		long now = System.currentTimeMillis();
+		if (now - m_loadTime > s_loadInterval)
+		{
+			m_loadTime = now;
+			m_load = readLoad();
+		}
+		double load = m_load;
+		if (load > m_skipLoad)
+		{
+			return -1;
+		}
+		if (load > m_reducedLoad)
+		{
+			return Deflater.BEST_SPEED;
+		}
+		return m_level;
+	}
+
+	/**
+	 * Reads the load of the machine
+	 * @return The average number of runnable threads per processor, or 0
+	 * if the operating system does not provide it
+	 */
+	protected double readLoad()
+	{
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		double load = os.getSystemLoadAverage();
+		if (load < 0)
+		{
+			return 0;
+		}
+		return load / os.getAvailableProcessors();
+	}
+
+	/**
+	 * Wraps a stream into a compressing stream
+	 * @param out The stream
+	 * @param encoding The encoding
+	 * @param deflater The deflater used to compress
+	 * @return The compressing stream
+	 * @throws IOException If the stream cannot be written to
+	 */
+	protected static DeflaterOutputStream wrap(OutputStream out, String encoding, Deflater deflater) throws IOException
+	{
+		if (GZIP.equals(encoding))
+		{
+			return new LevelGzipOutputStream(out, deflater);
+		}
+		return new DeflaterOutputStream(out, deflater, CallbackResponse.s_bufferSize);
+	}
+
+	/**
+	 * A gzip stream using a given deflater, so that its compression level
+	 * can be chosen
+	 */
+	protected static class LevelGzipOutputStream extends GZIPOutputStream
+	{
+		/**
+		 * Creates a new stream
+		 * @param out The stream to write to
+		 * @param deflater The deflater, which must produce raw deflate data
+		 * @throws IOException If the header cannot be written
+		 */
+		public LevelGzipOutputStream(OutputStream out, Deflater deflater) throws IOException
+		{
+			super(out, CallbackResponse.s_bufferSize);
+			// Replace the default deflater created by the parent class
+			def.end();
+			def = deflater;
+		}
+	}
+
+	/**
+	 * Compresses the output of another body writer
+	 */
+	protected static class CompressingBodyWriter implements CallbackResponse.BodyWriter
+	{
+		/**
+		 * The writer producing the uncompressed body
+		 */
+		protected final CallbackResponse.BodyWriter m_writer;
+
+		/**
+		 * The encoding
+		 */
+		protected final String m_encoding;
+
+		/**
+		 * The compression level
+		 */
+		protected final int m_level;
+
+		/**
+		 * Creates a new writer
+		 * @param writer The writer producing the uncompressed body
+		 * @param encoding The encoding
+		 * @param level The compression level
+		 */
+		public CompressingBodyWriter(CallbackResponse.BodyWriter writer, String encoding, int level)
+		{
+			super();
+			m_writer = writer;
+			m_encoding = encoding;
+			m_level = level;
+		}
+
+		@Override
+		public void write(OutputStream out) throws IOException
+		{
+			Deflater deflater = new Deflater(m_level, GZIP.equals(m_encoding));
+			try
+			{
+				DeflaterOutputStream dos = wrap(out, m_encoding, deflater);
+				m_writer.write(dos);
+				// Do not close the stream: the server closes the connection's stream
+				dos.finish();
+				dos.flush();
+			}
+			finally
+			{
+				deflater.end();
+			}
+		}
+	}
+}
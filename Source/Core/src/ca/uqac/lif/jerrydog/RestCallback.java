@@ -17,8 +17,7 @@
  */
 package ca.uqac.lif.jerrydog;
 
-import java.io.InputStream;
-import java.net.URI;
+import java.io.IOException;
 import java.util.Map;
 
 import com.sun.net.httpserver.HttpExchange;
@@ -40,6 +39,16 @@ public abstract class RestCallback extends RequestCallback
 	 */
 	protected boolean m_ignoreMethod = false;
 
+	/**
+	 * The maximum number of bytes accepted in the body of a request
+	 */
+	protected long m_maxBodySize = RequestBody.DEFAULT_MAX_SIZE;
+
+	/**
+	 * The size above which a part of a multipart body is written to disk
+	 */
+	protected long m_multipartThreshold = MultipartForm.DEFAULT_MEMORY_THRESHOLD;
+
 	/**
 	 * Creates a REST callback
 	 * @param m The HTTP method this callback listens to
@@ -73,43 +82,147 @@ public abstract class RestCallback extends RequestCallback
 		return this;
 	}
 
+	/**
+	 * Sets the maximum number of bytes accepted in the body of a request.
+	 * Larger requests are answered with the status code 413.
+	 * @param size The number of bytes
+	 * @return This callback
+	 */
+	public RestCallback setMaxBodySize(long size)
+	{
+		m_maxBodySize = size;
+		return this;
+	}
+
+	/**
+	 * Gets the body of a request, limited to the maximum size set for
+	 * this callback
+	 * @param t The exchange
+	 * @return The body
+	 */
+	public RequestBody getBody(HttpExchange t)
+	{
+		return new RequestBody(t, m_maxBodySize);
+	}
+
+	/**
+	 * Sets the size above which a part of a multipart body is written to
+	 * a temporary file instead of being kept in memory
+	 * @param size The number of bytes
+	 * @return This callback
+	 */
+	public RestCallback setMultipartThreshold(long size)
+	{
+		m_multipartThreshold = size;
+		return this;
+	}
+
+	/**
+	 * Reads the <code>multipart/form-data</code> body of a request, such as
+	 * the one sent by an HTML form that uploads files. The caller must
+	 * close the form once done, so that its temporary files are deleted.
+	 * @param t The exchange
+	 * @return The form
+	 * @throws HttpException If the request is not multipart, if the body is
+	 * malformed, or if it exceeds the maximum size
+	 */
+	public MultipartForm getMultipart(HttpExchange t)
+	{
+		String boundary = MultipartReader.getBoundary(t.getRequestHeaders().getFirst("Content-Type"));
+		if (boundary == null)
+		{
+			throw new HttpException(CallbackResponse.HTTP_BAD_REQUEST, "Request body is not multipart");
+		}
+		try
+		{
+			MultipartReader reader = new MultipartReader(getBody(t).getStream(), boundary);
+			return MultipartForm.read(reader, m_multipartThreshold, null, MultipartForm.DEFAULT_MAX_PARTS);
+		}
+		catch (IllegalArgumentException e)
+		{
+			throw new HttpException(CallbackResponse.HTTP_BAD_REQUEST, e.getMessage(), e);
+		}
+		catch (IOException e)
+		{
+			throw new HttpException(CallbackResponse.HTTP_BAD_REQUEST, "Cannot read multipart body: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Reads the body of a request as a string
+	 * @param t The exchange
+	 * @return The body
+	 * @throws HttpException If the body is too large or cannot be read
+	 */
+	protected String readBody(HttpExchange t)
+	{
+		try
+		{
+			return getBody(t).getString();
+		}
+		catch (IOException e)
+		{
+			throw new HttpException(CallbackResponse.HTTP_BAD_REQUEST, "Cannot read request body", e);
+		}
+	}
+
+	/**
+	 * Gets the name identifying this callback in statistics. By default,
+	 * this is the method and the path it listens to, such as
+	 * <code>GET /users</code>.
+	 */
+	@Override
+	public String getName()
+	{
+		if (m_name != null)
+		{
+			return m_name;
+		}
+		return (m_ignoreMethod || m_method == null ? "*" : methodToString(m_method)) + " " + m_path;
+	}
+
 	@Override
 	public boolean fire(HttpExchange t)
 	{
-		URI u = t.getRequestURI();
-		String path = u.getPath();
-		String method = t.getRequestMethod();
-		return ((m_ignoreMethod || method.compareToIgnoreCase(methodToString(m_method)) == 0)) 
-				&& path.compareTo(m_path) == 0;
+		RequestContext c = RequestContext.of(t);
+		return (m_ignoreMethod || (m_method != null && c.getMethod() == m_method))
+				&& m_path.equals(c.getPath());
 	}
 
+	/**
+	 * Gets the parameters of a request. Depending on the method this
+	 * callback listens to, they are read from the query of the URL, from
+	 * the body of the request, or from both, in which case the values in
+	 * the body come after those of the query.
+	 * @param t The exchange
+	 * @return A map of the parameters; it is a {@link ParameterMap}, which
+	 * also gives access to parameters that have more than one value
+	 * @throws HttpException If the parameters exceed the limits of the
+	 * {@link QueryParser}, or if the body exceeds the maximum size set with
+	 * {@link #setMaxBodySize(long)}
+	 */
 	public Map<String,String> getParameters(HttpExchange t)
 	{
 		String data = null;
 		if (m_ignoreMethod)
 		{
 			// Merge parameters from both GET and POST
-			URI u = t.getRequestURI();
-			data = u.getQuery();
-			Map<String,String> params_get = Server.queryToMap(data, Method.GET);
-			InputStream is_post = t.getRequestBody();
-			data = Server.streamToString(is_post);
-			Map<String,String> params_post = Server.queryToMap(data, Method.POST);
-			params_get.putAll(params_post);
+			ParameterMap params_get = new ParameterMap(RequestContext.of(t).getQuery());
+			data = readBody(t);
+			ParameterMap params_post = Server.queryToMap(data, Method.POST);
+			for (int i = 0; i < params_post.getPairCount(); i++)
+			{
+				params_get.add(params_post.getName(i), params_post.getValue(i));
+			}
 			return params_get;
 		}
 		if (m_method == Method.GET)
 		{
 			// Read GET data
-			URI u = t.getRequestURI();
-			data = u.getQuery();
-		}
-		else
-		{
-			// Read POST data
-			InputStream is_post = t.getRequestBody();
-			data = Server.streamToString(is_post);
+			return new ParameterMap(RequestContext.of(t).getQuery());
 		}
+		// Read POST data
+		data = readBody(t);
 		Map<String,String> params = Server.queryToMap(data, m_method);
 		return params;
 	}	
@@ -17,8 +17,6 @@
  */
 package ca.uqac.lif.jerrydog;
 
-import java.io.InputStream;
-import java.net.URI;
 import java.util.Map;
 
 import com.sun.net.httpserver.HttpExchange;
@@ -30,24 +28,112 @@ import com.sun.net.httpserver.HttpExchange;
  * be remplaced in a clean URL by something like
  * <code>page/3/index</code>. Here, <code>page</code> is the path,
  * and the rest of the URL are actually parameters.
+ * <p>
+ * The path can also be a {@link PathTemplate}, such as
+ * <code>/users/{id:int}/posts/{slug}</code>. In such a case, the callback
+ * only fires on paths that match the template, and the values of the
+ * variables can be read with {@link #getPathMatch(HttpExchange)}.
  * 
  * @author Sylvain Hallé
  */
 public abstract class RestCleanCallback extends RestCallback
 {
+	/**
+	 * The template the path must match, or null if the callback accepts
+	 * any path starting with {@link #m_path}
+	 */
+	protected final PathTemplate m_template;
+
+	/**
+	 * The last match computed by each thread, so that the template is
+	 * not matched twice in {@link #fire(HttpExchange)} and
+	 * {@link #process(HttpExchange)}
+	 */
+	protected final ThreadLocal<PathTemplate.Match> m_lastMatch;
+
+	/**
+	 * Creates a REST callback for clean URLs
+	 * @param m The HTTP method this callback listens to
+	 * @param path The path this callback listens to. If it contains
+	 * variables between braces, it is compiled into a {@link PathTemplate}.
+	 */
 	public RestCleanCallback(Method m, String path)
 	{
 		super(m, path);
+		if (path.indexOf('{') >= 0)
+		{
+			m_template = new PathTemplate(path);
+			m_path = m_template.getPrefix();
+			m_lastMatch = new ThreadLocal<PathTemplate.Match>();
+		}
+		else
+		{
+			m_template = null;
+			m_lastMatch = null;
+		}
+	}
+
+	/**
+	 * Gets the template that the path of a request must match
+	 * @return The template, or null if there is none
+	 */
+	public PathTemplate getTemplate()
+	{
+		return m_template;
 	}
 
 	@Override
 	public boolean fire(HttpExchange t)
 	{
-		URI u = t.getRequestURI();
-		String path = u.getPath();
-		String method = t.getRequestMethod();
-		return ((m_ignoreMethod || method.compareToIgnoreCase(methodToString(m_method)) == 0)) 
-				&& (path.compareTo(m_path) == 0 || path.startsWith(m_path + "/"));
+		RequestContext c = RequestContext.of(t);
+		String path = c.getPath();
+		if (!(m_ignoreMethod || (m_method != null && c.getMethod() == m_method)) || path == null)
+		{
+			return false;
+		}
+		if (m_template != null)
+		{
+			return getPathMatch(path) != null;
+		}
+		return path.compareTo(m_path) == 0 || path.startsWith(m_path + "/");
+	}
+
+	/**
+	 * Gets the values of the variables of the path template for a request.
+	 * The returned object is reused by the next request processed by the
+	 * same thread, and should not be kept after the request is answered.
+	 * @param t The exchange
+	 * @return The match, or null if the callback has no template or if the
+	 * path does not match it
+	 */
+	public PathTemplate.Match getPathMatch(HttpExchange t)
+	{
+		if (m_template == null)
+		{
+			return null;
+		}
+		return getPathMatch(RequestContext.of(t).getPath());
+	}
+
+	/**
+	 * Matches a path against the template, unless the last match computed
+	 * by the current thread was for the same path
+	 * @param path The path
+	 * @return The match, or null if the path does not match the template
+	 */
+	protected PathTemplate.Match getPathMatch(String path)
+	{
+		PathTemplate.Match match = m_lastMatch.get();
+		if (match == null)
+		{
+			match = m_template.newMatch();
+			m_lastMatch.set(match);
+		}
+		else if (path.equals(match.getPath()))
+		{
+			return match;
+		}
+		return m_template.match(path, match) ? match : null;
 	}
 	
 	@Override
@@ -55,8 +141,8 @@ public abstract class RestCleanCallback extends RestCallback
 	{
 		String data = null;
 		Map<String,String> params = null;
-		URI u = t.getRequestURI();
-		String path = u.getPath();
+		RequestContext c = RequestContext.of(t);
+		String path = c.getPath();
 		path = path.substring(m_path.length());
 		if (path.startsWith("/"))
 		{
@@ -65,19 +151,25 @@ public abstract class RestCleanCallback extends RestCallback
 		}
 		if (m_method == Method.GET)
 		{
-			// Read GET data			
-			data = u.getQuery();
-			params = Server.queryToMap(data, m_method);
+			// Read GET data
+			params = new ParameterMap(c.getQuery());
 			params.put("", path);
 		}
 		else
 		{
 			// Read POST data
-			InputStream is_post = t.getRequestBody();
-			data = Server.streamToString(is_post);
+			data = readBody(t);
 			params = Server.queryToMap(data, m_method);
 			params.put("", path);
 		}
+		PathTemplate.Match match = getPathMatch(c);
+		if (match != null)
+		{
+			for (int i = 0; i < match.size(); i++)
+			{
+				params.put(match.getName(i), match.getString(i));
+			}
+		}
 		return params;
 	}
 }
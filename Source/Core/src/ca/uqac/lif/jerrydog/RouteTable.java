@@ -0,0 +1,437 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ca.uqac.lif.jerrydog.RequestCallback.Method;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * An index of the callbacks registered to a server, used to find the
+ * callbacks that may answer a request without asking each of them in turn.
+ * <ul>
+ * <li>{@link RestCallback}s are indexed by method and exact path</li>
+ * <li>{@link RestCleanCallback}s are put in a prefix tree, so that all the
+ * callbacks whose path is a prefix of the request's path are found in a
+ * single walk over the characters of that path; for those with a
+ * {@link PathTemplate}, the tree is keyed on the literal prefix of the
+ * template, and the rest of the path is checked by the callback</li>
+ * <li>all other callbacks, including subclasses of the above that
+ * override {@link RequestCallback#fire(HttpExchange) fire()}, are kept in
+ * a list and asked in turn whether they accept the request</li>
+ * </ul>
+ * The candidates for a request are returned in the order in which the
+ * callbacks were registered, so that the first callback that answers a
+ * request is the same as with a linear scan of the callbacks.
+ * <p>
+ * The table is a snapshot: changing the method or the path of a callback
+ * after it has been indexed is not reflected in the table until it is
+ * rebuilt.
+ * @author Sylvain Hallé
+ */
+public class RouteTable
+{
+	/**
+	 * The index used for callbacks that ignore the request's method
+	 */
+	protected static final int ANY_METHOD = Method.values().length;
+
+	/**
+	 * The callbacks, in registration order
+	 */
+	protected final RequestCallback[] m_callbacks;
+
+	/**
+	 * For each callback, whether its {@code fire()} method must still be
+	 * called after it has been found in the index
+	 */
+	protected final boolean[] m_mustFire;
+
+	/**
+	 * For each method (and for any method), a map from a path to the
+	 * positions of the callbacks listening to exactly this path
+	 */
+	protected final List<Map<String,int[]>> m_exactRoutes;
+
+	/**
+	 * The root of the prefix tree of clean callbacks
+	 */
+	protected final PrefixNode m_prefixRoot;
+
+	/**
+	 * The positions of the callbacks that are not indexed
+	 */
+	protected final int[] m_others;
+
+	/**
+	 * Builds a route table
+	 * @param callbacks The callbacks, in the order in which they should be
+	 * tried
+	 */
+	public RouteTable(List<RequestCallback> callbacks)
+	{
+		super();
+		m_callbacks = callbacks.toArray(new RequestCallback[callbacks.size()]);
+		m_mustFire = new boolean[m_callbacks.length];
+		m_exactRoutes = new ArrayList<Map<String,int[]>>(ANY_METHOD + 1);
+		for (int i = 0; i <= ANY_METHOD; i++)
+		{
+			m_exactRoutes.add(new HashMap<String,int[]>());
+		}
+		m_prefixRoot = new PrefixNode();
+		int[] others = new int[m_callbacks.length];
+		int num_others = 0;
+		for (int pos = 0; pos < m_callbacks.length; pos++)
+		{
+			RequestCallback cb = m_callbacks[pos];
+			if (!index(cb, pos))
+			{
+				m_mustFire[pos] = true;
+				others[num_others++] = pos;
+			}
+		}
+		m_others = Arrays.copyOf(others, num_others);
+	}
+
+	/**
+	 * Gets the callback at a given position
+	 * @param position The position
+	 * @return The callback
+	 */
+	public RequestCallback get(int position)
+	{
+		return m_callbacks[position];
+	}
+
+	/**
+	 * Determines whether the {@code fire()} method of the callback at a
+	 * given position must be called to know if it accepts a request
+	 * returned by {@link #lookup(HttpExchange)}. If not, the table has
+	 * already established that it does.
+	 * @param position The position
+	 * @return true if the callback must be asked
+	 */
+	public boolean mustFire(int position)
+	{
+		return m_mustFire[position];
+	}
+
+	/**
+	 * Gets the number of callbacks in this table
+	 * @return The number of callbacks
+	 */
+	public int size()
+	{
+		return m_callbacks.length;
+	}
+
+	/**
+	 * Finds the callbacks that may answer a request
+	 * @param t The exchange
+	 * @return The positions of the candidate callbacks, in increasing order
+	 */
+	public int[] lookup(HttpExchange t)
+	{
+		RequestContext c = RequestContext.of(t);
+		return lookup(c.getMethod(), c.getPath());
+	}
+
+	/**
+	 * Finds the callbacks that may answer a request
+	 * @param m The request's method, or null if it is not one of the
+	 * methods in {@link Method}
+	 * @param path The request's path
+	 * @return The positions of the candidate callbacks, in increasing order
+	 */
+	public int[] lookup(Method m, String path)
+	{
+		PositionList out = new PositionList(m_others.length + 4);
+		if (path != null)
+		{
+			if (m != null)
+			{
+				out.addAll(m_exactRoutes.get(m.ordinal()).get(path));
+			}
+			out.addAll(m_exactRoutes.get(ANY_METHOD).get(path));
+			// Walk the prefix tree along the path
+			PrefixNode node = m_prefixRoot;
+			int len = path.length();
+			for (int i = 0; node != null; i++)
+			{
+				if (node.m_positions != null && (i == len || path.charAt(i) == '/'))
+				{
+					for (int j = 0; j < node.m_positions.length; j++)
+					{
+						int method = node.m_methods[j];
+						if (method == ANY_METHOD || (m != null && method == m.ordinal()))
+						{
+							out.add(node.m_positions[j]);
+						}
+					}
+				}
+				if (i == len)
+				{
+					break;
+				}
+				node = node.getChild(path.charAt(i));
+			}
+		}
+		out.addAll(m_others);
+		return out.toSortedArray();
+	}
+
+	/**
+	 * Puts a callback into the index, if possible
+	 * @param cb The callback
+	 * @param pos The callback's position
+	 * @return true if the callback has been indexed, false if it must be
+	 * asked whether it accepts each request
+	 */
+	protected boolean index(RequestCallback cb, int pos)
+	{
+		if (!(cb instanceof RestCallback))
+		{
+			return false;
+		}
+		RestCallback rc = (RestCallback) cb;
+		if (rc.m_path == null || (!rc.m_ignoreMethod && rc.m_method == null))
+		{
+			return false;
+		}
+		int method = rc.m_ignoreMethod ? ANY_METHOD : rc.m_method.ordinal();
+		Class<?> fire_class = getFireClass(cb);
+		if (fire_class == RestCallback.class)
+		{
+			Map<String,int[]> routes = m_exactRoutes.get(method);
+			routes.put(rc.m_path, append(routes.get(rc.m_path), pos));
+			return true;
+		}
+		if (fire_class == RestCleanCallback.class)
+		{
+			m_prefixRoot.getOrCreate(rc.m_path).add(pos, method);
+			// The prefix tree only finds candidates for a path template;
+			// the callback must still check the rest of the path
+			m_mustFire[pos] = ((RestCleanCallback) rc).getTemplate() != null;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the class that declares the {@code fire()} method of a callback
+	 * @param cb The callback
+	 * @return The class, or null if it cannot be determined
+	 */
+	protected static Class<?> getFireClass(RequestCallback cb)
+	{
+		try
+		{
+			return cb.getClass().getMethod("fire", HttpExchange.class).getDeclaringClass();
+		}
+		catch (NoSuchMethodException e)
+		{
+			// Cannot happen, fire() is declared by RequestCallback
+			return null;
+		}
+	}
+
+	/**
+	 * Appends an integer to an array
+	 * @param array The array, possibly null
+	 * @param value The value to append
+	 * @return A new array
+	 */
+	protected static int[] append(int[] array, int value)
+	{
+		if (array == null)
+		{
+			return new int[] {value};
+		}
+		int[] out = Arrays.copyOf(array, array.length + 1);
+		out[array.length] = value;
+		return out;
+	}
+
+	/**
+	 * A node of the prefix tree, indexed by characters. The children of a
+	 * node are kept in a sorted array, which is compact and fast for the
+	 * small alphabets found in paths.
+	 */
+	protected static class PrefixNode
+	{
+		/**
+		 * The characters leading to each child
+		 */
+		protected char[] m_keys = new char[0];
+
+		/**
+		 * The children of this node
+		 */
+		protected PrefixNode[] m_children = new PrefixNode[0];
+
+		/**
+		 * The positions of the callbacks whose path ends at this node, or
+		 * null if there is none
+		 */
+		protected int[] m_positions = null;
+
+		/**
+		 * The method index of each callback in {@link #m_positions}
+		 */
+		protected int[] m_methods = null;
+
+		/**
+		 * Gets the child of this node for a character
+		 * @param c The character
+		 * @return The child, or null if there is none
+		 */
+		public PrefixNode getChild(char c)
+		{
+			int index = Arrays.binarySearch(m_keys, c);
+			return index < 0 ? null : m_children[index];
+		}
+
+		/**
+		 * Gets the node for a string starting from this node, creating the
+		 * missing nodes along the way
+		 * @param s The string
+		 * @return The node
+		 */
+		public PrefixNode getOrCreate(String s)
+		{
+			PrefixNode node = this;
+			for (int i = 0; i < s.length(); i++)
+			{
+				char c = s.charAt(i);
+				int index = Arrays.binarySearch(node.m_keys, c);
+				if (index < 0)
+				{
+					index = -index - 1;
+					PrefixNode child = new PrefixNode();
+					node.m_keys = insert(node.m_keys, index, c);
+					PrefixNode[] children = new PrefixNode[node.m_children.length + 1];
+					System.arraycopy(node.m_children, 0, children, 0, index);
+					children[index] = child;
+					System.arraycopy(node.m_children, index, children, index + 1, node.m_children.length - index);
+					node.m_children = children;
+				}
+				node = node.m_children[index];
+			}
+			return node;
+		}
+
+		/**
+		 * Adds a callback ending at this node
+		 * @param pos The callback's position
+		 * @param method The callback's method index
+		 */
+		public void add(int pos, int method)
+		{
+			m_positions = append(m_positions, pos);
+			m_methods = append(m_methods, method);
+		}
+
+		/**
+		 * Inserts a character into an array
+		 * @param array The array
+		 * @param index The position where to insert
+		 * @param c The character
+		 * @return A new array
+		 */
+		protected static char[] insert(char[] array, int index, char c)
+		{
+			char[] out = new char[array.length + 1];
+			System.arraycopy(array, 0, out, 0, index);
+			out[index] = c;
+			System.arraycopy(array, index, out, index + 1, array.length - index);
+			return out;
+		}
+	}
+
+	/**
+	 * A growable list of positions
+	 */
+	protected static class PositionList
+	{
+		/**
+		 * The positions
+		 */
+		protected int[] m_values;
+
+		/**
+		 * The number of positions in the list
+		 */
+		protected int m_size = 0;
+
+		/**
+		 * Creates an empty list
+		 * @param capacity The initial capacity of the list
+		 */
+		public PositionList(int capacity)
+		{
+			super();
+			m_values = new int[capacity];
+		}
+
+		/**
+		 * Adds a position to the list
+		 * @param pos The position
+		 */
+		public void add(int pos)
+		{
+			if (m_size == m_values.length)
+			{
+				m_values = Arrays.copyOf(m_values, m_size * 2 + 1);
+			}
+			m_values[m_size++] = pos;
+		}
+
+		/**
+		 * Adds positions to the list
+		 * @param positions The positions, possibly null
+		 */
+		public void addAll(int[] positions)
+		{
+			if (positions == null)
+			{
+				return;
+			}
+			for (int pos : positions)
+			{
+				add(pos);
+			}
+		}
+
+		/**
+		 * Gets the positions of the list in increasing order
+		 * @return The positions
+		 */
+		public int[] toSortedArray()
+		{
+			int[] out = Arrays.copyOf(m_values, m_size);
+			Arrays.sort(out);
+			return out;
+		}
+	}
+}
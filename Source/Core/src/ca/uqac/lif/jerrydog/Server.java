@@ -17,15 +17,12 @@
  */
 package ca.uqac.lif.jerrydog;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
-import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.URI;
 import java.net.URLEncoder;
@@ -38,6 +35,19 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
 
 import ca.uqac.lif.jerrydog.CallbackResponse.ContentType;
 import ca.uqac.lif.jerrydog.RequestCallback.Method;
@@ -45,7 +55,6 @@ import ca.uqac.lif.jerrydog.RequestCallback.Method;
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
-import com.sun.net.httpserver.HttpServer;
 
 /**
  * A server listens to HTTP <em>requests</em>, dispatches them to the
@@ -86,9 +95,103 @@ public class Server implements HttpHandler
 	protected List<RequestCallback> m_callbacks;
 
 	/**
-	 * The underlying Java HTTP server
+	 * The index of the callbacks, built from {@link #m_callbacks} the first
+	 * time a request is handled, and discarded whenever a callback is
+	 * registered
 	 */
-	HttpServer m_server;
+	protected volatile RouteTable m_routes = null;
+
+	/**
+	 * The WebSocket endpoints of the server, indexed by their path
+	 */
+	protected final Map<String,WebSocketEndpoint> m_webSockets = new ConcurrentHashMap<String,WebSocketEndpoint>();
+
+	/**
+	 * The transport accepting the connections and reading the requests
+	 */
+	protected Transport m_transport = new JdkTransport();
+
+	/**
+	 * The pool of threads running the callbacks. If null, requests are
+	 * processed on the dispatcher thread of the underlying HTTP server.
+	 */
+	protected WorkerPool m_workerPool = null;
+
+	/**
+	 * The compressor applied to responses, or null to send all responses
+	 * uncompressed
+	 */
+	protected ResponseCompressor m_compressor = null;
+
+	/**
+	 * The statistics on the requests processed by this server, or null if
+	 * they are not collected
+	 */
+	protected RequestMetrics m_metrics = null;
+
+	/**
+	 * The maximum number of pending connections the operating system queues
+	 * for the server, or 0 to use the system default
+	 */
+	protected int m_backlog = 0;
+
+	/**
+	 * The time after which an idle persistent connection is closed, in
+	 * milliseconds, or -1 to use the default of the HTTP server
+	 */
+	protected long m_idleTimeout = -1;
+
+	/**
+	 * The maximum number of idle connections kept open, or -1 to use the
+	 * default of the HTTP server
+	 */
+	protected int m_maxIdleConnections = -1;
+
+	/**
+	 * The maximum number of open connections, or -1 for no limit
+	 */
+	protected int m_maxConnections = -1;
+
+	/**
+	 * The maximum time to receive a request, in milliseconds, or -1 for
+	 * no limit
+	 */
+	protected long m_requestTimeout = -1;
+
+	/**
+	 * The maximum time to send a response, in milliseconds, or -1 for
+	 * no limit
+	 */
+	protected long m_responseTimeout = -1;
+
+	/**
+	 * The maximum number of headers accepted in a request, or -1 to use
+	 * the default of the HTTP server
+	 */
+	protected int m_maxRequestHeaders = -1;
+
+	/**
+	 * Whether Nagle's algorithm is disabled on the connections, or null to
+	 * use the default
+	 */
+	protected Boolean m_noDelay = null;
+
+	/**
+	 * The connections of this server
+	 */
+	protected final ConnectionTracker m_connections = new ConnectionTracker(s_defaultIdleTimeout);
+
+	/**
+	 * The settings of the HTTP server applied by the first server started
+	 * in this JVM, or null if no server has been started yet
+	 */
+	protected static Map<String,String> s_listenerProperties = null;
+
+	/**
+	 * The time after which the HTTP server closes an idle connection by
+	 * default, in milliseconds
+	 */
+	protected static final long s_defaultIdleTimeout = 30000;
 
 	/**
 	 * The debug mode provides additional verbosity
@@ -97,12 +200,17 @@ public class Server implements HttpHandler
 	
 	/**
 	 * A calendar object to keep track of the server's local time
+	 * @deprecated This calendar is never updated; use {@link HttpClock}
 	 */
+	@Deprecated
 	protected final Calendar m_calendar = Calendar.getInstance();
 	
 	/**
 	 * The format for dates in HTTP requests and responses
+	 * @deprecated A {@link SimpleDateFormat} cannot be shared between
+	 * threads; use {@link HttpClock}
 	 */
+	@Deprecated
 	protected static final SimpleDateFormat s_dateFormat = setDateFormat();
 
 	/**
@@ -138,23 +246,436 @@ public class Server implements HttpHandler
 	}
 
 	/**
-	 * Starts the server
+	 * Sets the pool of threads on which the server runs its callbacks.
+	 * This must be called before {@link #startServer()}. The server shuts
+	 * the pool down when it is stopped.
+	 * @param pool The pool, or null to process every request on the
+	 * dispatcher thread of the underlying HTTP server
+	 */
+	public void setWorkerPool(WorkerPool pool)
+	{
+		m_workerPool = pool;
+	}
+
+	/**
+	 * Sets the strategy used to run the callbacks, with a pool sized
+	 * after the number of available processors. This must be called before
+	 * {@link #startServer()}. The pool the server had until then is shut
+	 * down.
+	 * @param mode The strategy
+	 */
+	public void setWorkerMode(WorkerPool.Mode mode)
+	{
+		if (m_workerPool != null)
+		{
+			m_workerPool.shutdown(0);
+		}
+		m_workerPool = WorkerPool.create(mode);
+	}
+
+	/**
+	 * Gets the pool of threads on which the server runs its callbacks
+	 * @return The pool, or null if requests are processed on the
+	 * dispatcher thread
+	 */
+	public WorkerPool getWorkerPool()
+	{
+		return m_workerPool;
+	}
+
+	/**
+	 * Sets the compressor applied to the responses sent by this server
+	 * @param compressor The compressor, or null to disable compression
+	 */
+	public void setCompression(ResponseCompressor compressor)
+	{
+		m_compressor = compressor;
+	}
+
+	/**
+	 * Gets the compressor applied to the responses sent by this server
+	 * @return The compressor, or null if compression is disabled
+	 */
+	public ResponseCompressor getCompression()
+	{
+		return m_compressor;
+	}
+
+	/**
+	 * Starts the server. A server that was stopped can be started again;
+	 * since stopping it shut its worker pool down, a new pool with the
+	 * same settings is created.
 	 * @throws IOException If something goes bad
 	 */
 	public void startServer() throws IOException
 	{
-		m_server = HttpServer.create(new InetSocketAddress(m_port), 0);
-		m_server.createContext("/", this);
-		m_server.setExecutor(null); // creates a default executor
-		m_server.start();
+		if (m_workerPool != null && m_workerPool.isShutdown())
+		{
+			m_workerPool = m_workerPool.copy();
+		}
+		m_transport.start(this);
+	}
+
+	/**
+	 * Sets the transport that accepts the connections and reads the
+	 * requests. By default, the server relies on the HTTP server of the JDK
+	 * through a {@link JdkTransport}. This must be called before
+	 * {@link #startServer()}.
+	 * @param transport The transport
+	 */
+	public void setTransport(Transport transport)
+	{
+		m_transport = transport;
+	}
+
+	/**
+	 * Gets the transport that accepts the connections and reads the
+	 * requests
+	 * @return The transport
+	 */
+	public Transport getTransport()
+	{
+		return m_transport;
+	}
+
+	/**
+	 * Sets the maximum number of pending connections the operating system
+	 * queues for the server before refusing new ones. The default backlog is
+	 * often too short for bursts of new connections. This must be called
+	 * before {@link #startServer()}.
+	 * @param backlog The number of connections, or 0 to use the system
+	 * default
+	 */
+	public void setBacklog(int backlog)
+	{
+		m_backlog = backlog;
+	}
+
+	/**
+	 * Gets the maximum number of pending connections the operating system
+	 * queues for the server
+	 * @return The number of connections, or 0 for the system default
+	 */
+	public int getBacklog()
+	{
+		return m_backlog;
+	}
+
+	/**
+	 * Sets the time after which an idle persistent connection is closed.
+	 * The HTTP server counts this time in seconds, so that it is rounded up
+	 * to the next second.
+	 * <p>
+	 * This setting, like the other settings of the connections except the
+	 * backlog, is read by the Java HTTP server once for the whole JVM:
+	 * it must be set before the first server is started, and is shared by
+	 * all the servers of the JVM. A {@link NioTransport} instead applies
+	 * the settings of each server to its own connections, to the
+	 * millisecond, when the server is started.
+	 * @param timeout The time, in milliseconds, or -1 to use the default
+	 * of 30 seconds
+	 */
+	public void setIdleTimeout(long timeout)
+	{
+		m_idleTimeout = timeout;
+		m_connections.setIdleTimeout(getEffectiveIdleTimeout());
+	}
+
+	/**
+	 * Gets the time after which an idle persistent connection is closed
+	 * @return The time, in milliseconds, or -1 if the default is used
+	 */
+	public long getIdleTimeout()
+	{
+		return m_idleTimeout;
+	}
+
+	/**
+	 * Sets the maximum number of idle connections kept open; beyond this
+	 * number, connections are closed as soon as their response is sent. See
+	 * {@link #setIdleTimeout(long)} for when this setting is applied.
+	 * @param max The number of connections, or -1 to use the default of 200
+	 */
+	public void setMaxIdleConnections(int max)
+	{
+		m_maxIdleConnections = max;
+	}
+
+	/**
+	 * Gets the maximum number of idle connections kept open
+	 * @return The number of connections, or -1 if the default is used
+	 */
+	public int getMaxIdleConnections()
+	{
+		return m_maxIdleConnections;
+	}
+
+	/**
+	 * Sets the maximum number of open connections; new connections beyond
+	 * this number are closed as soon as they are accepted. See
+	 * {@link #setIdleTimeout(long)} for when this setting is applied. The
+	 * limit is ignored by versions of Java whose HTTP server does not
+	 * support it (before 17.0.7).
+	 * @param max The number of connections, or -1 for no limit
+	 */
+	public void setMaxConnections(int max)
+	{
+		m_maxConnections = max;
+	}
+
+	/**
+	 * Gets the maximum number of open connections
+	 * @return The number of connections, or -1 if there is no limit
+	 */
+	public int getMaxConnections()
+	{
+		return m_maxConnections;
+	}
+
+	/**
+	 * Sets the maximum time to receive a request, after which the
+	 * connection is closed. This protects the server from clients that
+	 * send their requests very slowly. See {@link #setIdleTimeout(long)}
+	 * for when this setting is applied; the time is rounded up to the next
+	 * second.
+	 * @param timeout The time, in milliseconds, or -1 for no limit
+	 */
+	public void setRequestTimeout(long timeout)
+	{
+		m_requestTimeout = timeout;
+	}
+
+	/**
+	 * Gets the maximum time to receive a request
+	 * @return The time, in milliseconds, or -1 if there is no limit
+	 */
+	public long getRequestTimeout()
+	{
+		return m_requestTimeout;
+	}
+
+	/**
+	 * Sets the maximum time to send a response, after which the connection
+	 * is closed. See {@link #setIdleTimeout(long)} for when this setting is
+	 * applied; the time is rounded up to the next second.
+	 * @param timeout The time, in milliseconds, or -1 for no limit
+	 */
+	public void setResponseTimeout(long timeout)
+	{
+		m_responseTimeout = timeout;
+	}
+
+	/**
+	 * Gets the maximum time to send a response
+	 * @return The time, in milliseconds, or -1 if there is no limit
+	 */
+	public long getResponseTimeout()
+	{
+		return m_responseTimeout;
+	}
+
+	/**
+	 * Sets the maximum number of headers accepted in a request. See
+	 * {@link #setIdleTimeout(long)} for when this setting is applied.
+	 * @param max The number of headers, or -1 to use the default
+	 */
+	public void setMaxRequestHeaders(int max)
+	{
+		m_maxRequestHeaders = max;
+	}
+
+	/**
+	 * Gets the maximum number of headers accepted in a request
+	 * @return The number of headers, or -1 if the default is used
+	 */
+	public int getMaxRequestHeaders()
+	{
+		return m_maxRequestHeaders;
+	}
+
+	/**
+	 * Sets whether Nagle's algorithm is disabled on the connections. It is
+	 * disabled by default, unless the <code>sun.net.httpserver.nodelay</code>
+	 * system property says otherwise: the Java HTTP server writes the
+	 * headers and the body of a response separately, and with Nagle's
+	 * algorithm, each response on a persistent connection then waits for
+	 * the client's delayed acknowledgement, typically 40 ms. See
+	 * {@link #setIdleTimeout(long)} for when this setting is applied.
+	 * @param b true to send small packets right away, false to use Nagle's
+	 * algorithm
+	 */
+	public void setNoDelay(boolean b)
+	{
+		m_noDelay = b;
+	}
+
+	/**
+	 * Gets whether Nagle's algorithm is disabled on the connections
+	 * @return true if small packets are sent right away
+	 */
+	public boolean isNoDelay()
+	{
+		if (m_noDelay != null)
+		{
+			return m_noDelay;
+		}
+		String property = System.getProperty("sun.net.httpserver.nodelay");
+		return property == null || Boolean.parseBoolean(property.trim());
+	}
+
+	/**
+	 * Gets the statistics on the connections of this server. With the Java
+	 * HTTP server, a connection is only known once it sends a request, and
+	 * is presumed closed after the idle timeout; see
+	 * {@link ConnectionTracker}.
+	 * @return The statistics
+	 */
+	public ConnectionTracker getConnections()
+	{
+		return m_connections;
+	}
+
+	/**
+	 * Gets the number of connections currently open
+	 * @return The number of connections
+	 */
+	public int getOpenConnectionCount()
+	{
+		return m_connections.getOpenCount();
+	}
+
+	/**
+	 * Gets the number of open connections with no request in progress
+	 * @return The number of connections
+	 */
+	public int getIdleConnectionCount()
+	{
+		return m_connections.getIdleCount();
+	}
+
+	/**
+	 * Gets the time after which the HTTP server closes idle connections
+	 * @return The time, in milliseconds
+	 */
+	protected long getEffectiveIdleTimeout()
+	{
+		if (m_idleTimeout > 0)
+		{
+			return toSeconds(m_idleTimeout) * 1000;
+		}
+		try
+		{
+			String property = System.getProperty("sun.net.httpserver.idleInterval");
+			if (property != null)
+			{
+				return Long.parseLong(property.trim()) * 1000;
+			}
+		}
+		catch (NumberFormatException e)
+		{
+			// Fall back to the default
+		}
+		return s_defaultIdleTimeout;
+	}
+
+	/**
+	 * Gets the system properties through which the settings of the
+	 * connections are passed to the Java HTTP server
+	 * @return A map from property names to values
+	 */
+	protected Map<String,String> getListenerProperties()
+	{
+		Map<String,String> props = new HashMap<String,String>();
+		if (m_idleTimeout > 0)
+		{
+			props.put("sun.net.httpserver.idleInterval", Long.toString(toSeconds(m_idleTimeout)));
+		}
+		if (m_maxIdleConnections >= 0)
+		{
+			props.put("sun.net.httpserver.maxIdleConnections", Integer.toString(m_maxIdleConnections));
+		}
+		if (m_maxConnections > 0)
+		{
+			props.put("jdk.httpserver.maxConnections", Integer.toString(m_maxConnections));
+		}
+		if (m_requestTimeout > 0)
+		{
+			props.put("sun.net.httpserver.maxReqTime", Long.toString(toSeconds(m_requestTimeout)));
+		}
+		if (m_responseTimeout > 0)
+		{
+			props.put("sun.net.httpserver.maxRspTime", Long.toString(toSeconds(m_responseTimeout)));
+		}
+		if (m_maxRequestHeaders > 0)
+		{
+			props.put("sun.net.httpserver.maxReqHeaders", Integer.toString(m_maxRequestHeaders));
+		}
+		if (m_noDelay != null)
+		{
+			props.put("sun.net.httpserver.nodelay", m_noDelay.toString());
+		}
+		else if (System.getProperty("sun.net.httpserver.nodelay") == null)
+		{
+			props.put("sun.net.httpserver.nodelay", "true");
+		}
+		return props;
+	}
+
+	/**
+	 * Passes the settings of the connections to the Java HTTP server. The
+	 * server reads them from system properties when the first server of the
+	 * JVM is created, and never again; the settings of the servers started
+	 * afterwards are therefore only checked, and a warning is printed if
+	 * they differ.
+	 */
+	protected void applyListenerSettings()
+	{
+		Map<String,String> props = getListenerProperties();
+		synchronized (Server.class)
+		{
+			if (s_listenerProperties == null)
+			{
+				for (Map.Entry<String,String> e : props.entrySet())
+				{
+					System.setProperty(e.getKey(), e.getValue());
+				}
+				s_listenerProperties = props;
+			}
+			else
+			{
+				for (Map.Entry<String,String> e : props.entrySet())
+				{
+					if (!e.getValue().equals(System.getProperty(e.getKey())))
+					{
+						System.err.println("WARNING: " + e.getKey() + "=" + e.getValue() + " ignored; the HTTP server settings are fixed when the first server is started");
+					}
+				}
+			}
+		}
+		m_connections.setIdleTimeout(getEffectiveIdleTimeout());
+	}
+
+	/**
+	 * Converts a time to seconds, rounding up
+	 * @param millis The time, in milliseconds
+	 * @return The time, in seconds
+	 */
+	protected static long toSeconds(long millis)
+	{
+		return Math.max(1, (millis + 999) / 1000);
 	}
 
 	/**
-	 * Stops the server immediately
+	 * Stops the server immediately. This also shuts down the server's
+	 * worker pool, if any.
 	 */
 	public void stopServer()
 	{
-		m_server.stop(0);
+		m_transport.stop(0);
+		if (m_workerPool != null)
+		{
+			m_workerPool.shutdown(0);
+		}
 	}
 
 	/**
@@ -226,6 +747,7 @@ public class Server implements HttpHandler
 		{
 			m_callbacks.add(index, cb);
 		}
+		m_routes = null;
 	}
 
 	/**
@@ -236,51 +758,319 @@ public class Server implements HttpHandler
 	public void registerCallback(RequestCallback cb)
 	{
 		m_callbacks.add(cb);
+		m_routes = null;
+	}
+
+	/**
+	 * Adds a WebSocket endpoint to the server. Requests to the path of the
+	 * endpoint asking to upgrade to the WebSocket protocol open a socket
+	 * instead of being given to the callbacks. This requires the
+	 * {@link NioTransport}; with another transport, these requests are
+	 * answered with a 501 Not Implemented response.
+	 * @param endpoint The endpoint, which replaces any endpoint previously
+	 * registered at the same path
+	 */
+	public void registerWebSocket(WebSocketEndpoint endpoint)
+	{
+		m_webSockets.put(endpoint.getPath(), endpoint);
+	}
+
+	/**
+	 * Gets the WebSocket endpoint at a path
+	 * @param path The path
+	 * @return The endpoint, or null if there is none
+	 */
+	public WebSocketEndpoint getWebSocketEndpoint(String path)
+	{
+		return path == null ? null : m_webSockets.get(path);
+	}
+
+	/**
+	 * Discards the index of the callbacks, so that it is rebuilt when the
+	 * next request is handled. Callbacks are indexed by their method and
+	 * path; this method must be called if one of these is changed after
+	 * the callback has been registered, or if {@link #m_callbacks} is
+	 * modified directly.
+	 */
+	public void rebuildRoutes()
+	{
+		m_routes = null;
+	}
+
+	/**
+	 * Gets the index of the callbacks, building it if necessary
+	 * @return The index
+	 */
+	protected RouteTable getRoutes()
+	{
+		RouteTable routes = m_routes;
+		if (routes == null)
+		{
+			synchronized (this)
+			{
+				routes = m_routes;
+				if (routes == null)
+				{
+					routes = new RouteTable(m_callbacks);
+					m_routes = routes;
+				}
+			}
+		}
+		return routes;
+	}
+
+	/**
+	 * Sets the object collecting statistics on the requests processed by
+	 * this server
+	 * @param metrics The statistics, or null to stop collecting them
+	 */
+	public void setMetrics(RequestMetrics metrics)
+	{
+		m_metrics = metrics;
+	}
+
+	/**
+	 * Gets the object collecting statistics on the requests processed by
+	 * this server
+	 * @return The statistics, or null if they are not collected
+	 */
+	public RequestMetrics getMetrics()
+	{
+		return m_metrics;
+	}
+
+	/**
+	 * Starts collecting statistics on the requests processed by this
+	 * server, and exposes them to Prometheus with a {@link MetricsCallback}
+	 * @param path The path at which the statistics are exposed, or null to
+	 * not expose them
+	 * @return The statistics
+	 */
+	public RequestMetrics enableMetrics(String path)
+	{
+		RequestMetrics metrics = new RequestMetrics();
+		m_metrics = metrics;
+		if (path != null)
+		{
+			registerCallback(0, new MetricsCallback(metrics, path));
+		}
+		return metrics;
 	}
 
 	@Override
-	public void handle(HttpExchange t) throws IOException
+	public void handle(HttpExchange exchange) throws IOException
 	{
-		// Go through registered callbacks
+		// What the callbacks parse from the request is parsed once
+		RequestContext t = RequestContext.of(exchange);
+		RequestMetrics metrics = m_metrics;
+		long start = metrics != null ? System.nanoTime() : 0;
+		m_connections.requestStarted(t.getRemoteAddress());
+		if (!m_webSockets.isEmpty() && WebSocket.isUpgrade(t.getRequestHeaders())
+				&& getWebSocketEndpoint(t.getPath()) != null)
+		{
+			// The transport could not switch protocols
+			respond(new CallbackResponse(t, CallbackResponse.HTTP_NOT_IMPLEMENTED, "WebSockets require the NIO transport", "text/plain"), null, start);
+			return;
+		}
+		// Go through the callbacks that may accept the request
 		CallbackResponse cbr = null;
-		for (RequestCallback cb : m_callbacks)
+		RequestCallback answering = null;
+		RouteTable routes = getRoutes();
+		for (int position : routes.lookup(t.getMethod(), t.getPath()))
 		{
-			if (cb.fire(t))
+			RequestCallback cb = routes.get(position);
+			if (!routes.mustFire(position) || cb.fire(t))
 			{
+				answering = cb;
 				try
 				{
-					cbr = cb.process(t);
+					if (cb instanceof AsyncCallback)
+					{
+						AsyncCallback async = (AsyncCallback) cb;
+						CompletableFuture<CallbackResponse> future = async.processAsync(t);
+						if (future != null)
+						{
+							// The response is sent when the future completes
+							respondLater(t, cb, future, async.getTimeout(), start);
+							return;
+						}
+					}
+					else
+					{
+						cbr = cb.process(t);
+					}
 				}
 				catch (Exception e)
 				{
-					// Pokemon exception handling, but we want the server to
-					// always reply to the HTTP request with something, even
-					// if it's an error message
-					StringWriter sw = new StringWriter();
-					PrintWriter pw = new PrintWriter(sw);
-					e.printStackTrace(pw);
-					cbr = new CallbackResponse(t, CallbackResponse.HTTP_INTERNAL_SERVER_ERROR, "<html><body><h1>Internal Server Error</h1>\n<p>The server replied with this exception:</p><pre>" + sw.toString() + "</pre></body></html>", ContentType.HTML);
-					sendResponse(cbr);
-					return;
+					cbr = getErrorResponse(t, e);
+					break;
 				}
 				if (cbr != null)
 				{
 					if (m_debugMode)
-						System.out.println(t.getRequestURI().getPath());
+						System.out.println(t.getPath());
 					break;
 				}
 			}
 		}
-		if (cbr != null)
+		if (cbr == null)
+		{
+			// No callback was triggered: bad request
+			answering = null;
+			cbr = new CallbackResponse(t, CallbackResponse.HTTP_BAD_REQUEST, "", "");
+		}
+		respond(cbr, answering, start);
+	}
+
+	/**
+	 * Sends a response and records it in the server's statistics
+	 * @param cbr The response
+	 * @param answering The callback that produced the response, or null
+	 * if no callback answered the request
+	 * @param start The time at which the request was received, as given by
+	 * {@link System#nanoTime()}
+	 */
+	protected void respond(CallbackResponse cbr, RequestCallback answering, long start)
+	{
+		try
 		{
 			sendResponse(cbr);
 		}
+		finally
+		{
+			m_connections.requestEnded(cbr.getExchange().getRemoteAddress());
+		}
+		RequestMetrics metrics = m_metrics;
+		if (metrics != null && start != 0)
+		{
+			metrics.record(answering, cbr, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Sends the response of an {@link AsyncCallback} once its future
+	 * completes, or a 504 Gateway Timeout if it does not complete in time.
+	 * Exactly one response is sent, whichever comes first. Neither is sent
+	 * on the thread of the timer, which all servers share, nor on the
+	 * thread that completes the future, which belongs to the callback: both
+	 * are handed to the {@link ResponseSender}.
+	 * @param t The exchange
+	 * @param cb The callback
+	 * @param future The future returned by the callback
+	 * @param timeout The time to wait, in milliseconds, or 0 to wait
+	 * indefinitely
+	 * @param start The time at which the request was received
+	 */
+	protected void respondLater(final HttpExchange t, final RequestCallback cb, final CompletableFuture<CallbackResponse> future, long timeout, final long start)
+	{
+		final AtomicBoolean sent = new AtomicBoolean(false);
+		final Executor sender = ResponseSender.s_executor;
+		final ScheduledFuture<?> timer;
+		if (timeout > 0)
+		{
+			timer = TimeoutScheduler.s_scheduler.schedule(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					if (sent.compareAndSet(false, true))
+					{
+						sender.execute(new Runnable()
+						{
+							@Override
+							public void run()
+							{
+								// Cancelling only completes the future exceptionally; it
+								// does not interrupt the code producing the response.
+								// It is done first so that the future is already done
+								// by the time the client receives the 504.
+								future.cancel(true);
+								respondSafely(t, new CallbackResponse(t, CallbackResponse.HTTP_GATEWAY_TIMEOUT, "The response was not ready in time", ContentType.TEXT), cb, start);
+							}
+						});
+					}
+				}
+			}, timeout, TimeUnit.MILLISECONDS);
+		}
 		else
 		{
-			// No callback was triggered: bad request
-			cbr = new CallbackResponse(t, CallbackResponse.HTTP_BAD_REQUEST, "", "");
-			sendResponse(cbr);
+			timer = null;
 		}
+		future.whenCompleteAsync(new BiConsumer<CallbackResponse,Throwable>()
+		{
+			@Override
+			public void accept(CallbackResponse cbr, Throwable e)
+			{
+				if (timer != null)
+				{
+					timer.cancel(false);
+				}
+				if (!sent.compareAndSet(false, true))
+				{
+					return;
+				}
+				if (e != null)
+				{
+					respondSafely(t, getErrorResponse(t, e), cb, start);
+				}
+				else if (cbr == null)
+				{
+					respondSafely(t, new CallbackResponse(t, CallbackResponse.HTTP_BAD_REQUEST, "", ""), null, start);
+				}
+				else
+				{
+					respondSafely(t, cbr, cb, start);
+				}
+			}
+		}, sender);
+	}
+
+	/**
+	 * Sends a response outside of {@link #handle(HttpExchange)}, where no
+	 * one is left to catch an exception; the exchange is closed if the
+	 * response cannot be sent
+	 * @param t The exchange
+	 * @param cbr The response
+	 * @param answering The callback that produced the response
+	 * @param start The time at which the request was received
+	 */
+	protected void respondSafely(HttpExchange t, CallbackResponse cbr, RequestCallback answering, long start)
+	{
+		try
+		{
+			respond(cbr, answering, start);
+		}
+		catch (RuntimeException e)
+		{
+			t.close();
+		}
+	}
+
+	/**
+	 * Creates the response sent when a callback throws an exception. An
+	 * {@link HttpException} produces a response with its status code; any
+	 * other exception produces a 500 Internal Server Error.
+	 * @param t The exchange
+	 * @param e The exception
+	 * @return The response
+	 */
+	protected static CallbackResponse getErrorResponse(HttpExchange t, Throwable e)
+	{
+		while ((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null)
+		{
+			e = e.getCause();
+		}
+		if (e instanceof HttpException)
+		{
+			return new CallbackResponse(t, ((HttpException) e).getCode(), e.getMessage() == null ? "" : e.getMessage(), ContentType.TEXT);
+		}
+		// Pokemon exception handling, but we want the server to
+		// always reply to the HTTP request with something, even
+		// if it's an error message
+		StringWriter sw = new StringWriter();
+		PrintWriter pw = new PrintWriter(sw);
+		e.printStackTrace(pw);
+		return new CallbackResponse(t, CallbackResponse.HTTP_INTERNAL_SERVER_ERROR, "<html><body><h1>Internal Server Error</h1>\n<p>The server replied with this exception:</p><pre>" + sw.toString() + "</pre></body></html>", ContentType.HTML);
 	}
 
 	public void sendResponse(CallbackResponse cbr)
@@ -288,6 +1078,14 @@ public class Server implements HttpHandler
 		HttpExchange t = cbr.getExchange();
 		Headers h = t.getResponseHeaders();
 		h.add("User-agent", m_userAgent);
+		if (!h.containsKey("Date"))
+		{
+			h.set("Date", HttpClock.now());
+		}
+		if (m_compressor != null)
+		{
+			m_compressor.apply(cbr);
+		}
 		Map<String,String> headers = cbr.getHeaders();
 		for (String name : headers.keySet())
 		{
@@ -302,6 +1100,10 @@ public class Server implements HttpHandler
 				// A 304 response must have a content length of -1 
 				t.sendResponseHeaders(response_code, -1);
 			}
+			else if (cbr.isStreaming())
+			{
+				sendStreamedContents(t, response_code, cbr.getBodyWriter(), cbr.getContentLength(), cbr.isDetached());
+			}
 			else if (contents == null || contents.length == 0)
 			{
 				t.sendResponseHeaders(response_code, 0);
@@ -325,6 +1127,80 @@ public class Server implements HttpHandler
 		}
 	}
 
+	/**
+	 * Sends a response whose contents are produced by a writer
+	 * @param t The exchange
+	 * @param response_code The response code
+	 * @param writer The writer producing the contents
+	 * @param length The number of bytes the writer will produce, or -1 if
+	 * it is not known
+	 * @throws IOException If the response cannot be sent
+	 */
+	protected static void sendStreamedContents(HttpExchange t, int response_code, CallbackResponse.BodyWriter writer, long length) throws IOException
+	{
+		sendStreamedContents(t, response_code, writer, length, false);
+	}
+
+	/**
+	 * A stream discarding what is written to it, given to the writers of
+	 * responses that have no body
+	 */
+	protected static final OutputStream s_noBody = new OutputStream()
+	{
+		@Override
+		public void write(int b)
+		{
+			// Discarded
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len)
+		{
+			// Discarded
+		}
+	};
+
+	/**
+	 * Sends a response whose contents are produced by a writer
+	 * @param t The exchange
+	 * @param response_code The response code
+	 * @param writer The writer producing the contents
+	 * @param length The number of bytes the writer will produce, or -1 if
+	 * it is not known
+	 * @param detached Whether the writer keeps the stream, which is then
+	 * only closed if the writer fails
+	 * @throws IOException If the response cannot be sent
+	 */
+	protected static void sendStreamedContents(HttpExchange t, int response_code, CallbackResponse.BodyWriter writer, long length, boolean detached) throws IOException
+	{
+		// For the HTTP server, a length of 0 means chunked encoding and a
+		// length of -1 means no body at all
+		t.sendResponseHeaders(response_code, length < 0 ? 0 : (length == 0 ? -1 : length));
+		OutputStream os = t.getResponseBody();
+		boolean kept = false;
+		try
+		{
+			if (length != 0)
+			{
+				writer.write(os);
+				kept = detached;
+			}
+			else
+			{
+				// There is no body to send, but the writer still gets the chance
+				// to close its source, such as the stream of an empty file
+				writer.write(s_noBody);
+			}
+		}
+		finally
+		{
+			if (!kept)
+			{
+				os.close();
+			}
+		}
+	}
+
 	/**
 	 * Convenience method to transform a GET query into a map of
 	 * attribute-value pairs. For example, given an URI object
@@ -336,7 +1212,7 @@ public class Server implements HttpHandler
 	 */
 	public static Map<String,String> uriToMap(URI u, Method m)
 	{
-		String query = u.getQuery();
+		String query = u.getRawQuery();
 		return queryToMap(query, m);
 	}
 
@@ -344,88 +1220,42 @@ public class Server implements HttpHandler
 	 * Convenience method to transform a GET query into a map of
 	 * attribute-value pairs. For example, given an URI object
 	 * representing the URL "http://abc.com/xyz?a=1&amp;b=2", the method
-	 * will return an object mapping "a" to "1" and "b" to "2".
+	 * will return an object mapping "a" to "1" and "b" to "2". Names and
+	 * values are URL-decoded; when a parameter appears more than once, the
+	 * map associates it to its last value, and all its values can be
+	 * obtained from the returned {@link ParameterMap}.
 	 * @param query The URI to process
 	 * @param m The method (GET, POST, etc.) of the request
 	 * @return A map of attribute-value pairs
+	 * @throws HttpException If the query has too many parameters or is
+	 * too long
+	 * @see QueryParser
 	 */
-	public static Map<String,String> queryToMap(String query, Method m)
+	public static ParameterMap queryToMap(String query, Method m)
 	{
-		Map<String,String> out = new HashMap<String,String>();
-		if (query == null)
-			return out;
-		String[] pairs = query.split("&");
-		if (pairs.length == 1 && pairs[0].indexOf("=") < 0)
-		{
-			if (m == Method.GET)
-			{
-				// Single param with no value
-				out.put(pairs[0], "");
-			}
-			else
-			{
-				// No params; likely a POST request with payload
-				out.put("", pairs[0]);
-			}
-		}
-		else
-		{
-			// List of attribute/value pairs
-			for (String pair : pairs)
-			{
-				String[] av = pair.split("=");
-				String att = av[0];
-				String val;
-				if (av.length > 1)
-					val = av[1];
-				else
-					val = "";
-				out.put(att, val);
-			}
-		}
-		return out;    
+		return QueryParser.getDefault().parse(query, m);
 	}
 
 	/**
 	 * Convenience method to put the contents of an InputStream into
-	 * a String object. As one can see from the code, this is one
-	 * prime example of Java verbosity!
+	 * a String object. The stream is read as UTF-8 until its end, and
+	 * then closed.
 	 * @param is The InputStream to read from
 	 * @return The stream's contents; if any error (e.g. I/O) occurs, the
 	 * method returns an empty string.
+	 * @see RequestBody
 	 */
 	public static String streamToString(InputStream is)
 	{
-		final String CRLF = System.getProperty("line.separator");
-		BufferedReader br = null;
-		StringBuilder sb = new StringBuilder();
-		String line;
 		try
 		{
-			br = new BufferedReader(new InputStreamReader(is));
-			while ((line = br.readLine()) != null)
-			{
-				sb.append(line).append(CRLF);
-			}
+			return new RequestBody(is, -1, RequestBody.DEFAULT_CHARSET, Integer.MAX_VALUE).getString();
 		}
 		catch (IOException e)
 		{
 			e.printStackTrace();
+			return "";
 		}
-		finally
-		{
-			if (br != null)
-			{
-				try
-				{
-					br.close();
-				} catch (IOException e)
-				{
-					e.printStackTrace();
-				}
-			}
-		}
-		return sb.toString();
 	}
 
 	/**
@@ -457,7 +1287,7 @@ public class Server implements HttpHandler
 	 */
 	public String getServerTime() 
 	{
-	    return formatDate(m_calendar.getTime());
+	    return HttpClock.now();
 	}
 	
 	/**
@@ -468,7 +1298,7 @@ public class Server implements HttpHandler
 	 */
 	public static String formatDate(Date d)
 	{
-		return s_dateFormat.format(d);
+		return HttpClock.format(d.getTime());
 	}
 	
 	/**
@@ -507,4 +1337,61 @@ public class Server implements HttpHandler
 		System.out.println("Empty server started on " + s.getServerName() + ":" + s.getServerPort());
 		System.out.println("Type CTRL+C to stop");
 	}
+
+	/**
+	 * Holds the thread that enforces the timeouts of asynchronous
+	 * callbacks; it is only created when the first of them is used
+	 */
+	protected static class TimeoutScheduler
+	{
+		/**
+		 * The scheduler
+		 */
+		protected static final ScheduledThreadPoolExecutor s_scheduler = createScheduler();
+
+		/**
+		 * Creates the scheduler
+		 * @return The scheduler
+		 */
+		protected static ScheduledThreadPoolExecutor createScheduler()
+		{
+			ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "jerrydog-timeout");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			// Most requests finish in time: do not keep their timers around
+			scheduler.setRemoveOnCancelPolicy(true);
+			return scheduler;
+		}
+	}
+
+	/**
+	 * The threads that send the responses of {@link AsyncCallback}s. They
+	 * are not taken from the worker pool, which may run a task on the
+	 * calling thread when it is saturated, or refuse it once it is shut
+	 * down. The pool grows with the number of responses being sent at
+	 * once, and its threads end after a minute of inactivity.
+	 */
+	protected static class ResponseSender
+	{
+		/**
+		 * The executor
+		 */
+		protected static final ExecutorService s_executor = Executors.newCachedThreadPool(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "jerrydog-respond");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
 }
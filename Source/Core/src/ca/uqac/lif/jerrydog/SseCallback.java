@@ -0,0 +1,844 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * A callback that streams
+ * <a href="https://html.spec.whatwg.org/multipage/server-sent-events.html">server-sent
+ * events</a> to any number of clients. Each GET request to the callback's
+ * path opens a <code>text/event-stream</code> response that stays open;
+ * every event given to {@link #publish(String, String) publish()} is then
+ * sent to all the clients connected at that time.
+ * <ul>
+ * <li>Events are encoded once, and kept in a ring buffer of fixed
+ * capacity shared by all the clients. Each client only has a cursor into
+ * this buffer: publishing an event costs the same whatever the number of
+ * clients, and never waits for any of them.</li>
+ * <li>No thread is held by a client between events. The events are
+ * written by a small pool of threads, each client being served by at most
+ * one of them at a time, and a few events at a time.</li>
+ * <li>A client that falls so far behind that the events it has yet to
+ * receive are overwritten in the buffer is disconnected. Browsers then
+ * reconnect by themselves.</li>
+ * <li>A client that stops reading eventually makes the writes to its
+ * connection block. A client whose write takes longer than the write
+ * timeout is disconnected as well, and the thread writing to it is
+ * interrupted, so that a few stalled clients cannot hold all the threads
+ * and delay the events of every other client.</li>
+ * <li>Each event has a numerical identifier. A client reconnecting with a
+ * <code>Last-Event-ID</code> header first receives the events it missed,
+ * as long as they are still in the buffer.</li>
+ * <li>A comment line is sent to idle clients at regular intervals, which
+ * keeps proxies from closing the connection and reveals the clients that
+ * are gone.</li>
+ * </ul>
+ * @author Sylvain Hallé
+ */
+public class SseCallback extends RestCallback
+{
+	/**
+	 * The default number of events kept in the buffer
+	 */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * The default interval between two heartbeats, in milliseconds
+	 */
+	public static final long DEFAULT_HEARTBEAT = 15000;
+
+	/**
+	 * The default time a write to a client may take, in milliseconds
+	 */
+	public static final long DEFAULT_WRITE_TIMEOUT = 10000;
+
+	/**
+	 * The MIME type of an event stream
+	 */
+	public static final String MIME_TYPE = "text/event-stream";
+
+	/**
+	 * The maximum number of events written to a client before the thread
+	 * moves on to another client
+	 */
+	protected static final int s_maxBatch = 64;
+
+	/**
+	 * The charset of event streams
+	 */
+	protected static final Charset s_charset = Charset.forName("UTF-8");
+
+	/**
+	 * The comment sent as a heartbeat
+	 */
+	protected static final byte[] s_heartbeat = ":\n\n".getBytes(s_charset);
+
+	/**
+	 * The buffer of events; the event with identifier <i>n</i> is at
+	 * position <i>n</i> modulo the capacity
+	 */
+	protected final Event[] m_ring;
+
+	/**
+	 * The identifier of the next event published
+	 */
+	protected volatile long m_nextId = 1;
+
+	/**
+	 * The clients currently connected
+	 */
+	protected final Set<Subscriber> m_subscribers = ConcurrentHashMap.<Subscriber>newKeySet();
+
+	/**
+	 * The executor writing the events, or null to use a pool shared by all
+	 * the callbacks
+	 */
+	protected Executor m_executor = null;
+
+	/**
+	 * The interval between two heartbeats, in milliseconds, or 0 to send
+	 * none
+	 */
+	protected long m_heartbeatInterval = DEFAULT_HEARTBEAT;
+
+	/**
+	 * The task sending the heartbeats, or null if none is scheduled
+	 */
+	protected ScheduledFuture<?> m_heartbeat = null;
+
+	/**
+	 * The time a write to a client may take, in milliseconds, or 0 to wait
+	 * indefinitely
+	 */
+	protected long m_writeTimeout = DEFAULT_WRITE_TIMEOUT;
+
+	/**
+	 * The task looking for writes that take too long, or null if none is
+	 * scheduled
+	 */
+	protected ScheduledFuture<?> m_watchdog = null;
+
+	/**
+	 * The reconnection time suggested to the clients, in milliseconds, or
+	 * 0 to let them decide
+	 */
+	protected long m_retry = 0;
+
+	/**
+	 * The number of clients disconnected because they fell behind
+	 */
+	protected final AtomicLong m_evictions = new AtomicLong();
+
+	/**
+	 * Creates an event stream with a buffer of the default capacity
+	 * @param path The path this callback listens to
+	 */
+	public SseCallback(String path)
+	{
+		this(path, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates an event stream
+	 * @param path The path this callback listens to
+	 * @param capacity The number of events kept in the buffer. This is also
+	 * the number of events a client may lag behind before it is
+	 * disconnected.
+	 */
+	public SseCallback(String path, int capacity)
+	{
+		super(Method.GET, path);
+		if (capacity < 1)
+		{
+			throw new IllegalArgumentException("Capacity must be positive");
+		}
+		m_ring = new Event[capacity];
+	}
+
+	/**
+	 * Sets the executor writing the events to the clients. By default, a
+	 * pool of daemon threads shared by all the event streams is used.
+	 * @param e The executor
+	 * @return This callback
+	 */
+	public SseCallback setExecutor(Executor e)
+	{
+		m_executor = e;
+		return this;
+	}
+
+	/**
+	 * Sets the interval between two heartbeats sent to idle clients
+	 * @param interval The interval, in milliseconds, or 0 to send none
+	 * @return This callback
+	 */
+	public SseCallback setHeartbeat(long interval)
+	{
+		synchronized (m_subscribers)
+		{
+			m_heartbeatInterval = interval;
+			stopHeartbeat();
+		}
+		if (!m_subscribers.isEmpty())
+		{
+			startHeartbeat();
+		}
+		return this;
+	}
+
+	/**
+	 * Sets the time a write to a client may take. A client that does not
+	 * accept the data written to it within this time is disconnected.
+	 * @param timeout The time, in milliseconds, or 0 to wait indefinitely
+	 * @return This callback
+	 */
+	public SseCallback setWriteTimeout(long timeout)
+	{
+		synchronized (m_subscribers)
+		{
+			m_writeTimeout = timeout;
+			stopWatchdog();
+		}
+		if (!m_subscribers.isEmpty())
+		{
+			startWatchdog();
+		}
+		return this;
+	}
+
+	/**
+	 * Sets the time the clients should wait before reconnecting when their
+	 * connection is lost. It is sent at the start of each stream.
+	 * @param retry The time, in milliseconds, or 0 to let the clients
+	 * decide
+	 * @return This callback
+	 */
+	public SseCallback setRetry(long retry)
+	{
+		m_retry = retry;
+		return this;
+	}
+
+	@Override
+	public CallbackResponse process(HttpExchange t)
+	{
+		final long cursor = getStart(t.getRequestHeaders().getFirst("Last-Event-ID"));
+		CallbackResponse cbr = new CallbackResponse(t);
+		cbr.setContentType(MIME_TYPE + "; charset=utf-8");
+		cbr.setHeader("Cache-Control", "no-cache");
+		cbr.setDetachedContents(new CallbackResponse.BodyWriter()
+		{
+			@Override
+			public void write(OutputStream out) throws IOException
+			{
+				subscribe(new Subscriber(out, cursor));
+			}
+		});
+		return cbr;
+	}
+
+	/**
+	 * Sends an event with no type to all the clients
+	 * @param data The data of the event
+	 * @return The identifier of the event
+	 */
+	public long publish(String data)
+	{
+		return publish(null, data);
+	}
+
+	/**
+	 * Sends an event to all the clients
+	 * @param event The type of the event, or null to send an event with no
+	 * type ("message")
+	 * @param data The data of the event; each of its lines is sent on a
+	 * line of its own
+	 * @return The identifier of the event
+	 */
+	public long publish(String event, String data)
+	{
+		if (event != null && (event.indexOf('\n') >= 0 || event.indexOf('\r') >= 0))
+		{
+			throw new IllegalArgumentException("Event type cannot span several lines");
+		}
+		StringBuilder out = new StringBuilder(data.length() + 32);
+		if (event != null)
+		{
+			out.append("event: ").append(event).append('\n');
+		}
+		int start = 0;
+		int len = data.length();
+		for (int i = 0; i <= len; i++)
+		{
+			char c = i < len ? data.charAt(i) : '\n';
+			if (c == '\n' || c == '\r')
+			{
+				out.append("data: ").append(data, start, i).append('\n');
+				if (c == '\r' && i + 1 < len && data.charAt(i + 1) == '\n')
+				{
+					i++;
+				}
+				start = i + 1;
+			}
+		}
+		out.append('\n');
+		byte[] payload = out.toString().getBytes(s_charset);
+		long id;
+		synchronized (m_ring)
+		{
+			id = m_nextId;
+			byte[] id_line = ("id: " + id + "\n").getBytes(s_charset);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(id_line.length + payload.length);
+			bytes.write(id_line, 0, id_line.length);
+			bytes.write(payload, 0, payload.length);
+			m_ring[(int) (id % m_ring.length)] = new Event(id, bytes.toByteArray());
+			// The event is visible to the readers of this field
+			m_nextId = id + 1;
+		}
+		for (Subscriber s : m_subscribers)
+		{
+			s.schedule();
+		}
+		return id;
+	}
+
+	/**
+	 * Disconnects all the clients
+	 */
+	public void closeAll()
+	{
+		for (Subscriber s : m_subscribers)
+		{
+			s.m_ending = true;
+			s.schedule();
+		}
+		synchronized (m_subscribers)
+		{
+			stopHeartbeat();
+			stopWatchdog();
+		}
+	}
+
+	/**
+	 * Gets the number of clients connected
+	 * @return The number of clients
+	 */
+	public int getSubscriberCount()
+	{
+		return m_subscribers.size();
+	}
+
+	/**
+	 * Gets the identifier of the last event published
+	 * @return The identifier, or 0 if no event was published
+	 */
+	public long getLastEventId()
+	{
+		return m_nextId - 1;
+	}
+
+	/**
+	 * Gets the number of clients disconnected because they fell behind, or
+	 * because a write to them took too long
+	 * @return The number of clients
+	 */
+	public long getEvictionCount()
+	{
+		return m_evictions.get();
+	}
+
+	/**
+	 * Gets the number of events kept in the buffer
+	 * @return The number of events
+	 */
+	public int getCapacity()
+	{
+		return m_ring.length;
+	}
+
+	/**
+	 * Finds the first event to send to a new client
+	 * @param last_event_id The value of the <code>Last-Event-ID</code>
+	 * header sent by the client, or null
+	 * @return The identifier of the event
+	 */
+	protected long getStart(String last_event_id)
+	{
+		long next = m_nextId;
+		if (last_event_id == null)
+		{
+			return next;
+		}
+		long last;
+		try
+		{
+			last = Long.parseLong(last_event_id.trim());
+		}
+		catch (NumberFormatException e)
+		{
+			return next;
+		}
+		if (last < 0 || last >= next)
+		{
+			// An identifier from another run of the server
+			return next;
+		}
+		// The events older than the buffer are lost
+		return Math.max(last + 1, Math.max(1, next - m_ring.length));
+	}
+
+	/**
+	 * Adds a client, once the headers of its response are sent
+	 * @param s The client
+	 * @throws IOException If the start of the stream cannot be written
+	 */
+	protected void subscribe(Subscriber s) throws IOException
+	{
+		// Something is written right away, so that the client knows the
+		// stream is open
+		if (m_retry > 0)
+		{
+			s.m_out.write(("retry: " + m_retry + "\n\n").getBytes(s_charset));
+		}
+		else
+		{
+			s.m_out.write(s_heartbeat);
+		}
+		s.m_out.flush();
+		m_subscribers.add(s);
+		startHeartbeat();
+		startWatchdog();
+		// Send the events the client missed, or that were published since
+		// its cursor was set
+		s.schedule();
+	}
+
+	/**
+	 * Starts sending heartbeats, if they are enabled and not already sent
+	 */
+	protected void startHeartbeat()
+	{
+		synchronized (m_subscribers)
+		{
+			if (m_heartbeat != null || m_heartbeatInterval <= 0)
+			{
+				return;
+			}
+			m_heartbeat = Server.TimeoutScheduler.s_scheduler.scheduleAtFixedRate(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					heartbeat();
+				}
+			}, m_heartbeatInterval, m_heartbeatInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Stops sending heartbeats. This must be called while holding the lock
+	 * on {@link #m_subscribers}.
+	 */
+	protected void stopHeartbeat()
+	{
+		if (m_heartbeat != null)
+		{
+			m_heartbeat.cancel(false);
+			m_heartbeat = null;
+		}
+	}
+
+	/**
+	 * Sends a heartbeat to the clients that received nothing since the
+	 * last one. The heartbeats stop when no client is left.
+	 */
+	protected void heartbeat()
+	{
+		synchronized (m_subscribers)
+		{
+			if (m_subscribers.isEmpty())
+			{
+				stopHeartbeat();
+				return;
+			}
+		}
+		for (Subscriber s : m_subscribers)
+		{
+			if (s.m_idle)
+			{
+				s.m_heartbeatDue = true;
+				s.schedule();
+			}
+			s.m_idle = true;
+		}
+	}
+
+	/**
+	 * Starts looking for writes that take too long, if there is a timeout
+	 * and this is not already done
+	 */
+	protected void startWatchdog()
+	{
+		synchronized (m_subscribers)
+		{
+			if (m_watchdog != null || m_writeTimeout <= 0)
+			{
+				return;
+			}
+			// Checking four times per timeout evicts a client at most a
+			// quarter of the timeout late
+			long interval = Math.max(10, m_writeTimeout / 4);
+			m_watchdog = Server.TimeoutScheduler.s_scheduler.scheduleAtFixedRate(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					checkWrites();
+				}
+			}, interval, interval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Stops looking for writes that take too long. This must be called
+	 * while holding the lock on {@link #m_subscribers}.
+	 */
+	protected void stopWatchdog()
+	{
+		if (m_watchdog != null)
+		{
+			m_watchdog.cancel(false);
+			m_watchdog = null;
+		}
+	}
+
+	/**
+	 * Disconnects the clients whose current write has taken longer than the
+	 * write timeout. The checks stop when no client is left.
+	 */
+	protected void checkWrites()
+	{
+		synchronized (m_subscribers)
+		{
+			if (m_subscribers.isEmpty())
+			{
+				stopWatchdog();
+				return;
+			}
+		}
+		long now = System.currentTimeMillis();
+		for (Subscriber s : m_subscribers)
+		{
+			s.checkWrite(now, m_writeTimeout);
+		}
+	}
+
+	/**
+	 * Gets the executor writing the events
+	 * @return The executor
+	 */
+	protected Executor getExecutor()
+	{
+		Executor e = m_executor;
+		return e != null ? e : DefaultExecutor.s_executor;
+	}
+
+	/**
+	 * An event in the buffer
+	 */
+	protected static class Event
+	{
+		/**
+		 * The identifier of the event
+		 */
+		protected final long m_id;
+
+		/**
+		 * The event, encoded as it is sent
+		 */
+		protected final byte[] m_bytes;
+
+		/**
+		 * Creates an event
+		 * @param id The identifier of the event
+		 * @param bytes The event, encoded as it is sent
+		 */
+		public Event(long id, byte[] bytes)
+		{
+			super();
+			m_id = id;
+			m_bytes = bytes;
+		}
+	}
+
+	/**
+	 * A connected client. The writes to a client are made by a task that is
+	 * scheduled at most once at a time, so that the stream and the cursor
+	 * are only ever used by one thread.
+	 */
+	protected class Subscriber implements Runnable
+	{
+		/**
+		 * The stream of the response
+		 */
+		protected final OutputStream m_out;
+
+		/**
+		 * The identifier of the next event to send
+		 */
+		protected long m_cursor;
+
+		/**
+		 * Whether a task writing to this client is scheduled or running
+		 */
+		protected final AtomicBoolean m_scheduled = new AtomicBoolean(false);
+
+		/**
+		 * Whether nothing was written to the client since the last heartbeat
+		 */
+		protected volatile boolean m_idle = false;
+
+		/**
+		 * Whether a heartbeat must be written
+		 */
+		protected volatile boolean m_heartbeatDue = false;
+
+		/**
+		 * Whether the stream must be closed
+		 */
+		protected volatile boolean m_ending = false;
+
+		/**
+		 * Whether the stream is closed
+		 */
+		protected volatile boolean m_closed = false;
+
+		/**
+		 * Whether the client was disconnected because a write took too long
+		 */
+		protected volatile boolean m_evicted = false;
+
+		/**
+		 * The thread writing to the client, or null if no write is in
+		 * progress
+		 */
+		protected Thread m_writer = null;
+
+		/**
+		 * The time at which the write in progress started
+		 */
+		protected long m_writeStart = 0;
+
+		/**
+		 * Creates a client
+		 * @param out The stream of the response
+		 * @param cursor The identifier of the first event to send
+		 */
+		public Subscriber(OutputStream out, long cursor)
+		{
+			super();
+			m_out = out;
+			m_cursor = cursor;
+		}
+
+		/**
+		 * Schedules a task writing to this client, unless one is already
+		 * scheduled
+		 */
+		protected void schedule()
+		{
+			if (m_closed || m_evicted || !m_scheduled.compareAndSet(false, true))
+			{
+				return;
+			}
+			try
+			{
+				getExecutor().execute(this);
+			}
+			catch (RejectedExecutionException e)
+			{
+				end();
+				m_scheduled.set(false);
+			}
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				if (m_ending || m_evicted)
+				{
+					end();
+					return;
+				}
+				startWrite();
+				boolean wrote = false;
+				long next = m_nextId;
+				int count = 0;
+				while (m_cursor < next && count < s_maxBatch)
+				{
+					Event e = m_ring[(int) (m_cursor % m_ring.length)];
+					if (e == null || e.m_id != m_cursor)
+					{
+						// The event was overwritten: the client is too slow
+						m_evictions.incrementAndGet();
+						end();
+						return;
+					}
+					m_out.write(e.m_bytes);
+					m_cursor++;
+					count++;
+					wrote = true;
+				}
+				if (!wrote && m_heartbeatDue)
+				{
+					m_out.write(s_heartbeat);
+					wrote = true;
+				}
+				m_heartbeatDue = false;
+				if (wrote)
+				{
+					m_out.flush();
+					m_idle = false;
+				}
+			}
+			catch (IOException e)
+			{
+				// The client is gone, or was evicted while the write blocked
+				end();
+			}
+			finally
+			{
+				endWrite();
+				m_scheduled.set(false);
+			}
+			if (m_evicted && !m_closed)
+			{
+				// Evicted just as the write completed
+				end();
+			}
+			if (!m_closed && (m_cursor < m_nextId || m_ending))
+			{
+				// Events were published while the task was running
+				schedule();
+			}
+		}
+
+		/**
+		 * Records that the current thread starts writing to the client
+		 */
+		protected synchronized void startWrite()
+		{
+			m_writer = Thread.currentThread();
+			m_writeStart = System.currentTimeMillis();
+		}
+
+		/**
+		 * Records that the current thread is done writing to the client. The
+		 * thread belongs to a pool and moves on to other clients: the
+		 * interruption of an eviction must not outlive this write.
+		 */
+		protected void endWrite()
+		{
+			synchronized (this)
+			{
+				m_writer = null;
+			}
+			if (m_evicted)
+			{
+				Thread.interrupted();
+			}
+		}
+
+		/**
+		 * Disconnects the client if the write in progress has taken too
+		 * long. Interrupting the writing thread closes the channel it is
+		 * blocked on, or wakes it up if it waits for room in the buffer of
+		 * the transport.
+		 * @param now The current time
+		 * @param timeout The time a write may take
+		 */
+		protected synchronized void checkWrite(long now, long timeout)
+		{
+			if (m_writer == null || m_evicted || now - m_writeStart <= timeout)
+			{
+				return;
+			}
+			m_evicted = true;
+			m_evictions.incrementAndGet();
+			m_subscribers.remove(this);
+			m_writer.interrupt();
+		}
+
+		/**
+		 * Closes the stream and forgets this client
+		 */
+		protected void end()
+		{
+			m_closed = true;
+			m_subscribers.remove(this);
+			try
+			{
+				m_out.close();
+			}
+			catch (IOException e)
+			{
+				// Nothing else to do
+			}
+		}
+	}
+
+	/**
+	 * Holds the executor shared by the callbacks that have none of their
+	 * own, which is only created when first needed
+	 */
+	protected static class DefaultExecutor
+	{
+		/**
+		 * The executor
+		 */
+		protected static final ExecutorService s_executor = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "jerrydog-sse");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+}
@@ -0,0 +1,59 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * The layer that accepts connections, reads HTTP requests and writes the
+ * responses for a {@link Server}. Whatever the transport, each request is
+ * handed to {@link Server#handle(com.sun.net.httpserver.HttpExchange)
+ * Server.handle()} as an {@code HttpExchange}, so that the callbacks do
+ * not depend on the transport. Two transports are provided:
+ * <ul>
+ * <li>{@link JdkTransport}, the default, relies on the HTTP server bundled
+ * with the JDK</li>
+ * <li>{@link NioTransport} is Jerrydog's own non-blocking engine</li>
+ * </ul>
+ * A transport instance serves a single server at a time.
+ * @author Sylvain Hallé
+ */
+public interface Transport
+{
+	/**
+	 * Starts accepting connections on the port of a server, with the
+	 * settings of that server
+	 * @param server The server
+	 * @throws IOException If the server cannot listen on its port
+	 */
+	public void start(Server server) throws IOException;
+
+	/**
+	 * Stops accepting connections and closes the open ones
+	 * @param delay The maximum time to wait for the exchanges in progress
+	 * to finish, in seconds
+	 */
+	public void stop(int delay);
+
+	/**
+	 * Gets the address on which the transport listens
+	 * @return The address, or null if the transport is not started
+	 */
+	public InetSocketAddress getAddress();
+}
@@ -0,0 +1,1186 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.Headers;
+
+/**
+ * A WebSocket opened on a connection of the {@link NioTransport}, as
+ * defined by <a href="https://www.rfc-editor.org/rfc/rfc6455">RFC 6455</a>.
+ * The connection switches to the WebSocket protocol when it receives a
+ * request asking for it at the path of a {@link WebSocketEndpoint}; the
+ * events of the socket are then given to this endpoint.
+ * <p>
+ * Messages can be sent from any thread. They are encoded, and compressed
+ * if the client supports the <code>permessage-deflate</code> extension, by
+ * the sending thread, and queued until the event loop of the connection
+ * writes them. The bytes in this queue are bounded by
+ * {@link WebSocketEndpoint#getMaxQueuedBytes()}: once they exceed it,
+ * {@link #sendText(String) sendText()} and
+ * {@link #sendBinary(byte[]) sendBinary()} wait for the client to catch
+ * up, while {@link #trySendText(String) trySendText()} and
+ * {@link #trySendBinary(byte[]) trySendBinary()} give up at once, leaving
+ * the sender to decide what to do with a slow client.
+ * <p>
+ * Pings are answered by the server, and fragmented messages are
+ * reassembled before being given to the endpoint.
+ * @author Sylvain Hallé
+ */
+public class WebSocket
+{
+	/**
+	 * The string appended to the key of the client to compute the accept
+	 * value of the handshake
+	 */
+	protected static final String s_guid = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+	/**
+	 * The size of the smallest message that is compressed, in bytes
+	 */
+	protected static final int s_minCompressedSize = 128;
+
+	/**
+	 * The time to wait for the client to answer a close frame, in
+	 * milliseconds
+	 */
+	protected static final long s_closeTimeout = 5000;
+
+	/**
+	 * The largest number of events given to the endpoint in a row, before
+	 * the thread is handed to other tasks
+	 */
+	protected static final int s_maxBatch = 64;
+
+	/**
+	 * The size above which the array holding a fragmented message is not
+	 * kept for the next one
+	 */
+	protected static final int s_maxKeptMessage = 65536;
+
+	/**
+	 * The connection of this socket
+	 */
+	protected final NioTransport.Connection m_connection;
+
+	/**
+	 * The endpoint receiving the events of this socket
+	 */
+	protected final WebSocketEndpoint m_endpoint;
+
+	/**
+	 * The URI of the request that opened the socket
+	 */
+	protected final URI m_uri;
+
+	/**
+	 * The headers of the request that opened the socket
+	 */
+	protected final Headers m_headers;
+
+	/**
+	 * The subprotocol chosen for this socket, or null if there is none
+	 */
+	protected String m_subprotocol = null;
+
+	/**
+	 * The reader and writer of frames
+	 */
+	protected final WebSocketCodec m_codec = new WebSocketCodec();
+
+	/**
+	 * The executor calling the methods of the endpoint
+	 */
+	protected final Executor m_executor;
+
+	/**
+	 * The decoder of text messages, which rejects invalid UTF-8
+	 */
+	protected final CharsetDecoder m_utf8;
+
+	/**
+	 * The opcode of the message being received, or -1 if the next data
+	 * frame starts a new message
+	 */
+	protected int m_messageOpcode = -1;
+
+	/**
+	 * Whether the message being received is compressed
+	 */
+	protected boolean m_messageCompressed = false;
+
+	/**
+	 * The bytes of the message being received, when it does not come
+	 * whole in a single frame
+	 */
+	protected byte[] m_message = null;
+
+	/**
+	 * The number of bytes in {@link #m_message}
+	 */
+	protected int m_messageLength = 0;
+
+	/**
+	 * The payload of the control frame being received
+	 */
+	protected final byte[] m_control = new byte[WebSocketCodec.MAX_CONTROL_PAYLOAD];
+
+	/**
+	 * The number of bytes in {@link #m_control}
+	 */
+	protected int m_controlLength = 0;
+
+	/**
+	 * Whether nothing more is read from the client, because it sent a
+	 * close frame or violated the protocol
+	 */
+	protected volatile boolean m_closeReceived = false;
+
+	/**
+	 * Whether a close frame was queued, after which nothing more is sent
+	 */
+	protected volatile boolean m_closeSent = false;
+
+	/**
+	 * The time at which the close frame was queued
+	 */
+	protected long m_closeSentTime = 0;
+
+	/**
+	 * Whether the connection is closed
+	 */
+	protected volatile boolean m_aborted = false;
+
+	/**
+	 * Whether the endpoint was told that the socket is closed
+	 */
+	protected boolean m_closeNotified = false;
+
+	/**
+	 * The frames waiting to be moved to the connection
+	 */
+	protected final ArrayDeque<ByteBuffer> m_queue = new ArrayDeque<ByteBuffer>();
+
+	/**
+	 * The number of bytes in {@link #m_queue}
+	 */
+	protected long m_queuedBytes = 0;
+
+	/**
+	 * The number of threads waiting for room in {@link #m_queue}
+	 */
+	protected int m_waiting = 0;
+
+	/**
+	 * The events waiting to be given to the endpoint
+	 */
+	protected final ConcurrentLinkedQueue<Runnable> m_events = new ConcurrentLinkedQueue<Runnable>();
+
+	/**
+	 * Whether a task giving the events to the endpoint is scheduled or
+	 * running
+	 */
+	protected final AtomicBoolean m_scheduled = new AtomicBoolean(false);
+
+	/**
+	 * The number of bytes of the messages received and not yet processed
+	 * by the endpoint
+	 */
+	protected final AtomicLong m_pendingBytes = new AtomicLong();
+
+	/**
+	 * Whether the client is no longer read, because too many of its
+	 * messages wait for the endpoint
+	 */
+	protected volatile boolean m_paused = false;
+
+	/**
+	 * Whether the client must be read again after having been paused
+	 */
+	protected final AtomicBoolean m_resumed = new AtomicBoolean(false);
+
+	/**
+	 * An object attached to the socket by the endpoint
+	 */
+	protected volatile Object m_attachment = null;
+
+	/**
+	 * Creates a socket
+	 * @param connection The connection of this socket
+	 * @param endpoint The endpoint receiving the events of this socket
+	 * @param uri The URI of the request that opened the socket
+	 * @param headers The headers of the request that opened the socket
+	 */
+	protected WebSocket(NioTransport.Connection connection, WebSocketEndpoint endpoint, URI uri, Headers headers)
+	{
+		super();
+		m_connection = connection;
+		m_endpoint = endpoint;
+		m_uri = uri;
+		m_headers = headers;
+		m_executor = connection.getExecutor();
+		m_utf8 = WebSocketCodec.UTF_8.newDecoder().onMalformedInput(CodingErrorAction.REPORT).onUnmappableCharacter(CodingErrorAction.REPORT);
+	}
+
+	/**
+	 * Determines whether a request asks to upgrade to the WebSocket
+	 * protocol
+	 * @param headers The headers of the request
+	 * @return true if it does
+	 */
+	public static boolean isUpgrade(Headers headers)
+	{
+		return NioHttpExchange.hasToken(headers.get("Upgrade"), "websocket")
+				&& NioHttpExchange.hasToken(headers.get("Connection"), "upgrade");
+	}
+
+	/**
+	 * Opens a socket on a connection. The handshake of the request is
+	 * checked, and the 101 response is queued.
+	 * @param connection The connection
+	 * @param endpoint The endpoint at the path of the request
+	 * @param method The method of the request
+	 * @param protocol The protocol of the request
+	 * @param uri The URI of the request
+	 * @param headers The headers of the request
+	 * @return The socket
+	 * @throws HttpException If the request cannot open a socket
+	 */
+	public static WebSocket upgrade(NioTransport.Connection connection, WebSocketEndpoint endpoint, String method, String protocol, URI uri, Headers headers)
+	{
+		if (method.compareTo("GET") != 0 || protocol.compareTo("HTTP/1.1") != 0)
+		{
+			throw new HttpException(CallbackResponse.HTTP_BAD_REQUEST, "A WebSocket is opened by an HTTP/1.1 GET request");
+		}
+		String key = headers.getFirst("Sec-WebSocket-Key");
+		if (key == null || !isValidKey(key.trim()))
+		{
+			throw new HttpException(CallbackResponse.HTTP_BAD_REQUEST, "Invalid WebSocket key");
+		}
+		String version = headers.getFirst("Sec-WebSocket-Version");
+		if (version == null || version.trim().compareTo("13") != 0)
+		{
+			throw new HttpException(CallbackResponse.HTTP_UPGRADE_REQUIRED, "Unsupported WebSocket version");
+		}
+		if (!endpoint.accept(uri, headers))
+		{
+			throw new HttpException(CallbackResponse.HTTP_FORBIDDEN, "Forbidden");
+		}
+		final WebSocket ws = new WebSocket(connection, endpoint, uri, headers);
+		StringBuilder head = new StringBuilder();
+		head.append("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\nSec-WebSocket-Accept: ");
+		head.append(getAccept(key.trim())).append("\r\n");
+		ws.m_subprotocol = endpoint.selectSubprotocol(headers.get("Sec-WebSocket-Protocol"));
+		if (ws.m_subprotocol != null)
+		{
+			head.append("Sec-WebSocket-Protocol: ").append(ws.m_subprotocol).append("\r\n");
+		}
+		if (endpoint.isCompression())
+		{
+			String extension = ws.negotiateDeflate(headers.get("Sec-WebSocket-Extensions"));
+			if (extension != null)
+			{
+				head.append("Sec-WebSocket-Extensions: ").append(extension).append("\r\n");
+			}
+		}
+		head.append("\r\n");
+		connection.queue(ByteBuffer.wrap(head.toString().getBytes(NioHttpExchange.s_headerCharset)));
+		ws.dispatch(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				ws.m_endpoint.onOpen(ws);
+			}
+		});
+		return ws;
+	}
+
+	/**
+	 * Determines whether the key sent by a client is valid
+	 * @param key The key
+	 * @return true if it is 16 bytes encoded in base64
+	 */
+	protected static boolean isValidKey(String key)
+	{
+		try
+		{
+			return Base64.getDecoder().decode(key).length == 16;
+		}
+		catch (IllegalArgumentException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Computes the value of the <code>Sec-WebSocket-Accept</code> header
+	 * answering a key
+	 * @param key The key sent by the client
+	 * @return The value
+	 */
+	protected static String getAccept(String key)
+	{
+		try
+		{
+			MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+			return Base64.getEncoder().encodeToString(sha1.digest((key + s_guid).getBytes(NioHttpExchange.s_headerCharset)));
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			// Every Java platform has SHA-1
+			throw new HttpException(CallbackResponse.HTTP_INTERNAL_SERVER_ERROR, "SHA-1 is not available", e);
+		}
+	}
+
+	/**
+	 * Accepts the first offer of the <code>permessage-deflate</code>
+	 * extension that the server can honour. Offers asking the server for a
+	 * window smaller than 32 kB are declined, as the deflater of Java
+	 * cannot use one.
+	 * @param values The values of the <code>Sec-WebSocket-Extensions</code>
+	 * header of the request, or null if there are none
+	 * @return The value of the header of the response accepting the
+	 * extension, or null if it is not used
+	 */
+	protected String negotiateDeflate(List<String> values)
+	{
+		if (values == null)
+		{
+			return null;
+		}
+		for (String value : values)
+		{
+			for (String offer : value.split(","))
+			{
+				String[] parts = offer.split(";");
+				if (!parts[0].trim().equalsIgnoreCase("permessage-deflate"))
+				{
+					continue;
+				}
+				StringBuilder response = new StringBuilder("permessage-deflate");
+				Set<String> seen = new HashSet<String>();
+				boolean reset = false;
+				boolean valid = true;
+				for (int i = 1; i < parts.length && valid; i++)
+				{
+					String name = parts[i].trim().toLowerCase(Locale.US);
+					String param = null;
+					int eq = name.indexOf('=');
+					if (eq >= 0)
+					{
+						param = name.substring(eq + 1).trim().replace("\"", "");
+						name = name.substring(0, eq).trim();
+					}
+					valid = seen.add(name);
+					if (name.compareTo("server_no_context_takeover") == 0 && param == null)
+					{
+						reset = true;
+						response.append("; server_no_context_takeover");
+					}
+					else if (name.compareTo("client_no_context_takeover") == 0 && param == null)
+					{
+						response.append("; client_no_context_takeover");
+					}
+					else if (name.compareTo("server_max_window_bits") == 0 && "15".equals(param))
+					{
+						response.append("; server_max_window_bits=15");
+					}
+					else if (name.compareTo("client_max_window_bits") != 0 || (param != null && !param.matches("8|9|1[0-5]")))
+					{
+						valid = false;
+					}
+				}
+				if (valid)
+				{
+					m_codec.enableDeflate(reset);
+					return response.toString();
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Reads the frames found in a buffer. The bytes of a header that is
+	 * not complete are left in the buffer; so are all the bytes that
+	 * follow a message, if the client is paused after it.
+	 * @param in The buffer, whose position is moved past the bytes read
+	 */
+	public void read(ByteBuffer in)
+	{
+		try
+		{
+			while (in.hasRemaining() && !m_closeReceived && !m_paused)
+			{
+				if (!m_codec.isInFrame())
+				{
+					if (!m_codec.readHeader(in))
+					{
+						return;
+					}
+					startFrame();
+				}
+				long remaining = m_codec.getRemaining();
+				int n = (int) Math.min(in.remaining(), remaining);
+				boolean whole = remaining == m_codec.getLength() && n == remaining;
+				m_codec.unmask(in, n);
+				payload(in, n, whole);
+			}
+			if (m_closeReceived)
+			{
+				in.position(in.limit());
+			}
+		}
+		catch (WebSocketCodec.FrameException e)
+		{
+			fail(e.getCode(), e.getMessage());
+			in.position(in.limit());
+		}
+	}
+
+	/**
+	 * Checks the header of a frame against the state of the message being
+	 * received
+	 * @throws WebSocketCodec.FrameException If the frame is not expected
+	 */
+	protected void startFrame() throws WebSocketCodec.FrameException
+	{
+		int opcode = m_codec.getOpcode();
+		if (WebSocketCodec.isControl(opcode))
+		{
+			if (m_codec.isRsv1())
+			{
+				throw new WebSocketCodec.FrameException(WebSocketCodec.PROTOCOL_ERROR, "Compressed control frame");
+			}
+			m_controlLength = 0;
+			return;
+		}
+		if (opcode == WebSocketCodec.CONTINUATION)
+		{
+			if (m_messageOpcode < 0 || m_codec.isRsv1())
+			{
+				throw new WebSocketCodec.FrameException(WebSocketCodec.PROTOCOL_ERROR, "Unexpected continuation frame");
+			}
+		}
+		else
+		{
+			if (m_messageOpcode >= 0)
+			{
+				throw new WebSocketCodec.FrameException(WebSocketCodec.PROTOCOL_ERROR, "Expected a continuation frame");
+			}
+			if (m_codec.isRsv1() && !m_codec.isDeflate())
+			{
+				throw new WebSocketCodec.FrameException(WebSocketCodec.PROTOCOL_ERROR, "Compression was not negotiated");
+			}
+			m_messageOpcode = opcode;
+			m_messageCompressed = m_codec.isRsv1();
+		}
+		if (m_messageLength + m_codec.getLength() > m_endpoint.getMaxMessageSize())
+		{
+			throw new WebSocketCodec.FrameException(WebSocketCodec.MESSAGE_TOO_BIG, "Message too big");
+		}
+	}
+
+	/**
+	 * Processes the unmasked bytes of the payload of the current frame
+	 * @param in The buffer, whose position is the first of these bytes. It
+	 * is moved past them.
+	 * @param n The number of bytes
+	 * @param whole Whether these bytes are the whole payload of the frame
+	 * @throws WebSocketCodec.FrameException If the payload is invalid
+	 */
+	protected void payload(ByteBuffer in, int n, boolean whole) throws WebSocketCodec.FrameException
+	{
+		boolean done = !m_codec.isInFrame();
+		int opcode = m_codec.getOpcode();
+		if (WebSocketCodec.isControl(opcode))
+		{
+			in.get(m_control, m_controlLength, n);
+			m_controlLength += n;
+			if (done)
+			{
+				control(opcode);
+			}
+			return;
+		}
+		if (whole && m_codec.isFin() && m_messageLength == 0 && !m_messageCompressed)
+		{
+			// The message is read where it was received
+			int limit = in.limit();
+			in.limit(in.position() + n);
+			try
+			{
+				deliver(in);
+			}
+			finally
+			{
+				in.limit(limit);
+			}
+			endMessage();
+			return;
+		}
+		if (m_message == null || m_message.length < m_messageLength + n)
+		{
+			m_message = m_message == null ? new byte[Math.max(256, n)] : WebSocketCodec.grow(m_message, m_messageLength + n);
+		}
+		in.get(m_message, m_messageLength, n);
+		m_messageLength += n;
+		if (done && m_codec.isFin())
+		{
+			if (m_messageCompressed)
+			{
+				int length = m_codec.inflate(m_message, m_messageLength, m_endpoint.getMaxMessageSize());
+				deliver(ByteBuffer.wrap(m_codec.getInflated(), 0, length));
+			}
+			else
+			{
+				deliver(ByteBuffer.wrap(m_message, 0, m_messageLength));
+			}
+			endMessage();
+		}
+	}
+
+	/**
+	 * Resets the state of the message being received once it is delivered
+	 */
+	protected void endMessage()
+	{
+		m_messageOpcode = -1;
+		m_messageCompressed = false;
+		m_messageLength = 0;
+		if (m_message != null && m_message.length > s_maxKeptMessage)
+		{
+			m_message = null;
+		}
+	}
+
+	/**
+	 * Gives a complete message to the endpoint, and pauses the client if
+	 * too many messages wait for it
+	 * @param data A buffer holding the message
+	 * @throws WebSocketCodec.FrameException If a text message is not valid
+	 * UTF-8
+	 */
+	protected void deliver(ByteBuffer data) throws WebSocketCodec.FrameException
+	{
+		final int size = data.remaining();
+		final String text;
+		final byte[] bytes;
+		if (m_messageOpcode == WebSocketCodec.TEXT)
+		{
+			try
+			{
+				text = m_utf8.decode(data).toString();
+			}
+			catch (CharacterCodingException e)
+			{
+				throw new WebSocketCodec.FrameException(WebSocketCodec.INVALID_DATA, "Invalid UTF-8 text");
+			}
+			bytes = null;
+		}
+		else
+		{
+			bytes = new byte[size];
+			data.get(bytes);
+			text = null;
+		}
+		long max = m_endpoint.getMaxQueuedBytes();
+		if (m_pendingBytes.addAndGet(size) > max)
+		{
+			m_paused = true;
+			if (m_pendingBytes.get() <= max / 2)
+			{
+				// The endpoint caught up in the meantime
+				m_paused = false;
+			}
+		}
+		final WebSocket ws = this;
+		dispatch(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					if (text != null)
+					{
+						m_endpoint.onMessage(ws, text);
+					}
+					else
+					{
+						m_endpoint.onMessage(ws, bytes);
+					}
+				}
+				finally
+				{
+					release(size);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Records that the endpoint processed a message, and reads the client
+	 * again if it was paused and enough messages were processed
+	 * @param size The size of the message
+	 */
+	protected void release(long size)
+	{
+		if (m_pendingBytes.addAndGet(-size) <= m_endpoint.getMaxQueuedBytes() / 2 && m_paused)
+		{
+			m_paused = false;
+			m_resumed.set(true);
+			m_connection.outputReady();
+		}
+	}
+
+	/**
+	 * Processes a complete control frame
+	 * @param opcode The opcode of the frame
+	 * @throws WebSocketCodec.FrameException If the frame is invalid
+	 */
+	protected void control(int opcode) throws WebSocketCodec.FrameException
+	{
+		if (opcode == WebSocketCodec.PING)
+		{
+			synchronized (this)
+			{
+				if (!m_closeSent)
+				{
+					enqueue(WebSocketCodec.encode(WebSocketCodec.PONG, false, m_control, 0, m_controlLength));
+				}
+			}
+			return;
+		}
+		if (opcode != WebSocketCodec.CLOSE)
+		{
+			// Unsolicited pongs are ignored
+			return;
+		}
+		int code = WebSocketCodec.NO_STATUS;
+		String reason = "";
+		if (m_controlLength == 1)
+		{
+			throw new WebSocketCodec.FrameException(WebSocketCodec.PROTOCOL_ERROR, "Invalid close frame");
+		}
+		if (m_controlLength >= 2)
+		{
+			code = ((m_control[0] & 0xff) << 8) | (m_control[1] & 0xff);
+			if (!isValidCode(code))
+			{
+				throw new WebSocketCodec.FrameException(WebSocketCodec.PROTOCOL_ERROR, "Invalid status code");
+			}
+			try
+			{
+				reason = m_utf8.decode(ByteBuffer.wrap(m_control, 2, m_controlLength - 2)).toString();
+			}
+			catch (CharacterCodingException e)
+			{
+				throw new WebSocketCodec.FrameException(WebSocketCodec.INVALID_DATA, "Invalid UTF-8 text");
+			}
+		}
+		m_closeReceived = true;
+		// The status code is echoed back
+		sendClose(code, "");
+		notifyClose(code, reason);
+	}
+
+	/**
+	 * Determines whether a status code may be sent in a close frame
+	 * @param code The code
+	 * @return true if it may be
+	 */
+	protected static boolean isValidCode(int code)
+	{
+		return (code >= 1000 && code <= 1003) || (code >= 1007 && code <= 1014) || (code >= 3000 && code <= 4999);
+	}
+
+	/**
+	 * Closes the socket after a violation of the protocol by the client.
+	 * Nothing more is read.
+	 * @param code The status code sent to the client
+	 * @param reason The reason sent to the client
+	 */
+	protected void fail(int code, String reason)
+	{
+		m_closeReceived = true;
+		sendClose(code, reason);
+		notifyClose(code, reason);
+	}
+
+	/**
+	 * Queues a close frame, unless one was already queued
+	 * @param code The status code
+	 * @param reason The reason
+	 */
+	protected void sendClose(int code, String reason)
+	{
+		synchronized (this)
+		{
+			if (m_closeSent || m_aborted)
+			{
+				return;
+			}
+			enqueue(WebSocketCodec.encodeClose(code, reason));
+			m_closeSent = true;
+			m_closeSentTime = System.currentTimeMillis();
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Gives the closing of the socket to the endpoint, unless it was
+	 * already given
+	 * @param code The status code of the closing
+	 * @param reason The reason of the closing
+	 */
+	protected void notifyClose(final int code, final String reason)
+	{
+		if (m_closeNotified)
+		{
+			return;
+		}
+		m_closeNotified = true;
+		final WebSocket ws = this;
+		dispatch(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				m_endpoint.onClose(ws, code, reason);
+			}
+		});
+	}
+
+	/**
+	 * Adds an event for the endpoint, and schedules a task giving the
+	 * events to it unless one is already scheduled
+	 * @param event The event
+	 */
+	protected void dispatch(Runnable event)
+	{
+		m_events.add(event);
+		schedule();
+	}
+
+	/**
+	 * Schedules a task giving the events to the endpoint, unless one is
+	 * already scheduled
+	 */
+	protected void schedule()
+	{
+		if (!m_scheduled.compareAndSet(false, true))
+		{
+			return;
+		}
+		try
+		{
+			m_executor.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					for (int i = 0; i < s_maxBatch; i++)
+					{
+						Runnable event = m_events.poll();
+						if (event == null)
+						{
+							break;
+						}
+						try
+						{
+							event.run();
+						}
+						catch (Throwable e)
+						{
+							error(e);
+						}
+					}
+					m_scheduled.set(false);
+					if (!m_events.isEmpty())
+					{
+						schedule();
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e)
+		{
+			// The server is stopping
+			m_events.clear();
+			m_scheduled.set(false);
+		}
+	}
+
+	/**
+	 * Gives an exception thrown by the endpoint to the endpoint
+	 * @param e The exception
+	 */
+	protected void error(Throwable e)
+	{
+		try
+		{
+			m_endpoint.onError(this, e);
+		}
+		catch (Throwable ex)
+		{
+			// Nothing else to do
+		}
+	}
+
+	/**
+	 * Sends a text message, waiting for the queue of the socket to have
+	 * room for it
+	 * @param text The message
+	 * @throws IOException If the socket is closed, or if the thread is
+	 * interrupted while waiting
+	 */
+	public void sendText(String text) throws IOException
+	{
+		send(WebSocketCodec.TEXT, text.getBytes(WebSocketCodec.UTF_8), true);
+	}
+
+	/**
+	 * Sends a binary message, waiting for the queue of the socket to have
+	 * room for it
+	 * @param data The message
+	 * @throws IOException If the socket is closed, or if the thread is
+	 * interrupted while waiting
+	 */
+	public void sendBinary(byte[] data) throws IOException
+	{
+		send(WebSocketCodec.BINARY, data, true);
+	}
+
+	/**
+	 * Sends a text message, unless the queue of the socket is full
+	 * @param text The message
+	 * @return true if the message was queued, false if the queue is full
+	 * @throws IOException If the socket is closed
+	 */
+	public boolean trySendText(String text) throws IOException
+	{
+		return send(WebSocketCodec.TEXT, text.getBytes(WebSocketCodec.UTF_8), false);
+	}
+
+	/**
+	 * Sends a binary message, unless the queue of the socket is full
+	 * @param data The message
+	 * @return true if the message was queued, false if the queue is full
+	 * @throws IOException If the socket is closed
+	 */
+	public boolean trySendBinary(byte[] data) throws IOException
+	{
+		return send(WebSocketCodec.BINARY, data, false);
+	}
+
+	/**
+	 * Queues a message. The event loop of the connection never waits: a
+	 * message it sends is queued even if the queue is full.
+	 * @param opcode The opcode of the message
+	 * @param payload The payload of the message
+	 * @param wait Whether to wait for the queue to have room
+	 * @return true if the message was queued, false if the queue is full
+	 * @throws IOException If the socket is closed
+	 */
+	protected boolean send(int opcode, byte[] payload, boolean wait) throws IOException
+	{
+		synchronized (this)
+		{
+			while (true)
+			{
+				if (m_closeSent || m_aborted)
+				{
+					throw new IOException("The WebSocket is closed");
+				}
+				if (m_queuedBytes < m_endpoint.getMaxQueuedBytes() || m_connection.inEventLoop())
+				{
+					break;
+				}
+				if (!wait)
+				{
+					return false;
+				}
+				m_waiting++;
+				try
+				{
+					wait();
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+				finally
+				{
+					m_waiting--;
+				}
+			}
+			// Messages are compressed in the order they are queued, as each
+			// may refer to the previous ones
+			if (m_codec.isDeflate() && payload.length >= s_minCompressedSize)
+			{
+				enqueue(m_codec.encodeCompressed(opcode, payload));
+			}
+			else
+			{
+				enqueue(WebSocketCodec.encode(opcode, false, payload, 0, payload.length));
+			}
+		}
+		m_connection.outputReady();
+		return true;
+	}
+
+	/**
+	 * Adds a frame to the queue. The caller must hold the lock on this
+	 * socket.
+	 * @param frame The frame
+	 */
+	protected void enqueue(ByteBuffer frame)
+	{
+		m_queue.add(frame);
+		m_queuedBytes += frame.remaining();
+	}
+
+	/**
+	 * Closes the socket. A close frame is sent to the client, and the
+	 * connection is closed when the client answers it.
+	 * @param code The status code
+	 * @param reason The reason, possibly empty
+	 */
+	public void close(int code, String reason)
+	{
+		sendClose(code, reason);
+		m_connection.outputReady();
+	}
+
+	/**
+	 * Closes the socket normally
+	 */
+	public void close()
+	{
+		close(WebSocketCodec.NORMAL_CLOSURE, "");
+	}
+
+	/**
+	 * Determines whether messages can still be sent on this socket
+	 * @return true if they can
+	 */
+	public boolean isOpen()
+	{
+		return !m_closeSent && !m_aborted;
+	}
+
+	/**
+	 * Gets the URI of the request that opened the socket
+	 * @return The URI
+	 */
+	public URI getRequestURI()
+	{
+		return m_uri;
+	}
+
+	/**
+	 * Gets the headers of the request that opened the socket
+	 * @return The headers
+	 */
+	public Headers getRequestHeaders()
+	{
+		return m_headers;
+	}
+
+	/**
+	 * Gets the address of the client
+	 * @return The address
+	 */
+	public InetSocketAddress getRemoteAddress()
+	{
+		return m_connection.getRemoteAddress();
+	}
+
+	/**
+	 * Gets the subprotocol chosen for this socket
+	 * @return The name of the subprotocol, or null if there is none
+	 */
+	public String getSubprotocol()
+	{
+		return m_subprotocol;
+	}
+
+	/**
+	 * Determines whether messages are compressed on this socket
+	 * @return true if they are
+	 */
+	public boolean isCompressed()
+	{
+		return m_codec.isDeflate();
+	}
+
+	/**
+	 * Gets the number of bytes of the messages queued and not yet handed
+	 * to the connection
+	 * @return The number of bytes
+	 */
+	public synchronized long getQueuedBytes()
+	{
+		return m_queuedBytes;
+	}
+
+	/**
+	 * Attaches an object to the socket, such as the state of a session
+	 * @param o The object
+	 */
+	public void setAttachment(Object o)
+	{
+		m_attachment = o;
+	}
+
+	/**
+	 * Gets the object attached to the socket
+	 * @return The object, or null if there is none
+	 */
+	public Object getAttachment()
+	{
+		return m_attachment;
+	}
+
+	/**
+	 * Moves frames from the queue to the connection
+	 * @param budget The number of bytes the connection accepts; the last
+	 * frame moved may exceed it
+	 */
+	public void produce(long budget)
+	{
+		synchronized (this)
+		{
+			while (budget > 0 && !m_queue.isEmpty())
+			{
+				ByteBuffer frame = m_queue.poll();
+				m_queuedBytes -= frame.remaining();
+				budget -= frame.remaining();
+				m_connection.queue(frame);
+			}
+			if (m_waiting > 0 && m_queuedBytes < m_endpoint.getMaxQueuedBytes())
+			{
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Determines whether frames wait to be moved to the connection
+	 * @return true if some do
+	 */
+	public synchronized boolean hasOutput()
+	{
+		return !m_queue.isEmpty();
+	}
+
+	/**
+	 * Determines whether the closing handshake is over, after which the
+	 * connection is closed once its output is written
+	 * @return true if it is
+	 */
+	public boolean isFinished()
+	{
+		return m_closeReceived && m_closeSent;
+	}
+
+	/**
+	 * Determines whether the client is not read, because too many of its
+	 * messages wait for the endpoint
+	 * @return true if it is not read
+	 */
+	public boolean isPaused()
+	{
+		return m_paused;
+	}
+
+	/**
+	 * Determines whether the client was paused and must be read again,
+	 * and clears this indication
+	 * @return true if it must be read again
+	 */
+	public boolean takeResumed()
+	{
+		return m_resumed.getAndSet(false);
+	}
+
+	/**
+	 * Checks the timers of the socket. A socket idle for longer than the
+	 * timeout of its endpoint is closed.
+	 * @param now The current time
+	 * @param last_activity The last time bytes were read or written on the
+	 * connection
+	 * @return true if the connection must be closed at once, because the
+	 * client did not answer a close frame in time
+	 */
+	public boolean checkTimeouts(long now, long last_activity)
+	{
+		if (m_closeSent)
+		{
+			return now - m_closeSentTime > s_closeTimeout;
+		}
+		long timeout = m_endpoint.getIdleTimeout();
+		if (timeout > 0 && now - last_activity > timeout)
+		{
+			close(WebSocketCodec.GOING_AWAY, "Idle");
+		}
+		return false;
+	}
+
+	/**
+	 * Discards the socket once its connection is closed. The endpoint is
+	 * told, if the closing handshake did not already do it.
+	 */
+	public void abort()
+	{
+		synchronized (this)
+		{
+			m_aborted = true;
+			m_queue.clear();
+			m_queuedBytes = 0;
+			m_codec.end();
+			notifyAll();
+		}
+		m_message = null;
+		notifyClose(WebSocketCodec.ABNORMAL_CLOSURE, "");
+	}
+}
@@ -0,0 +1,579 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Reads and writes the frames of the WebSocket protocol, as defined by
+ * <a href="https://www.rfc-editor.org/rfc/rfc6455">RFC 6455</a>, and
+ * compresses their payload with the <code>permessage-deflate</code>
+ * extension of <a href="https://www.rfc-editor.org/rfc/rfc7692">RFC 7692</a>.
+ * <p>
+ * Frames are read in place: the header of the current frame is kept in the
+ * fields of the codec, and its payload is unmasked directly in the buffer
+ * it was received in, a few bytes at a time if need be. Nothing is
+ * allocated while reading a frame, and a frame can be larger than the
+ * buffer. Each frame written is a single buffer holding both its header
+ * and its payload.
+ * <p>
+ * A codec is not thread-safe: frames are read by the event loop of the
+ * connection, and the compression of outgoing messages must be done by
+ * one thread at a time.
+ * @author Sylvain Hallé
+ */
+public class WebSocketCodec
+{
+	/**
+	 * Opcodes
+	 */
+	public static final int CONTINUATION = 0x0;
+	public static final int TEXT = 0x1;
+	public static final int BINARY = 0x2;
+	public static final int CLOSE = 0x8;
+	public static final int PING = 0x9;
+	public static final int PONG = 0xA;
+
+	/**
+	 * Status codes of a close frame
+	 */
+	public static final int NORMAL_CLOSURE = 1000;
+	public static final int GOING_AWAY = 1001;
+	public static final int PROTOCOL_ERROR = 1002;
+	public static final int UNSUPPORTED_DATA = 1003;
+	public static final int NO_STATUS = 1005;
+	public static final int ABNORMAL_CLOSURE = 1006;
+	public static final int INVALID_DATA = 1007;
+	public static final int POLICY_VIOLATION = 1008;
+	public static final int MESSAGE_TOO_BIG = 1009;
+	public static final int INTERNAL_ERROR = 1011;
+
+	/**
+	 * The largest payload of a control frame
+	 */
+	public static final int MAX_CONTROL_PAYLOAD = 125;
+
+	/**
+	 * The charset of text messages
+	 */
+	public static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/**
+	 * The bytes that end a block compressed with a sync flush, which are
+	 * removed from the compressed messages
+	 */
+	protected static final byte[] s_tail = {0, 0, (byte) 0xff, (byte) 0xff};
+
+	/**
+	 * Whether the last frame read is the final fragment of its message
+	 */
+	protected boolean m_fin;
+
+	/**
+	 * Whether the RSV1 bit of the last frame read is set
+	 */
+	protected boolean m_rsv1;
+
+	/**
+	 * The opcode of the last frame read
+	 */
+	protected int m_opcode;
+
+	/**
+	 * The length of the payload of the last frame read
+	 */
+	protected long m_length;
+
+	/**
+	 * The number of bytes of the payload of the last frame read that are
+	 * yet to be unmasked
+	 */
+	protected long m_remaining = 0;
+
+	/**
+	 * The masking key of the last frame read
+	 */
+	protected int m_mask;
+
+	/**
+	 * The compressor of outgoing messages, or null if they are not
+	 * compressed
+	 */
+	protected Deflater m_deflater = null;
+
+	/**
+	 * Whether the compressor is reset after each message
+	 */
+	protected boolean m_deflaterReset;
+
+	/**
+	 * The decompressor of incoming messages, or null if they are not
+	 * compressed
+	 */
+	protected Inflater m_inflater = null;
+
+	/**
+	 * The array into which outgoing messages are compressed, reused from
+	 * one message to the next
+	 */
+	protected byte[] m_deflated = null;
+
+	/**
+	 * The array into which incoming messages are decompressed, reused from
+	 * one message to the next
+	 */
+	protected byte[] m_inflated = null;
+
+	/**
+	 * Creates a codec
+	 */
+	public WebSocketCodec()
+	{
+		super();
+	}
+
+	/**
+	 * Enables the compression of messages
+	 * @param reset Set to true to compress each outgoing message
+	 * independently of the previous ones
+	 */
+	public void enableDeflate(boolean reset)
+	{
+		m_deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		m_deflaterReset = reset;
+		m_inflater = new Inflater(true);
+	}
+
+	/**
+	 * Determines whether messages are compressed
+	 * @return true if they are
+	 */
+	public boolean isDeflate()
+	{
+		return m_deflater != null;
+	}
+
+	/**
+	 * Releases the memory held by the compressor and decompressor
+	 */
+	public void end()
+	{
+		if (m_deflater != null)
+		{
+			m_deflater.end();
+			m_inflater.end();
+		}
+		m_deflated = null;
+		m_inflated = null;
+	}
+
+	/**
+	 * Determines whether the payload of the last frame read is not
+	 * entirely unmasked
+	 * @return true if it is not
+	 */
+	public boolean isInFrame()
+	{
+		return m_remaining > 0;
+	}
+
+	/**
+	 * Reads the header of a frame from a buffer
+	 * @param in The buffer, whose position is moved past the header. It is
+	 * left unchanged if the header is not complete.
+	 * @return true if the header was read, false if it is not complete
+	 * @throws FrameException If the header is invalid
+	 */
+	public boolean readHeader(ByteBuffer in) throws FrameException
+	{
+		int available = in.remaining();
+		if (available < 2)
+		{
+			return false;
+		}
+		int p = in.position();
+		int b0 = in.get(p) & 0xff;
+		int b1 = in.get(p + 1) & 0xff;
+		int size = 2;
+		long length = b1 & 0x7f;
+		if (length == 126)
+		{
+			size = 4;
+		}
+		else if (length == 127)
+		{
+			size = 10;
+		}
+		if (available < size + 4)
+		{
+			return false;
+		}
+		if (size == 4)
+		{
+			length = in.getShort(p + 2) & 0xffff;
+		}
+		else if (size == 10)
+		{
+			length = in.getLong(p + 2);
+			if (length < 0)
+			{
+				throw new FrameException(PROTOCOL_ERROR, "Invalid frame length");
+			}
+		}
+		if ((b0 & 0x30) != 0)
+		{
+			throw new FrameException(PROTOCOL_ERROR, "Reserved bits set");
+		}
+		if ((b1 & 0x80) == 0)
+		{
+			throw new FrameException(PROTOCOL_ERROR, "Unmasked frame");
+		}
+		int opcode = b0 & 0x0f;
+		if (isControl(opcode))
+		{
+			if (opcode > PONG)
+			{
+				throw new FrameException(PROTOCOL_ERROR, "Unknown opcode");
+			}
+			if ((b0 & 0x80) == 0 || length > MAX_CONTROL_PAYLOAD)
+			{
+				throw new FrameException(PROTOCOL_ERROR, "Invalid control frame");
+			}
+		}
+		else if (opcode > BINARY)
+		{
+			throw new FrameException(PROTOCOL_ERROR, "Unknown opcode");
+		}
+		m_fin = (b0 & 0x80) != 0;
+		m_rsv1 = (b0 & 0x40) != 0;
+		m_opcode = opcode;
+		m_length = length;
+		m_remaining = length;
+		m_mask = in.getInt(p + size);
+		in.position(p + size + 4);
+		return true;
+	}
+
+	/**
+	 * Unmasks the next bytes of the payload of the current frame, where
+	 * they are in a buffer
+	 * @param in The buffer, whose position is the first byte to unmask.
+	 * The position is left unchanged.
+	 * @param n The number of bytes to unmask, which must not exceed the
+	 * number of bytes of the payload that remain
+	 */
+	public void unmask(ByteBuffer in, int n)
+	{
+		int p = in.position();
+		int end = p + n;
+		// The key is applied from the byte of the payload that comes next
+		int shift = (int) ((m_length - m_remaining) & 3);
+		int key = Integer.rotateLeft(m_mask, shift * 8);
+		long wide = ((long) key << 32) | (key & 0xffffffffL);
+		for (; p + 8 <= end; p += 8)
+		{
+			in.putLong(p, in.getLong(p) ^ wide);
+		}
+		for (int i = 0; p < end; p++, i++)
+		{
+			in.put(p, (byte) (in.get(p) ^ (key >>> (24 - 8 * (i & 3)))));
+		}
+		m_remaining -= n;
+	}
+
+	/**
+	 * Determines whether the last frame read is the final fragment of its
+	 * message
+	 * @return true if it is
+	 */
+	public boolean isFin()
+	{
+		return m_fin;
+	}
+
+	/**
+	 * Determines whether the RSV1 bit of the last frame read is set, which
+	 * marks the first frame of a compressed message
+	 * @return true if it is set
+	 */
+	public boolean isRsv1()
+	{
+		return m_rsv1;
+	}
+
+	/**
+	 * Gets the opcode of the last frame read
+	 * @return The opcode
+	 */
+	public int getOpcode()
+	{
+		return m_opcode;
+	}
+
+	/**
+	 * Gets the length of the payload of the last frame read
+	 * @return The length
+	 */
+	public long getLength()
+	{
+		return m_length;
+	}
+
+	/**
+	 * Gets the number of bytes of the payload of the last frame read that
+	 * are yet to be unmasked
+	 * @return The number of bytes
+	 */
+	public long getRemaining()
+	{
+		return m_remaining;
+	}
+
+	/**
+	 * Determines whether an opcode is that of a control frame
+	 * @param opcode The opcode
+	 * @return true if it is
+	 */
+	public static boolean isControl(int opcode)
+	{
+		return (opcode & 0x8) != 0;
+	}
+
+	/**
+	 * Writes a frame sent by the server, whose payload is not masked
+	 * @param opcode The opcode of the frame
+	 * @param rsv1 Whether the payload is compressed
+	 * @param payload An array holding the payload
+	 * @param offset The position of the payload in the array
+	 * @param length The length of the payload
+	 * @return A buffer holding the frame, ready to be read
+	 */
+	public static ByteBuffer encode(int opcode, boolean rsv1, byte[] payload, int offset, int length)
+	{
+		int size = length < 126 ? 2 : (length < 65536 ? 4 : 10);
+		ByteBuffer b = ByteBuffer.allocate(size + length);
+		b.put((byte) (0x80 | (rsv1 ? 0x40 : 0) | opcode));
+		if (size == 2)
+		{
+			b.put((byte) length);
+		}
+		else if (size == 4)
+		{
+			b.put((byte) 126).putShort((short) length);
+		}
+		else
+		{
+			b.put((byte) 127).putLong(length);
+		}
+		b.put(payload, offset, length).flip();
+		return b;
+	}
+
+	/**
+	 * Writes a close frame
+	 * @param code The status code, or {@link #NO_STATUS} to send a frame
+	 * without a payload
+	 * @param reason The reason of the closing, which is shortened if its
+	 * payload does not fit in a control frame
+	 * @return A buffer holding the frame, ready to be read
+	 */
+	public static ByteBuffer encodeClose(int code, String reason)
+	{
+		if (code == NO_STATUS)
+		{
+			return encode(CLOSE, false, new byte[0], 0, 0);
+		}
+		byte[] text = reason == null ? new byte[0] : reason.getBytes(UTF_8);
+		int length = Math.min(text.length, MAX_CONTROL_PAYLOAD - 2);
+		while (length < text.length && length > 0 && (text[length] & 0xc0) == 0x80)
+		{
+			// Do not cut a character in two
+			length--;
+		}
+		byte[] payload = new byte[length + 2];
+		payload[0] = (byte) (code >>> 8);
+		payload[1] = (byte) code;
+		System.arraycopy(text, 0, payload, 2, length);
+		return encode(CLOSE, false, payload, 0, payload.length);
+	}
+
+	/**
+	 * Writes a data frame whose payload is compressed
+	 * @param opcode The opcode of the frame
+	 * @param payload The payload, uncompressed
+	 * @return A buffer holding the frame, ready to be read
+	 */
+	public ByteBuffer encodeCompressed(int opcode, byte[] payload)
+	{
+		m_deflater.setInput(payload);
+		int length = 0;
+		if (m_deflated == null)
+		{
+			m_deflated = new byte[Math.max(1024, payload.length / 2)];
+		}
+		while (true)
+		{
+			if (length == m_deflated.length)
+			{
+				m_deflated = grow(m_deflated, length + 1);
+			}
+			int n = m_deflater.deflate(m_deflated, length, m_deflated.length - length, Deflater.SYNC_FLUSH);
+			length += n;
+			if (length < m_deflated.length)
+			{
+				// The flush is complete
+				break;
+			}
+		}
+		if (m_deflaterReset)
+		{
+			m_deflater.reset();
+		}
+		// The tail is implied by the extension
+		return encode(opcode, true, m_deflated, 0, length - s_tail.length);
+	}
+
+	/**
+	 * Decompresses a message
+	 * @param data An array holding the compressed message
+	 * @param length The length of the message
+	 * @param max The largest length of the decompressed message
+	 * @return The length of the decompressed message, which is found at
+	 * the start of {@link #getInflated()}
+	 * @throws FrameException If the message is invalid, or too large once
+	 * decompressed
+	 */
+	public int inflate(byte[] data, int length, int max) throws FrameException
+	{
+		m_inflater.setInput(data, 0, length);
+		if (m_inflated == null)
+		{
+			m_inflated = new byte[Math.max(1024, Math.min(max, length * 4))];
+		}
+		int out = 0;
+		boolean tail = false;
+		try
+		{
+			while (true)
+			{
+				if (out == m_inflated.length)
+				{
+					if (out >= max)
+					{
+						throw new FrameException(MESSAGE_TOO_BIG, "Message too big");
+					}
+					m_inflated = grow(m_inflated, Math.min(max, out * 2));
+				}
+				int n = m_inflater.inflate(m_inflated, out, m_inflated.length - out);
+				out += n;
+				if (m_inflater.finished())
+				{
+					// The client ended the stream; the next message starts anew
+					m_inflater.reset();
+					break;
+				}
+				if (n == 0 && m_inflater.needsInput())
+				{
+					if (tail)
+					{
+						break;
+					}
+					m_inflater.setInput(s_tail);
+					tail = true;
+				}
+				else if (n == 0 && m_inflater.needsDictionary())
+				{
+					throw new FrameException(INVALID_DATA, "Invalid compressed message");
+				}
+			}
+		}
+		catch (DataFormatException e)
+		{
+			throw new FrameException(INVALID_DATA, "Invalid compressed message");
+		}
+		if (out > max)
+		{
+			throw new FrameException(MESSAGE_TOO_BIG, "Message too big");
+		}
+		return out;
+	}
+
+	/**
+	 * Gets the array into which incoming messages are decompressed
+	 * @return The array
+	 */
+	public byte[] getInflated()
+	{
+		return m_inflated;
+	}
+
+	/**
+	 * Copies an array into a larger one
+	 * @param array The array
+	 * @param min The smallest size of the new array
+	 * @return The new array
+	 */
+	protected static byte[] grow(byte[] array, int min)
+	{
+		byte[] bigger = new byte[Math.max(min, array.length * 2)];
+		System.arraycopy(array, 0, bigger, 0, array.length);
+		return bigger;
+	}
+
+	/**
+	 * Signals a frame that violates the protocol, which closes the
+	 * connection with a given status code
+	 */
+	public static class FrameException extends IOException
+	{
+		/**
+		 * Dummy UID
+		 */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * The status code sent to the client
+		 */
+		protected final int m_code;
+
+		/**
+		 * Creates an exception
+		 * @param code The status code sent to the client
+		 * @param message The reason sent to the client
+		 */
+		public FrameException(int code, String message)
+		{
+			super(message);
+			m_code = code;
+		}
+
+		/**
+		 * Gets the status code sent to the client
+		 * @return The code
+		 */
+		public int getCode()
+		{
+			return m_code;
+		}
+	}
+}
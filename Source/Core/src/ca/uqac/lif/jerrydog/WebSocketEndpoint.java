@@ -0,0 +1,302 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import java.net.URI;
+import java.util.List;
+
+import com.sun.net.httpserver.Headers;
+
+/**
+ * An endpoint accepting WebSocket connections at a given path. An
+ * endpoint is registered with
+ * {@link Server#registerWebSocket(WebSocketEndpoint)}; each request to
+ * its path asking to upgrade to the WebSocket protocol then opens a
+ * {@link WebSocket}, whose events are given to the methods of the
+ * endpoint. A single connection replaces the requests a client would
+ * otherwise make for each message it sends or polls for.
+ * <p>
+ * The methods of an endpoint are called on the threads running the
+ * callbacks of the server. They may be called concurrently for different
+ * sockets, but never for the same socket, and in the order of its events:
+ * {@link #onOpen(WebSocket) onOpen()} first, then the messages, then
+ * {@link #onClose(WebSocket, int, String) onClose()}. The incoming
+ * messages of a socket that wait for these methods are bounded: when they
+ * exceed {@link #getMaxQueuedBytes()}, nothing more is read from the
+ * client until they are processed.
+ * <p>
+ * WebSockets are only available with the {@link NioTransport}.
+ * @author Sylvain Hallé
+ */
+public abstract class WebSocketEndpoint
+{
+	/**
+	 * The default size of the largest message accepted, in bytes
+	 */
+	public static final int DEFAULT_MAX_MESSAGE_SIZE = 1 << 20;
+
+	/**
+	 * The default number of bytes that may be queued in each direction
+	 */
+	public static final long DEFAULT_MAX_QUEUED_BYTES = 1 << 20;
+
+	/**
+	 * The path of the endpoint
+	 */
+	protected final String m_path;
+
+	/**
+	 * The subprotocols supported by the endpoint, by order of preference
+	 */
+	protected String[] m_subprotocols = new String[0];
+
+	/**
+	 * Whether messages may be compressed
+	 */
+	protected boolean m_compression = true;
+
+	/**
+	 * The size of the largest message accepted, in bytes
+	 */
+	protected int m_maxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+
+	/**
+	 * The number of bytes that may be queued in each direction
+	 */
+	protected long m_maxQueuedBytes = DEFAULT_MAX_QUEUED_BYTES;
+
+	/**
+	 * The time after which a socket that received and sent nothing is
+	 * closed, in milliseconds, or 0 for no limit
+	 */
+	protected long m_idleTimeout = 0;
+
+	/**
+	 * Creates an endpoint
+	 * @param path The path of the endpoint
+	 */
+	public WebSocketEndpoint(String path)
+	{
+		super();
+		m_path = path;
+	}
+
+	/**
+	 * Gets the path of the endpoint
+	 * @return The path
+	 */
+	public String getPath()
+	{
+		return m_path;
+	}
+
+	/**
+	 * Sets the subprotocols supported by the endpoint. The first one, in
+	 * this order, that the client asks for is chosen.
+	 * @param protocols The names of the subprotocols
+	 * @return This endpoint
+	 */
+	public WebSocketEndpoint setSubprotocols(String ... protocols)
+	{
+		m_subprotocols = protocols;
+		return this;
+	}
+
+	/**
+	 * Sets whether messages may be compressed with the
+	 * <code>permessage-deflate</code> extension, if the client supports it
+	 * @param b Set to true to compress messages
+	 * @return This endpoint
+	 */
+	public WebSocketEndpoint setCompression(boolean b)
+	{
+		m_compression = b;
+		return this;
+	}
+
+	/**
+	 * Determines whether messages may be compressed
+	 * @return true if they may be
+	 */
+	public boolean isCompression()
+	{
+		return m_compression;
+	}
+
+	/**
+	 * Sets the size of the largest message accepted. A socket receiving a
+	 * larger message is closed.
+	 * @param size The size, in bytes
+	 * @return This endpoint
+	 */
+	public WebSocketEndpoint setMaxMessageSize(int size)
+	{
+		m_maxMessageSize = size;
+		return this;
+	}
+
+	/**
+	 * Gets the size of the largest message accepted
+	 * @return The size, in bytes
+	 */
+	public int getMaxMessageSize()
+	{
+		return m_maxMessageSize;
+	}
+
+	/**
+	 * Sets the number of bytes that may be queued in each direction. The
+	 * senders of outgoing messages wait, or are refused, when the messages
+	 * not yet written to a socket exceed this size; the client is no
+	 * longer read when the incoming messages not yet processed exceed it.
+	 * @param size The number of bytes
+	 * @return This endpoint
+	 */
+	public WebSocketEndpoint setMaxQueuedBytes(long size)
+	{
+		m_maxQueuedBytes = size;
+		return this;
+	}
+
+	/**
+	 * Gets the number of bytes that may be queued in each direction
+	 * @return The number of bytes
+	 */
+	public long getMaxQueuedBytes()
+	{
+		return m_maxQueuedBytes;
+	}
+
+	/**
+	 * Sets the time after which a socket that received and sent nothing is
+	 * closed
+	 * @param timeout The time in milliseconds, or 0 for no limit
+	 * @return This endpoint
+	 */
+	public WebSocketEndpoint setIdleTimeout(long timeout)
+	{
+		m_idleTimeout = timeout;
+		return this;
+	}
+
+	/**
+	 * Gets the time after which a socket that received and sent nothing is
+	 * closed
+	 * @return The time in milliseconds, or 0 for no limit
+	 */
+	public long getIdleTimeout()
+	{
+		return m_idleTimeout;
+	}
+
+	/**
+	 * Chooses the subprotocol of a socket among those asked for by the
+	 * client
+	 * @param offered The values of the <code>Sec-WebSocket-Protocol</code>
+	 * header of the request, or null if there are none
+	 * @return The subprotocol, or null if none is chosen
+	 */
+	public String selectSubprotocol(List<String> offered)
+	{
+		if (offered == null)
+		{
+			return null;
+		}
+		for (String protocol : m_subprotocols)
+		{
+			for (String value : offered)
+			{
+				for (String name : value.split(","))
+				{
+					if (name.trim().equals(protocol))
+					{
+						return protocol;
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Decides whether a request may open a socket. This is called on the
+	 * event loop of the connection, and must not block. Override it to
+	 * check, for example, the <code>Origin</code> header of the request.
+	 * @param uri The URI of the request
+	 * @param headers The headers of the request
+	 * @return true to accept the request, false to answer it with a 403
+	 * Forbidden response
+	 */
+	public boolean accept(URI uri, Headers headers)
+	{
+		return true;
+	}
+
+	/**
+	 * Called when a socket is opened
+	 * @param ws The socket
+	 */
+	public void onOpen(WebSocket ws)
+	{
+		// Nothing to do
+	}
+
+	/**
+	 * Called when a text message is received
+	 * @param ws The socket
+	 * @param text The message
+	 */
+	public void onMessage(WebSocket ws, String text)
+	{
+		// Nothing to do
+	}
+
+	/**
+	 * Called when a binary message is received
+	 * @param ws The socket
+	 * @param data The message
+	 */
+	public void onMessage(WebSocket ws, byte[] data)
+	{
+		// Nothing to do
+	}
+
+	/**
+	 * Called when a socket is closed, whether by the client, by the server
+	 * or by the loss of the connection
+	 * @param ws The socket
+	 * @param code The status code of the closing, which is
+	 * {@link WebSocketCodec#ABNORMAL_CLOSURE} if the connection was lost
+	 * @param reason The reason of the closing, possibly empty
+	 */
+	public void onClose(WebSocket ws, int code, String reason)
+	{
+		// Nothing to do
+	}
+
+	/**
+	 * Called when one of the other methods of the endpoint throws an
+	 * exception. The socket stays open.
+	 * @param ws The socket
+	 * @param e The exception
+	 */
+	public void onError(WebSocket ws, Throwable e)
+	{
+		// Nothing to do
+	}
+}
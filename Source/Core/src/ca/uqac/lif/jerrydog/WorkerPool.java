@@ -0,0 +1,479 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The pool of threads on which a {@link Server} runs its callbacks. By
+ * default, the underlying Java HTTP server processes every request on its
+ * single dispatcher thread, so that one slow callback holds up all the
+ * others. A worker pool instead hands each request to one of several
+ * strategies:
+ * <ul>
+ * <li>{@link Mode#FIXED}: a fixed number of platform threads with a bounded
+ * queue of pending requests; when the queue is full, the request runs on
+ * the dispatcher thread, which naturally slows down the intake of new
+ * connections</li>
+ * <li>{@link Mode#WORK_STEALING}: a fork-join pool whose parallelism is
+ * bounded by the number of threads given</li>
+ * <li>{@link Mode#VIRTUAL}: one virtual thread per request. Virtual threads
+ * only exist in Java 21 and later; on older runtimes, this mode falls back
+ * to a cached pool of platform threads.</li>
+ * </ul>
+ * The pool also keeps a few statistics about the tasks it has run.
+ * @author Sylvain Hallé
+ */
+public class WorkerPool implements Executor
+{
+	/**
+	 * The strategies available to run requests
+	 */
+	public static enum Mode {FIXED, WORK_STEALING, VIRTUAL};
+
+	/**
+	 * The default number of pending requests a fixed pool accepts per
+	 * thread before running requests on the caller's thread
+	 */
+	protected static final int s_defaultQueueFactor = 64;
+
+	/**
+	 * The strategy used by this pool
+	 */
+	protected final Mode m_mode;
+
+	/**
+	 * The maximum number of threads (ignored in virtual mode)
+	 */
+	protected final int m_threads;
+
+	/**
+	 * For a fixed pool, the maximum number of requests waiting for a
+	 * thread
+	 */
+	protected final int m_queueSize;
+
+	/**
+	 * Whether the pool actually runs on virtual threads
+	 */
+	protected final boolean m_virtual;
+
+	/**
+	 * The executor that runs the tasks
+	 */
+	protected final ExecutorService m_executor;
+
+	/**
+	 * The number of tasks submitted to the pool
+	 */
+	protected final AtomicLong m_submitted = new AtomicLong();
+
+	/**
+	 * The number of tasks whose execution is finished
+	 */
+	protected final AtomicLong m_completed = new AtomicLong();
+
+	/**
+	 * The number of tasks that threw an exception
+	 */
+	protected final AtomicLong m_failed = new AtomicLong();
+
+	/**
+	 * The number of tasks that could not be queued and ran on the thread
+	 * that submitted them
+	 */
+	protected final AtomicLong m_callerRuns = new AtomicLong();
+
+	/**
+	 * The number of tasks currently running
+	 */
+	protected final AtomicInteger m_active = new AtomicInteger();
+
+	/**
+	 * The highest number of tasks that ran at the same time
+	 */
+	protected final AtomicInteger m_peakActive = new AtomicInteger();
+
+	/**
+	 * Creates a pool with a fixed number of threads
+	 * @param threads The number of threads
+	 * @return The pool
+	 */
+	public static WorkerPool fixed(int threads)
+	{
+		return new WorkerPool(Mode.FIXED, threads, threads * s_defaultQueueFactor);
+	}
+
+	/**
+	 * Creates a pool with a fixed number of threads
+	 * @param threads The number of threads
+	 * @param queue_size The maximum number of requests waiting for a thread
+	 * @return The pool
+	 */
+	public static WorkerPool fixed(int threads, int queue_size)
+	{
+		return new WorkerPool(Mode.FIXED, threads, queue_size);
+	}
+
+	/**
+	 * Creates a work-stealing pool
+	 * @param parallelism The maximum number of threads running requests
+	 * at the same time
+	 * @return The pool
+	 */
+	public static WorkerPool workStealing(int parallelism)
+	{
+		return new WorkerPool(Mode.WORK_STEALING, parallelism, 0);
+	}
+
+	/**
+	 * Creates a pool that starts one virtual thread per request
+	 * @return The pool
+	 */
+	public static WorkerPool virtual()
+	{
+		return new WorkerPool(Mode.VIRTUAL, 0, 0);
+	}
+
+	/**
+	 * Creates a pool with the given strategy, sized after the number of
+	 * available processors
+	 * @param mode The strategy
+	 * @return The pool
+	 */
+	public static WorkerPool create(Mode mode)
+	{
+		int cores = Runtime.getRuntime().availableProcessors();
+		switch (mode)
+		{
+		case FIXED:
+			return fixed(cores * 2);
+		case WORK_STEALING:
+			return workStealing(cores);
+		default:
+			return virtual();
+		}
+	}
+
+	/**
+	 * Creates a new pool with the same strategy and size as this one. This
+	 * is how a server that was stopped gets a working pool back when it is
+	 * started again. The statistics of the new pool start at zero.
+	 * @return The new pool
+	 */
+	public WorkerPool copy()
+	{
+		return new WorkerPool(m_mode, m_threads, m_queueSize);
+	}
+
+	/**
+	 * Creates a new worker pool
+	 * @param mode The strategy used to run requests
+	 * @param threads The maximum number of threads
+	 * @param queue_size For a fixed pool, the maximum number of requests
+	 * waiting for a thread
+	 */
+	protected WorkerPool(Mode mode, int threads, int queue_size)
+	{
+		super();
+		m_mode = mode;
+		m_threads = Math.max(1, threads);
+		m_queueSize = queue_size;
+		ExecutorService virtual = null;
+		switch (mode)
+		{
+		case FIXED:
+			ThreadPoolExecutor tpe = new ThreadPoolExecutor(m_threads, m_threads, 60, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(Math.max(1, queue_size)), new WorkerThreadFactory());
+			tpe.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy()
+			{
+				@Override
+				public void rejectedExecution(Runnable r, ThreadPoolExecutor e)
+				{
+					if (e.isShutdown())
+					{
+						// The caller-runs policy would silently drop the task, and
+						// the request would never be answered: let the caller
+						// close the connection instead
+						throw new RejectedExecutionException("Worker pool is shut down");
+					}
+					m_callerRuns.incrementAndGet();
+					super.rejectedExecution(r, e);
+				}
+			});
+			m_executor = tpe;
+			break;
+		case WORK_STEALING:
+			m_executor = new ForkJoinPool(m_threads, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+			break;
+		default:
+			virtual = newVirtualThreadExecutor();
+			m_executor = virtual != null ? virtual : Executors.newCachedThreadPool(new WorkerThreadFactory());
+			break;
+		}
+		m_virtual = virtual != null;
+	}
+
+	@Override
+	public void execute(final Runnable command)
+	{
+		m_submitted.incrementAndGet();
+		try
+		{
+			m_executor.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					runTask(command);
+				}
+			});
+		}
+		catch (RejectedExecutionException e)
+		{
+			// The pool is shut down: the task was never accepted
+			m_submitted.decrementAndGet();
+			throw e;
+		}
+	}
+
+	/**
+	 * Runs a task and updates the statistics of the pool
+	 * @param command The task to run
+	 */
+	protected void runTask(Runnable command)
+	{
+		int active = m_active.incrementAndGet();
+		int peak = m_peakActive.get();
+		while (active > peak && !m_peakActive.compareAndSet(peak, active))
+		{
+			peak = m_peakActive.get();
+		}
+		try
+		{
+			command.run();
+		}
+		catch (RuntimeException e)
+		{
+			m_failed.incrementAndGet();
+			throw e;
+		}
+		catch (Error e)
+		{
+			m_failed.incrementAndGet();
+			throw e;
+		}
+		finally
+		{
+			m_active.decrementAndGet();
+			m_completed.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Stops accepting new requests and waits a given time for the running
+	 * ones to finish
+	 * @param timeout The time to wait, in milliseconds
+	 */
+	public void shutdown(long timeout)
+	{
+		m_executor.shutdown();
+		try
+		{
+			if (!m_executor.awaitTermination(timeout, TimeUnit.MILLISECONDS))
+			{
+				m_executor.shutdownNow();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			m_executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Determines whether this pool has been shut down
+	 * @return true if the pool no longer accepts requests
+	 */
+	public boolean isShutdown()
+	{
+		return m_executor.isShutdown();
+	}
+
+	/**
+	 * Gets the strategy used by this pool
+	 * @return The strategy
+	 */
+	public Mode getMode()
+	{
+		return m_mode;
+	}
+
+	/**
+	 * Determines whether requests actually run on virtual threads. This is
+	 * false in virtual mode when the runtime does not support them.
+	 * @return true if requests run on virtual threads
+	 */
+	public boolean isVirtual()
+	{
+		return m_virtual;
+	}
+
+	/**
+	 * Gets the maximum number of threads of this pool
+	 * @return The number of threads, or 0 in virtual mode
+	 */
+	public int getMaxThreads()
+	{
+		return m_mode == Mode.VIRTUAL ? 0 : m_threads;
+	}
+
+	/**
+	 * Gets the number of tasks submitted to this pool
+	 * @return The number of tasks
+	 */
+	public long getSubmittedCount()
+	{
+		return m_submitted.get();
+	}
+
+	/**
+	 * Gets the number of tasks this pool has finished running
+	 * @return The number of tasks
+	 */
+	public long getCompletedCount()
+	{
+		return m_completed.get();
+	}
+
+	/**
+	 * Gets the number of tasks that ended with an exception
+	 * @return The number of tasks
+	 */
+	public long getFailedCount()
+	{
+		return m_failed.get();
+	}
+
+	/**
+	 * Gets the number of tasks that ran on the submitting thread because
+	 * the queue of a fixed pool was full
+	 * @return The number of tasks
+	 */
+	public long getCallerRunsCount()
+	{
+		return m_callerRuns.get();
+	}
+
+	/**
+	 * Gets the number of tasks currently running
+	 * @return The number of tasks
+	 */
+	public int getActiveCount()
+	{
+		return m_active.get();
+	}
+
+	/**
+	 * Gets the highest number of tasks that ran at the same time
+	 * @return The number of tasks
+	 */
+	public int getPeakActiveCount()
+	{
+		return m_peakActive.get();
+	}
+
+	/**
+	 * Gets the number of tasks submitted but not yet started
+	 * @return The number of tasks
+	 */
+	public long getQueuedCount()
+	{
+		if (m_executor instanceof ThreadPoolExecutor)
+		{
+			return ((ThreadPoolExecutor) m_executor).getQueue().size();
+		}
+		if (m_executor instanceof ForkJoinPool)
+		{
+			return ((ForkJoinPool) m_executor).getQueuedSubmissionCount();
+		}
+		return 0;
+	}
+
+	@Override
+	public String toString()
+	{
+		return m_mode + (m_virtual || m_mode != Mode.VIRTUAL ? "" : " (platform threads)")
+				+ " submitted=" + getSubmittedCount() + " completed=" + getCompletedCount()
+				+ " active=" + getActiveCount() + " peak=" + getPeakActiveCount()
+				+ " queued=" + getQueuedCount() + " failed=" + getFailedCount()
+				+ " caller-runs=" + getCallerRunsCount();
+	}
+
+	/**
+	 * Creates an executor starting one virtual thread per task. Since
+	 * Jerrydog is compiled for older versions of Java, the method is looked
+	 * up by reflection.
+	 * @return The executor, or null if the runtime has no virtual threads
+	 */
+	protected static ExecutorService newVirtualThreadExecutor()
+	{
+		try
+		{
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) m.invoke(null);
+		}
+		catch (Exception e)
+		{
+			// Not available (or still a preview feature) in this runtime
+			return null;
+		}
+	}
+
+	/**
+	 * Creates daemon threads with a recognizable name, so that a running
+	 * pool does not prevent the JVM from exiting
+	 */
+	protected static class WorkerThreadFactory implements ThreadFactory
+	{
+		/**
+		 * A counter used to number the threads
+		 */
+		protected static final AtomicInteger s_threadCount = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r)
+		{
+			Thread t = new Thread(r, "jerrydog-worker-" + s_threadCount.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,290 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import static org.junit.Assert.*;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import ca.uqac.lif.jerrydog.CachedCallbackTest.FakeRequest;
+
+public class AsyncCallbackTest
+{
+	@Test(timeout = 5000)
+	public void testCompleted() throws Exception
+	{
+		Server s = new Server();
+		FutureCallback cb = new FutureCallback("/async");
+		s.registerCallback(cb);
+		AsyncRequest t = new AsyncRequest("/async");
+		cb.m_future.complete(new CallbackResponse(t, CallbackResponse.HTTP_OK, "done", CallbackResponse.ContentType.TEXT));
+		s.handle(t);
+		waitForResponse(t);
+		assertEquals(CallbackResponse.HTTP_OK, t.getResponseCode());
+		assertEquals("done", t.getResponseString());
+	}
+
+	@Test(timeout = 5000)
+	public void testPending() throws Exception
+	{
+		Server s = new Server();
+		FutureCallback cb = new FutureCallback("/async");
+		s.registerCallback(cb);
+		AsyncRequest t = new AsyncRequest("/async");
+		s.handle(t);
+		// Nothing is sent until the future completes
+		assertEquals(0, t.getResponseCode());
+		cb.m_future.complete(new CallbackResponse(t, CallbackResponse.HTTP_OK, "later", CallbackResponse.ContentType.TEXT));
+		waitForResponse(t);
+		assertEquals(CallbackResponse.HTTP_OK, t.getResponseCode());
+		assertEquals("later", t.getResponseString());
+	}
+
+	@Test(timeout = 5000)
+	public void testErrors() throws Exception
+	{
+		Server s = new Server();
+		FutureCallback cb = new FutureCallback("/async");
+		s.registerCallback(cb);
+		AsyncRequest t = new AsyncRequest("/async");
+		s.handle(t);
+		cb.m_future.completeExceptionally(new HttpException(403, "Forbidden"));
+		waitForResponse(t);
+		assertEquals(403, t.getResponseCode());
+		assertEquals("Forbidden", t.getResponseString());
+		t = new AsyncRequest("/async");
+		cb.m_future = new CompletableFuture<CallbackResponse>();
+		s.handle(t);
+		cb.m_future.completeExceptionally(new IllegalStateException("boom"));
+		waitForResponse(t);
+		assertEquals(CallbackResponse.HTTP_INTERNAL_SERVER_ERROR, t.getResponseCode());
+		t = new AsyncRequest("/async");
+		cb.m_future = new CompletableFuture<CallbackResponse>();
+		s.handle(t);
+		cb.m_future.complete(null);
+		waitForResponse(t);
+		assertEquals(CallbackResponse.HTTP_BAD_REQUEST, t.getResponseCode());
+	}
+
+	@Test(timeout = 5000)
+	public void testNoFuture() throws Exception
+	{
+		Server s = new Server();
+		FutureCallback cb = new FutureCallback("/async");
+		cb.m_future = null;
+		FutureCallback cb2 = new FutureCallback("/async");
+		s.registerCallback(cb);
+		s.registerCallback(cb2);
+		AsyncRequest t = new AsyncRequest("/async");
+		cb2.m_future.complete(new CallbackResponse(t, CallbackResponse.HTTP_OK, "second", CallbackResponse.ContentType.TEXT));
+		s.handle(t);
+		waitForResponse(t);
+		// The next callback is tried
+		assertEquals("second", t.getResponseString());
+	}
+
+	@Test(timeout = 5000)
+	public void testTimeout() throws Exception
+	{
+		Server s = new Server();
+		FutureCallback cb = new FutureCallback("/async");
+		cb.setTimeout(50);
+		s.registerCallback(cb);
+		AsyncRequest t = new AsyncRequest("/async");
+		s.handle(t);
+		waitForResponse(t);
+		assertEquals(CallbackResponse.HTTP_GATEWAY_TIMEOUT, t.getResponseCode());
+		assertTrue(cb.m_future.isCancelled());
+		// Completing the future afterwards does not send a second response
+		cb.m_future.complete(new CallbackResponse(t, CallbackResponse.HTTP_OK, "late", CallbackResponse.ContentType.TEXT));
+		assertEquals(CallbackResponse.HTTP_GATEWAY_TIMEOUT, t.getResponseCode());
+	}
+
+	@Test(timeout = 5000)
+	public void testSender() throws Exception
+	{
+		Server s = new Server();
+		FutureCallback cb = new FutureCallback("/async");
+		s.registerCallback(cb);
+		AsyncRequest t = new AsyncRequest("/async");
+		s.handle(t);
+		final String[] writer = new String[1];
+		CallbackResponse cbr = new CallbackResponse(t, CallbackResponse.HTTP_OK, "", CallbackResponse.ContentType.TEXT);
+		cbr.setContents(new CallbackResponse.BodyWriter()
+		{
+			@Override
+			public void write(OutputStream out) throws IOException
+			{
+				writer[0] = Thread.currentThread().getName();
+				out.write("sent".getBytes());
+			}
+		});
+		cb.m_future.complete(cbr);
+		waitForResponse(t);
+		assertEquals("sent", t.getResponseString());
+		// The thread completing the future does not send the response
+		assertEquals("jerrydog-respond", writer[0]);
+	}
+
+	@Test
+	public void testSynchronous()
+	{
+		FutureCallback cb = new FutureCallback("/async");
+		AsyncRequest t = new AsyncRequest("/async");
+		cb.m_future.complete(new CallbackResponse(t, CallbackResponse.HTTP_OK, "sync", CallbackResponse.ContentType.TEXT));
+		assertEquals("sync", new String(cb.process(t).getContents()));
+		cb.m_future = new CompletableFuture<CallbackResponse>();
+		cb.setTimeout(20);
+		try
+		{
+			cb.process(t);
+			fail("Expected a timeout");
+		}
+		catch (HttpException e)
+		{
+			assertEquals(CallbackResponse.HTTP_GATEWAY_TIMEOUT, e.getCode());
+		}
+	}
+
+	@Test(timeout = 5000)
+	public void testServer() throws Exception
+	{
+		Server s = new Server();
+		s.setServerPort(12141);
+		s.registerCallback(new DelayedCallback());
+		s.startServer();
+		try
+		{
+			HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:12141/delayed").openConnection();
+			assertEquals(CallbackResponse.HTTP_OK, conn.getResponseCode());
+			assertEquals("delayed", new String(InnerFileServer.readBytes(conn.getInputStream())));
+			conn.disconnect();
+		}
+		finally
+		{
+			s.stopServer();
+		}
+	}
+
+	/**
+	 * Waits until a response has been sent
+	 * @param t The exchange
+	 * @throws InterruptedException If the thread is interrupted
+	 */
+	protected static void waitForResponse(AsyncRequest t) throws InterruptedException
+	{
+		t.m_sent.await();
+	}
+
+	/**
+	 * A request that tells when its response has been sent in full, which
+	 * happens on another thread
+	 */
+	protected static class AsyncRequest extends FakeRequest
+	{
+		protected final CountDownLatch m_sent = new CountDownLatch(1);
+
+		public AsyncRequest(String request)
+		{
+			super(request);
+		}
+
+		@Override
+		public OutputStream getResponseBody()
+		{
+			return new FilterOutputStream(super.getResponseBody())
+			{
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException
+				{
+					out.write(b, off, len);
+				}
+
+				@Override
+				public void close() throws IOException
+				{
+					super.close();
+					m_sent.countDown();
+				}
+			};
+		}
+	}
+
+	/**
+	 * A callback returning a future controlled by the test
+	 */
+	protected static class FutureCallback extends AsyncRestCallback
+	{
+		protected CompletableFuture<CallbackResponse> m_future = new CompletableFuture<CallbackResponse>();
+
+		public FutureCallback(String path)
+		{
+			super(Method.GET, path);
+		}
+
+		@Override
+		public CompletableFuture<CallbackResponse> processAsync(HttpExchange t)
+		{
+			return m_future;
+		}
+	}
+
+	/**
+	 * A callback whose response is completed by another thread
+	 */
+	protected static class DelayedCallback extends AsyncRestCallback
+	{
+		public DelayedCallback()
+		{
+			super(Method.GET, "/delayed");
+		}
+
+		@Override
+		public CompletableFuture<CallbackResponse> processAsync(final HttpExchange t)
+		{
+			final CompletableFuture<CallbackResponse> future = new CompletableFuture<CallbackResponse>();
+			new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						Thread.sleep(100);
+					}
+					catch (InterruptedException e)
+					{
+						// Ignore
+					}
+					future.complete(new CallbackResponse(t, CallbackResponse.HTTP_OK, "delayed", CallbackResponse.ContentType.TEXT));
+				}
+			}).start();
+			return future;
+		}
+	}
+}
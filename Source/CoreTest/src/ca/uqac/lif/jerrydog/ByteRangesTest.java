@@ -0,0 +1,176 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Date;
+
+import org.junit.Test;
+
+import ca.uqac.lif.jerrydog.CachedCallbackTest.FakeRequest;
+
+public class ByteRangesTest
+{
+	@Test
+	public void testParse()
+	{
+		assertArrayEquals(new long[] {0, 9}, ByteRanges.parse("bytes=0-9", 100));
+		assertArrayEquals(new long[] {90, 99}, ByteRanges.parse("bytes=90-", 100));
+		assertArrayEquals(new long[] {80, 99}, ByteRanges.parse("bytes=-20", 100));
+		assertArrayEquals(new long[] {0, 99}, ByteRanges.parse("bytes=-200", 100));
+		assertArrayEquals(new long[] {50, 99}, ByteRanges.parse("bytes=50-1000", 100));
+		// Sorted and merged
+		assertArrayEquals(new long[] {0, 19, 50, 59}, ByteRanges.parse("bytes=50-59, 10-19, 0-9", 100));
+		assertArrayEquals(new long[] {0, 29}, ByteRanges.parse("bytes=0-15,10-29", 100));
+		// Unsatisfiable
+		assertArrayEquals(new long[0], ByteRanges.parse("bytes=100-", 100));
+		assertArrayEquals(new long[0], ByteRanges.parse("bytes=-0", 100));
+		// Malformed: ignored
+		assertNull(ByteRanges.parse("items=0-9", 100));
+		assertNull(ByteRanges.parse("bytes=9-0", 100));
+		assertNull(ByteRanges.parse("bytes=a-b", 100));
+		assertNull(ByteRanges.parse("bytes=", 100));
+		assertNull(ByteRanges.parse("bytes=0-0,1-1,2-2,3-3,4-4,5-5,6-6,7-7,8-8,9-9,10-10,11-11,12-12,13-13,14-14,15-15,16-16", 100));
+	}
+
+	@Test
+	public void testSingleRange() throws IOException
+	{
+		Server s = createServer();
+		FakeRequest t = new FakeRequest("/static/data.txt");
+		t.getRequestHeaders().add("Range", "bytes=10-19");
+		s.handle(t);
+		assertEquals(CallbackResponse.HTTP_PARTIAL_CONTENT, t.getResponseCode());
+		assertEquals("bytes 10-19/100", t.getResponseHeaders().getFirst("Content-Range"));
+		assertEquals("bytes", t.getResponseHeaders().getFirst("Accept-Ranges"));
+		assertEquals("klmnopqrst", t.getResponseString());
+	}
+
+	@Test
+	public void testMultipleRanges() throws IOException
+	{
+		Server s = createServer();
+		FakeRequest t = new FakeRequest("/static/data.txt");
+		t.getRequestHeaders().add("Range", "bytes=0-2, -3");
+		s.handle(t);
+		assertEquals(CallbackResponse.HTTP_PARTIAL_CONTENT, t.getResponseCode());
+		String type = t.getResponseHeaders().getFirst("Content-Type");
+		assertTrue(type.startsWith("multipart/byteranges; boundary="));
+		String boundary = type.substring(type.indexOf('=') + 1);
+		String expected = "\r\n--" + boundary + "\r\nContent-Type: text/plain\r\nContent-Range: bytes 0-2/100\r\n\r\nabc"
+				+ "\r\n--" + boundary + "\r\nContent-Type: text/plain\r\nContent-Range: bytes 97-99/100\r\n\r\ntuv"
+				+ "\r\n--" + boundary + "--\r\n";
+		assertEquals(expected, t.getResponseString());
+	}
+
+	@Test
+	public void testNotSatisfiable() throws IOException
+	{
+		Server s = createServer();
+		FakeRequest t = new FakeRequest("/static/data.txt");
+		t.getRequestHeaders().add("Range", "bytes=200-300");
+		s.handle(t);
+		assertEquals(CallbackResponse.HTTP_RANGE_NOT_SATISFIABLE, t.getResponseCode());
+		assertEquals("bytes */100", t.getResponseHeaders().getFirst("Content-Range"));
+		assertEquals("", t.getResponseString());
+	}
+
+	@Test
+	public void testIfRange() throws IOException
+	{
+		File root = createFolder();
+		Server s = new Server();
+		s.registerCallback(new FileCallback("/static", root));
+		String modified = Server.formatDate(new Date(new File(root, "data.txt").lastModified()));
+		FakeRequest t = new FakeRequest("/static/data.txt");
+		t.getRequestHeaders().add("Range", "bytes=0-0");
+		t.getRequestHeaders().add("If-Range", modified);
+		s.handle(t);
+		assertEquals(CallbackResponse.HTTP_PARTIAL_CONTENT, t.getResponseCode());
+		assertEquals("a", t.getResponseString());
+		// The client's copy is outdated: send everything
+		t = new FakeRequest("/static/data.txt");
+		t.getRequestHeaders().add("Range", "bytes=0-0");
+		t.getRequestHeaders().add("If-Range", "Sun, 06 Nov 1994 08:49:37 GMT");
+		s.handle(t);
+		assertEquals(CallbackResponse.HTTP_OK, t.getResponseCode());
+		assertEquals(100, t.getResponseString().length());
+		// There is no entity tag to compare with
+		t = new FakeRequest("/static/data.txt");
+		t.getRequestHeaders().add("Range", "bytes=0-0");
+		t.getRequestHeaders().add("If-Range", "\"abc\"");
+		s.handle(t);
+		assertEquals(CallbackResponse.HTTP_OK, t.getResponseCode());
+	}
+
+	@Test
+	public void testInnerFile() throws IOException
+	{
+		Server s = new Server();
+		s.registerCallback(new InnerFileCallback("resource", ByteRangesTest.class));
+		FakeRequest t = new FakeRequest("/foo.txt");
+		t.getRequestHeaders().add("Range", "bytes=1-");
+		s.handle(t);
+		assertEquals(CallbackResponse.HTTP_PARTIAL_CONTENT, t.getResponseCode());
+		assertEquals("bytes 1-2/3", t.getResponseHeaders().getFirst("Content-Range"));
+		assertEquals("oo", t.getResponseString());
+	}
+
+	@Test
+	public void testCompression() throws IOException
+	{
+		Server s = createServer();
+		s.setCompression(new ResponseCompressor().setMinSize(0));
+		FakeRequest t = new FakeRequest("/static/data.txt");
+		t.getRequestHeaders().add("Range", "bytes=10-19");
+		t.getRequestHeaders().add("Accept-Encoding", "gzip");
+		s.handle(t);
+		// A partial response is not compressed
+		assertEquals(CallbackResponse.HTTP_PARTIAL_CONTENT, t.getResponseCode());
+		assertNull(t.getResponseHeaders().getFirst("Content-Encoding"));
+		assertEquals("klmnopqrst", t.getResponseString());
+	}
+
+	protected static Server createServer() throws IOException
+	{
+		Server s = new Server();
+		s.registerCallback(new FileCallback("/static", createFolder()));
+		return s;
+	}
+
+	protected static File createFolder() throws IOException
+	{
+		File root = File.createTempFile("jerrydog", "");
+		root.delete();
+		root.mkdirs();
+		byte[] data = new byte[100];
+		for (int i = 0; i < data.length; i++)
+		{
+			data[i] = (byte) ('a' + i % 26);
+		}
+		FileOutputStream fos = new FileOutputStream(new File(root, "data.txt"));
+		fos.write(data);
+		fos.close();
+		root.deleteOnExit();
+		return root;
+	}
+}
@@ -7,6 +7,7 @@ import java.io.IOException;
 import org.junit.Test;
 
 import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
 
 public class CachedCallbackTest
 {
@@ -57,12 +58,101 @@ public class CachedCallbackTest
 	}
 
 	
+	@Test
+	public void testQueryKey() throws IOException
+	{
+		CachedServer ifs = new CachedServer();
+		FakeRequest he = new FakeRequest("/foo.txt?a");
+		ifs.handle(he);
+		assertEquals(CallbackResponse.HTTP_OK, he.getResponseCode());
+		// Same path, different query: not served yet
+		FakeRequest he2 = new FakeRequest("/foo.txt?b");
+		he2.getRequestHeaders().add("If-Modified-Since", "foo");
+		ifs.handle(he2);
+		assertEquals(CallbackResponse.HTTP_OK, he2.getResponseCode());
+	}
+	
+	@Test
+	public void testETag() throws IOException
+	{
+		CachedServer ifs = new CachedServer();
+		ifs.setValidatorMode(true);
+		FakeRequest he = new FakeRequest("/foo.txt");
+		ifs.handle(he);
+		assertEquals(CallbackResponse.HTTP_OK, he.getResponseCode());
+		String tag = he.getResponseHeaders().getFirst("ETag");
+		assertNotNull(tag);
+		assertEquals(CachedRequestCallback.computeETag("foo".getBytes()), tag);
+		// Matching tag: not modified
+		FakeRequest he2 = new FakeRequest("/foo.txt");
+		he2.getRequestHeaders().add("If-None-Match", "\"x\", W/" + tag);
+		ifs.handle(he2);
+		assertEquals(CallbackResponse.HTTP_NOT_MODIFIED, he2.getResponseCode());
+		assertEquals(tag, he2.getResponseHeaders().getFirst("ETag"));
+		// Other tag: contents are sent
+		FakeRequest he3 = new FakeRequest("/foo.txt");
+		he3.getRequestHeaders().add("If-None-Match", "\"x\"");
+		ifs.handle(he3);
+		assertEquals(CallbackResponse.HTTP_OK, he3.getResponseCode());
+		assertEquals("foo", he3.getResponseString());
+		// If-Modified-Since alone is not enough in validator mode
+		FakeRequest he4 = new FakeRequest("/foo.txt");
+		he4.getRequestHeaders().add("If-Modified-Since", "foo");
+		ifs.handle(he4);
+		assertEquals(CallbackResponse.HTTP_OK, he4.getResponseCode());
+	}
+	
+	@Test
+	public void testETagMemory()
+	{
+		// Dynamic contents are hashed, but not kept
+		CachedRequestCallback dynamic = new CachedRequestCallback(new HelloCallback());
+		dynamic.setValidatorMode(true);
+		FakeRequest he = new FakeRequest("/hello");
+		assertEquals(CachedRequestCallback.computeETag("Hi".getBytes()), dynamic.process(he).getHeaders().get("ETag"));
+		assertTrue(dynamic.m_tags.isEmpty());
+		// Static contents are remembered along with their tag
+		final byte[] contents = "static".getBytes();
+		CachedRequestCallback shared = new CachedRequestCallback(new HelloCallback()
+		{
+			@Override
+			public CallbackResponse process(HttpExchange t)
+			{
+				CallbackResponse cbr = new CallbackResponse(t);
+				cbr.setContents(contents);
+				cbr.setStaticContents(true);
+				return cbr;
+			}
+		});
+		shared.setValidatorMode(true);
+		for (int i = 0; i < 2; i++)
+		{
+			he = new FakeRequest("/hello");
+			assertEquals(CachedRequestCallback.computeETag(contents), shared.process(he).getHeaders().get("ETag"));
+		}
+		assertEquals(1, shared.m_tags.size());
+		assertSame(contents, shared.m_tags.get("/hello").m_contents.get());
+	}
+	
+	@Test
+	public void testETagHash()
+	{
+		assertEquals(CachedRequestCallback.computeETag("abcdefghij".getBytes()), CachedRequestCallback.computeETag("abcdefghij".getBytes()));
+		assertNotEquals(CachedRequestCallback.computeETag("abcdefghij".getBytes()), CachedRequestCallback.computeETag("abcdefghik".getBytes()));
+		assertNotEquals(CachedRequestCallback.computeETag(new byte[8]), CachedRequestCallback.computeETag(new byte[9]));
+	}
+	
 	protected static class CachedServer extends InnerFileServer
 	{
 		public CachedServer()
 		{
 			super(CachedServer.class, true, 0);
 		}
+		
+		public void setValidatorMode(boolean b)
+		{
+			((CachedRequestCallback) m_callbacks.get(0)).setValidatorMode(b);
+		}
 	}
 	
 	protected static class FakeRequest extends EmptyHttpExchange
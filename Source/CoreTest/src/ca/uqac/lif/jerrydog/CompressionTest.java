@@ -0,0 +1,211 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.junit.Test;
+
+import ca.uqac.lif.jerrydog.CachedCallbackTest.FakeRequest;
+
+import com.sun.net.httpserver.HttpExchange;
+
+public class CompressionTest
+{
+	@Test
+	public void testNegotiate()
+	{
+		assertEquals("gzip", ResponseCompressor.negotiate("gzip, deflate, br"));
+		assertEquals("deflate", ResponseCompressor.negotiate("deflate"));
+		assertEquals("deflate", ResponseCompressor.negotiate("gzip;q=0.5, deflate"));
+		assertEquals("gzip", ResponseCompressor.negotiate("*"));
+		assertNull(ResponseCompressor.negotiate("gzip;q=0, identity"));
+		assertNull(ResponseCompressor.negotiate(null));
+	}
+	
+	@Test
+	public void testGzip() throws IOException
+	{
+		Server s = createServer();
+		FakeRequest he = new FakeRequest("/big");
+		he.getRequestHeaders().add("Accept-Encoding", "gzip");
+		s.handle(he);
+		assertEquals("gzip", he.getResponseHeaders().getFirst("Content-Encoding"));
+		assertEquals("Accept-Encoding", he.getResponseHeaders().getFirst("Vary"));
+		byte[] body = InnerFileServer.readBytes(new GZIPInputStream(new ByteArrayInputStream(he.m_responseBody.toByteArray())));
+		assertEquals(BigCallback.getText(), new String(body));
+	}
+	
+	@Test
+	public void testDeflateStreamed() throws IOException
+	{
+		Server s = createServer();
+		FakeRequest he = new FakeRequest("/big?stream");
+		he.getRequestHeaders().add("Accept-Encoding", "deflate");
+		s.handle(he);
+		assertEquals("deflate", he.getResponseHeaders().getFirst("Content-Encoding"));
+		byte[] body = InnerFileServer.readBytes(new InflaterInputStream(new ByteArrayInputStream(he.m_responseBody.toByteArray())));
+		assertEquals(BigCallback.getText(), new String(body));
+	}
+	
+	@Test
+	public void testNotCompressed() throws IOException
+	{
+		Server s = createServer();
+		// Client does not accept compression
+		FakeRequest he = new FakeRequest("/big");
+		s.handle(he);
+		assertNull(he.getResponseHeaders().getFirst("Content-Encoding"));
+		assertEquals(BigCallback.getText(), he.getResponseString());
+		// Body below the threshold
+		s.registerCallback(0, new HelloCallback());
+		he = new FakeRequest("/hello");
+		he.getRequestHeaders().add("Accept-Encoding", "gzip");
+		s.handle(he);
+		assertNull(he.getResponseHeaders().getFirst("Content-Encoding"));
+		assertEquals("Hi", he.getResponseString());
+	}
+	
+	@Test
+	public void testStaticVariant() throws IOException
+	{
+		CachedCallbackTest.CachedServer server = new CachedCallbackTest.CachedServer();
+		ResponseCompressor rc = newCompressor().setMinSize(1);
+		server.setCompression(rc);
+		server.enableResourceCache(1024, false);
+		for (int i = 0; i < 3; i++)
+		{
+			FakeRequest he = new FakeRequest("/foo.txt");
+			he.getRequestHeaders().add("Accept-Encoding", "gzip");
+			server.handle(he);
+			// "foo" is too short to be made smaller by compression
+			assertEquals("foo", he.getResponseString());
+		}
+		assertEquals(1, rc.getVariantCount());
+	}
+	
+	@Test
+	public void testVariantCollected() throws InterruptedException
+	{
+		ResponseCompressor rc = newCompressor().setMinSize(1);
+		// Random bytes do not get smaller when compressed
+		byte[] contents = new byte[4096];
+		new Random(0).nextBytes(contents);
+		assertNull(rc.getVariant(contents, ResponseCompressor.GZIP));
+		assertNull(rc.getVariant(contents, ResponseCompressor.GZIP));
+		assertEquals(1, rc.getVariantCount());
+		contents = null;
+		for (int i = 0; i < 50 && rc.getVariantCount() > 0; i++)
+		{
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertEquals(0, rc.getVariantCount());
+	}
+	
+	@Test
+	public void testETag() throws IOException
+	{
+		Server s = new Server();
+		s.setCompression(newCompressor());
+		CachedRequestCallback crc = new CachedRequestCallback(new BigCallback());
+		crc.setValidatorMode(true);
+		s.registerCallback(crc);
+		FakeRequest he = new FakeRequest("/big");
+		s.handle(he);
+		String tag = he.getResponseHeaders().getFirst("ETag");
+		assertNotNull(tag);
+		he = new FakeRequest("/big");
+		he.getRequestHeaders().add("Accept-Encoding", "gzip");
+		s.handle(he);
+		// The compressed body is another representation, with its own tag
+		String gz_tag = he.getResponseHeaders().getFirst("ETag");
+		assertEquals(ResponseCompressor.tagEncoding(tag, ResponseCompressor.GZIP), gz_tag);
+		assertEquals(tag, ResponseCompressor.untagEncoding(gz_tag));
+		he = new FakeRequest("/big");
+		he.getRequestHeaders().add("Accept-Encoding", "gzip");
+		he.getRequestHeaders().add("If-None-Match", gz_tag);
+		s.handle(he);
+		assertEquals(CallbackResponse.HTTP_NOT_MODIFIED, he.getResponseCode());
+		assertEquals(gz_tag, he.getResponseHeaders().getFirst("ETag"));
+		assertTrue(CachedRequestCallback.matches("W/" + gz_tag, tag));
+		assertFalse(CachedRequestCallback.matches("\"big-gzip\"", tag));
+	}
+	
+	protected static Server createServer()
+	{
+		Server s = new Server();
+		s.setCompression(newCompressor());
+		s.registerCallback(new BigCallback());
+		return s;
+	}
+	
+	protected static ResponseCompressor newCompressor()
+	{
+		// The tests must not depend on the load of the machine
+		return new ResponseCompressor().setLoadThresholds(Double.MAX_VALUE, Double.MAX_VALUE);
+	}
+	
+	protected static class BigCallback extends RestCallback
+	{
+		public BigCallback()
+		{
+			super(Method.GET, "/big");
+		}
+		
+		public static String getText()
+		{
+			StringBuilder out = new StringBuilder();
+			for (int i = 0; i < 500; i++)
+			{
+				out.append("{\"value\":").append(i).append("},");
+			}
+			return out.toString();
+		}
+
+		@Override
+		public CallbackResponse process(HttpExchange t)
+		{
+			CallbackResponse cbr = new CallbackResponse(t, CallbackResponse.HTTP_OK, "", CallbackResponse.ContentType.JSON);
+			final byte[] text = getText().getBytes();
+			if (t.getRequestURI().getQuery() != null)
+			{
+				cbr.setContents(new CallbackResponse.BodyWriter()
+				{
+					@Override
+					public void write(OutputStream out) throws IOException
+					{
+						out.write(text);
+					}
+				});
+			}
+			else
+			{
+				cbr.setContents(text);
+			}
+			return cbr;
+		}
+	}
+}
@@ -0,0 +1,125 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ConnectionTrackerTest
+{
+	@Test
+	public void testCounts()
+	{
+		ConnectionTracker ct = new ConnectionTracker(0);
+		ct.requestStarted("a");
+		ct.requestStarted("b");
+		ct.requestStarted("a");
+		assertEquals(2, ct.getOpenCount());
+		assertEquals(0, ct.getIdleCount());
+		assertEquals(3, ct.getActiveRequestCount());
+		ct.requestEnded("a");
+		ct.requestEnded("b");
+		assertEquals(1, ct.getIdleCount());
+		ct.requestEnded("a");
+		assertEquals(2, ct.getIdleCount());
+		ct.closed("a");
+		assertEquals(1, ct.getOpenCount());
+		assertEquals(2, ct.getOpenedCount());
+		assertEquals(3, ct.getRequestCount());
+		// Unknown connections are ignored
+		ct.requestStarted(null);
+		ct.requestEnded("c");
+		assertEquals(1, ct.getOpenCount());
+	}
+
+	@Test
+	public void testExpiry() throws InterruptedException
+	{
+		ConnectionTracker ct = new ConnectionTracker(20);
+		ct.requestStarted("a");
+		ct.requestStarted("b");
+		ct.requestEnded("a");
+		Thread.sleep(50);
+		// "b" still has a request in progress
+		assertEquals(1, ct.getOpenCount());
+		ct.requestEnded("b");
+		Thread.sleep(50);
+		assertEquals(0, ct.getOpenCount());
+		ct.requestStarted("a");
+		assertEquals(1, ct.getOpenCount());
+		assertEquals(3, ct.getOpenedCount());
+	}
+
+	@Test
+	public void testListenerProperties()
+	{
+		Server s = new Server();
+		s.setIdleTimeout(1500);
+		s.setMaxIdleConnections(10);
+		s.setMaxConnections(500);
+		s.setRequestTimeout(5000);
+		s.setNoDelay(false);
+		Map<String,String> props = s.getListenerProperties();
+		assertEquals("2", props.get("sun.net.httpserver.idleInterval"));
+		assertEquals("10", props.get("sun.net.httpserver.maxIdleConnections"));
+		assertEquals("500", props.get("jdk.httpserver.maxConnections"));
+		assertEquals("5", props.get("sun.net.httpserver.maxReqTime"));
+		assertEquals("false", props.get("sun.net.httpserver.nodelay"));
+		assertFalse(props.containsKey("sun.net.httpserver.maxRspTime"));
+		assertEquals(2000, s.getEffectiveIdleTimeout());
+	}
+
+	@Test(timeout = 5000)
+	public void testServer() throws IOException, InterruptedException
+	{
+		Server s = new Server();
+		s.setServerPort(12142);
+		s.setBacklog(256);
+		s.registerCallback(new HelloCallback());
+		s.startServer();
+		try
+		{
+			for (int i = 0; i < 2; i++)
+			{
+				HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:12142/hello").openConnection();
+				conn.getResponseCode();
+				InnerFileServer.readBytes(conn.getInputStream());
+			}
+			assertEquals(2, s.getConnections().getRequestCount());
+			// The client may read the response before the server is done
+			// with the request
+			long deadline = System.currentTimeMillis() + 2000;
+			while (s.getConnections().getActiveRequestCount() > 0 && System.currentTimeMillis() < deadline)
+			{
+				Thread.sleep(10);
+			}
+			assertTrue(s.getOpenConnectionCount() >= 1);
+			assertEquals(s.getOpenConnectionCount(), s.getIdleConnectionCount());
+		}
+		finally
+		{
+			s.stopServer();
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import ca.uqac.lif.jerrydog.CachedCallbackTest.FakeRequest;
+import ca.uqac.lif.jerrydog.Cookie.SameSite;
+
+public class CookieTest
+{
+	@Test
+	public void testParse()
+	{
+		assertTrue(Cookie.parse(null).isEmpty());
+		Map<String,String> cookies = Cookie.parse(Arrays.asList("sessionid=abc; id=\"1\";junk;=x; e=", "id=2;  t = a=b "));
+		assertEquals("abc", cookies.get("sessionid"));
+		assertEquals("1", cookies.get("id"));
+		assertEquals("", cookies.get("e"));
+		assertEquals("a=b", cookies.get("t"));
+		assertEquals(4, cookies.size());
+	}
+
+	@Test
+	public void testRequestCookie()
+	{
+		// No Cookie header at all
+		FakeRequest t = new FakeRequest("/a");
+		assertEquals("", new Cookie(t, "id").getValue());
+		assertTrue(Cookie.getCookies(t).isEmpty());
+		// A name that is part of another one does not match it
+		t = new FakeRequest("/a");
+		t.getRequestHeaders().add("Cookie", "sessionid=abc");
+		assertEquals("", new Cookie(t, "id").getValue());
+		assertEquals("abc", new Cookie(t, "sessionid").getValue());
+		// The header is only parsed once per request
+		RequestContext c = RequestContext.of(t);
+		assertSame(c.getCookies(), Cookie.getCookies(c));
+	}
+
+	@Test
+	public void testSetCookie()
+	{
+		assertEquals("a=1", new Cookie("a", "1").toSetCookieString());
+		Cookie c = new Cookie("sid", "x").setPath("/app").setDomain("example.com")
+				.setHttpOnly(true).setSecure(true).setSameSite(SameSite.LAX).setMaxAge(3600);
+		String s = c.toSetCookieString();
+		assertTrue(s.startsWith("sid=x; Max-Age=3600; Expires="));
+		assertTrue(s.endsWith("; Domain=example.com; Path=/app; Secure; HttpOnly; SameSite=Lax"));
+		// Deleting a cookie
+		assertEquals("a=; Max-Age=0; Expires=Thu, 01 Jan 1970 00:00:00 GMT", new Cookie("a", "").setMaxAge(0).toSetCookieString());
+		// SameSite=None needs Secure
+		assertEquals("a=1; Secure; SameSite=None", new Cookie("a", "1").setSameSite(SameSite.NONE).toSetCookieString());
+	}
+
+	@Test
+	public void testInvalid()
+	{
+		String[][] invalid = {{"a b", "1"}, {"a;", "1"}, {"", "1"}, {"a", "1; Path=/"}, {"a", "1\r\nX: y"}};
+		for (String[] pair : invalid)
+		{
+			try
+			{
+				new Cookie(pair[0], pair[1]).toSetCookieString();
+				fail("Accepted " + pair[0] + "=" + pair[1]);
+			}
+			catch (IllegalArgumentException e)
+			{
+				// Expected
+			}
+		}
+		try
+		{
+			new Cookie("a", "1").setPath("/; Domain=evil.com");
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+			// Expected
+		}
+	}
+
+	@Test
+	public void testResponse()
+	{
+		FakeRequest t = new FakeRequest("/a");
+		CallbackResponse r = new CallbackResponse(t);
+		r.addResponseCookie(new Cookie("a", "1").setPath("/").setHttpOnly(true));
+		r.addResponseCookie(new Cookie("b", "2"));
+		List<String> headers = t.getResponseHeaders().get("Set-Cookie");
+		assertEquals(Arrays.asList("a=1; Path=/; HttpOnly", "b=2"), headers);
+	}
+}
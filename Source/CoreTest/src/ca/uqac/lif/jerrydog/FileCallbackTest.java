@@ -0,0 +1,122 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import org.junit.Test;
+
+import ca.uqac.lif.jerrydog.CachedCallbackTest.FakeRequest;
+
+public class FileCallbackTest
+{
+	@Test
+	public void testServeFile() throws IOException
+	{
+		File root = createFolder();
+		Server s = new Server();
+		s.registerCallback(new FileCallback("/static", root));
+		FakeRequest he = new FakeRequest("/static/sub/a.json");
+		s.handle(he);
+		assertEquals(CallbackResponse.HTTP_OK, he.getResponseCode());
+		assertEquals("{\"a\":1}", he.getResponseString());
+		assertEquals("application/json", he.getResponseHeaders().getFirst("Content-Type"));
+	}
+	
+	@Test
+	public void testNotFound() throws IOException
+	{
+		File root = createFolder();
+		Server s = new Server();
+		s.registerCallback(new FileCallback("/static", root));
+		FakeRequest he = new FakeRequest("/static/b.json");
+		s.handle(he);
+		assertEquals(CallbackResponse.HTTP_NOT_FOUND, he.getResponseCode());
+		// Directories are not served
+		he = new FakeRequest("/static/sub");
+		s.handle(he);
+		assertEquals(CallbackResponse.HTTP_NOT_FOUND, he.getResponseCode());
+		he = new FakeRequest("/static/../secret");
+		s.handle(he);
+		assertEquals(CallbackResponse.HTTP_BAD_REQUEST, he.getResponseCode());
+		// Outside of the prefix
+		he = new FakeRequest("/other/sub/a.json");
+		s.handle(he);
+		assertEquals(CallbackResponse.HTTP_BAD_REQUEST, he.getResponseCode());
+	}
+	
+	@Test(timeout = 5000)
+	public void testContentLength() throws IOException
+	{
+		File root = createFolder();
+		File big = new File(root, "big.bin");
+		FileOutputStream fos = new FileOutputStream(big);
+		byte[] block = new byte[65536];
+		for (int i = 0; i < 20; i++)
+		{
+			block[0] = (byte) i;
+			fos.write(block);
+		}
+		fos.close();
+		Server s = new Server();
+		s.setServerPort(12140);
+		s.registerCallback(new FileCallback(root));
+		s.startServer();
+		try
+		{
+			HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:12140/big.bin").openConnection();
+			assertEquals(CallbackResponse.HTTP_OK, conn.getResponseCode());
+			assertEquals(big.length(), conn.getContentLengthLong());
+			byte[] body = InnerFileServer.readBytes(conn.getInputStream());
+			assertEquals(big.length(), body.length);
+			assertEquals(19, body[19 * 65536]);
+			conn.disconnect();
+		}
+		finally
+		{
+			s.stopServer();
+		}
+	}
+	
+	@Test
+	public void testContentTypes()
+	{
+		assertEquals("text/css", CallbackResponse.getContentTypeForName("a.b.CSS"));
+		assertEquals("image/x-icon", CallbackResponse.getContentTypeForName("favicon.ico"));
+		assertEquals("application/octet-stream", CallbackResponse.getContentTypeForName("noextension"));
+	}
+	
+	protected static File createFolder() throws IOException
+	{
+		File root = File.createTempFile("jerrydog", "");
+		root.delete();
+		File sub = new File(root, "sub");
+		sub.mkdirs();
+		FileOutputStream fos = new FileOutputStream(new File(sub, "a.json"));
+		fos.write("{\"a\":1}".getBytes());
+		fos.close();
+		root.deleteOnExit();
+		return root;
+	}
+}
@@ -0,0 +1,98 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class HpackTest
+{
+	@Test
+	public void testDecodeHuffman() throws IOException
+	{
+		// Examples of RFC 7541, section C.4
+		Hpack.Decoder d = new Hpack.Decoder(4096);
+		List<Hpack.Field> fields = new ArrayList<Hpack.Field>();
+		d.decode(ByteBuffer.wrap(fromHex("828684418cf1e3c2e5f23a6ba0ab90f4ff")), fields);
+		assertEquals(4, fields.size());
+		assertField(":method", "GET", fields.get(0));
+		assertField(":scheme", "http", fields.get(1));
+		assertField(":path", "/", fields.get(2));
+		assertField(":authority", "www.example.com", fields.get(3));
+		fields.clear();
+		// The second request refers to the dynamic table
+		d.decode(ByteBuffer.wrap(fromHex("828684be5886a8eb10649cbf")), fields);
+		assertEquals(5, fields.size());
+		assertField(":authority", "www.example.com", fields.get(3));
+		assertField("cache-control", "no-cache", fields.get(4));
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException
+	{
+		Hpack.Encoder e = new Hpack.Encoder();
+		Hpack.Decoder d = new Hpack.Decoder(65536);
+		for (int i = 0; i < 3; i++)
+		{
+			List<Hpack.Field> fields = new ArrayList<Hpack.Field>();
+			fields.add(new Hpack.Field(":status", "200"));
+			fields.add(new Hpack.Field("content-type", "text/html; charset=utf-8"));
+			fields.add(new Hpack.Field("set-cookie", "id=" + i));
+			fields.add(new Hpack.Field("x-dessert", "cr\u00e8me br\u00fbl\u00e9e"));
+			fields.add(new Hpack.Field("x-empty", ""));
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			e.encode(fields, out);
+			List<Hpack.Field> decoded = new ArrayList<Hpack.Field>();
+			d.decode(ByteBuffer.wrap(out.toByteArray()), decoded);
+			assertEquals(fields.size(), decoded.size());
+			for (int j = 0; j < fields.size(); j++)
+			{
+				assertField(fields.get(j).getName(), fields.get(j).getValue(), decoded.get(j));
+			}
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testInvalidIndex() throws IOException
+	{
+		new Hpack.Decoder(4096).decode(ByteBuffer.wrap(new byte[] {(byte) 0xff, 0x10}), new ArrayList<Hpack.Field>());
+	}
+
+	protected static void assertField(String name, String value, Hpack.Field f)
+	{
+		assertEquals(name, f.getName());
+		assertEquals(value, f.getValue());
+	}
+
+	protected static byte[] fromHex(String s)
+	{
+		byte[] out = new byte[s.length() / 2];
+		for (int i = 0; i < out.length; i++)
+		{
+			out[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+		}
+		return out;
+	}
+}
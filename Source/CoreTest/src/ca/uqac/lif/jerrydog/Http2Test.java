@@ -0,0 +1,367 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import ca.uqac.lif.jerrydog.RequestCallback.Method;
+
+import com.sun.net.httpserver.HttpExchange;
+
+public class Http2Test
+{
+	protected static final int PORT = 12144;
+
+	@Test(timeout = 10000)
+	public void testPriorKnowledge() throws IOException
+	{
+		Server s = startServer();
+		try
+		{
+			Socket sock = new Socket("localhost", PORT);
+			Client c = new Client(sock);
+			c.sendPreface();
+			c.sendRequest(1, "GET", "/slow", null);
+			c.sendRequest(3, "GET", "/hello", null);
+			c.sendRequest(5, "GET", "/hello", null);
+			List<Integer> order = c.readResponses(3);
+			sock.close();
+			// The slow response does not hold back the others
+			assertEquals(1, (int) order.get(2));
+			assertEquals("200", c.getStatus(1));
+			assertEquals("slow", c.getBody(1));
+			assertEquals("200", c.getStatus(3));
+			assertEquals("Hi", c.getBody(3));
+			assertEquals("Hi", c.getBody(5));
+			// All the streams share a single connection
+			assertEquals(1, s.getConnections().getOpenedCount());
+		}
+		finally
+		{
+			s.stopServer();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testRequestBody() throws IOException
+	{
+		Server s = startServer();
+		try
+		{
+			Socket sock = new Socket("localhost", PORT);
+			Client c = new Client(sock);
+			c.sendPreface();
+			c.sendRequest(1, "POST", "/echo", "abcdefg".getBytes("ISO-8859-1"));
+			c.sendRequest(3, "GET", "/large", null);
+			c.readResponses(2);
+			sock.close();
+			assertEquals("abcdefg", c.getBody(1));
+			byte[] large = c.m_bodies.get(3).toByteArray();
+			assertEquals(2000000, large.length);
+			for (int i = 0; i < large.length; i++)
+			{
+				assertEquals((byte) (i % 251), large[i]);
+			}
+		}
+		finally
+		{
+			s.stopServer();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testUpgrade() throws IOException
+	{
+		Server s = startServer();
+		try
+		{
+			Socket sock = new Socket("localhost", PORT);
+			OutputStream os = sock.getOutputStream();
+			os.write(("GET /hello HTTP/1.1\r\nHost: localhost\r\nConnection: Upgrade, HTTP2-Settings\r\n"
+					+ "Upgrade: h2c\r\nHTTP2-Settings: AAMAAABk\r\n\r\n").getBytes("ISO-8859-1"));
+			Client c = new Client(sock);
+			c.sendPreface();
+			// The 101 response comes before the first frame
+			StringBuilder head = new StringBuilder();
+			while (!head.toString().endsWith("\r\n\r\n"))
+			{
+				head.append((char) c.m_in.read());
+			}
+			assertTrue(head.toString().startsWith("HTTP/1.1 101 "));
+			assertTrue(head.toString().contains("Upgrade: h2c"));
+			// The request becomes stream 1
+			c.sendRequest(3, "GET", "/hello", null);
+			c.readResponses(2);
+			sock.close();
+			assertEquals("Hi", c.getBody(1));
+			assertEquals("Hi", c.getBody(3));
+		}
+		finally
+		{
+			s.stopServer();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testRapidReset() throws IOException, InterruptedException
+	{
+		final CountDownLatch latch = new CountDownLatch(1);
+		final AtomicInteger started = new AtomicInteger();
+		Server s = new Server();
+		s.setServerPort(12148);
+		s.setTransport(new NioTransport(1));
+		s.setWorkerPool(WorkerPool.virtual());
+		s.registerCallback(new HelloCallback());
+		s.registerCallback(new RestCallback(Method.GET, "/block")
+		{
+			@Override
+			public CallbackResponse process(HttpExchange t)
+			{
+				started.incrementAndGet();
+				try
+				{
+					latch.await();
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+				return new CallbackResponse(t, CallbackResponse.HTTP_OK, "done", CallbackResponse.ContentType.TEXT);
+			}
+		});
+		s.startServer();
+		try
+		{
+			Socket sock = new Socket("localhost", 12148);
+			Client c = new Client(sock);
+			c.sendPreface();
+			byte[] cancel = {0, 0, 0, Http2Session.CANCEL};
+			for (int id = 1; id < 200; id += 2)
+			{
+				c.sendRequest(id, "GET", "/block", null);
+			}
+			while (started.get() < 100)
+			{
+				Thread.sleep(10);
+			}
+			for (int id = 1; id < 200; id += 2)
+			{
+				c.writeFrame(Http2Session.RST_STREAM, 0, id, cancel);
+			}
+			// The callbacks of the reset streams still run: no room for more
+			c.sendRequest(201, "GET", "/hello", null);
+			assertEquals(Http2Session.REFUSED_STREAM, readUntil(c, Http2Session.RST_STREAM, 201).getInt());
+			latch.countDown();
+			Thread.sleep(200);
+			c.sendRequest(203, "GET", "/hello", null);
+			assertEquals(100, started.get());
+			readUntil(c, Http2Session.HEADERS, 203);
+			// Resetting streams over and over ends the session
+			try
+			{
+				for (int i = 0; i < 150; i++)
+				{
+					c.writeFrame(Http2Session.RST_STREAM, 0, 1, cancel);
+				}
+			}
+			catch (IOException e)
+			{
+				// The server may have closed the connection already
+			}
+			assertEquals(Http2Session.ENHANCE_YOUR_CALM, readUntil(c, Http2Session.GOAWAY, 0).getInt(4));
+			sock.close();
+		}
+		finally
+		{
+			latch.countDown();
+			s.stopServer();
+		}
+	}
+
+	/**
+	 * Reads frames until one of a given type is received on a stream
+	 * @param c The client
+	 * @param type The type of the frame
+	 * @param stream_id The stream
+	 * @return The payload of the frame
+	 */
+	protected static ByteBuffer readUntil(Client c, int type, int stream_id) throws IOException
+	{
+		while (true)
+		{
+			int length = (c.m_in.readUnsignedByte() << 16) | c.m_in.readUnsignedShort();
+			int t = c.m_in.readUnsignedByte();
+			c.m_in.readUnsignedByte();
+			int id = c.m_in.readInt() & 0x7fffffff;
+			byte[] payload = new byte[length];
+			c.m_in.readFully(payload);
+			if (t == type && id == stream_id)
+			{
+				return ByteBuffer.wrap(payload);
+			}
+		}
+	}
+
+	protected static Server startServer() throws IOException
+	{
+		Server s = new Server();
+		s.setServerPort(PORT);
+		s.setTransport(new NioTransport(2));
+		s.setWorkerPool(WorkerPool.fixed(4));
+		s.registerCallback(new HelloCallback());
+		s.registerCallback(new NioTransportTest.SlowCallback());
+		s.registerCallback(new NioTransportTest.EchoCallback());
+		s.registerCallback(new NioTransportTest.LargeCallback());
+		s.startServer();
+		return s;
+	}
+
+	/**
+	 * A minimal HTTP/2 client
+	 */
+	protected static class Client
+	{
+		protected final DataInputStream m_in;
+
+		protected final OutputStream m_out;
+
+		protected final Hpack.Encoder m_encoder = new Hpack.Encoder();
+
+		protected final Hpack.Decoder m_decoder = new Hpack.Decoder(65536);
+
+		protected final Map<Integer,List<Hpack.Field>> m_headers = new HashMap<Integer,List<Hpack.Field>>();
+
+		protected final Map<Integer,ByteArrayOutputStream> m_bodies = new HashMap<Integer,ByteArrayOutputStream>();
+
+		public Client(Socket sock) throws IOException
+		{
+			super();
+			m_in = new DataInputStream(sock.getInputStream());
+			m_out = sock.getOutputStream();
+		}
+
+		public void sendPreface() throws IOException
+		{
+			m_out.write(Http2Session.s_preface);
+			// Large windows, so that the client never has to update them
+			ByteBuffer settings = ByteBuffer.allocate(6);
+			settings.putShort((short) Http2Session.SETTINGS_INITIAL_WINDOW_SIZE).putInt(0x7fffffff);
+			writeFrame(Http2Session.SETTINGS, 0, 0, settings.array());
+			ByteBuffer increment = ByteBuffer.allocate(4);
+			increment.putInt(0x7fffffff - 65535);
+			writeFrame(Http2Session.WINDOW_UPDATE, 0, 0, increment.array());
+		}
+
+		public void sendRequest(int stream_id, String method, String path, byte[] body) throws IOException
+		{
+			List<Hpack.Field> fields = new ArrayList<Hpack.Field>();
+			fields.add(new Hpack.Field(":method", method));
+			fields.add(new Hpack.Field(":scheme", "http"));
+			fields.add(new Hpack.Field(":path", path));
+			fields.add(new Hpack.Field(":authority", "localhost"));
+			ByteArrayOutputStream block = new ByteArrayOutputStream();
+			m_encoder.encode(fields, block);
+			int end = body == null ? Http2Session.FLAG_END_STREAM : 0;
+			writeFrame(Http2Session.HEADERS, end | Http2Session.FLAG_END_HEADERS, stream_id, block.toByteArray());
+			if (body != null)
+			{
+				writeFrame(Http2Session.DATA, Http2Session.FLAG_END_STREAM, stream_id, body);
+			}
+		}
+
+		/**
+		 * Reads frames until a number of streams are complete
+		 * @param count The number of streams
+		 * @return The streams, in the order they completed
+		 */
+		public List<Integer> readResponses(int count) throws IOException
+		{
+			List<Integer> done = new ArrayList<Integer>();
+			while (done.size() < count)
+			{
+				int length = (m_in.readUnsignedByte() << 16) | m_in.readUnsignedShort();
+				int type = m_in.readUnsignedByte();
+				int flags = m_in.readUnsignedByte();
+				int stream_id = m_in.readInt() & 0x7fffffff;
+				byte[] payload = new byte[length];
+				m_in.readFully(payload);
+				if (type == Http2Session.HEADERS)
+				{
+					List<Hpack.Field> fields = new ArrayList<Hpack.Field>();
+					m_decoder.decode(ByteBuffer.wrap(payload), fields);
+					m_headers.put(stream_id, fields);
+					m_bodies.put(stream_id, new ByteArrayOutputStream());
+				}
+				else if (type == Http2Session.DATA)
+				{
+					m_bodies.get(stream_id).write(payload);
+				}
+				else if (type == Http2Session.RST_STREAM || type == Http2Session.GOAWAY)
+				{
+					fail("Unexpected frame of type " + type);
+				}
+				if ((type == Http2Session.HEADERS || type == Http2Session.DATA) && (flags & Http2Session.FLAG_END_STREAM) != 0)
+				{
+					done.add(stream_id);
+				}
+			}
+			return done;
+		}
+
+		public String getStatus(int stream_id)
+		{
+			for (Hpack.Field f : m_headers.get(stream_id))
+			{
+				if (f.getName().equals(":status"))
+				{
+					return f.getValue();
+				}
+			}
+			return null;
+		}
+
+		public String getBody(int stream_id) throws IOException
+		{
+			return m_bodies.get(stream_id).toString("ISO-8859-1");
+		}
+
+		protected void writeFrame(int type, int flags, int stream_id, byte[] payload) throws IOException
+		{
+			ByteBuffer b = ByteBuffer.allocate(9 + payload.length);
+			b.put((byte) (payload.length >>> 16)).putShort((short) payload.length);
+			b.put((byte) type).put((byte) flags).putInt(stream_id).put(payload);
+			m_out.write(b.array());
+			m_out.flush();
+		}
+	}
+}
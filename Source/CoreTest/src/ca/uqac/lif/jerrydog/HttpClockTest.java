@@ -0,0 +1,113 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import static org.junit.Assert.*;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import ca.uqac.lif.jerrydog.CachedCallbackTest.FakeRequest;
+
+public class HttpClockTest
+{
+	@Test
+	public void testFormat()
+	{
+		assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", HttpClock.format(784111777000L));
+		assertEquals("Thu, 01 Jan 1970 00:00:00 GMT", HttpClock.at(0));
+		// Same output as the former formatter
+		SimpleDateFormat sdf = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z", Locale.US);
+		sdf.setTimeZone(TimeZone.getTimeZone("GMT"));
+		long d = 1700000000123L;
+		assertEquals(sdf.format(new Date(d)), Server.formatDate(new Date(d)));
+	}
+
+	@Test
+	public void testNow()
+	{
+		long before = System.currentTimeMillis();
+		String now = HttpClock.now();
+		long after = System.currentTimeMillis();
+		assertTrue(now.equals(HttpClock.format(before)) || now.equals(HttpClock.format(after)));
+		// Within the same second, the same string is returned
+		long t = after - after % 1000 + 500;
+		assertSame(HttpClock.at(t), HttpClock.at(t + 1));
+	}
+
+	@Test
+	public void testGap()
+	{
+		long now = System.currentTimeMillis();
+		long second = now / 1000;
+		// The clock was last read two minutes ago
+		HttpClock.s_current = new HttpClock.CachedDate(second - 120);
+		assertEquals(HttpClock.format(now), HttpClock.at(now));
+		assertTrue(HttpClock.s_current.m_second >= second);
+		// An earlier date is formatted, and leaves the cache alone
+		assertEquals(HttpClock.format(now - 120000), HttpClock.at(now - 120000));
+		assertTrue(HttpClock.s_current.m_second >= second);
+	}
+
+	@Test
+	public void testConcurrent() throws InterruptedException
+	{
+		final AtomicInteger errors = new AtomicInteger();
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++)
+		{
+			final long base = 1000000000000L + i * 86400000L;
+			threads[i] = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					String expected = HttpClock.format(base);
+					for (int j = 0; j < 10000; j++)
+					{
+						if (!expected.equals(Server.formatDate(new Date(base))))
+						{
+							errors.incrementAndGet();
+						}
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread t : threads)
+		{
+			t.join();
+		}
+		assertEquals(0, errors.get());
+	}
+
+	@Test
+	public void testDateHeader()
+	{
+		Server s = new Server();
+		FakeRequest he = new FakeRequest("/foo");
+		s.sendResponse(new CallbackResponse(he, CallbackResponse.HTTP_OK, "hi", CallbackResponse.ContentType.TEXT));
+		assertNotNull(he.getResponseHeaders().getFirst("Date"));
+		assertTrue(he.getResponseHeaders().getFirst("Date").endsWith(" GMT"));
+	}
+}
@@ -0,0 +1,148 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class HttpRequestParserTest
+{
+	@Test
+	public void testByteByByte() throws Exception
+	{
+		byte[] request = ("\r\nPOST /a/b?x=1 HTTP/1.1\r\nHost: example.com\r\nX-Empty:\r\n"
+				+ "Content-Length: 5\r\n\r\nhelloGET / HTTP/1.0\r\n\r\n").getBytes("ISO-8859-1");
+		HttpRequestParser p = new HttpRequestParser();
+		ByteBuffer in = ByteBuffer.allocateDirect(256);
+		int pos = 0;
+		boolean done = false;
+		while (!done)
+		{
+			in.put(request[pos++]);
+			in.flip();
+			done = p.parse(in);
+			in.compact();
+		}
+		assertEquals("POST", p.getMethod());
+		assertEquals("/a/b?x=1", p.getTarget());
+		assertEquals("HTTP/1.1", p.getProtocol());
+		assertEquals("example.com", p.getHeaders().getFirst("Host"));
+		assertEquals("", p.getHeaders().getFirst("X-Empty"));
+		assertEquals("hello", new String(p.getBody(), "ISO-8859-1"));
+		// The next request is left in the buffer
+		in.put(request, pos, request.length - pos);
+		in.flip();
+		p.reset();
+		assertTrue(p.parse(in));
+		assertEquals("GET", p.getMethod());
+		assertEquals("HTTP/1.0", p.getProtocol());
+		assertEquals(0, p.getBody().length);
+		assertFalse(in.hasRemaining());
+	}
+
+	@Test
+	public void testChunked() throws Exception
+	{
+		HttpRequestParser p = new HttpRequestParser();
+		ByteBuffer in = wrap("PUT /x HTTP/1.1\r\nTransfer-Encoding: chunked\r\nExpect: 100-continue\r\n\r\n");
+		assertFalse(p.parse(in));
+		assertTrue(p.takeExpectContinue());
+		assertFalse(p.takeExpectContinue());
+		assertTrue(p.parse(wrap("A\r\n0123456789\r\n1\r\n!\r\n0\r\nTrailer: x\r\n\r\n")));
+		assertEquals("0123456789!", new String(p.getBody(), "ISO-8859-1"));
+	}
+
+	@Test
+	public void testErrors() throws Exception
+	{
+		assertError(400, "GET /\r\n\r\n");
+		assertError(400, "GET / HTTP/1.1\r\nBad header\r\n\r\n");
+		assertError(400, "GET / HTTP/1.1\r\nName : value\r\n\r\n");
+		assertError(400, "GET / HTTP/1.1\r\nContent-Length: 1\r\nTransfer-Encoding: chunked\r\n\r\n");
+		assertError(400, "GET / HTTP/1.1\r\nContent-Length: 1\r\nContent-Length: 2\r\n\r\n");
+		assertError(400, "GET / HTTP/1.1\r\nContent-Length: -1\r\n\r\n");
+		assertError(505, "GET / HTTP/2.0\r\n\r\n");
+		assertError(413, "POST / HTTP/1.1\r\nContent-Length: 100000000\r\n\r\n");
+		StringBuilder big = new StringBuilder("GET / HTTP/1.1\r\n");
+		for (int i = 0; i < 300; i++)
+		{
+			big.append("X-").append(i).append(": y\r\n");
+		}
+		assertError(431, big.append("\r\n").toString());
+	}
+
+	@Test
+	public void testLineTooLong() throws Exception
+	{
+		// A line longer than the buffer waits for the buffer to grow
+		HttpRequestParser p = new HttpRequestParser();
+		assertFalse(p.parse(fill(ByteBuffer.allocate(64))));
+		// A line longer than the headers can be is refused
+		p = new HttpRequestParser();
+		try
+		{
+			p.parse(fill(ByteBuffer.allocate(HttpRequestParser.DEFAULT_MAX_HEADER_SIZE + 1)));
+			fail("Expected an exception");
+		}
+		catch (HttpException e)
+		{
+			assertEquals(CallbackResponse.HTTP_HEADER_FIELDS_TOO_LARGE, e.getCode());
+		}
+	}
+
+	/**
+	 * Fills a buffer with the start of a request line that never ends
+	 * @param in The buffer
+	 * @return The buffer, flipped
+	 */
+	protected static ByteBuffer fill(ByteBuffer in) throws Exception
+	{
+		in.put("GET /".getBytes("ISO-8859-1"));
+		while (in.hasRemaining())
+		{
+			in.put((byte) 'a');
+		}
+		in.flip();
+		return in;
+	}
+
+	protected static void assertError(int code, String request) throws Exception
+	{
+		HttpRequestParser p = new HttpRequestParser();
+		try
+		{
+			p.parse(wrap(request));
+			fail("Expected an exception for " + request);
+		}
+		catch (HttpException e)
+		{
+			assertEquals(code, e.getCode());
+		}
+	}
+
+	protected static ByteBuffer wrap(String s) throws Exception
+	{
+		byte[] bytes = s.getBytes("ISO-8859-1");
+		ByteBuffer b = ByteBuffer.allocateDirect(64 * 1024);
+		b.put(bytes).flip();
+		return b;
+	}
+}
@@ -0,0 +1,159 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import ca.uqac.lif.jerrydog.CachedCallbackTest.FakeRequest;
+import ca.uqac.lif.jerrydog.RequestCallback.Method;
+
+public class MetricsTest
+{
+	@Test
+	public void testHistogram()
+	{
+		LatencyHistogram h = new LatencyHistogram();
+		assertEquals(0, h.getQuantileMicros(0.99));
+		for (int i = 1; i <= 1000; i++)
+		{
+			h.recordMicros(i * 100);
+		}
+		assertEquals(1000, h.getCount());
+		assertEquals(100000, h.getMaxMicros());
+		// Within the precision of the buckets
+		assertEquals(50000, h.getQuantileMicros(0.5), 50000 * 0.07);
+		assertEquals(99000, h.getQuantileMicros(0.99), 99000 * 0.07);
+		assertEquals(100000, h.getQuantileMicros(1));
+		LatencyHistogram h2 = new LatencyHistogram();
+		h2.recordMicros(1000000);
+		h.add(h2);
+		assertEquals(1001, h.getCount());
+		assertEquals(1000000, h.getMaxMicros());
+	}
+
+	@Test
+	public void testBuckets()
+	{
+		for (long v : new long[] {0, 1, 15, 16, 17, 31, 32, 33, 1000, 123456789L})
+		{
+			int b = LatencyHistogram.bucketOf(v);
+			assertTrue(LatencyHistogram.bucketLow(b) <= v);
+			assertTrue(LatencyHistogram.bucketHigh(b) >= v);
+		}
+		assertEquals(LatencyHistogram.getBucketCount() - 1, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+	}
+
+	@Test
+	public void testStatusClasses()
+	{
+		RequestMetrics metrics = new RequestMetrics();
+		RequestCallback cb = new HelloCallback();
+		metrics.record(cb, 200, 0, 1000000L);
+		metrics.record(cb, 204, 0, 50000000L);
+		metrics.record(cb, 404, 0, 3000000L);
+		RequestMetrics.Stats st = metrics.getStats(cb);
+		assertEquals(3, st.getLatency().getCount());
+		assertEquals(2, st.getLatency(2).getCount());
+		assertEquals(1, st.getLatency(4).getCount());
+		assertNull(st.getLatency(5));
+		assertEquals(2, st.getClasses().size());
+		String text = MetricsCallback.format(metrics);
+		String labels = "callback=\"" + cb.getName() + "\",class=\"2xx\"";
+		// Buckets are cumulative
+		assertTrue(text.contains("jerrydog_request_duration_seconds_bucket{" + labels + ",le=\"0.001\"} 1\n"));
+		assertTrue(text.contains("jerrydog_request_duration_seconds_bucket{" + labels + ",le=\"0.01\"} 1\n"));
+		assertTrue(text.contains("jerrydog_request_duration_seconds_bucket{" + labels + ",le=\"0.1\"} 2\n"));
+		assertTrue(text.contains("jerrydog_request_duration_seconds_sum{" + labels + "} 0.051\n"));
+		assertTrue(text.contains("jerrydog_request_duration_seconds_count{callback=\"" + cb.getName() + "\",class=\"4xx\"} 1\n"));
+	}
+
+	@Test
+	public void testCumulative()
+	{
+		LatencyHistogram h = new LatencyHistogram();
+		for (int i = 1; i <= 100; i++)
+		{
+			h.recordMicros(i * 1000);
+		}
+		long[] counts = h.getCumulativeCounts(new long[] {0, 10000, 50000, 1000000});
+		assertEquals(0, counts[0]);
+		// Within the precision of the buckets
+		assertEquals(10, counts[1], 1);
+		assertEquals(50, counts[2], 4);
+		assertEquals(100, counts[3]);
+		assertEquals(100, counts[4]);
+	}
+
+	@Test
+	public void testServer() throws IOException
+	{
+		Server s = new Server();
+		s.registerCallback(new RestCallback(Method.GET, "/ok")
+		{
+			@Override
+			public CallbackResponse process(HttpExchange t)
+			{
+				return new CallbackResponse(t, CallbackResponse.HTTP_OK, "hello", CallbackResponse.ContentType.TEXT);
+			}
+		});
+		s.registerCallback(new RestCallback(Method.GET, "/fail")
+		{
+			@Override
+			public CallbackResponse process(HttpExchange t)
+			{
+				throw new IllegalStateException("oops");
+			}
+		}.setName("failing"));
+		RequestMetrics metrics = s.enableMetrics("/metrics");
+		s.handle(new FakeRequest("/ok"));
+		s.handle(new FakeRequest("/ok"));
+		s.handle(new FakeRequest("/fail"));
+		s.handle(new FakeRequest("/nothing"));
+		RequestMetrics.Stats ok = metrics.getStats().get("GET /ok");
+		assertEquals(2, ok.getRequestCount());
+		assertEquals(2, ok.getCodeCount(200));
+		assertEquals(10, ok.getBytesOut());
+		assertEquals(0, ok.getErrorCount());
+		RequestMetrics.Stats fail = metrics.getStats().get("failing");
+		assertEquals(1, fail.getErrorCount());
+		assertEquals(1, fail.getCodeCount(500));
+		assertEquals(1, metrics.getStats().get(RequestMetrics.UNMATCHED).getCodeCount(400));
+		FakeRequest he = new FakeRequest("/metrics");
+		s.handle(he);
+		String text = he.getResponseString();
+		assertTrue(text.contains("jerrydog_requests_total{callback=\"GET /ok\",code=\"200\"} 2\n"));
+		assertTrue(text.contains("jerrydog_errors_total{callback=\"failing\"} 1\n"));
+		assertTrue(text.contains("# TYPE jerrydog_request_duration_seconds histogram\n"));
+		assertTrue(text.contains("jerrydog_request_duration_seconds_count{callback=\"GET /ok\",class=\"2xx\"} 2\n"));
+		assertTrue(text.contains("jerrydog_request_duration_seconds_bucket{callback=\"GET /ok\",class=\"2xx\",le=\"+Inf\"} 2\n"));
+		assertTrue(text.contains("jerrydog_request_duration_seconds_count{callback=\"failing\",class=\"5xx\"} 1\n"));
+		assertFalse(text.contains("jerrydog_request_duration_seconds_count{callback=\"failing\",class=\"2xx\"}"));
+	}
+
+	@Test
+	public void testEscape()
+	{
+		assertEquals("a\\\"b\\\\c\\n", MetricsCallback.escape("a\"b\\c\n"));
+	}
+}
@@ -0,0 +1,189 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import ca.uqac.lif.jerrydog.RequestBodyTest.PostRequest;
+import ca.uqac.lif.jerrydog.RequestCallback.Method;
+
+public class MultipartTest
+{
+	protected static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	protected static final String BOUNDARY = "----XyZ123";
+
+	@Test
+	public void testReader() throws IOException
+	{
+		byte[] file = new byte[5000];
+		for (int i = 0; i < file.length; i++)
+		{
+			// Include bytes that look like the start of a delimiter
+			file[i] = (byte) (i % 7 == 0 ? '\r' : (i % 7 == 1 ? '\n' : '-'));
+		}
+		byte[] body = makeBody(file);
+		// Read the body a few bytes at a time
+		MultipartReader r = new MultipartReader(new TrickleInputStream(new ByteArrayInputStream(body)), BOUNDARY);
+		MultipartReader.Part p = r.nextPart();
+		assertNotNull(p);
+		assertEquals("title", p.getName());
+		assertNull(p.getFileName());
+		assertEquals("Hello world", new String(readAll(p.getInputStream()), UTF_8));
+		p = r.nextPart();
+		assertEquals("upload", p.getName());
+		assertEquals("a \"b\".bin", p.getFileName());
+		assertEquals("application/octet-stream", p.getContentType());
+		assertArrayEquals(file, readAll(p.getInputStream()));
+		p = r.nextPart();
+		assertEquals("empty", p.getName());
+		// Not read: skipped by the next call
+		assertNull(r.nextPart());
+		assertNull(r.nextPart());
+	}
+
+	@Test
+	public void testSpool() throws IOException
+	{
+		byte[] file = new byte[100];
+		MultipartReader r = new MultipartReader(new ByteArrayInputStream(makeBody(file)), BOUNDARY);
+		MultipartForm form = MultipartForm.read(r, 50, null, 10);
+		assertEquals(3, form.getParts().size());
+		MultipartForm.FormPart title = form.getPart("title");
+		assertTrue(title.isInMemory());
+		assertEquals("Hello world", title.getString());
+		MultipartForm.FormPart upload = form.getPart("upload");
+		assertFalse(upload.isInMemory());
+		assertEquals(100, upload.getSize());
+		File f = upload.getFile();
+		assertTrue(f.exists());
+		assertArrayEquals(file, upload.getBytes());
+		assertEquals("Hello world", form.getParameters().get("title"));
+		assertEquals("", form.getParameters().get("empty"));
+		form.close();
+		assertFalse(f.exists());
+	}
+
+	@Test
+	public void testCallback() throws IOException
+	{
+		RestCallback cb = new RestCallback(Method.POST, "/upload")
+		{
+			@Override
+			public CallbackResponse process(HttpExchange t)
+			{
+				MultipartForm form = getMultipart(t);
+				try
+				{
+					String s = form.getPart("title").getString() + "," + form.getPart("upload").getSize();
+					return new CallbackResponse(t, CallbackResponse.HTTP_OK, s, CallbackResponse.ContentType.TEXT);
+				}
+				catch (IOException e)
+				{
+					throw new HttpException(CallbackResponse.HTTP_INTERNAL_SERVER_ERROR, e.getMessage());
+				}
+				finally
+				{
+					form.close();
+				}
+			}
+		};
+		Server s = new Server();
+		s.registerCallback(cb);
+		PostRequest he = new PostRequest("/upload", makeBody(new byte[200000]), true);
+		he.getRequestHeaders().add("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+		s.handle(he);
+		assertEquals(CallbackResponse.HTTP_OK, he.getResponseCode());
+		assertEquals("Hello world,200000", he.getResponseString());
+		// Truncated body
+		byte[] body = makeBody(new byte[10]);
+		byte[] truncated = new byte[body.length - 20];
+		System.arraycopy(body, 0, truncated, 0, truncated.length);
+		PostRequest he2 = new PostRequest("/upload", truncated, true);
+		he2.getRequestHeaders().add("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+		s.handle(he2);
+		assertEquals(CallbackResponse.HTTP_BAD_REQUEST, he2.getResponseCode());
+	}
+
+	@Test
+	public void testBoundary()
+	{
+		assertEquals("abc", MultipartReader.getBoundary("multipart/form-data; boundary=abc"));
+		assertEquals("a b", MultipartReader.getBoundary("multipart/form-data; boundary=\"a b\"; charset=x"));
+		assertNull(MultipartReader.getBoundary("application/x-www-form-urlencoded"));
+		assertNull(MultipartReader.getBoundary(null));
+	}
+
+	protected static byte[] makeBody(byte[] file) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(("preamble\r\n--" + BOUNDARY + "\r\n"
+				+ "Content-Disposition: form-data; name=\"title\"\r\n\r\n"
+				+ "Hello world\r\n--" + BOUNDARY + "\r\n"
+				+ "Content-Disposition: form-data; name=\"upload\"; filename=\"a \\\"b\\\".bin\"\r\n"
+				+ "Content-Type: application/octet-stream\r\n\r\n").getBytes(UTF_8));
+		out.write(file);
+		out.write(("\r\n--" + BOUNDARY + "\r\n"
+				+ "Content-Disposition: form-data; name=\"empty\"\r\n\r\n"
+				+ "\r\n--" + BOUNDARY + "--\r\nepilogue").getBytes(UTF_8));
+		return out.toByteArray();
+	}
+
+	protected static byte[] readAll(InputStream is) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[333];
+		int read;
+		while ((read = is.read(buffer)) >= 0)
+		{
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * A stream that gives at most a few bytes per read
+	 */
+	protected static class TrickleInputStream extends FilterInputStream
+	{
+		protected int m_count = 0;
+
+		public TrickleInputStream(InputStream in)
+		{
+			super(in);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			return super.read(b, off, Math.min(len, 1 + (m_count++ % 7)));
+		}
+	}
+}
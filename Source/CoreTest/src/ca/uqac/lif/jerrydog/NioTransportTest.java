@@ -0,0 +1,318 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+
+public class NioTransportTest
+{
+	protected static final int PORT = 12143;
+
+	@Test(timeout = 10000)
+	public void testPipelining() throws IOException
+	{
+		Server s = startServer();
+		try
+		{
+			Socket sock = new Socket("localhost", PORT);
+			OutputStream os = sock.getOutputStream();
+			// The first response is the slowest, but must come first
+			os.write(("GET /slow HTTP/1.1\r\nHost: localhost\r\n\r\n"
+					+ "GET /hello HTTP/1.1\r\nHost: localhost\r\n\r\n"
+					+ "GET /hello HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n").getBytes("ISO-8859-1"));
+			os.flush();
+			String response = new String(InnerFileServer.readBytes(sock.getInputStream()), "ISO-8859-1");
+			sock.close();
+			int slow = response.indexOf("\r\n\r\nslow");
+			int hello1 = response.indexOf("\r\n\r\nHi");
+			int hello2 = response.indexOf("\r\n\r\nHi", hello1 + 1);
+			assertTrue(slow > 0);
+			assertTrue(hello1 > slow);
+			assertTrue(hello2 > hello1);
+			assertTrue(response.endsWith("Hi"));
+			assertTrue(response.contains("Connection: close"));
+		}
+		finally
+		{
+			s.stopServer();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testChunkedRequest() throws IOException
+	{
+		Server s = startServer();
+		try
+		{
+			Socket sock = new Socket("localhost", PORT);
+			OutputStream os = sock.getOutputStream();
+			os.write(("POST /echo HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\nConnection: close\r\n\r\n"
+					+ "3\r\nabc\r\n4;ext=1\r\ndefg\r\n0\r\n\r\n").getBytes("ISO-8859-1"));
+			os.flush();
+			String response = new String(InnerFileServer.readBytes(sock.getInputStream()), "ISO-8859-1");
+			sock.close();
+			assertTrue(response.startsWith("HTTP/1.1 200 OK\r\n"));
+			assertTrue(response.endsWith("\r\n\r\nabcdefg"));
+		}
+		finally
+		{
+			s.stopServer();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testKeepAlive() throws IOException
+	{
+		Server s = startServer();
+		try
+		{
+			for (int i = 0; i < 3; i++)
+			{
+				HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + PORT + "/hello").openConnection();
+				assertEquals(CallbackResponse.HTTP_OK, conn.getResponseCode());
+				assertEquals("Hi", new String(InnerFileServer.readBytes(conn.getInputStream()), "UTF-8"));
+			}
+			// The client reuses the same connection
+			assertEquals(1, s.getConnections().getOpenedCount());
+			assertEquals(1, s.getOpenConnectionCount());
+			assertEquals(3, s.getConnections().getRequestCount());
+		}
+		finally
+		{
+			s.stopServer();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testLargeResponse() throws IOException
+	{
+		Server s = startServer();
+		try
+		{
+			HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + PORT + "/large").openConnection();
+			assertEquals(CallbackResponse.HTTP_OK, conn.getResponseCode());
+			assertEquals("chunked", conn.getHeaderField("Transfer-Encoding"));
+			byte[] body = InnerFileServer.readBytes(conn.getInputStream());
+			assertEquals(2000000, body.length);
+			for (int i = 0; i < body.length; i += 99991)
+			{
+				assertEquals((byte) (i % 251), body[i]);
+			}
+		}
+		finally
+		{
+			s.stopServer();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testMalformedRequest() throws IOException, InterruptedException
+	{
+		Server s = startServer();
+		try
+		{
+			Socket sock = new Socket("localhost", PORT);
+			OutputStream os = sock.getOutputStream();
+			os.write("GET /hello HTTP/1.1\r\nBad header\r\n\r\n".getBytes("ISO-8859-1"));
+			os.flush();
+			String response = new String(InnerFileServer.readBytes(sock.getInputStream()), "ISO-8859-1");
+			sock.close();
+			assertTrue(response.startsWith("HTTP/1.1 400 Bad Request\r\n"));
+			for (int i = 0; i < 50 && s.getOpenConnectionCount() > 0; i++)
+			{
+				Thread.sleep(20);
+			}
+			assertEquals(0, s.getOpenConnectionCount());
+		}
+		finally
+		{
+			s.stopServer();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testLongHeader() throws IOException
+	{
+		Server s = startServer();
+		try
+		{
+			// Longer than the buffers of the transport, within the limit on
+			// the size of the headers
+			String response = sendHeader(40000);
+			assertTrue(response.startsWith("HTTP/1.1 200 OK\r\n"));
+			assertTrue(response.endsWith("\r\n\r\nHi"));
+		}
+		finally
+		{
+			s.stopServer();
+		}
+	}
+
+	/**
+	 * Sends a request with a header of a given length
+	 * @param length The length of the value of the header
+	 * @return The response
+	 * @throws IOException If the request cannot be sent
+	 */
+	protected static String sendHeader(int length) throws IOException
+	{
+		StringBuilder value = new StringBuilder(length);
+		for (int i = 0; i < length; i++)
+		{
+			value.append('a');
+		}
+		Socket sock = new Socket("localhost", PORT);
+		OutputStream os = sock.getOutputStream();
+		os.write(("GET /hello HTTP/1.1\r\nHost: localhost\r\nX-Long: " + value
+				+ "\r\nConnection: close\r\n\r\n").getBytes("ISO-8859-1"));
+		os.flush();
+		String response = new String(InnerFileServer.readBytes(sock.getInputStream()), "ISO-8859-1");
+		sock.close();
+		return response;
+	}
+
+	@Test(timeout = 10000)
+	public void testIdleTimeout() throws IOException, InterruptedException
+	{
+		Server s = new Server();
+		s.setServerPort(PORT);
+		s.setIdleTimeout(100);
+		s.setTransport(new NioTransport(1));
+		s.startServer();
+		try
+		{
+			Socket sock = new Socket("localhost", PORT);
+			for (int i = 0; i < 50 && s.getOpenConnectionCount() == 0; i++)
+			{
+				Thread.sleep(10);
+			}
+			assertEquals(1, s.getOpenConnectionCount());
+			// The server closes the connection, which the client sees as the
+			// end of the stream
+			assertEquals(-1, sock.getInputStream().read());
+			sock.close();
+			// The count is updated just after the socket is closed
+			for (int i = 0; i < 50 && s.getOpenConnectionCount() > 0; i++)
+			{
+				Thread.sleep(10);
+			}
+			assertEquals(0, s.getOpenConnectionCount());
+		}
+		finally
+		{
+			s.stopServer();
+		}
+	}
+
+	protected static Server startServer() throws IOException
+	{
+		Server s = new Server();
+		s.setServerPort(PORT);
+		s.setTransport(new NioTransport(2));
+		s.setWorkerPool(WorkerPool.fixed(4));
+		s.registerCallback(new HelloCallback());
+		s.registerCallback(new SlowCallback());
+		s.registerCallback(new EchoCallback());
+		s.registerCallback(new LargeCallback());
+		s.startServer();
+		return s;
+	}
+
+	protected static class SlowCallback extends RestCallback
+	{
+		public SlowCallback()
+		{
+			super(Method.GET, "/slow");
+		}
+
+		@Override
+		public CallbackResponse process(HttpExchange t)
+		{
+			try
+			{
+				Thread.sleep(200);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			return new CallbackResponse(t, CallbackResponse.HTTP_OK, "slow", CallbackResponse.ContentType.TEXT);
+		}
+	}
+
+	protected static class EchoCallback extends RestCallback
+	{
+		public EchoCallback()
+		{
+			super(Method.POST, "/echo");
+		}
+
+		@Override
+		public CallbackResponse process(HttpExchange t)
+		{
+			try
+			{
+				byte[] body = new RequestBody(t).getBytes();
+				return new CallbackResponse(t).setContents(body);
+			}
+			catch (IOException e)
+			{
+				throw new HttpException(CallbackResponse.HTTP_BAD_REQUEST, e.getMessage());
+			}
+		}
+	}
+
+	protected static class LargeCallback extends RestCallback
+	{
+		public LargeCallback()
+		{
+			super(Method.GET, "/large");
+		}
+
+		@Override
+		public CallbackResponse process(HttpExchange t)
+		{
+			return new CallbackResponse(t).setContents(new CallbackResponse.BodyWriter()
+			{
+				@Override
+				public void write(OutputStream out) throws IOException
+				{
+					byte[] block = new byte[1000];
+					for (int i = 0; i < 2000; i++)
+					{
+						for (int j = 0; j < block.length; j++)
+						{
+							block[j] = (byte) ((i * block.length + j) % 251);
+						}
+						out.write(block);
+					}
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,103 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.junit.Test;
+
+import ca.uqac.lif.jerrydog.CachedCallbackTest.FakeRequest;
+
+public class PathTemplateTest
+{
+	@Test
+	public void testMatch1()
+	{
+		PathTemplate pt = new PathTemplate("/users/{id:int}/posts/{slug}");
+		assertEquals("/users", pt.getPrefix());
+		assertEquals(2, pt.getVariableCount());
+		PathTemplate.Match m = pt.match("/users/42/posts/hello-world");
+		assertNotNull(m);
+		assertEquals(42, m.getInt("id"));
+		assertEquals("42", m.getString("id"));
+		assertEquals("hello-world", m.getString("slug"));
+		assertNull(m.getString("foo"));
+	}
+	
+	@Test
+	public void testNoMatch()
+	{
+		PathTemplate pt = new PathTemplate("/users/{id:int}/posts/{slug}");
+		assertNull(pt.match("/users/abc/posts/x"));
+		assertNull(pt.match("/users/42/posts"));
+		assertNull(pt.match("/users/42/posts/"));
+		assertNull(pt.match("/users/42/posts/x/y"));
+		assertNull(pt.match("/users/42/post/x"));
+		assertNull(pt.match("/users/99999999999/posts/x"));
+		assertNull(pt.match("/userss/42/posts/x"));
+	}
+	
+	@Test
+	public void testReuseMatch()
+	{
+		PathTemplate pt = new PathTemplate("/{a:int}/{b}");
+		assertEquals("", pt.getPrefix());
+		PathTemplate.Match m = pt.newMatch();
+		assertTrue(pt.match("/-7/x", m));
+		assertEquals(-7, m.getInt(0));
+		assertTrue(pt.match("/3/yz", m));
+		assertEquals(3, m.getInt(0));
+		assertEquals("yz", m.getString(1));
+		assertFalse(pt.match("/3", m));
+		assertNull(m.getPath());
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testNotInt()
+	{
+		PathTemplate pt = new PathTemplate("/{a:int}/{b}");
+		pt.match("/1/2").getInt("b");
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testMalformed()
+	{
+		new PathTemplate("/a/b{c}");
+	}
+	
+	@Test
+	public void testCleanCallback() throws IOException
+	{
+		Server server = new Server();
+		HelloCleanCallback cb = new HelloCleanCallback("/foo/{id:int}");
+		server.registerCallback(cb);
+		FakeRequest he = new FakeRequest("/foo/12?a=2");
+		server.handle(he);
+		assertEquals(CallbackResponse.HTTP_OK, he.getResponseCode());
+		Map<String,String> map = cb.getLastParameters();
+		assertEquals("12", map.get("id"));
+		assertEquals("2", map.get("a"));
+		assertEquals(12, cb.getPathMatch(he).getInt("id"));
+		he = new FakeRequest("/foo/bar");
+		server.handle(he);
+		assertEquals(CallbackResponse.HTTP_BAD_REQUEST, he.getResponseCode());
+	}
+}
@@ -0,0 +1,153 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import ca.uqac.lif.jerrydog.CachedCallbackTest.FakeRequest;
+import ca.uqac.lif.jerrydog.RequestCallback.Method;
+
+public class QueryParserTest
+{
+	@Test
+	public void testDecode()
+	{
+		ParameterMap map = QueryParser.parseQuery("a=1&b=caf%C3%A9&c=x+y%2Bz&d=%zz&%E2%9C%93=ok");
+		assertEquals("1", map.get("a"));
+		assertEquals("caf\u00e9", map.get("b"));
+		assertEquals("x y+z", map.get("c"));
+		// Malformed escapes are kept as they are
+		assertEquals("%zz", map.get("d"));
+		assertEquals("ok", map.get("\u2713"));
+		assertEquals(5, map.size());
+	}
+
+	@Test
+	public void testMultiValued()
+	{
+		ParameterMap map = QueryParser.parseQuery("b=1&a=x&b=2&b=3");
+		assertEquals(2, map.size());
+		assertEquals(4, map.getPairCount());
+		assertEquals("3", map.get("b"));
+		assertEquals("1", map.getFirst("b"));
+		assertEquals(Arrays.asList("1", "2", "3"), map.getAll("b"));
+		assertTrue(map.getAll("z").isEmpty());
+		assertEquals("3", map.remove("b"));
+		assertEquals(1, map.size());
+		assertEquals(1, map.getPairCount());
+		assertNull(map.get("b"));
+	}
+
+	@Test
+	public void testEdgeCases()
+	{
+		ParameterMap map = QueryParser.parseQuery("a=b=c&&=v&k");
+		assertEquals("b=c", map.get("a"));
+		assertEquals("v", map.get(""));
+		assertEquals("", map.get("k"));
+		assertEquals(3, map.size());
+		// Legacy behaviour of a single token
+		Map<String,String> get = Server.queryToMap("token", Method.GET);
+		assertEquals("", get.get("token"));
+		Map<String,String> post = Server.queryToMap("{\"a\":1}", Method.POST);
+		assertEquals("{\"a\":1}", post.get(""));
+		assertTrue(Server.queryToMap(null, Method.GET).isEmpty());
+	}
+
+	@Test
+	public void testLargeMap()
+	{
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 100; i++)
+		{
+			sb.append("p").append(i).append("=").append(i).append("&");
+		}
+		sb.append("p5=last");
+		ParameterMap map = QueryParser.parseQuery(sb.toString());
+		assertEquals(100, map.size());
+		assertEquals("last", map.get("p5"));
+		assertEquals("99", map.get("p99"));
+		int count = 0;
+		for (Map.Entry<String,String> e : map.entrySet())
+		{
+			assertEquals(map.get(e.getKey()), e.getValue());
+			count++;
+		}
+		assertEquals(100, count);
+		map.put("p5", "x");
+		assertEquals(Arrays.asList("x"), map.getAll("p5"));
+	}
+
+	@Test
+	public void testLimits()
+	{
+		QueryParser qp = new QueryParser().setMaxParameters(3).setMaxLength(20);
+		ParameterMap map = new ParameterMap();
+		qp.parse("a=1&b=2&c=3", map);
+		assertEquals(3, map.size());
+		try
+		{
+			qp.parse("a=1&b=2&c=3&d=4", new ParameterMap());
+			fail("Too many parameters");
+		}
+		catch (HttpException e)
+		{
+			assertEquals(CallbackResponse.HTTP_BAD_REQUEST, e.getCode());
+		}
+		try
+		{
+			qp.parse("a=123456789012345678901", new ParameterMap());
+			fail("Query too long");
+		}
+		catch (HttpException e)
+		{
+			assertEquals(CallbackResponse.HTTP_PAYLOAD_TOO_LARGE, e.getCode());
+		}
+	}
+
+	@Test
+	public void testHttpException() throws IOException
+	{
+		Server s = new Server();
+		s.registerCallback(new RestCallback(Method.GET, "/flood")
+		{
+			@Override
+			public CallbackResponse process(HttpExchange t)
+			{
+				getParameters(t);
+				return new CallbackResponse(t);
+			}
+		});
+		StringBuilder sb = new StringBuilder("/flood?");
+		for (int i = 0; i <= QueryParser.DEFAULT_MAX_PARAMETERS; i++)
+		{
+			sb.append("p=").append(i).append("&");
+		}
+		FakeRequest he = new FakeRequest(sb.toString());
+		s.handle(he);
+		assertEquals(CallbackResponse.HTTP_BAD_REQUEST, he.getResponseCode());
+	}
+}
@@ -0,0 +1,188 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import ca.uqac.lif.jerrydog.CachedCallbackTest.FakeRequest;
+import ca.uqac.lif.jerrydog.RequestCallback.Method;
+
+public class RequestBodyTest
+{
+	protected static final Charset LATIN_1 = Charset.forName("ISO-8859-1");
+
+	@Test
+	public void testFixedLength() throws IOException
+	{
+		PostRequest he = new PostRequest("/foo", "line1\r\nline2\r\n".getBytes(LATIN_1), true);
+		RequestBody body = new RequestBody(he);
+		assertEquals(14, body.getContentLength());
+		// Line endings are kept as they are
+		assertEquals("line1\r\nline2\r\n", body.getString());
+		// The body can be read more than once
+		assertEquals(14, body.getBytes().length);
+	}
+
+	@Test
+	public void testGrowing() throws IOException
+	{
+		// Announces 10 MB, but sends 100 bytes
+		final int[] largest = new int[1];
+		InputStream in = new ByteArrayInputStream(new byte[100])
+		{
+			@Override
+			public synchronized int read(byte[] b, int off, int len)
+			{
+				largest[0] = Math.max(largest[0], b.length);
+				return super.read(b, off, len);
+			}
+		};
+		RequestBody body = new RequestBody(in, 10 * 1024 * 1024, RequestBody.DEFAULT_CHARSET, RequestBody.DEFAULT_MAX_SIZE);
+		assertEquals(100, body.getBytes().length);
+		assertEquals(64 * 1024, largest[0]);
+		// A body larger than the initial buffer is read in full
+		byte[] bytes = new byte[200000];
+		for (int i = 0; i < bytes.length; i++)
+		{
+			bytes[i] = (byte) i;
+		}
+		body = new RequestBody(new ByteArrayInputStream(bytes), bytes.length, RequestBody.DEFAULT_CHARSET, RequestBody.DEFAULT_MAX_SIZE);
+		assertArrayEquals(bytes, body.getBytes());
+	}
+
+	@Test
+	public void testCharset() throws IOException
+	{
+		byte[] bytes = "caf\u00e9".getBytes(LATIN_1);
+		PostRequest he = new PostRequest("/foo", bytes, false);
+		he.getRequestHeaders().add("Content-Type", "text/plain; charset=\"ISO-8859-1\"");
+		RequestBody body = new RequestBody(he);
+		assertEquals(-1, body.getContentLength());
+		assertEquals("caf\u00e9", body.getString());
+		assertEquals(RequestBody.DEFAULT_CHARSET, RequestBody.getCharset("text/plain; charset=foo", RequestBody.DEFAULT_CHARSET));
+		assertEquals(RequestBody.DEFAULT_CHARSET, RequestBody.getCharset(null, RequestBody.DEFAULT_CHARSET));
+	}
+
+	@Test
+	public void testMaxSize() throws IOException
+	{
+		byte[] bytes = new byte[100];
+		// Declared length too large: refused before reading
+		try
+		{
+			new RequestBody(new PostRequest("/foo", bytes, true), 50).getStream();
+			fail("Body is too large");
+		}
+		catch (HttpException e)
+		{
+			assertEquals(CallbackResponse.HTTP_PAYLOAD_TOO_LARGE, e.getCode());
+		}
+		// Unknown length: refused while reading
+		try
+		{
+			new RequestBody(new PostRequest("/foo", bytes, false), 50).getBytes();
+			fail("Body is too large");
+		}
+		catch (HttpException e)
+		{
+			assertEquals(CallbackResponse.HTTP_PAYLOAD_TOO_LARGE, e.getCode());
+		}
+		// Exactly the maximum is fine
+		assertEquals(100, new RequestBody(new PostRequest("/foo", bytes, false), 100).getBytes().length);
+		assertEquals(10000, new RequestBody(new PostRequest("/foo", new byte[10000], false), 100000).getBytes().length);
+	}
+
+	@Test
+	public void testStream() throws IOException
+	{
+		RequestBody body = new RequestBody(new PostRequest("/foo", new byte[100], false), 50);
+		InputStream is = body.getStream();
+		assertEquals(50, is.read(new byte[50]));
+		try
+		{
+			is.read();
+			fail("Body is too large");
+		}
+		catch (HttpException e)
+		{
+			assertEquals(CallbackResponse.HTTP_PAYLOAD_TOO_LARGE, e.getCode());
+		}
+	}
+
+	@Test
+	public void testCallback() throws IOException
+	{
+		RestCallback cb = new RestCallback(Method.POST, "/form")
+		{
+			@Override
+			public CallbackResponse process(HttpExchange t)
+			{
+				Map<String,String> params = getParameters(t);
+				return new CallbackResponse(t, CallbackResponse.HTTP_OK, params.get("a") + "," + params.get("b"), CallbackResponse.ContentType.TEXT);
+			}
+		};
+		cb.setMaxBodySize(20);
+		Server s = new Server();
+		s.registerCallback(cb);
+		PostRequest he = new PostRequest("/form", "a=1&b=x+y".getBytes(LATIN_1), true);
+		s.handle(he);
+		assertEquals(CallbackResponse.HTTP_OK, he.getResponseCode());
+		assertEquals("1,x y", he.getResponseString());
+		PostRequest he2 = new PostRequest("/form", "a=1&b=xxxxxxxxxxxxxxxxxxxxxx".getBytes(LATIN_1), true);
+		s.handle(he2);
+		assertEquals(CallbackResponse.HTTP_PAYLOAD_TOO_LARGE, he2.getResponseCode());
+	}
+
+	@Test
+	public void testStreamToString()
+	{
+		assertEquals("a\r\nb", Server.streamToString(new ByteArrayInputStream("a\r\nb".getBytes(LATIN_1))));
+		assertEquals("a\nb", CallbackResponse.convertStreamToString(new ByteArrayInputStream("a\nb".getBytes(LATIN_1))));
+	}
+
+	protected static class PostRequest extends FakeRequest
+	{
+		protected final byte[] m_body;
+
+		public PostRequest(String request, byte[] body, boolean declare_length)
+		{
+			super(request, "POST");
+			m_body = body;
+			if (declare_length)
+			{
+				m_requestHeaders.add("Content-Length", Integer.toString(body.length));
+			}
+		}
+
+		@Override
+		public InputStream getRequestBody()
+		{
+			return new ByteArrayInputStream(m_body);
+		}
+	}
+}
@@ -0,0 +1,140 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Map;
+
+import org.junit.Test;
+
+import ca.uqac.lif.jerrydog.CachedCallbackTest.FakeRequest;
+import ca.uqac.lif.jerrydog.RequestCallback.Method;
+
+import com.sun.net.httpserver.HttpExchange;
+
+public class RequestContextTest
+{
+	@Test
+	public void testParsedOnce() throws IOException
+	{
+		Server s = new Server();
+		// None of these callbacks can be told apart by the index alone
+		for (int i = 0; i < 10; i++)
+		{
+			s.registerCallback(new HelloCleanCallback("/p/{id:int}/a" + i));
+		}
+		CountingRequest t = new CountingRequest("/p/3/a9?x=1&y=2");
+		s.handle(t);
+		assertEquals(CallbackResponse.HTTP_OK, t.getResponseCode());
+		assertEquals(1, t.m_uriCalls);
+		assertEquals(1, t.m_methodCalls);
+	}
+
+	@Test
+	public void testQuery()
+	{
+		RequestContext c = RequestContext.of(new FakeRequest("/a?x=1&x=2&y=%C3%A9"));
+		assertSame(c, RequestContext.of(c));
+		assertEquals(Method.GET, c.getMethod());
+		assertEquals("/a", c.getPath());
+		ParameterMap query = c.getQuery();
+		assertSame(query, c.getQuery());
+		assertEquals("2", query.get("x"));
+		assertEquals("\u00e9", query.get("y"));
+		// The callbacks get their own copy
+		RestCallback cb = new RestCallback(Method.GET, "/a")
+		{
+			@Override
+			public CallbackResponse process(HttpExchange t)
+			{
+				return null;
+			}
+		};
+		Map<String,String> params = cb.getParameters(c);
+		params.put("z", "3");
+		params.remove("x");
+		assertEquals(2, query.getAll("x").size());
+		assertFalse(query.containsKey("z"));
+		assertEquals(2, ((ParameterMap) cb.getParameters(c)).getAll("x").size());
+		assertNull(RequestContext.of(new FakeRequest("/a", "PATCH")).getMethod());
+	}
+
+	@Test
+	public void testCookies()
+	{
+		FakeRequest t = new FakeRequest("/a");
+		RequestContext c = RequestContext.of(t);
+		assertTrue(c.getCookies().isEmpty());
+		t = new FakeRequest("/a");
+		t.getRequestHeaders().add("Cookie", "ab=2; a=1;junk; =x");
+		t.getRequestHeaders().add("Cookie", "a=3; c=");
+		c = RequestContext.of(t);
+		// Names are matched exactly, and the first value wins
+		assertEquals("1", c.getCookie("a"));
+		assertEquals("2", c.getCookie("ab"));
+		assertEquals("", c.getCookie("c"));
+		assertNull(c.getCookie("b"));
+		assertEquals(3, c.getCookies().size());
+	}
+
+	@Test
+	public void testHeaders()
+	{
+		FakeRequest t = new FakeRequest("/a");
+		t.getRequestHeaders().add("X-Test", "1");
+		RequestContext c = RequestContext.of(t);
+		assertEquals("1", c.getHeader("X-Test"));
+		assertEquals("1", c.getHeader("x-test"));
+		assertNull(c.getHeader("X-Other"));
+		assertNull(c.getHeader("X-Other"));
+		assertSame(t, c.getExchange());
+		assertSame(t.getRequestHeaders(), c.getRequestHeaders());
+	}
+
+	/**
+	 * A request that counts how many times its method and URI are read
+	 */
+	protected static class CountingRequest extends FakeRequest
+	{
+		protected int m_uriCalls = 0;
+
+		protected int m_methodCalls = 0;
+
+		public CountingRequest(String request)
+		{
+			super(request);
+		}
+
+		@Override
+		public URI getRequestURI()
+		{
+			m_uriCalls++;
+			return super.getRequestURI();
+		}
+
+		@Override
+		public String getRequestMethod()
+		{
+			m_methodCalls++;
+			return super.getRequestMethod();
+		}
+	}
+}
@@ -0,0 +1,100 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import ca.uqac.lif.jerrydog.CachedCallbackTest.FakeRequest;
+
+public class ResourceCacheTest
+{
+	@Test
+	public void testEviction()
+	{
+		ResourceCache cache = new ResourceCache(10, 10);
+		assertTrue(cache.put("a", new byte[4]));
+		assertTrue(cache.put("b", new byte[4]));
+		// Touch a, so that b is the least recently used
+		assertNotNull(cache.get("a"));
+		assertTrue(cache.put("c", new byte[4]));
+		assertNull(cache.get("b"));
+		assertNotNull(cache.get("a"));
+		assertNotNull(cache.get("c"));
+		assertEquals(8, cache.getSize());
+		assertEquals(1, cache.getEvictionCount());
+		assertEquals(3, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+		// Too large for the cache
+		assertFalse(cache.put("d", new byte[11]));
+		assertEquals(2, cache.getEntryCount());
+	}
+	
+	@Test
+	public void testServer() throws IOException
+	{
+		CachedCallbackTest.CachedServer server = new CachedCallbackTest.CachedServer();
+		ResourceCache cache = server.enableResourceCache(1024, false);
+		for (int i = 0; i < 3; i++)
+		{
+			FakeRequest he = new FakeRequest("/foo.txt");
+			server.handle(he);
+			assertEquals(CallbackResponse.HTTP_OK, he.getResponseCode());
+			assertEquals("foo", he.getResponseString());
+		}
+		assertEquals(2, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(1, cache.getEntryCount());
+	}
+	
+	@Test
+	public void testPreload() throws IOException
+	{
+		CachedCallbackTest.CachedServer server = new CachedCallbackTest.CachedServer();
+		ResourceCache cache = server.enableResourceCache(1024, true);
+		assertEquals(2, cache.getEntryCount());
+		FakeRequest he = new FakeRequest("/baz.txt");
+		server.handle(he);
+		assertEquals("baz", he.getResponseString());
+		assertEquals(1, cache.getHitCount());
+		assertEquals(0, cache.getMissCount());
+	}
+	
+	@Test
+	public void testStaticContents()
+	{
+		InnerFileCallback cb = new InnerFileCallback("resource", ResourceCacheTest.class);
+		// Entries of more than two bytes are never cached
+		cb.setCache(new ResourceCache(1024, 2));
+		CallbackResponse response = cb.process(new FakeRequest("/foo.txt"));
+		assertEquals("foo", new String(response.getContents()));
+		assertFalse(response.hasStaticContents());
+		ResourceCache cache = new ResourceCache(4, 4);
+		cb.setCache(cache);
+		response = cb.process(new FakeRequest("/foo.txt"));
+		assertTrue(response.hasStaticContents());
+		// An array evicted from the cache is no longer flagged
+		cache.put("resource/baz.txt", new byte[4]);
+		assertFalse(cache.holds("resource/foo.txt", response.getContents()));
+		assertEquals(0, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+	}
+}
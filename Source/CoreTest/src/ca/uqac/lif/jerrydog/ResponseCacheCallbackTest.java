@@ -0,0 +1,199 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import ca.uqac.lif.jerrydog.CachedCallbackTest.FakeRequest;
+
+public class ResponseCacheCallbackTest
+{
+	@Test
+	public void testFreshHit()
+	{
+		CountingCallback cb = new CountingCallback();
+		ResponseCache cache = new ResponseCache(1 << 20);
+		ResponseCacheCallback rcc = new ResponseCacheCallback(cb, cache, 60000);
+		CallbackResponse r1 = rcc.process(new FakeRequest("/count?a=1"));
+		CallbackResponse r2 = rcc.process(new FakeRequest("/count?a=1"));
+		assertEquals("1", new String(r1.getContents()));
+		assertEquals("1", new String(r2.getContents()));
+		assertEquals("0", r2.getHeaders().get("Age"));
+		assertEquals(1, cb.m_count.get());
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+		// Different query: different entry
+		CallbackResponse r3 = rcc.process(new FakeRequest("/count?a=2"));
+		assertEquals("2", new String(r3.getContents()));
+	}
+
+	@Test
+	public void testVary()
+	{
+		CountingCallback cb = new CountingCallback();
+		ResponseCacheCallback rcc = new ResponseCacheCallback(cb, new ResponseCache(1 << 20), 60000);
+		rcc.addVaryHeader("Accept-Language");
+		FakeRequest he1 = new FakeRequest("/count");
+		he1.getRequestHeaders().add("Accept-Language", "fr");
+		FakeRequest he2 = new FakeRequest("/count");
+		he2.getRequestHeaders().add("Accept-Language", "en");
+		FakeRequest he3 = new FakeRequest("/count");
+		he3.getRequestHeaders().add("Accept-Language", "fr");
+		assertEquals("1", new String(rcc.process(he1).getContents()));
+		assertEquals("2", new String(rcc.process(he2).getContents()));
+		assertEquals("1", new String(rcc.process(he3).getContents()));
+	}
+
+	@Test
+	public void testNotCached()
+	{
+		CountingCallback cb = new CountingCallback();
+		ResponseCacheCallback rcc = new ResponseCacheCallback(cb, new ResponseCache(1 << 20), 60000);
+		rcc.process(new FakeRequest("/count", "POST"));
+		rcc.process(new FakeRequest("/count", "POST"));
+		assertEquals(2, cb.m_count.get());
+		cb.m_code = CallbackResponse.HTTP_NOT_FOUND;
+		rcc.process(new FakeRequest("/count"));
+		rcc.process(new FakeRequest("/count"));
+		assertEquals(4, cb.m_count.get());
+	}
+
+	@Test
+	public void testPrivate()
+	{
+		final AtomicInteger count = new AtomicInteger();
+		RequestCallback cookie_cb = new CountingCallback()
+		{
+			@Override
+			public CallbackResponse process(HttpExchange t)
+			{
+				CallbackResponse cbr = super.process(t);
+				cbr.addResponseCookie(new Cookie("session", Integer.toString(count.incrementAndGet())));
+				return cbr;
+			}
+		};
+		ResponseCacheCallback rcc = new ResponseCacheCallback(cookie_cb, new ResponseCache(1 << 20), 60000);
+		FakeRequest he1 = new FakeRequest("/count");
+		rcc.process(he1);
+		assertEquals("session=1", he1.getResponseHeaders().getFirst("Set-Cookie"));
+		// The second client gets its own cookie, not the first client's
+		FakeRequest he2 = new FakeRequest("/count");
+		rcc.process(he2);
+		assertEquals("session=2", he2.getResponseHeaders().getFirst("Set-Cookie"));
+		assertEquals(2, count.get());
+		// Responses that forbid shared caches are not stored either
+		RequestCallback no_store = new CountingCallback()
+		{
+			@Override
+			public CallbackResponse process(HttpExchange t)
+			{
+				return super.process(t).disableCaching();
+			}
+		};
+		rcc = new ResponseCacheCallback(no_store, new ResponseCache(1 << 20), 60000);
+		assertEquals("1", new String(rcc.process(new FakeRequest("/count")).getContents()));
+		assertEquals("2", new String(rcc.process(new FakeRequest("/count")).getContents()));
+		CountingCallback priv = new CountingCallback()
+		{
+			@Override
+			public CallbackResponse process(HttpExchange t)
+			{
+				return super.process(t).setHeader("Cache-Control", "private, max-age=60");
+			}
+		};
+		rcc = new ResponseCacheCallback(priv, new ResponseCache(1 << 20), 60000);
+		rcc.process(new FakeRequest("/count"));
+		rcc.process(new FakeRequest("/count"));
+		assertEquals(2, priv.m_count.get());
+		// Even an entry built from such a response never replays the cookie
+		FakeRequest he3 = new FakeRequest("/count");
+		ResponseCache.Entry e = new ResponseCache.Entry(cookie_cb.process(he3), 0, 60000, 0);
+		FakeRequest he4 = new FakeRequest("/count");
+		e.toResponse(he4, 0);
+		assertNull(he4.getResponseHeaders().getFirst("Set-Cookie"));
+	}
+
+	@Test
+	public void testStaleWhileRevalidate() throws InterruptedException
+	{
+		CountingCallback cb = new CountingCallback();
+		ResponseCache cache = new ResponseCache(1 << 20);
+		// Run refreshes on the calling thread, to make the test deterministic
+		cache.setRefreshExecutor(new Executor()
+		{
+			@Override
+			public void execute(Runnable r)
+			{
+				r.run();
+			}
+		});
+		ResponseCacheCallback rcc = new ResponseCacheCallback(cb, cache, 1);
+		rcc.setStaleWhileRevalidate(60000);
+		assertEquals("1", new String(rcc.process(new FakeRequest("/count")).getContents()));
+		Thread.sleep(5);
+		// Stale: the old response is served, and a new one is produced
+		assertEquals("1", new String(rcc.process(new FakeRequest("/count")).getContents()));
+		assertEquals(1, cache.getStaleHitCount());
+		assertEquals(1, cache.getRefreshCount());
+		assertEquals(2, cb.m_count.get());
+		Thread.sleep(5);
+		assertEquals("2", new String(rcc.process(new FakeRequest("/count")).getContents()));
+	}
+
+	@Test
+	public void testEviction()
+	{
+		CountingCallback cb = new CountingCallback();
+		// Room for about two entries
+		ResponseCache cache = new ResponseCache(4 * 300);
+		ResponseCacheCallback rcc = new ResponseCacheCallback(cb, cache, 60000);
+		for (int i = 0; i < 10; i++)
+		{
+			rcc.process(new FakeRequest("/count?i=" + i));
+		}
+		assertTrue(cache.getSize() <= 4 * 300);
+		assertTrue(cache.getEvictionCount() > 0);
+	}
+
+	protected static class CountingCallback extends RequestCallback
+	{
+		protected final AtomicInteger m_count = new AtomicInteger();
+
+		protected int m_code = CallbackResponse.HTTP_OK;
+
+		@Override
+		public boolean fire(HttpExchange t)
+		{
+			return true;
+		}
+
+		@Override
+		public CallbackResponse process(HttpExchange t)
+		{
+			String s = Integer.toString(m_count.incrementAndGet());
+			return new CallbackResponse(t, m_code, s, CallbackResponse.ContentType.TEXT);
+		}
+	}
+}
@@ -0,0 +1,138 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import ca.uqac.lif.jerrydog.CachedCallbackTest.FakeRequest;
+import ca.uqac.lif.jerrydog.RequestCallback.Method;
+
+import com.sun.net.httpserver.HttpExchange;
+
+public class RouteTableTest
+{
+	@Test
+	public void testExactPath()
+	{
+		List<RequestCallback> list = new ArrayList<RequestCallback>();
+		list.add(new NamedCallback(Method.GET, "/a", "a"));
+		list.add(new NamedCallback(Method.POST, "/a", "a-post"));
+		list.add(new NamedCallback(Method.GET, "/b", "b"));
+		RouteTable table = new RouteTable(list);
+		int[] positions = table.lookup(Method.GET, "/a");
+		assertEquals(1, positions.length);
+		assertEquals(0, positions[0]);
+		assertFalse(table.mustFire(0));
+		positions = table.lookup(Method.POST, "/a");
+		assertEquals(1, positions.length);
+		assertEquals(1, positions[0]);
+		assertEquals(0, table.lookup(Method.PUT, "/a").length);
+		assertEquals(0, table.lookup(Method.GET, "/a/b").length);
+		assertEquals(0, table.lookup(null, "/a").length);
+	}
+	
+	@Test
+	public void testPrefix()
+	{
+		List<RequestCallback> list = new ArrayList<RequestCallback>();
+		list.add(new HelloCleanCallback("/foo/bar"));
+		list.add(new HelloCleanCallback("/foo"));
+		list.add(new HelloCleanCallback("/fo"));
+		RouteTable table = new RouteTable(list);
+		int[] positions = table.lookup(Method.GET, "/foo/bar/baz");
+		assertEquals(2, positions.length);
+		assertEquals(0, positions[0]);
+		assertEquals(1, positions[1]);
+		positions = table.lookup(Method.GET, "/foo");
+		assertEquals(1, positions.length);
+		assertEquals(1, positions[0]);
+		assertEquals(0, table.lookup(Method.GET, "/foobar").length);
+		assertEquals(0, table.lookup(Method.POST, "/foo/bar").length);
+	}
+	
+	@Test
+	public void testIgnoreMethod()
+	{
+		List<RequestCallback> list = new ArrayList<RequestCallback>();
+		list.add(new NamedCallback(Method.GET, "/a", "a").ignoreMethod());
+		RouteTable table = new RouteTable(list);
+		assertEquals(1, table.lookup(Method.DELETE, "/a").length);
+		assertEquals(1, table.lookup(null, "/a").length);
+	}
+	
+	@Test
+	public void testRegistrationOrder() throws IOException
+	{
+		// A generic callback registered first must still have priority
+		Server s = new Server();
+		s.registerCallback(new HelloCallback());
+		s.registerCallback(new NamedCallback(Method.GET, "/hello", "rest"));
+		FakeRequest he = new FakeRequest("/hello");
+		s.handle(he);
+		assertEquals("Hi", he.getResponseString());
+		// Registering a callback at the front rebuilds the table
+		s.registerCallback(0, new NamedCallback(Method.GET, "/hello", "first"));
+		he = new FakeRequest("/hello");
+		s.handle(he);
+		assertEquals("first", he.getResponseString());
+	}
+	
+	@Test
+	public void testOverriddenFire() throws IOException
+	{
+		Server s = new Server();
+		s.registerCallback(new NamedCallback(Method.GET, "/a", "never")
+		{
+			@Override
+			public boolean fire(HttpExchange t)
+			{
+				return false;
+			}
+		});
+		s.registerCallback(new NamedCallback(Method.GET, "/a", "a"));
+		FakeRequest he = new FakeRequest("/a");
+		s.handle(he);
+		assertEquals("a", he.getResponseString());
+		he = new FakeRequest("/b");
+		s.handle(he);
+		assertEquals(CallbackResponse.HTTP_BAD_REQUEST, he.getResponseCode());
+	}
+	
+	protected static class NamedCallback extends RestCallback
+	{
+		protected final String m_name;
+		
+		public NamedCallback(Method m, String path, String name)
+		{
+			super(m, path);
+			m_name = name;
+		}
+
+		@Override
+		public CallbackResponse process(HttpExchange t)
+		{
+			return new CallbackResponse(t, CallbackResponse.HTTP_OK, m_name, CallbackResponse.ContentType.TEXT);
+		}
+	}
+}
@@ -0,0 +1,259 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import ca.uqac.lif.jerrydog.CachedCallbackTest.FakeRequest;
+
+public class SseCallbackTest
+{
+	protected static final int PORT = 12145;
+
+	@Test
+	public void testPublish() throws IOException
+	{
+		ManualExecutor e = new ManualExecutor();
+		SseCallback sse = new SseCallback("/events").setExecutor(e);
+		Server s = new Server();
+		s.registerCallback(sse);
+		FakeRequest he = new FakeRequest("/events");
+		s.handle(he);
+		assertEquals("text/event-stream; charset=utf-8", he.getResponseHeaders().getFirst("Content-Type"));
+		assertEquals("no-cache", he.getResponseHeaders().getFirst("Cache-Control"));
+		assertEquals(1, sse.getSubscriberCount());
+		assertEquals(1, sse.publish("update", "a\nb"));
+		assertEquals(2, sse.publish("c"));
+		e.runAll();
+		assertEquals(":\n\nid: 1\nevent: update\ndata: a\ndata: b\n\nid: 2\ndata: c\n\n", he.getResponseString());
+	}
+
+	@Test
+	public void testResume() throws IOException
+	{
+		ManualExecutor e = new ManualExecutor();
+		SseCallback sse = new SseCallback("/events").setExecutor(e).setRetry(3000);
+		Server s = new Server();
+		s.registerCallback(sse);
+		sse.publish("one");
+		sse.publish("two");
+		sse.publish("three");
+		FakeRequest he = new FakeRequest("/events");
+		he.getRequestHeaders().add("Last-Event-ID", "1");
+		s.handle(he);
+		e.runAll();
+		assertEquals("retry: 3000\n\nid: 2\ndata: two\n\nid: 3\ndata: three\n\n", he.getResponseString());
+	}
+
+	@Test
+	public void testEviction() throws IOException
+	{
+		ManualExecutor e = new ManualExecutor();
+		SseCallback sse = new SseCallback("/events", 4).setExecutor(e);
+		Server s = new Server();
+		s.registerCallback(sse);
+		FakeRequest he = new FakeRequest("/events");
+		s.handle(he);
+		// The client does not get to read anything before the buffer wraps
+		for (int i = 0; i < 6; i++)
+		{
+			sse.publish("event " + i);
+		}
+		e.runAll();
+		assertEquals(0, sse.getSubscriberCount());
+		assertEquals(1, sse.getEvictionCount());
+		assertEquals(":\n\n", he.getResponseString());
+		// A client resuming from a lost event gets the oldest ones kept
+		he = new FakeRequest("/events");
+		he.getRequestHeaders().add("Last-Event-ID", "1");
+		s.handle(he);
+		e.runAll();
+		assertTrue(he.getResponseString().startsWith(":\n\nid: 3\n"));
+		assertTrue(he.getResponseString().endsWith("id: 6\ndata: event 5\n\n"));
+	}
+
+	@Test(timeout = 10000)
+	public void testServer() throws IOException, InterruptedException
+	{
+		SseCallback sse = new SseCallback("/events");
+		Server s = new Server();
+		s.setServerPort(PORT);
+		s.setTransport(new NioTransport(1));
+		s.registerCallback(sse);
+		s.startServer();
+		try
+		{
+			Socket sock = new Socket("localhost", PORT);
+			OutputStream os = sock.getOutputStream();
+			os.write("GET /events HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("ISO-8859-1"));
+			os.flush();
+			InputStream is = sock.getInputStream();
+			String head = readUntil(is, ":\n\n");
+			assertTrue(head.startsWith("HTTP/1.1 200 OK\r\n"));
+			assertTrue(head.contains("Transfer-Encoding: chunked"));
+			while (sse.getSubscriberCount() == 0)
+			{
+				Thread.sleep(10);
+			}
+			sse.publish("hello");
+			assertTrue(readUntil(is, "data: hello\n\n").contains("id: 1\n"));
+			sock.close();
+			// The client is forgotten once a write fails
+			while (sse.getSubscriberCount() > 0)
+			{
+				sse.publish("anyone?");
+				Thread.sleep(50);
+			}
+		}
+		finally
+		{
+			s.stopServer();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testStalledClient() throws IOException, InterruptedException
+	{
+		// A single thread writes to all the clients
+		ExecutorService e = Executors.newSingleThreadExecutor();
+		SseCallback sse = new SseCallback("/events").setExecutor(e).setWriteTimeout(200);
+		Server s = new Server();
+		s.setServerPort(12149);
+		s.registerCallback(sse);
+		s.startServer();
+		try
+		{
+			// This client never reads what it receives
+			Socket stalled = new Socket();
+			stalled.setReceiveBufferSize(1024);
+			stalled.connect(new InetSocketAddress("localhost", 12149));
+			stalled.getOutputStream().write("GET /events HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("ISO-8859-1"));
+			final Socket reader = new Socket("localhost", 12149);
+			reader.getOutputStream().write("GET /events HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("ISO-8859-1"));
+			while (sse.getSubscriberCount() < 2)
+			{
+				Thread.sleep(10);
+			}
+			final boolean[] got_last = new boolean[1];
+			Thread t = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						// Only the end of what was read is kept
+						InputStream is = new BufferedInputStream(reader.getInputStream());
+						String end = "data: last\n\n";
+						StringBuilder tail = new StringBuilder();
+						int c;
+						while (!got_last[0] && (c = is.read()) >= 0)
+						{
+							tail.append((char) c);
+							if (tail.length() > end.length())
+							{
+								tail.deleteCharAt(0);
+							}
+							got_last[0] = tail.toString().equals(end);
+						}
+					}
+					catch (IOException ex)
+					{
+						// The test fails
+					}
+				}
+			};
+			t.start();
+			char[] big = new char[65536];
+			Arrays.fill(big, 'x');
+			String data = new String(big);
+			while (sse.getEvictionCount() == 0)
+			{
+				sse.publish(data);
+				Thread.sleep(20);
+			}
+			// The other client still gets its events
+			sse.publish("last");
+			t.join();
+			assertTrue(got_last[0]);
+			assertEquals(1, sse.getSubscriberCount());
+			stalled.close();
+			reader.close();
+		}
+		finally
+		{
+			sse.closeAll();
+			s.stopServer();
+			e.shutdownNow();
+		}
+	}
+
+	protected static String readUntil(InputStream is, String end) throws IOException
+	{
+		StringBuilder out = new StringBuilder();
+		while (out.indexOf(end) < 0)
+		{
+			int c = is.read();
+			if (c < 0)
+			{
+				break;
+			}
+			out.append((char) c);
+		}
+		return out.toString();
+	}
+
+	/**
+	 * An executor running its tasks only when asked, so that the tests
+	 * control when events are delivered
+	 */
+	protected static class ManualExecutor implements Executor
+	{
+		protected final Queue<Runnable> m_tasks = new ArrayDeque<Runnable>();
+
+		@Override
+		public void execute(Runnable r)
+		{
+			m_tasks.add(r);
+		}
+
+		public void runAll()
+		{
+			Runnable r;
+			while ((r = m_tasks.poll()) != null)
+			{
+				r.run();
+			}
+		}
+	}
+}
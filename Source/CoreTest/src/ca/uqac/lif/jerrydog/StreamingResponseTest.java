@@ -0,0 +1,150 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.channels.Channels;
+
+import org.junit.Test;
+
+import ca.uqac.lif.jerrydog.CachedCallbackTest.FakeRequest;
+import ca.uqac.lif.jerrydog.RequestCallback.Method;
+
+import com.sun.net.httpserver.HttpExchange;
+
+public class StreamingResponseTest
+{
+	@Test
+	public void testInputStream() throws IOException
+	{
+		Server s = new Server();
+		s.registerCallback(new StreamCallback(0));
+		FakeRequest he = new FakeRequest("/stream");
+		s.handle(he);
+		assertEquals(CallbackResponse.HTTP_OK, he.getResponseCode());
+		assertEquals("abcdef", he.getResponseString());
+	}
+	
+	@Test
+	public void testChannel() throws IOException
+	{
+		Server s = new Server();
+		s.registerCallback(new StreamCallback(1));
+		FakeRequest he = new FakeRequest("/stream");
+		s.handle(he);
+		assertEquals("abc", he.getResponseString());
+	}
+	
+	@Test
+	public void testEmpty() throws IOException
+	{
+		final boolean[] closed = new boolean[1];
+		Server s = new Server();
+		s.registerCallback(new RestCallback(Method.GET, "/empty")
+		{
+			@Override
+			public CallbackResponse process(HttpExchange t)
+			{
+				CallbackResponse cbr = new CallbackResponse(t);
+				cbr.setContents(new ByteArrayInputStream(new byte[0])
+				{
+					@Override
+					public void close()
+					{
+						closed[0] = true;
+					}
+				}, 0);
+				return cbr;
+			}
+		});
+		FakeRequest he = new FakeRequest("/empty");
+		s.handle(he);
+		assertEquals("", he.getResponseString());
+		// The source of an empty body is closed as well
+		assertTrue(closed[0]);
+	}
+	
+	@Test(timeout = 5000)
+	public void testChunked() throws IOException
+	{
+		Server s = new Server();
+		s.setServerPort(12139);
+		s.registerCallback(new StreamCallback(2));
+		s.startServer();
+		try
+		{
+			HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:12139/stream").openConnection();
+			assertEquals(CallbackResponse.HTTP_OK, conn.getResponseCode());
+			assertEquals("chunked", conn.getHeaderField("Transfer-Encoding"));
+			byte[] body = InnerFileServer.readBytes(conn.getInputStream());
+			assertEquals(100000, body.length);
+			assertEquals('x', body[99999]);
+			conn.disconnect();
+		}
+		finally
+		{
+			s.stopServer();
+		}
+	}
+	
+	protected static class StreamCallback extends RestCallback
+	{
+		protected final int m_mode;
+		
+		public StreamCallback(int mode)
+		{
+			super(Method.GET, "/stream");
+			m_mode = mode;
+		}
+
+		@Override
+		public CallbackResponse process(HttpExchange t)
+		{
+			CallbackResponse cbr = new CallbackResponse(t);
+			byte[] data = "abcdef".getBytes();
+			switch (m_mode)
+			{
+			case 0:
+				cbr.setContents(new ByteArrayInputStream(data), -1);
+				break;
+			case 1:
+				cbr.setContents(Channels.newChannel(new ByteArrayInputStream(data)), 3);
+				break;
+			default:
+				cbr.setContents(new CallbackResponse.BodyWriter()
+				{
+					@Override
+					public void write(OutputStream out) throws IOException
+					{
+						for (int i = 0; i < 100000; i++)
+						{
+							out.write('x');
+						}
+					}
+				});
+			}
+			return cbr;
+		}
+	}
+}
@@ -0,0 +1,555 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.junit.Test;
+
+public class WebSocketTest
+{
+	protected static final int PORT = 12146;
+
+	@Test
+	public void testCodec() throws IOException
+	{
+		byte[] payload = new byte[300];
+		for (int i = 0; i < payload.length; i++)
+		{
+			payload[i] = (byte) i;
+		}
+		ByteBuffer in = ByteBuffer.allocateDirect(512);
+		in.put(Client.frame(WebSocketCodec.BINARY, true, payload)).flip();
+		WebSocketCodec codec = new WebSocketCodec();
+		// An incomplete header is left in the buffer
+		ByteBuffer part = in.duplicate();
+		part.limit(5);
+		assertFalse(codec.readHeader(part));
+		assertEquals(0, part.position());
+		assertTrue(codec.readHeader(in));
+		assertEquals(WebSocketCodec.BINARY, codec.getOpcode());
+		assertTrue(codec.isFin());
+		assertEquals(300, codec.getLength());
+		// The payload is unmasked in pieces of any size
+		int start = in.position();
+		for (int n : new int[] {3, 13, 284})
+		{
+			codec.unmask(in, n);
+			in.position(in.position() + n);
+		}
+		assertFalse(codec.isInFrame());
+		for (int i = 0; i < payload.length; i++)
+		{
+			assertEquals(payload[i], in.get(start + i));
+		}
+		ByteBuffer out = WebSocketCodec.encode(WebSocketCodec.TEXT, false, payload, 0, 300);
+		assertEquals(0x81, out.get(0) & 0xff);
+		assertEquals(126, out.get(1));
+		assertEquals(300, out.getShort(2));
+		assertEquals(304, out.remaining());
+	}
+
+	@Test
+	public void testInvalidFrames()
+	{
+		// Unmasked frame, unknown opcode, fragmented control frame
+		byte[][] frames = {{(byte) 0x81, 0x00}, {(byte) 0x83, (byte) 0x80, 0, 0, 0, 0}, {0x09, (byte) 0x80, 0, 0, 0, 0}};
+		for (byte[] frame : frames)
+		{
+			try
+			{
+				new WebSocketCodec().readHeader(ByteBuffer.wrap(Arrays.copyOf(frame, 6)));
+				fail("Frame accepted");
+			}
+			catch (WebSocketCodec.FrameException e)
+			{
+				assertEquals(WebSocketCodec.PROTOCOL_ERROR, e.getCode());
+			}
+		}
+	}
+
+	@Test
+	public void testDeflate() throws IOException
+	{
+		WebSocketCodec codec = new WebSocketCodec();
+		codec.enableDeflate(false);
+		byte[] text = repeat("compressible ", 100).getBytes("UTF-8");
+		for (int round = 0; round < 2; round++)
+		{
+			ByteBuffer frame = codec.encodeCompressed(WebSocketCodec.TEXT, text);
+			assertEquals(0xc1, frame.get(0) & 0xff);
+			byte[] compressed = Client.payload(frame);
+			assertTrue(compressed.length < text.length / 4);
+			int length = codec.inflate(compressed, compressed.length, 1 << 20);
+			assertArrayEquals(text, Arrays.copyOf(codec.getInflated(), length));
+		}
+		try
+		{
+			byte[] compressed = Client.payload(codec.encodeCompressed(WebSocketCodec.TEXT, text));
+			codec.inflate(compressed, compressed.length, 100);
+			fail("Message accepted");
+		}
+		catch (WebSocketCodec.FrameException e)
+		{
+			assertEquals(WebSocketCodec.MESSAGE_TOO_BIG, e.getCode());
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testServer() throws IOException, InterruptedException
+	{
+		EchoEndpoint endpoint = new EchoEndpoint("/ws");
+		Server s = startServer(endpoint);
+		try
+		{
+			Client c = new Client(new Socket("localhost", PORT));
+			String head = c.handshake("/ws", "Sec-WebSocket-Protocol: chat, other\r\n");
+			assertTrue(head.startsWith("HTTP/1.1 101 "));
+			// The example of RFC 6455
+			assertTrue(head.contains("Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo=\r\n"));
+			assertTrue(head.contains("Sec-WebSocket-Protocol: chat\r\n"));
+			assertFalse(head.contains("Sec-WebSocket-Extensions"));
+			assertEquals("open", endpoint.m_events.poll(5, TimeUnit.SECONDS));
+			c.send(WebSocketCodec.TEXT, true, false, "h\u00e9llo".getBytes("UTF-8"));
+			assertEquals("echo:h\u00e9llo", new String(c.read(WebSocketCodec.TEXT), "UTF-8"));
+			// Control frames may come between the fragments of a message
+			c.send(WebSocketCodec.TEXT, false, false, "ab".getBytes("UTF-8"));
+			c.send(WebSocketCodec.PING, true, false, "p".getBytes("UTF-8"));
+			c.send(WebSocketCodec.CONTINUATION, true, false, "cd".getBytes("UTF-8"));
+			assertEquals("p", new String(c.read(WebSocketCodec.PONG), "UTF-8"));
+			assertEquals("echo:abcd", new String(c.read(WebSocketCodec.TEXT), "UTF-8"));
+			byte[] large = new byte[100000];
+			large[99999] = 7;
+			c.send(WebSocketCodec.BINARY, true, false, large);
+			assertArrayEquals(large, c.read(WebSocketCodec.BINARY));
+			c.send(WebSocketCodec.CLOSE, true, false, new byte[] {0x03, (byte) 0xe8, 'b', 'y', 'e'});
+			assertArrayEquals(new byte[] {0x03, (byte) 0xe8}, c.read(WebSocketCodec.CLOSE));
+			assertEquals(-1, c.m_in.read());
+			c.m_socket.close();
+			assertEquals("close:1000:bye", endpoint.m_events.poll(5, TimeUnit.SECONDS));
+		}
+		finally
+		{
+			s.stopServer();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testProtocolError() throws IOException, InterruptedException
+	{
+		EchoEndpoint endpoint = new EchoEndpoint("/ws");
+		Server s = startServer(endpoint);
+		try
+		{
+			Client c = new Client(new Socket("localhost", PORT));
+			c.handshake("/ws", "");
+			assertEquals("open", endpoint.m_events.poll(5, TimeUnit.SECONDS));
+			// Invalid UTF-8
+			c.send(WebSocketCodec.TEXT, true, false, new byte[] {(byte) 0xc3, 0x28});
+			byte[] close = c.read(WebSocketCodec.CLOSE);
+			assertEquals(WebSocketCodec.INVALID_DATA, ByteBuffer.wrap(close).getShort());
+			assertEquals("close:1007:Invalid UTF-8 text", endpoint.m_events.poll(5, TimeUnit.SECONDS));
+			c.m_socket.close();
+			// A request without a key is refused
+			Client c2 = new Client(new Socket("localhost", PORT));
+			c2.m_out.write("GET /ws HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n\r\n".getBytes("ISO-8859-1"));
+			assertTrue(c2.readHead().startsWith("HTTP/1.1 400 "));
+			c2.m_socket.close();
+		}
+		finally
+		{
+			s.stopServer();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testCompression() throws IOException, InterruptedException
+	{
+		EchoEndpoint endpoint = new EchoEndpoint("/ws");
+		Server s = startServer(endpoint);
+		try
+		{
+			Client c = new Client(new Socket("localhost", PORT));
+			String head = c.handshake("/ws", "Sec-WebSocket-Extensions: permessage-deflate; server_max_window_bits=10, permessage-deflate; client_max_window_bits\r\n");
+			// The first offer asks for a window the server cannot use
+			assertTrue(head.contains("Sec-WebSocket-Extensions: permessage-deflate\r\n"));
+			String text = repeat("compressible ", 100);
+			Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+			Inflater inflater = new Inflater(true);
+			for (int round = 0; round < 2; round++)
+			{
+				c.send(WebSocketCodec.TEXT, true, true, Client.deflate(deflater, text.getBytes("UTF-8")));
+				byte[] echo = c.read(WebSocketCodec.TEXT);
+				assertTrue(c.m_rsv1);
+				assertEquals("echo:" + text, new String(Client.inflate(inflater, echo), "UTF-8"));
+			}
+			// Short messages are not worth compressing
+			c.send(WebSocketCodec.TEXT, true, false, "hi".getBytes("UTF-8"));
+			assertEquals("echo:hi", new String(c.read(WebSocketCodec.TEXT), "UTF-8"));
+			assertFalse(c.m_rsv1);
+			c.m_socket.close();
+			assertEquals("open", endpoint.m_events.poll(5, TimeUnit.SECONDS));
+			assertEquals("close:1006:", endpoint.m_events.poll(5, TimeUnit.SECONDS));
+		}
+		finally
+		{
+			s.stopServer();
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void testBackpressure() throws IOException, InterruptedException
+	{
+		FloodEndpoint endpoint = new FloodEndpoint("/flood");
+		endpoint.setCompression(false).setMaxQueuedBytes(65536);
+		Server s = startServer(endpoint);
+		try
+		{
+			Client c = new Client(new Socket("localhost", PORT));
+			c.handshake("/flood", "");
+			// The client reads nothing: the queue of the socket fills up
+			Integer sent = endpoint.m_sent.poll(10, TimeUnit.SECONDS);
+			assertNotNull(sent);
+			assertTrue(sent > 0 && sent < 2000);
+			assertTrue(endpoint.m_socket.getQueuedBytes() <= 65536 + 65536);
+			// Once the client reads, the queue drains
+			for (int i = 0; i < sent; i++)
+			{
+				assertEquals(65536, c.read(WebSocketCodec.BINARY).length);
+			}
+			assertEquals(0, endpoint.m_socket.getQueuedBytes());
+			c.m_socket.close();
+		}
+		finally
+		{
+			s.stopServer();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testJdkTransport() throws IOException
+	{
+		Server s = new Server();
+		s.setServerPort(PORT);
+		s.registerWebSocket(new EchoEndpoint("/ws"));
+		s.startServer();
+		try
+		{
+			Client c = new Client(new Socket("localhost", PORT));
+			c.handshake("/ws", "");
+			fail("Cannot switch protocols on this transport");
+		}
+		catch (IOException e)
+		{
+			assertTrue(e.getMessage().startsWith("HTTP/1.1 501 "));
+		}
+		finally
+		{
+			s.stopServer();
+		}
+	}
+
+	protected static Server startServer(WebSocketEndpoint endpoint) throws IOException
+	{
+		Server s = new Server();
+		s.setServerPort(PORT);
+		s.setTransport(new NioTransport(1));
+		s.setWorkerPool(WorkerPool.fixed(2));
+		s.registerWebSocket(endpoint);
+		s.startServer();
+		return s;
+	}
+
+	protected static String repeat(String s, int times)
+	{
+		StringBuilder out = new StringBuilder();
+		for (int i = 0; i < times; i++)
+		{
+			out.append(s);
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Echoes the messages it receives, and records the other events
+	 */
+	protected static class EchoEndpoint extends WebSocketEndpoint
+	{
+		protected final BlockingQueue<String> m_events = new LinkedBlockingQueue<String>();
+
+		public EchoEndpoint(String path)
+		{
+			super(path);
+			setSubprotocols("chat");
+		}
+
+		@Override
+		public void onOpen(WebSocket ws)
+		{
+			m_events.add("open");
+		}
+
+		@Override
+		public void onMessage(WebSocket ws, String text)
+		{
+			try
+			{
+				ws.sendText("echo:" + text);
+			}
+			catch (IOException e)
+			{
+				m_events.add("error");
+			}
+		}
+
+		@Override
+		public void onMessage(WebSocket ws, byte[] data)
+		{
+			try
+			{
+				ws.sendBinary(data);
+			}
+			catch (IOException e)
+			{
+				m_events.add("error");
+			}
+		}
+
+		@Override
+		public void onClose(WebSocket ws, int code, String reason)
+		{
+			m_events.add("close:" + code + ":" + reason);
+		}
+	}
+
+	/**
+	 * Sends messages to a new socket until its queue is full
+	 */
+	protected static class FloodEndpoint extends WebSocketEndpoint
+	{
+		protected final BlockingQueue<Integer> m_sent = new LinkedBlockingQueue<Integer>();
+
+		protected volatile WebSocket m_socket;
+
+		public FloodEndpoint(String path)
+		{
+			super(path);
+		}
+
+		@Override
+		public void onOpen(WebSocket ws)
+		{
+			m_socket = ws;
+			try
+			{
+				int sent = 0;
+				while (sent < 2000 && ws.trySendBinary(new byte[65536]))
+				{
+					sent++;
+				}
+				m_sent.add(sent);
+			}
+			catch (IOException e)
+			{
+				m_sent.add(-1);
+			}
+		}
+	}
+
+	/**
+	 * A client writing and reading raw frames
+	 */
+	protected static class Client
+	{
+		protected final Socket m_socket;
+
+		protected final DataInputStream m_in;
+
+		protected final OutputStream m_out;
+
+		/**
+		 * Whether the RSV1 bit of the last frame read is set
+		 */
+		protected boolean m_rsv1;
+
+		public Client(Socket sock) throws IOException
+		{
+			super();
+			m_socket = sock;
+			m_in = new DataInputStream(sock.getInputStream());
+			m_out = sock.getOutputStream();
+		}
+
+		/**
+		 * Opens a socket
+		 * @param path The path of the request
+		 * @param headers Other headers of the request
+		 * @return The head of the 101 response
+		 * @throws IOException If the response is another one, whose first
+		 * line is the message of the exception
+		 */
+		public String handshake(String path, String headers) throws IOException
+		{
+			m_out.write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+					+ "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\nSec-WebSocket-Version: 13\r\n" + headers + "\r\n").getBytes("ISO-8859-1"));
+			String head = readHead();
+			if (!head.startsWith("HTTP/1.1 101 "))
+			{
+				throw new IOException(head.substring(0, head.indexOf('\r')));
+			}
+			return head;
+		}
+
+		public String readHead() throws IOException
+		{
+			StringBuilder head = new StringBuilder();
+			while (!head.toString().endsWith("\r\n\r\n"))
+			{
+				head.append((char) m_in.readUnsignedByte());
+			}
+			return head.toString();
+		}
+
+		public void send(int opcode, boolean fin, boolean rsv1, byte[] payload) throws IOException
+		{
+			byte[] frame = frame(opcode, fin, payload);
+			if (rsv1)
+			{
+				frame[0] |= 0x40;
+			}
+			m_out.write(frame);
+		}
+
+		/**
+		 * Reads a frame
+		 * @param opcode The expected opcode of the frame
+		 * @return The payload of the frame
+		 */
+		public byte[] read(int opcode) throws IOException
+		{
+			int b0 = m_in.readUnsignedByte();
+			int b1 = m_in.readUnsignedByte();
+			assertEquals(opcode, b0 & 0x0f);
+			assertEquals(0x80, b0 & 0x80);
+			// Frames of the server are not masked
+			assertEquals(0, b1 & 0x80);
+			m_rsv1 = (b0 & 0x40) != 0;
+			long length = b1;
+			if (length == 126)
+			{
+				length = m_in.readUnsignedShort();
+			}
+			else if (length == 127)
+			{
+				length = m_in.readLong();
+			}
+			byte[] payload = new byte[(int) length];
+			m_in.readFully(payload);
+			return payload;
+		}
+
+		/**
+		 * Writes a masked frame
+		 */
+		public static byte[] frame(int opcode, boolean fin, byte[] payload)
+		{
+			ByteBuffer b = ByteBuffer.allocate(payload.length + 14);
+			b.put((byte) ((fin ? 0x80 : 0) | opcode));
+			if (payload.length < 126)
+			{
+				b.put((byte) (0x80 | payload.length));
+			}
+			else if (payload.length < 65536)
+			{
+				b.put((byte) (0x80 | 126)).putShort((short) payload.length);
+			}
+			else
+			{
+				b.put((byte) (0x80 | 127)).putLong(payload.length);
+			}
+			byte[] mask = {0x12, 0x34, 0x56, 0x78};
+			b.put(mask);
+			for (int i = 0; i < payload.length; i++)
+			{
+				b.put((byte) (payload[i] ^ mask[i % 4]));
+			}
+			return Arrays.copyOf(b.array(), b.position());
+		}
+
+		/**
+		 * Gets the payload of a frame written by the server
+		 */
+		public static byte[] payload(ByteBuffer frame)
+		{
+			int length = frame.get(1) & 0x7f;
+			int start = length == 126 ? 4 : (length == 127 ? 10 : 2);
+			return Arrays.copyOfRange(frame.array(), start, frame.limit());
+		}
+
+		public static byte[] deflate(Deflater deflater, byte[] data)
+		{
+			deflater.setInput(data);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1024];
+			int n;
+			do
+			{
+				n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+				out.write(buffer, 0, n);
+			} while (n == buffer.length);
+			byte[] compressed = out.toByteArray();
+			return Arrays.copyOf(compressed, compressed.length - 4);
+		}
+
+		public static byte[] inflate(Inflater inflater, byte[] data) throws IOException
+		{
+			byte[] input = Arrays.copyOf(data, data.length + 4);
+			input[data.length + 2] = (byte) 0xff;
+			input[data.length + 3] = (byte) 0xff;
+			inflater.setInput(input);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1024];
+			try
+			{
+				int n;
+				while ((n = inflater.inflate(buffer)) > 0)
+				{
+					out.write(buffer, 0, n);
+				}
+			}
+			catch (java.util.zip.DataFormatException e)
+			{
+				throw new IOException(e);
+			}
+			return out.toByteArray();
+		}
+	}
+}
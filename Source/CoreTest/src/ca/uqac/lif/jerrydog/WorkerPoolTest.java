@@ -0,0 +1,208 @@
+/*
+    Jerrydog, a lightweight web application server in Java
+    Copyright (C) 2015-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.jerrydog;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+
+public class WorkerPoolTest
+{
+	@Test(timeout = 5000)
+	public void testFixedPool() throws Exception
+	{
+		WorkerPool pool = WorkerPool.fixed(4);
+		assertEquals(WorkerPool.Mode.FIXED, pool.getMode());
+		assertEquals(4, pool.getMaxThreads());
+		runConcurrentRequests(pool, 12136);
+	}
+	
+	@Test(timeout = 5000)
+	public void testWorkStealingPool() throws Exception
+	{
+		WorkerPool pool = WorkerPool.workStealing(4);
+		assertEquals(WorkerPool.Mode.WORK_STEALING, pool.getMode());
+		runConcurrentRequests(pool, 12137);
+	}
+	
+	@Test(timeout = 5000)
+	public void testVirtualPool() throws Exception
+	{
+		// Falls back to platform threads on runtimes without virtual threads
+		WorkerPool pool = WorkerPool.virtual();
+		assertEquals(WorkerPool.Mode.VIRTUAL, pool.getMode());
+		runConcurrentRequests(pool, 12138);
+	}
+	
+	@Test
+	public void testShutdown()
+	{
+		WorkerPool pool = WorkerPool.fixed(1, 1);
+		pool.shutdown(0);
+		try
+		{
+			pool.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					// Nothing to do
+				}
+			});
+			fail("Task accepted by a pool that is shut down");
+		}
+		catch (RejectedExecutionException e)
+		{
+			// Expected
+		}
+		assertEquals(0, pool.getSubmittedCount());
+		assertEquals(0, pool.getCallerRunsCount());
+	}
+	
+	@Test(timeout = 5000)
+	public void testRestart() throws Exception
+	{
+		Server s = new Server();
+		s.setServerPort(12147);
+		s.setWorkerMode(WorkerPool.Mode.FIXED);
+		WorkerPool first = s.getWorkerPool();
+		s.setWorkerMode(WorkerPool.Mode.FIXED);
+		// The replaced pool does not linger
+		assertTrue(first.isShutdown());
+		s.registerCallback(new HelloCallback());
+		for (int i = 0; i < 2; i++)
+		{
+			s.startServer();
+			try
+			{
+				assertFalse(s.getWorkerPool().isShutdown());
+				HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:12147/hello").openConnection();
+				assertEquals(CallbackResponse.HTTP_OK, conn.getResponseCode());
+				conn.disconnect();
+			}
+			finally
+			{
+				s.stopServer();
+			}
+		}
+		assertEquals(WorkerPool.Mode.FIXED, s.getWorkerPool().getMode());
+	}
+	
+	/**
+	 * Sends requests to a callback that only answers once three requests
+	 * are being processed at the same time. This can only succeed if the
+	 * server runs callbacks concurrently.
+	 */
+	protected static void runConcurrentRequests(WorkerPool pool, int port) throws Exception
+	{
+		final int num_requests = 3;
+		Server s = new Server();
+		s.setServerPort(port);
+		s.setWorkerPool(pool);
+		s.registerCallback(new BarrierCallback(num_requests));
+		s.startServer();
+		try
+		{
+			Thread[] clients = new Thread[num_requests];
+			final int[] codes = new int[num_requests];
+			for (int i = 0; i < num_requests; i++)
+			{
+				final int index = i;
+				final URL url = new URL("http://localhost:" + port + "/slow");
+				clients[i] = new Thread()
+				{
+					@Override
+					public void run()
+					{
+						try
+						{
+							HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+							codes[index] = conn.getResponseCode();
+							conn.disconnect();
+						}
+						catch (IOException e)
+						{
+							codes[index] = -1;
+						}
+					}
+				};
+				clients[i].start();
+			}
+			for (Thread t : clients)
+			{
+				t.join();
+			}
+			for (int code : codes)
+			{
+				assertEquals(CallbackResponse.HTTP_OK, code);
+			}
+			// The underlying server may also hand housekeeping tasks to the pool
+			assertTrue(pool.getSubmittedCount() >= num_requests);
+			assertTrue(pool.getPeakActiveCount() >= num_requests);
+		}
+		finally
+		{
+			s.stopServer();
+		}
+		assertTrue(pool.isShutdown());
+	}
+	
+	protected static class BarrierCallback extends RequestCallback
+	{
+		protected final CountDownLatch m_latch;
+		
+		public BarrierCallback(int count)
+		{
+			super();
+			m_latch = new CountDownLatch(count);
+		}
+		
+		@Override
+		public boolean fire(HttpExchange t)
+		{
+			return true;
+		}
+
+		@Override
+		public CallbackResponse process(HttpExchange t)
+		{
+			m_latch.countDown();
+			try
+			{
+				if (!m_latch.await(2, TimeUnit.SECONDS))
+				{
+					return new CallbackResponse(t, CallbackResponse.HTTP_INTERNAL_SERVER_ERROR, "", "");
+				}
+			}
+			catch (InterruptedException e)
+			{
+				return null;
+			}
+			return new CallbackResponse(t);
+		}
+	}
+}